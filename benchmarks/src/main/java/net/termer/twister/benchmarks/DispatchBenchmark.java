@@ -0,0 +1,125 @@
+package net.termer.twister.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.termer.twister.Twister;
+import net.termer.twister.handler.RouteHandler;
+import net.termer.twister.utils.Method;
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+
+/**
+ * Benchmarks Twister.handleRequest(), from determining the domain to returning the response body,
+ * with different amounts of route handlers registered and different kinds of requests.
+ * Requests are made with SyntheticRequest and SyntheticResponse, so Jetty and the network are left out.
+ * @author termer
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	// handleRequest() is private, since only Spark is meant to call it
+	private static final MethodHandle HANDLE_REQUEST;
+	
+	static {
+		try {
+			java.lang.reflect.Method method = Twister.class.getDeclaredMethod("handleRequest", Request.class, Response.class, int.class);
+			method.setAccessible(true);
+			HANDLE_REQUEST = MethodHandles.lookup().unreflect(method);
+		} catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	/**
+	 * The amount of route handlers registered for the domain
+	 * @since 1.1
+	 */
+	@Param({"1", "64", "1024"})
+	public int routes;
+	
+	/**
+	 * What is requested: a page, the last registered route, a missing file, a redirect, or a page through a linked domain
+	 * @since 1.1
+	 */
+	@Param({"page", "route", "missing", "redirect", "linked"})
+	public String target;
+	
+	private Twister _TWISTER_ = null;
+	private SyntheticRequest _REQUEST_ = null;
+	private SyntheticResponse _RESPONSE_ = new SyntheticResponse();
+	private RouteHandler _HANDLER_ = (req, res, wildcards) -> wildcards[0];
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		_TWISTER_ = Fixtures.start();
+		for(int i = 0; i < routes; i++) {
+			_TWISTER_.addRouteHandler(Fixtures.DOMAIN, route(i), _HANDLER_, Method.GET);
+		}
+		
+		String host = Fixtures.DOMAIN;
+		String path = null;
+		switch(target) {
+			case "page":
+				path = "/page-1024.html";
+				break;
+			case "route":
+				path = "/api/r"+(routes-1)+"/items/42";
+				break;
+			case "missing":
+				path = "/missing.html";
+				break;
+			case "redirect":
+				path = "/old";
+				break;
+			case "linked":
+				host = Fixtures.LINKED_DOMAIN;
+				path = "/page-1024.html";
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown target "+target);
+		}
+		_REQUEST_ = new SyntheticRequest(host, path);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for(int i = 0; i < routes; i++) {
+			_TWISTER_.removeRouteHandler(Fixtures.DOMAIN, route(i), Method.GET);
+		}
+	}
+	
+	@Benchmark
+	public String handleRequest(Blackhole bh) throws Throwable {
+		_RESPONSE_.reset();
+		String r = (String) HANDLE_REQUEST.invokeExact(_TWISTER_, RequestResponseFactory.create(_REQUEST_), RequestResponseFactory.create(_RESPONSE_), Method.GET);
+		bh.consume(_RESPONSE_.getWritten());
+		return r;
+	}
+	
+	private static String route(int i) {
+		return "/api/r"+i+"/items/*";
+	}
+}
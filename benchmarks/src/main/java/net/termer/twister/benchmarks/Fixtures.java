@@ -0,0 +1,196 @@
+package net.termer.twister.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import net.termer.twister.Launcher;
+import net.termer.twister.Twister;
+import spark.Spark;
+
+/**
+ * Generates the synthetic domains/ tree benchmarks run against, and starts Twister on top of it.
+ * Files are written to the working directory, which must be empty or have been created by a previous run.
+ * @author termer
+ * @since 1.1
+ */
+public class Fixtures {
+	/**
+	 * The domain pages are generated for
+	 * @since 1.1
+	 */
+	public static final String DOMAIN = "bench.local";
+	
+	/**
+	 * A domain linked to DOMAIN in linkeddomains.ini
+	 * @since 1.1
+	 */
+	public static final String LINKED_DOMAIN = "alias.local";
+	
+	/**
+	 * The sizes in bytes of the generated pages, which are available at /page-SIZE.html
+	 * @since 1.1
+	 */
+	public static final int[] PAGE_SIZES = {1024, 65536, 1048576};
+	
+	/**
+	 * The amounts of script blocks in the generated scripting pages, which are available at /script-COUNT.html
+	 * @since 1.1
+	 */
+	public static final int[] SCRIPT_BLOCKS = {0, 1, 16, 64};
+	
+	// Marks a directory as created by the benchmarks, so files in it may be overwritten
+	private static final String MARKER = ".twister-benchmarks";
+	
+	private static boolean _STARTED_ = false;
+	
+	/**
+	 * Writes the fixtures for DOMAIN into the working directory, with scripting disabled
+	 * @throws IOException if writing the fixtures fails
+	 * @throws IllegalStateException if the working directory contains files that were not written by the benchmarks
+	 * @since 1.1
+	 */
+	public static void generate() throws IOException {
+		generate(0, false);
+	}
+	
+	/**
+	 * Writes the fixtures into the working directory.
+	 * Besides DOMAIN, sites named site1.local, site2.local, and so on are generated, each with its own linked www. domain.
+	 * @param sites the amount of extra sites to generate
+	 * @param scripting whether scripting is enabled in twister.ini
+	 * @throws IOException if writing the fixtures fails
+	 * @throws IllegalStateException if the working directory contains files that were not written by the benchmarks
+	 * @since 1.1
+	 */
+	public static synchronized void generate(int sites, boolean scripting) throws IOException {
+		File cwd = new File(".").getAbsoluteFile();
+		String[] existing = cwd.list();
+		if(existing != null && existing.length > 0 && !new File(MARKER).exists()) {
+			throw new IllegalStateException("Benchmarks write twister.ini and domains/ into the working directory, run them from an empty directory instead of "+cwd);
+		}
+		write(MARKER, "");
+		
+		write("twister.ini",
+			"ip: 127.0.0.1\n"+
+			"port: 0\n"+
+			"default-domain: "+DOMAIN+"\n"+
+			"log-console: false\n"+
+			"scripting: "+scripting+"\n"+
+			"page-cache: false\n"+
+			"compression: false\n");
+		write("forbiddenpaths.ini", "/private\n/**/.git\n");
+		write("404.html", "<h1>Not found</h1>\n");
+		
+		StringBuilder linked = new StringBuilder(LINKED_DOMAIN+">"+DOMAIN+"\n");
+		writeSite(DOMAIN);
+		for(int i = 1; i <= sites; i++) {
+			writeSite(site(i));
+			linked.append("www.").append(site(i)).append('>').append(site(i)).append('\n');
+		}
+		write("linkeddomains.ini", linked.toString());
+	}
+	
+	/**
+	 * Generates the fixtures for DOMAIN and starts Twister on a random port, unless it was already started
+	 * @return the running Twister instance
+	 * @throws IOException if writing the fixtures fails
+	 * @since 1.1
+	 */
+	public static Twister start() throws IOException {
+		return start(0, false);
+	}
+	
+	/**
+	 * Generates the fixtures and starts Twister on a random port, unless it was already started
+	 * @param sites the amount of extra sites to generate
+	 * @param scripting whether scripting is enabled in twister.ini
+	 * @return the running Twister instance
+	 * @throws IOException if writing the fixtures fails
+	 * @since 1.1
+	 */
+	public static synchronized Twister start(int sites, boolean scripting) throws IOException {
+		if(!_STARTED_) {
+			generate(sites, scripting);
+			Launcher.main(new String[0]);
+			Spark.awaitInitialization();
+			_STARTED_ = true;
+		}
+		return Twister.current();
+	}
+	
+	/**
+	 * Returns the name of a generated site
+	 * @param i the number of the site, starting at 1
+	 * @return the site's domain
+	 * @since 1.1
+	 */
+	public static String site(int i) {
+		return "site"+i+".local";
+	}
+	
+	/**
+	 * Returns the port Twister is listening on
+	 * @return the port
+	 * @since 1.1
+	 */
+	public static int port() {
+		return Spark.port();
+	}
+	
+	/**
+	 * Generates an HTML page body of roughly the specified size
+	 * @param size the size in bytes
+	 * @return the page body
+	 * @since 1.1
+	 */
+	public static String page(int size) {
+		StringBuilder sb = new StringBuilder(size+128);
+		sb.append("<h1>{{title}}</h1>\n");
+		int i = 0;
+		while(sb.length() < size) {
+			sb.append("<p id=\"p").append(i++).append("\">Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.</p>\n");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Generates a page body with the specified amount of script blocks, separated by text
+	 * @param blocks the amount of script blocks
+	 * @return the page body
+	 * @since 1.1
+	 */
+	public static String scriptPage(int blocks) {
+		StringBuilder sb = new StringBuilder("<h1>Scripting</h1>\n");
+		for(int i = 0; i < blocks; i++) {
+			sb.append("<p>Block ").append(i).append(": <?java out.append(domain+\" \"+(").append(i).append("*2)); ?></p>\n");
+		}
+		sb.append("<p>Done</p>\n");
+		return sb.toString();
+	}
+	
+	// Writes the pages of a domain
+	private static void writeSite(String domain) throws IOException {
+		String dir = "domains/"+domain+"/";
+		write(dir+"top.html", "<!DOCTYPE html>\n<html>\n<head><title>Benchmark</title></head>\n<body>\n");
+		write(dir+"bottom.html", "</body>\n</html>\n");
+		write(dir+"index.html", page(1024));
+		write(dir+"redirects.ini", "/old>/index.html\n");
+		write(dir+"style.css", "body { font-family: sans-serif; }\n");
+		for(int size : PAGE_SIZES) {
+			write(dir+"page-"+size+".html", page(size));
+		}
+		for(int blocks : SCRIPT_BLOCKS) {
+			write(dir+"script-"+blocks+".html", "<!--TES-->"+scriptPage(blocks));
+		}
+	}
+	
+	private static void write(String path, String content) throws IOException {
+		File file = new File(path);
+		if(file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+}
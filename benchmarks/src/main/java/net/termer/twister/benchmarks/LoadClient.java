@@ -0,0 +1,154 @@
+package net.termer.twister.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 client that sends GET requests over a single keep-alive connection.
+ * Response bodies are read and discarded. The connection is opened again if the server closes it.
+ * @author termer
+ * @since 1.1
+ */
+public class LoadClient {
+	private InetSocketAddress _ADDRESS_ = null;
+	private Socket _SOCKET_ = null;
+	private InputStream _IN_ = null;
+	private OutputStream _OUT_ = null;
+	private byte[] _BUFFER_ = new byte[16384];
+	private StringBuilder _LINE_ = new StringBuilder();
+	private long _CONNECTS_ = 0;
+	
+	/**
+	 * Creates a new client for the specified server. The connection is opened by the first request.
+	 * @param address the address of the server
+	 * @since 1.1
+	 */
+	public LoadClient(InetSocketAddress address) {
+		_ADDRESS_ = address;
+	}
+	
+	/**
+	 * Sends a GET request and reads the whole response
+	 * @param host the value of the Host header
+	 * @param path the path to request
+	 * @return the status code of the response
+	 * @throws IOException if the request fails
+	 * @since 1.1
+	 */
+	public int get(String host, String path) throws IOException {
+		if(_SOCKET_ == null) {
+			connect();
+		}
+		
+		_OUT_.write(("GET "+path+" HTTP/1.1\r\nHost: "+host+"\r\nAccept-Encoding: gzip\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		_OUT_.flush();
+		
+		String statusLine = readLine();
+		if(statusLine == null) {
+			throw new IOException("Connection closed before a response was received");
+		}
+		int status = Integer.parseInt(statusLine.substring(9, 12));
+		
+		// Headers
+		long length = -1;
+		boolean chunked = false;
+		boolean close = false;
+		String line = null;
+		while((line = readLine()) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if(colon > 0) {
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon+1).trim();
+				if(name.equalsIgnoreCase("Content-Length")) {
+					length = Long.parseLong(value);
+				} else if(name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.equalsIgnoreCase("chunked");
+				} else if(name.equalsIgnoreCase("Connection")) {
+					close = value.equalsIgnoreCase("close");
+				}
+			}
+		}
+		
+		// Body
+		if(chunked) {
+			long chunk = 0;
+			while((chunk = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+				skip(chunk);
+				readLine();
+			}
+			// Trailers
+			while((line = readLine()) != null && line.length() > 0) {}
+		} else if(length > -1) {
+			skip(length);
+		} else {
+			// The body ends when the connection does
+			close = true;
+			while(_IN_.read(_BUFFER_) > -1) {}
+		}
+		
+		if(close) {
+			close();
+		}
+		return status;
+	}
+	
+	/**
+	 * Returns how many times the client connected to the server
+	 * @return the amount of connections opened
+	 * @since 1.1
+	 */
+	public long getConnects() {
+		return _CONNECTS_;
+	}
+	
+	/**
+	 * Closes the connection
+	 * @since 1.1
+	 */
+	public void close() {
+		if(_SOCKET_ != null) {
+			try {
+				_SOCKET_.close();
+			} catch(IOException e) {
+				// Already closed
+			}
+			_SOCKET_ = null;
+		}
+	}
+	
+	private void connect() throws IOException {
+		_SOCKET_ = new Socket();
+		_SOCKET_.setTcpNoDelay(true);
+		_SOCKET_.connect(_ADDRESS_);
+		_IN_ = new BufferedInputStream(_SOCKET_.getInputStream(), 65536);
+		_OUT_ = _SOCKET_.getOutputStream();
+		_CONNECTS_++;
+	}
+	
+	// Reads a line without its line ending, or returns null if the stream ended
+	private String readLine() throws IOException {
+		_LINE_.setLength(0);
+		int b = 0;
+		while((b = _IN_.read()) > -1 && b != '\n') {
+			if(b != '\r') {
+				_LINE_.append((char) b);
+			}
+		}
+		return b < 0 && _LINE_.length() == 0 ? null : _LINE_.toString();
+	}
+	
+	private void skip(long amount) throws IOException {
+		while(amount > 0) {
+			int read = _IN_.read(_BUFFER_, 0, (int) Math.min(_BUFFER_.length, amount));
+			if(read < 0) {
+				throw new IOException("Connection closed in the middle of a response body");
+			}
+			amount -= read;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package net.termer.twister.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import net.termer.twister.Twister;
+import net.termer.twister.utils.Method;
+
+/**
+ * End-to-end load test. Starts Twister on a random port on top of generated fixtures
+ * (several sites with linked domains, redirects, route handlers, and scripting pages),
+ * drives it with concurrent keep-alive HTTP connections, and reports throughput and latency percentiles.
+ * Run it from an empty directory, like the JMH benchmarks.
+ * Options:
+ *   --connections N  the amount of concurrent connections (default 16)
+ *   --duration S     the amount of seconds to measure for (default 30)
+ *   --warmup S       the amount of seconds to run before measuring (default 10)
+ *   --sites N        the amount of extra sites to generate (default 4)
+ *   --rate N         the total amount of requests per second to send, or 0 to send as fast as possible (default 0).
+ *                    With a fixed rate, latency is measured from when each request should have been sent.
+ *   --hgrm FILE      also write the percentile distribution to FILE
+ *   --no-scripting   disable scripting
+ * @author termer
+ * @since 1.1
+ */
+public class LoadTest {
+	// Latencies above this are recorded as this
+	private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(1);
+	
+	private static volatile boolean _RECORDING_ = false;
+	private static volatile boolean _RUNNING_ = true;
+	
+	public static void main(String[] args) throws Exception {
+		int connections = 16;
+		int duration = 30;
+		int warmup = 10;
+		int sites = 4;
+		int rate = 0;
+		String hgrm = null;
+		boolean scripting = true;
+		
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--no-scripting")) {
+				scripting = false;
+			} else if(i+1 < args.length) {
+				String value = args[++i];
+				if(arg.equals("--connections")) {
+					connections = Integer.parseInt(value);
+				} else if(arg.equals("--duration")) {
+					duration = Integer.parseInt(value);
+				} else if(arg.equals("--warmup")) {
+					warmup = Integer.parseInt(value);
+				} else if(arg.equals("--sites")) {
+					sites = Integer.parseInt(value);
+				} else if(arg.equals("--rate")) {
+					rate = Integer.parseInt(value);
+				} else if(arg.equals("--hgrm")) {
+					hgrm = value;
+				} else {
+					usage("Unknown option "+arg);
+				}
+			} else {
+				usage("Missing value for "+arg);
+			}
+		}
+		
+		// Start the server
+		Twister twister = Fixtures.start(sites, scripting);
+		String[] domains = new String[sites+1];
+		domains[0] = Fixtures.DOMAIN;
+		for(int i = 1; i <= sites; i++) {
+			domains[i] = Fixtures.site(i);
+		}
+		for(String domain : domains) {
+			twister.addRouteHandler(domain, "/api/users/*", (req, res, wildcards) -> "{\"user\":\""+wildcards[0]+"\"}", Method.GET);
+		}
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", Fixtures.port());
+		Target[] mix = mix(domains, scripting);
+		
+		System.out.println("Load testing Twister on port "+address.getPort()+" with "+connections+" connections, "+
+			(rate > 0 ? rate+" requests per second" : "as fast as possible")+", "+warmup+"s warmup and "+duration+"s measurement");
+		
+		// Start the clients, which run until the end of the measurement
+		ArrayList<Worker> workers = new ArrayList<Worker>();
+		long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1)*connections/rate : 0;
+		for(int i = 0; i < connections; i++) {
+			Worker worker = new Worker(new LoadClient(address), mix, interval, i);
+			worker.start();
+			workers.add(worker);
+		}
+		
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+		long start = System.nanoTime();
+		_RECORDING_ = true;
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		_RECORDING_ = false;
+		long elapsed = System.nanoTime()-start;
+		_RUNNING_ = false;
+		
+		// Combine the results of all clients
+		Histogram histogram = new Histogram(MAX_LATENCY, 3);
+		TreeMap<Integer,Long> statuses = new TreeMap<Integer,Long>();
+		long errors = 0;
+		long connects = 0;
+		for(Worker worker : workers) {
+			worker.join();
+			histogram.add(worker.histogram);
+			for(Map.Entry<Integer,Long> status : worker.statuses.entrySet()) {
+				statuses.merge(status.getKey(), status.getValue(), Long::sum);
+			}
+			errors += worker.errors;
+			connects += worker.client.getConnects();
+		}
+		
+		double seconds = elapsed/1e9;
+		System.out.println();
+		System.out.printf("Requests:     %d in %.1fs, %.1f requests per second%n", histogram.getTotalCount(), seconds, histogram.getTotalCount()/seconds);
+		System.out.println("Errors:       "+errors);
+		System.out.println("Connections:  "+connects+" opened");
+		System.out.println("Status codes: "+statuses);
+		System.out.printf("Latency (ms): p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+			histogram.getValueAtPercentile(50)/1e6,
+			histogram.getValueAtPercentile(99)/1e6,
+			histogram.getValueAtPercentile(99.9)/1e6,
+			histogram.getMaxValue()/1e6);
+		System.out.println();
+		histogram.outputPercentileDistribution(System.out, 1e6);
+		
+		if(hgrm != null) {
+			PrintStream out = new PrintStream(new FileOutputStream(hgrm));
+			histogram.outputPercentileDistribution(out, 1e6);
+			out.close();
+		}
+		
+		twister.shutdown();
+	}
+	
+	// Builds the request mix, weighted to look like traffic to a few small sites
+	private static Target[] mix(String[] domains, boolean scripting) {
+		ArrayList<Target> targets = new ArrayList<Target>();
+		for(int i = 0; i < domains.length; i++) {
+			String domain = domains[i];
+			// Requests for the first site come through its linked domain
+			String linked = i == 0 ? Fixtures.LINKED_DOMAIN : "www."+domain;
+			
+			add(targets, 20, domain, "/");
+			add(targets, 20, domain, "/page-1024.html");
+			add(targets, 5, linked, "/page-1024.html");
+			add(targets, 5, domain, "/page-65536.html");
+			add(targets, 10, domain, "/style.css");
+			add(targets, 15, domain, "/api/users/"+i);
+			add(targets, 5, domain, "/old");
+			add(targets, 5, domain, "/missing.html");
+			add(targets, 1, domain, "/private/notes.txt");
+			if(scripting) {
+				add(targets, 10, domain, "/script-16.html");
+			}
+		}
+		return targets.toArray(new Target[0]);
+	}
+	
+	private static void add(ArrayList<Target> targets, int weight, String host, String path) {
+		Target target = new Target(host, path);
+		for(int i = 0; i < weight; i++) {
+			targets.add(target);
+		}
+	}
+	
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: LoadTest [--connections N] [--duration S] [--warmup S] [--sites N] [--rate N] [--hgrm FILE] [--no-scripting]");
+		System.exit(1);
+	}
+	
+	// A host and path to request
+	private static class Target {
+		private String host = null;
+		private String path = null;
+		
+		private Target(String host, String path) {
+			this.host = host;
+			this.path = path;
+		}
+	}
+	
+	// Thread that sends requests over one connection and records their latency
+	private static class Worker extends Thread {
+		private LoadClient client = null;
+		private Target[] mix = null;
+		private long interval = 0;
+		private Random random = null;
+		private Histogram histogram = new Histogram(MAX_LATENCY, 3);
+		private TreeMap<Integer,Long> statuses = new TreeMap<Integer,Long>();
+		private long errors = 0;
+		
+		private Worker(LoadClient client, Target[] mix, long interval, int id) {
+			setName("Load Client "+id);
+			this.client = client;
+			this.mix = mix;
+			this.interval = interval;
+			// Every run sends the same sequence of requests
+			this.random = new Random(id);
+		}
+		
+		public void run() {
+			long next = System.nanoTime();
+			while(_RUNNING_) {
+				Target target = mix[random.nextInt(mix.length)];
+				
+				long start = System.nanoTime();
+				if(interval > 0) {
+					// Wait until the request is due, and measure from then even if it is sent late
+					if(next > start) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(next-start);
+						} catch(InterruptedException e) {
+							break;
+						}
+					}
+					start = next;
+					next += interval;
+				}
+				boolean recording = _RECORDING_;
+				
+				try {
+					int status = client.get(target.host, target.path);
+					if(recording) {
+						histogram.recordValue(Math.min(System.nanoTime()-start, MAX_LATENCY));
+						statuses.merge(status, 1L, Long::sum);
+					}
+				} catch(IOException e) {
+					client.close();
+					if(recording) {
+						errors++;
+					}
+				}
+			}
+			client.close();
+		}
+	}
+}
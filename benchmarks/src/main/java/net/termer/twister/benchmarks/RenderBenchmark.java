@@ -0,0 +1,95 @@
+package net.termer.twister.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.termer.twister.Twister;
+import net.termer.twister.document.DocumentBuilder;
+import net.termer.twister.document.DocumentProcessor;
+import net.termer.twister.document.HTMLDocumentResponse;
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+
+/**
+ * Benchmarks DocumentBuilder.loadDocument(), which renders a page with its domain's top and bottom
+ * and runs it through the DocumentProcessors registered for the domain,
+ * with different page sizes and amounts of processors.
+ * @author termer
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+	/**
+	 * The size of the page in bytes, one of Fixtures.PAGE_SIZES
+	 * @since 1.1
+	 */
+	@Param({"1024", "65536", "1048576"})
+	public int pageSize;
+	
+	/**
+	 * The amount of DocumentProcessors registered for the domain
+	 * @since 1.1
+	 */
+	@Param({"0", "1", "8"})
+	public int processors;
+	
+	private Twister _TWISTER_ = null;
+	private ArrayList<DocumentProcessor> _PROCESSORS_ = new ArrayList<DocumentProcessor>();
+	private String _PATH_ = null;
+	private Request _REQUEST_ = null;
+	private Response _RESPONSE_ = null;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		_TWISTER_ = Fixtures.start();
+		for(int i = 0; i < processors; i++) {
+			DocumentProcessor processor = new TitleProcessor();
+			_PROCESSORS_.add(processor);
+			_TWISTER_.addDocumentProcessor(Fixtures.DOMAIN, processor);
+		}
+		
+		_PATH_ = "/page-"+pageSize+".html";
+		_REQUEST_ = RequestResponseFactory.create(new SyntheticRequest(Fixtures.DOMAIN, _PATH_));
+		_RESPONSE_ = RequestResponseFactory.create(new SyntheticResponse());
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for(DocumentProcessor processor : _PROCESSORS_) {
+			_TWISTER_.removeDocumentProcessor(Fixtures.DOMAIN, processor);
+		}
+		_PROCESSORS_.clear();
+	}
+	
+	@Benchmark
+	public String loadDocument() throws Exception {
+		return DocumentBuilder.loadDocument(Fixtures.DOMAIN, _PATH_, _REQUEST_, _RESPONSE_);
+	}
+	
+	// A typical processor, which fills in a placeholder
+	private static class TitleProcessor implements DocumentProcessor {
+		public void process(HTMLDocumentResponse doc, Request req, Response res) {
+			doc.setText(doc.getText().replace("{{title}}", "Benchmark"));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package net.termer.twister.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.termer.twister.routing.RouteTrie;
+import net.termer.twister.utils.StringFilter;
+
+/**
+ * Benchmarks finding the route handler for a path, by scanning routes with
+ * StringFilter.matchesRoute() and processRoute() like Twister 1.0 did, and with the RouteTrie used now.
+ * @author termer
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteBenchmark {
+	/**
+	 * The amount of registered routes
+	 * @since 1.1
+	 */
+	@Param({"1", "16", "256", "1024"})
+	public int routes;
+	
+	/**
+	 * Whether the path matches the last registered route, or no route at all
+	 * @since 1.1
+	 */
+	@Param({"last", "none"})
+	public String lookup;
+	
+	private String[] _ROUTES_ = null;
+	private RouteTrie<String> _TRIE_ = new RouteTrie<String>();
+	private String _PATH_ = null;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		_ROUTES_ = new String[routes];
+		for(int i = 0; i < routes; i++) {
+			_ROUTES_[i] = "/api/r"+i+"/items/*";
+			_TRIE_.put(_ROUTES_[i], _ROUTES_[i]);
+		}
+		_PATH_ = lookup.equals("last") ? "/api/r"+(routes-1)+"/items/42" : "/static/style.css";
+	}
+	
+	@Benchmark
+	public String[] stringFilter() {
+		for(String route : _ROUTES_) {
+			if(StringFilter.matchesRoute(route, _PATH_)) {
+				return StringFilter.processRoute(route, _PATH_);
+			}
+		}
+		return null;
+	}
+	
+	@Benchmark
+	public String[] routeTrie() {
+		RouteTrie.Match<String> match = _TRIE_.match(_PATH_);
+		return match == null ? null : match.getWildcards();
+	}
+}
@@ -0,0 +1,59 @@
+package net.termer.twister.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.termer.twister.scripting.ScriptProcessor;
+
+/**
+ * Benchmarks ScriptProcessor.processDocument() on documents with different amounts of script blocks.
+ * The compiled document is cached after the first call, so this measures rendering with a pooled interpreter.
+ * @author termer
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+	/**
+	 * The amount of script blocks in the document, one of Fixtures.SCRIPT_BLOCKS
+	 * @since 1.1
+	 */
+	@Param({"0", "1", "16", "64"})
+	public int blocks;
+	
+	private String _KEY_ = null;
+	private String _DOCUMENT_ = null;
+	private HashMap<String,Object> _VARIABLES_ = new HashMap<String,Object>();
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// Interpreter pool limits are applied when Twister starts
+		Fixtures.start();
+		
+		_KEY_ = "bench:"+blocks;
+		_DOCUMENT_ = Fixtures.scriptPage(blocks);
+		_VARIABLES_.put("domain", Fixtures.DOMAIN);
+	}
+	
+	@Benchmark
+	public String processDocument() {
+		return ScriptProcessor.processDocument(_KEY_, _DOCUMENT_, _VARIABLES_, Fixtures.DOMAIN);
+	}
+}
@@ -0,0 +1,162 @@
+package net.termer.twister.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * In-memory HttpServletRequest, so request handling can be benchmarked without a socket or Jetty in the way.
+ * The methods Twister calls while handling a request are implemented directly,
+ * everything else returns null, 0, or false.
+ * @author termer
+ * @since 1.1
+ */
+public class SyntheticRequest extends HttpServletRequestWrapper {
+	private String _METHOD_ = "GET";
+	private String _HOST_ = null;
+	private String _PATH_ = null;
+	private HashMap<String,String> _HEADERS_ = new HashMap<String,String>();
+	private HashMap<String,Object> _ATTRIBUTES_ = new HashMap<String,Object>();
+	private Map<String,String[]> _PARAMETERS_ = Collections.emptyMap();
+	
+	/**
+	 * Creates a new GET request for the specified host and path
+	 * @param host the host the request is made to
+	 * @param path the path requested
+	 * @since 1.1
+	 */
+	public SyntheticRequest(String host, String path) {
+		super((HttpServletRequest) Proxy.newProxyInstance(
+			SyntheticRequest.class.getClassLoader(),
+			new Class<?>[] {HttpServletRequest.class},
+			(proxy, method, args) -> defaultValue(method.getReturnType())
+		));
+		_HOST_ = host;
+		_PATH_ = path;
+		_HEADERS_.put("Host", host);
+	}
+	
+	/**
+	 * Sets a header of the request
+	 * @param name the header name
+	 * @param value the header value
+	 * @return this request
+	 * @since 1.1
+	 */
+	public SyntheticRequest header(String name, String value) {
+		_HEADERS_.put(name, value);
+		return this;
+	}
+	
+	/**
+	 * Changes the HTTP method of the request
+	 * @param method the method, such as GET or POST
+	 * @return this request
+	 * @since 1.1
+	 */
+	public SyntheticRequest method(String method) {
+		_METHOD_ = method;
+		return this;
+	}
+	
+	public String getMethod() {
+		return _METHOD_;
+	}
+	
+	public String getPathInfo() {
+		return _PATH_;
+	}
+	
+	public String getRequestURI() {
+		return _PATH_;
+	}
+	
+	public String getServletPath() {
+		return "";
+	}
+	
+	public String getContextPath() {
+		return "";
+	}
+	
+	public StringBuffer getRequestURL() {
+		return new StringBuffer("http://").append(_HOST_).append(_PATH_);
+	}
+	
+	public String getScheme() {
+		return "http";
+	}
+	
+	public String getServerName() {
+		return _HOST_;
+	}
+	
+	public int getServerPort() {
+		return 80;
+	}
+	
+	public String getRemoteAddr() {
+		return "127.0.0.1";
+	}
+	
+	public String getQueryString() {
+		return null;
+	}
+	
+	public String getHeader(String name) {
+		return _HEADERS_.get(name);
+	}
+	
+	public Enumeration<String> getHeaders(String name) {
+		String value = _HEADERS_.get(name);
+		return value == null ? Collections.<String>emptyEnumeration() : Collections.enumeration(Collections.singletonList(value));
+	}
+	
+	public Enumeration<String> getHeaderNames() {
+		return Collections.enumeration(_HEADERS_.keySet());
+	}
+	
+	public String getParameter(String name) {
+		return null;
+	}
+	
+	public Map<String,String[]> getParameterMap() {
+		return _PARAMETERS_;
+	}
+	
+	public Enumeration<String> getParameterNames() {
+		return Collections.emptyEnumeration();
+	}
+	
+	public Object getAttribute(String name) {
+		return _ATTRIBUTES_.get(name);
+	}
+	
+	public void setAttribute(String name, Object value) {
+		_ATTRIBUTES_.put(name, value);
+	}
+	
+	public void removeAttribute(String name) {
+		_ATTRIBUTES_.remove(name);
+	}
+	
+	// Returns what an unimplemented method returns
+	static Object defaultValue(Class<?> type) {
+		Object r = null;
+		
+		if(type == boolean.class) {
+			r = false;
+		} else if(type == int.class) {
+			r = 0;
+		} else if(type == long.class) {
+			r = 0L;
+		}
+		
+		return r;
+	}
+}
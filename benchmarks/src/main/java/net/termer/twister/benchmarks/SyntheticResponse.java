@@ -0,0 +1,157 @@
+package net.termer.twister.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * In-memory HttpServletResponse that discards the body and only counts its bytes.
+ * The methods Twister calls while sending a response are implemented directly,
+ * everything else returns null, 0, or false. Call reset() to reuse it for another request.
+ * @author termer
+ * @since 1.1
+ */
+public class SyntheticResponse extends HttpServletResponseWrapper {
+	private int _STATUS_ = 200;
+	private String _CONTENT_TYPE_ = null;
+	private boolean _COMMITTED_ = false;
+	private long _WRITTEN_ = 0;
+	private HashMap<String,String> _HEADERS_ = new HashMap<String,String>();
+	private ServletOutputStream _OUT_ = new ServletOutputStream() {
+		public void write(int b) {
+			_WRITTEN_++;
+		}
+		
+		public void write(byte[] b, int off, int len) {
+			_WRITTEN_ += len;
+		}
+		
+		public boolean isReady() {
+			return true;
+		}
+		
+		public void setWriteListener(WriteListener listener) {}
+	};
+	private PrintWriter _WRITER_ = new PrintWriter(new OutputStreamWriter(_OUT_, StandardCharsets.UTF_8));
+	
+	/**
+	 * Creates a new response
+	 * @since 1.1
+	 */
+	public SyntheticResponse() {
+		super((HttpServletResponse) Proxy.newProxyInstance(
+			SyntheticResponse.class.getClassLoader(),
+			new Class<?>[] {HttpServletResponse.class},
+			(proxy, method, args) -> SyntheticRequest.defaultValue(method.getReturnType())
+		));
+	}
+	
+	/**
+	 * Returns the amount of body bytes written since the last reset
+	 * @return the amount of bytes
+	 * @since 1.1
+	 */
+	public long getWritten() {
+		return _WRITTEN_;
+	}
+	
+	public void reset() {
+		_STATUS_ = 200;
+		_CONTENT_TYPE_ = null;
+		_COMMITTED_ = false;
+		_WRITTEN_ = 0;
+		_HEADERS_.clear();
+	}
+	
+	public int getStatus() {
+		return _STATUS_;
+	}
+	
+	public void setStatus(int status) {
+		_STATUS_ = status;
+	}
+	
+	public void sendError(int status) {
+		_STATUS_ = status;
+		_COMMITTED_ = true;
+	}
+	
+	public void sendError(int status, String message) {
+		sendError(status);
+	}
+	
+	public void sendRedirect(String location) {
+		_STATUS_ = 302;
+		_HEADERS_.put("Location", location);
+		_COMMITTED_ = true;
+	}
+	
+	public String getContentType() {
+		return _CONTENT_TYPE_;
+	}
+	
+	public void setContentType(String type) {
+		_CONTENT_TYPE_ = type;
+	}
+	
+	public void setContentLength(int length) {}
+	
+	public void setContentLengthLong(long length) {}
+	
+	public boolean containsHeader(String name) {
+		return _HEADERS_.containsKey(name);
+	}
+	
+	public String getHeader(String name) {
+		return _HEADERS_.get(name);
+	}
+	
+	public void setHeader(String name, String value) {
+		_HEADERS_.put(name, value);
+	}
+	
+	public void addHeader(String name, String value) {
+		_HEADERS_.put(name, value);
+	}
+	
+	public void setDateHeader(String name, long date) {
+		_HEADERS_.put(name, Long.toString(date));
+	}
+	
+	public void addDateHeader(String name, long date) {
+		setDateHeader(name, date);
+	}
+	
+	public void setIntHeader(String name, int value) {
+		_HEADERS_.put(name, Integer.toString(value));
+	}
+	
+	public void addIntHeader(String name, int value) {
+		setIntHeader(name, value);
+	}
+	
+	public ServletOutputStream getOutputStream() {
+		return _OUT_;
+	}
+	
+	public PrintWriter getWriter() {
+		return _WRITER_;
+	}
+	
+	public void flushBuffer() throws IOException {
+		_WRITER_.flush();
+		_COMMITTED_ = true;
+	}
+	
+	public boolean isCommitted() {
+		return _COMMITTED_;
+	}
+}
@@ -31,12 +31,46 @@ public class Settings {
 		_DEFAULTS_.put("logging", "true");
 		_DEFAULTS_.put("static", "globalstatic/");
 		_DEFAULTS_.put("default-domain", "localhost");
+		_DEFAULTS_.put("charset", "UTF-8");
 		_DEFAULTS_.put("caching", "true");
 		_DEFAULTS_.put("caching-interval", "600");
 		_DEFAULTS_.put("scripting", "false");
 		_DEFAULTS_.put("https-redirect", "false");
 		_DEFAULTS_.put("https-redirect-port", "80");
 		_DEFAULTS_.put("append-scripting-exceptions", "false");
+		_DEFAULTS_.put("static-cache", "true");
+		_DEFAULTS_.put("static-cache-size", "67108864");
+		_DEFAULTS_.put("static-cache-max-file-size", "1048576");
+		_DEFAULTS_.put("static-mmap-threshold", "8388608");
+		_DEFAULTS_.put("compression", "true");
+		_DEFAULTS_.put("dynamic-compression", "false");
+		_DEFAULTS_.put("compression-level", "6");
+		_DEFAULTS_.put("compression-min-size", "256");
+		_DEFAULTS_.put("compression-cache-size", "16777216");
+		_DEFAULTS_.put("scripting-pool-size", "16");
+		_DEFAULTS_.put("scripting-pool-idle-timeout", "300");
+		_DEFAULTS_.put("file-index-ttl", "10");
+		_DEFAULTS_.put("page-cache", "false");
+		_DEFAULTS_.put("page-cache-size", "16777216");
+		_DEFAULTS_.put("metrics", "false");
+		_DEFAULTS_.put("metrics-path", "/twister-metrics");
+		_DEFAULTS_.put("metrics-allow", "127.0.0.1,0:0:0:0:0:0:0:1");
+		_DEFAULTS_.put("slow-handler-threshold", "0");
+		_DEFAULTS_.put("module-load-threads", "1");
+		_DEFAULTS_.put("module-index", "true");
+		_DEFAULTS_.put("module-hot-reload", "false");
+		_DEFAULTS_.put("module-drain-timeout", "30");
+		_DEFAULTS_.put("request-execution", "pool");
+		_DEFAULTS_.put("request-execution-threads", "200");
+		_DEFAULTS_.put("request-execution-queue", "1000");
+		_DEFAULTS_.put("domain-request-limit", "0");
+		_DEFAULTS_.put("async-handler-timeout", "30");
+		_DEFAULTS_.put("log-file", "logs/twister.log");
+		_DEFAULTS_.put("log-console", "true");
+		_DEFAULTS_.put("log-max-file-size", "10485760");
+		_DEFAULTS_.put("log-max-files", "5");
+		_DEFAULTS_.put("log-buffer-size", "8192");
+		_DEFAULTS_.put("log-full-policy", "drop");
 		
 		if(file.exists()) {
 			Twister.settings = Config.parseConfig(file, ":", "#");
@@ -9,23 +9,52 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.function.Predicate;
 
+import net.termer.twister.handler.AsyncAdapter;
+import net.termer.twister.handler.AsyncRequestAdapter;
+import net.termer.twister.handler.AsyncRequestHandler;
+import net.termer.twister.handler.AsyncRouteAdapter;
+import net.termer.twister.handler.AsyncRouteHandler;
+import net.termer.twister.handler.HandlerRegistry;
+import net.termer.twister.handler.InFlightRequests;
 import net.termer.twister.handler.PreRequestHandler;
 import net.termer.twister.handler.PreRequestOptions;
 import net.termer.twister.handler.RequestHandler;
 import net.termer.twister.handler.RouteHandler;
+import net.termer.twister.logging.AccessLog;
+import net.termer.twister.logging.AsyncLog;
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.metrics.Metrics;
+import net.termer.twister.metrics.MetricsExporter;
 import net.termer.twister.module.ModuleManager;
 import net.termer.twister.caching.CachingThread;
+import net.termer.twister.caching.DomainWatcher;
+import net.termer.twister.caching.FileIndex;
+import net.termer.twister.caching.TwisterCache;
+import net.termer.twister.document.ContentEncoder;
 import net.termer.twister.document.DocumentBuilder;
 import net.termer.twister.document.DocumentProcessor;
+import net.termer.twister.document.DocumentProcessors;
+import net.termer.twister.document.StaticFileSender;
+import net.termer.twister.routing.ForbiddenPaths;
+import net.termer.twister.routing.RouteTrie;
+import net.termer.twister.scripting.ScriptProcessor;
+import net.termer.twister.server.DetachableResponse;
+import net.termer.twister.server.RequestExecutor;
+import net.termer.twister.server.TwisterServerFactory;
 import net.termer.twister.utils.Config;
 import net.termer.twister.utils.ContentType;
+import net.termer.twister.utils.FileLoader;
+import net.termer.twister.utils.Method;
 import net.termer.twister.utils.StringFilter;
 import net.termer.twister.utils.Writer;
 import spark.Request;
 import spark.Response;
 import spark.Route;
 import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 /**
  * The Twister main class.
@@ -73,11 +102,15 @@ public class Twister {
 	 */
 	public static ArrayList<String> forbiddenPaths = new ArrayList<String>();
 	
+	// Forbidden paths compiled from the list above, replaced whenever configurations are reloaded
+	private static volatile ForbiddenPaths forbiddenMatcher = new ForbiddenPaths(forbiddenPaths, null);
+	
 	protected static Twister twister = null;
 	
-	private ArrayList<HashMap<String,HashMap<String,RequestHandler>>> requestHandlers = new ArrayList<HashMap<String,HashMap<String,RequestHandler>>>();
-	private ArrayList<PreRequestHandler> preRequestHandlers = new ArrayList<PreRequestHandler>();
-	private ArrayList<HashMap<String,HashMap<String,RouteHandler>>> routeHandlers = new ArrayList<HashMap<String,HashMap<String,RouteHandler>>>();
+	private HandlerRegistry handlers = new HandlerRegistry();
+	
+	// Requests being handled, so replaced modules can wait for them
+	private InFlightRequests inFlight = new InFlightRequests();
 	
 	private String defaultDomain = null;
 	
@@ -93,6 +126,14 @@ public class Twister {
 	
 	private CachingThread cachingThread = null;
 	
+	private DomainWatcher domainWatcher = null;
+	
+	// Index of the global static directory, and the watcher that keeps it current
+	private volatile FileIndex globalStaticIndex = null;
+	private DomainWatcher globalStaticWatcher = null;
+	
+	private AsyncLog log = null;
+	
 	private Service httpsRedirector = null;
 	/**
 	 * Returns the current Twister instance
@@ -109,18 +150,6 @@ public class Twister {
 	 */
 	protected Twister() {
 		
-		// Setup request handler maps
-		requestHandlers.add(new HashMap<String,HashMap<String,RequestHandler>>()); // GET
-		requestHandlers.add(new HashMap<String,HashMap<String,RequestHandler>>()); // POST
-		requestHandlers.add(new HashMap<String,HashMap<String,RequestHandler>>()); // DELETE
-		requestHandlers.add(new HashMap<String,HashMap<String,RequestHandler>>()); // PUT
-		
-		// Setup route handler maps
-		routeHandlers.add(new HashMap<String,HashMap<String,RouteHandler>>()); // GET
-		routeHandlers.add(new HashMap<String,HashMap<String,RouteHandler>>()); // POST
-		routeHandlers.add(new HashMap<String,HashMap<String,RouteHandler>>()); // DELETE
-		routeHandlers.add(new HashMap<String,HashMap<String,RouteHandler>>()); // PUT
-		
 		// Apply basic content types
 		ContentType.applyBasicTypes();
 		
@@ -138,13 +167,20 @@ public class Twister {
 			e.printStackTrace();
 		}
 		
-		// Instantiate caching thread
-		cachingThread = new CachingThread();
-		
 		// Setup files and directories
 		reloadConfigurations();
 		
-		staticFiles.externalLocation(globalstaticFile.getAbsolutePath());
+		// Start the log, and log requests once they are complete
+		int logBufferSize = 0;
+		try {
+			logBufferSize = Integer.parseInt(Settings.get("log-buffer-size").trim());
+		} catch(NumberFormatException e) {
+			logError("Invalid log-buffer-size in twister.ini, using "+Settings.getDefault("log-buffer-size"));
+			logBufferSize = Integer.parseInt(Settings.getDefault("log-buffer-size"));
+		}
+		log = new AsyncLog(logBufferSize);
+		configureLog();
+		EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory(new TwisterServerFactory(new AccessLog(log))));
 		
 		port(Integer.parseInt(Settings.get("port")));
 		
@@ -159,26 +195,10 @@ public class Twister {
 			}
 		}
 		
-		// Before requests get handed off to handlers, log if enabled
-		// as well as disallow requests to forbidden directories
+		// Before requests get handed off to handlers, disallow requests to forbidden directories
 		before("*", (req, res) -> {
-			// If logging enabled, log access to console
-			if(Settings.get("logging").toLowerCase().startsWith("t")) {
-				String ln = new java.util.Date().toString()+": GET "+req.pathInfo()+" ("+req.ip()+" "+req.userAgent()+")";
-				System.out.println(ln);
-			}
-			
-			boolean bad = false;
-			for(String path : forbiddenPaths) {
-				if(!path.startsWith("/")) path="/"+path;
-				if(!path.endsWith("/")) path+="/";
-				
-				if(StringFilter.same(path, path)) {
-					bad = true;
-					break;
-				}
-			}
-			if(bad) {
+			ForbiddenPaths forbidden = forbiddenMatcher;
+			if(!forbidden.isEmpty() && forbidden.isForbidden(req.host(), req.pathInfo())) {
 				halt(403,"Forbidden");
 			}
 		});
@@ -193,6 +213,12 @@ public class Twister {
 			return handleRequest(req, res, 1);
 		});
 		
+		// Handle HEAD requests for global static files, other paths keep Spark's empty response
+		head("*", (req, res) -> {
+			sendGlobalStaticFile(req, res);
+			return "";
+		});
+		
 		// Handle DELETE requests
 		delete("*", (req, res) -> {
 			return handleRequest(req, res, 2);
@@ -203,6 +229,25 @@ public class Twister {
 			return handleRequest(req, res, 3);
 		});
 		
+		// Watch domains for changes, so file information is updated right away
+		try {
+			domainWatcher = new DomainWatcher(domainsDir);
+			domainWatcher.addListener(path -> {
+				if(path == null) {
+					TwisterCache._FILES_.clear();
+				} else {
+					TwisterCache._FILES_.invalidate(path);
+				}
+			});
+			domainWatcher.addListener(TwisterCache._PAGES_);
+			domainWatcher.start();
+		} catch(IOException e) {
+			logWarning("Failed to watch domains directory, changes will be seen after file-index-ttl");
+			e.printStackTrace();
+		}
+		
+		// The caching thread is given the watcher, since it starts before Twister.current() is set
+		cachingThread = new CachingThread(domainWatcher);
 		logInfo("Starting caching thread...");
 		if(!cachingThread.isAlive()) {
 			try {
@@ -216,14 +261,36 @@ public class Twister {
 	}
 	
 	
-	// Processes a request
+	// Processes a request, counting it while it runs
 	private String handleRequest(Request req, Response res, int method) throws IOException {
+		InFlightRequests.Generation generation = inFlight.enter();
+		try {
+			return processRequest(req, res, method, generation);
+		} finally {
+			generation.exit();
+		}
+	}
+	
+	// Processes a request, counted in the provided generation
+	private String processRequest(Request req, Response res, int method, InFlightRequests.Generation generation) throws IOException {
 		// Result
 		String r = "";
 		
 		// Store path
 		String path = req.pathInfo();
 		
+		// Serve metrics on every domain, if enabled
+		if(method == Method.GET && MetricsExporter.isEndpoint(path)) {
+			return MetricsExporter.serve(req, res);
+		}
+		
+		long start = Metrics.start();
+		
+		// Serve files from the global static directory before anything else
+		if(method == Method.GET && sendGlobalStaticFile(req, res)) {
+			return r;
+		}
+		
 		// Determine domain
 		String domain = req.url();
 		if(domain.toLowerCase().startsWith("http://")) {
@@ -242,22 +309,35 @@ public class Twister {
 			domain = linkedDomains.get(domain);
 		}
 		
+		// Read the handlers once, so changes made by modules mid-request are not seen
+		HandlerRegistry.Snapshot snapshot = handlers.snapshot();
+		
 		// Execute pre-request handlers
+		long stageStart = Metrics.start();
 		PreRequestOptions preOptions = new PreRequestOptions(req, res, domain);
 		
-		for(PreRequestHandler handler : preRequestHandlers) {
-			handler.handle(preOptions);
+		for(PreRequestHandler handler : snapshot.getPreRequestHandlers()) {
+			long handlerStart = HandlerMetrics.start();
+			try {
+				handler.handle(preOptions);
+			} catch(RuntimeException | Error e) {
+				HandlerMetrics.failed(handler, e);
+				throw e;
+			}
+			HandlerMetrics.record(handler, domain, handlerStart);
 		}
 		
 		// Set path and domain to values provided by the pre-request handlers
 		path = preOptions.getPath();
 		domain = preOptions.getDomain();
+		Metrics.PRE_REQUEST.record(domain, method, stageStart);
 		
 		// If the request was cancelled by a pre-request handler...
 		if(preOptions.isCancelled()) {
 			r = preOptions.getCancelText();
 		} else {
 			// Check if there is a redirect assigned for the requested path
+			stageStart = Metrics.start();
 			boolean noRedirect = true;
 			if(domainRedirects.containsKey(domain)) {
 				HashMap<String,String> redirects = domainRedirects.get(domain);
@@ -277,6 +357,7 @@ public class Twister {
 					}
 				}
 			}
+			Metrics.REDIRECT.record(domain, method, stageStart);
 			
 			if(noRedirect) {
 				// Determine what to send
@@ -294,40 +375,26 @@ public class Twister {
 				}
 				
 				// Determine if there is a route handler available for the domain
-				RouteHandler routeHandler = null;
-				String route = null;
-				
-				if(routeHandlers.get(method).containsKey(domain.toLowerCase())) {
-					String[] routes = routeHandlers.get(method).get(domain.toLowerCase()).keySet().toArray(new String[0]);
-					RouteHandler[] handlers = routeHandlers.get(method).get(domain.toLowerCase()).values().toArray(new RouteHandler[0]);
-					for(int i = 0; i < routes.length; i++) {
-						if(StringFilter.matchesRoute(routes[i], path)) {
-							routeHandler = handlers[i];
-							route = routes[i];
-						}
-					}
-				}
+				stageStart = Metrics.start();
+				RouteTrie.Match<RouteHandler> routeMatch = snapshot.matchRoute(domain.toLowerCase(), method, path);
 				
-					
-				if(routeHandler == null) {
+				if(routeMatch == null) {
 					// Determine if there is a request handler available for domain and path
-					boolean handlerAvailable = false;
-					if(requestHandlers.get(method).containsKey(domain.toLowerCase())) {
-						if(requestHandlers.get(method).get(domain.toLowerCase()).containsKey(path.toLowerCase())) {
-							handlerAvailable = true;
-						} else if(requestHandlers.get(method).get(domain.toLowerCase()).containsKey(path.toLowerCase()+"/")) {
-							handlerAvailable = true;
-						}
-					}
-					if(new File("domains/"+domain+"/"+path).isDirectory()) {
+					RequestHandler requestHandler = snapshot.getRequestHandler(domain.toLowerCase(), method, path.toLowerCase());
+					boolean handlerAvailable = requestHandler != null || snapshot.getRequestHandler(domain.toLowerCase(), method, path.toLowerCase()+"/") != null;
+					Metrics.ROUTE_MATCH.record(domain, method, stageStart);
+					if(TwisterCache._FILES_.isDirectory(domain+path)) {
 						if(!path.endsWith("/")) {
 							res.redirect(redirectURL);
 						} else {
 							// If handler available, use it instead of loading static
+							stageStart = Metrics.start();
 							if(handlerAvailable) {
-								r = requestHandlers.get(method).get(domain.toLowerCase()).get(path.toLowerCase()).handle(req, res);
+								r = runRequestHandler(requestHandler, req, res, domain, generation);
+								Metrics.HANDLER.record(domain, method, stageStart);
 							} else {
-								r = DocumentBuilder.loadDocument(domain, path, req, res);
+								r = DocumentBuilder.sendDocument(domain, path, req, res);
+								Metrics.DOCUMENT.record(domain, method, stageStart);
 							}
 						}
 					} else {
@@ -336,21 +403,142 @@ public class Twister {
 							if(!path.endsWith("/")) {
 								res.redirect(redirectURL);
 							} else {
-								r = requestHandlers.get(method).get(domain.toLowerCase()).get(path.toLowerCase()).handle(req, res);
+								stageStart = Metrics.start();
+								r = runRequestHandler(requestHandler, req, res, domain, generation);
+								Metrics.HANDLER.record(domain, method, stageStart);
 							}
 						} else {
-							r = DocumentBuilder.loadDocument(domain, path, req, res);
+							stageStart = Metrics.start();
+							r = DocumentBuilder.sendDocument(domain, path, req, res);
+							Metrics.DOCUMENT.record(domain, method, stageStart);
 						}
 					}
 				} else {
-					// Get wildcards for route, then execute the route handler
-					r = routeHandler.handle(req, res, StringFilter.processRoute(route, path));
+					Metrics.ROUTE_MATCH.record(domain, method, stageStart);
+					
+					// Execute the route handler with the wildcards filled in by the path
+					stageStart = Metrics.start();
+					r = runRouteHandler(routeMatch.getValue(), req, res, routeMatch.getWildcards(), domain, generation);
+					Metrics.HANDLER.record(domain, method, stageStart);
 				}
 			}
 		}
+		
+		// Compress the response if the client supports it
+		stageStart = Metrics.start();
+		r = ContentEncoder.encode(r, req, res);
+		Metrics.ENCODE.record(domain, method, stageStart);
+		
+		Metrics.REQUEST.record(domain, method, start);
 		return r;
 	}
 	
+	// Runs a request handler, timing it and counting its exceptions
+	private String runRequestHandler(RequestHandler handler, Request req, Response res, String domain, InFlightRequests.Generation generation) {
+		long start = HandlerMetrics.start();
+		String r = null;
+		try {
+			if(handler instanceof AsyncAdapter) {
+				r = ((AsyncAdapter) handler).run(req, res, null, domain, generation);
+			} else {
+				r = handler.handle(req, res);
+			}
+		} catch(RuntimeException | Error e) {
+			HandlerMetrics.failed(handler, e);
+			throw e;
+		}
+		// Detached responses are recorded once they are sent
+		if(!DetachableResponse.isDetached(res.raw())) {
+			HandlerMetrics.record(handler, domain, start);
+		}
+		return r;
+	}
+	
+	// Runs a route handler, timing it and counting its exceptions
+	private String runRouteHandler(RouteHandler handler, Request req, Response res, String[] wildcards, String domain, InFlightRequests.Generation generation) {
+		long start = HandlerMetrics.start();
+		String r = null;
+		try {
+			if(handler instanceof AsyncAdapter) {
+				r = ((AsyncAdapter) handler).run(req, res, wildcards, domain, generation);
+			} else {
+				r = handler.handle(req, res, wildcards);
+			}
+		} catch(RuntimeException | Error e) {
+			HandlerMetrics.failed(handler, e);
+			throw e;
+		}
+		// Detached responses are recorded once they are sent
+		if(!DetachableResponse.isDetached(res.raw())) {
+			HandlerMetrics.record(handler, domain, start);
+		}
+		return r;
+	}
+	
+	// Sends the file in the global static directory for the request's path, and returns whether there was one
+	private boolean sendGlobalStaticFile(Request req, Response res) throws IOException {
+		boolean sent = false;
+		FileIndex index = globalStaticIndex;
+		String path = req.pathInfo();
+		
+		// Paths that could escape the global static directory are never served from it
+		if(index != null && !('/'+path+'/').contains("/../") && path.indexOf('\\') < 0) {
+			String rel = path.startsWith("/") ? path.substring(1) : path;
+			FileIndex.Entry entry = index.get(rel);
+			if(entry.isDirectory()) {
+				rel = rel.length() < 1 || rel.endsWith("/") ? rel+"index.html" : rel+"/index.html";
+				entry = index.get(rel);
+			}
+			
+			if(entry.exists() && !entry.isDirectory()) {
+				res.type(entry.getContentType());
+				StaticFileSender.send(index, rel, req, res);
+				sent = true;
+			}
+		}
+		
+		return sent;
+	}
+	
+	// Indexes the global static directory, so requests do not check the disk for it every time
+	private void indexGlobalStatic() {
+		File root = globalstaticFile.getAbsoluteFile();
+		try {
+			// Resolved once, instead of for every request
+			root = globalstaticFile.getCanonicalFile();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		long ttl = TwisterCache._FILES_.getTTL();
+		
+		FileIndex index = globalStaticIndex;
+		if(index != null && index.getRoot().equals(root)) {
+			index.setTTL(ttl);
+		} else {
+			index = new FileIndex(root, ttl);
+			if(globalStaticWatcher != null) {
+				globalStaticWatcher.close();
+				globalStaticWatcher = null;
+			}
+			try {
+				FileIndex watched = index;
+				globalStaticWatcher = new DomainWatcher(root);
+				globalStaticWatcher.setName("Global Static Watcher");
+				globalStaticWatcher.addListener(changed -> {
+					if(changed == null) {
+						watched.clear();
+					} else {
+						watched.invalidate(changed);
+					}
+				});
+				globalStaticWatcher.start();
+			} catch(IOException e) {
+				logWarning("Failed to watch global static directory, changes will be seen after file-index-ttl");
+			}
+			globalStaticIndex = index;
+		}
+	}
+	
 	/**
 	 * Returns the current caching thread
 	 * @since 0.2
@@ -359,6 +547,34 @@ public class Twister {
 		return cachingThread;
 	}
 	
+	/**
+	 * Returns the watcher that reports changes in the domains directory
+	 * @return the domain watcher, or null if the domains directory could not be watched
+	 * @since 1.1
+	 */
+	public DomainWatcher getDomainWatcher() {
+		return domainWatcher;
+	}
+	
+	/**
+	 * Returns the registry that stores this instance's request, route, and pre-request handlers.
+	 * Modules can use it to register batches of handlers atomically.
+	 * @return the handler registry
+	 * @since 1.1
+	 */
+	public HandlerRegistry getHandlerRegistry() {
+		return handlers;
+	}
+	
+	/**
+	 * Returns the counter of the requests being handled
+	 * @return the in-flight requests
+	 * @since 1.1
+	 */
+	public InFlightRequests getInFlightRequests() {
+		return inFlight;
+	}
+	
 	/**
 	 * (Re)loads all configuration files
 	 * @since 0.1
@@ -401,7 +617,7 @@ public class Twister {
 				e.printStackTrace();
 			}
 		}
-			
+		
 		// Settings file
 		try {
 			Settings.reload();
@@ -418,27 +634,131 @@ public class Twister {
 						"#keystore-password: "+Settings.getDefault("keystore-password")+"\n\n"+
 						"# Enable/Disable logging\n"+
 						"logging: "+Settings.getDefault("logging")+"\n\n"+
+						"# File to write the log to, leave empty\n"+
+						"# to only log to the console\n"+
+						"log-file: "+Settings.getDefault("log-file")+"\n\n"+
+						"# Whether the log should be written to the console\n"+
+						"log-console: "+Settings.getDefault("log-console")+"\n\n"+
+						"# The size in bytes at which the log file is rotated\n"+
+						"log-max-file-size: "+Settings.getDefault("log-max-file-size")+"\n\n"+
+						"# The amount of rotated log files to keep\n"+
+						"log-max-files: "+Settings.getDefault("log-max-files")+"\n\n"+
+						"# The amount of log entries that can wait to be\n"+
+						"# written (takes effect after a restart)\n"+
+						"log-buffer-size: "+Settings.getDefault("log-buffer-size")+"\n\n"+
+						"# What to do when too many log entries are waiting\n"+
+						"# to be written: drop them, or block until there is room\n"+
+						"log-full-policy: "+Settings.getDefault("log-full-policy")+"\n\n"+
 						"# Global static directory location\n"+
 						"static: "+Settings.getDefault("static")+"\n\n"+
 						"# Default domain for modules to access\n"+
 						"default-domain: "+Settings.getDefault("default-domain")+"\n\n"+
+						"# The charset documents and configuration files are read with\n"+
+						"charset: "+Settings.getDefault("charset")+"\n\n"+
 						"# Whether Twister should cache files such as\n"+
 						"# domain tops and bottoms and 404 messages in\n"+
 						"# RAM, instead of serving them from disk\n"+
 						"caching: "+Settings.getDefault("caching")+"\n\n"+
+						"# Cached files are updated as soon as they change.\n"+
 						"# The interval in seconds when Twister should\n"+
-						"# update the cached files in RAM\n"+
+						"# check for changes that were missed\n"+
 						"caching-interval: "+Settings.getDefault("caching-interval")+"\n\n"+
 						"# Enable/Disable embedded scripting\n"+
 						"scripting: "+Settings.getDefault("scripting")+"\n\n"+
 						"# Whether exception messages will be appended\n"+
 						"# in scripting, as if out.append() were called.\n"+
 						"append-scripting-exceptions: "+Settings.getDefault("append-scripting-exceptions")+"\n\n"+
+						"# Whether fully rendered HTML pages should be cached in RAM.\n"+
+						"# Pages are only cached if all DocumentProcessors for\n"+
+						"# their domain say their output can be cached\n"+
+						"page-cache: "+Settings.getDefault("page-cache")+"\n\n"+
+						"# The maximum amount of bytes of rendered pages to cache\n"+
+						"page-cache-size: "+Settings.getDefault("page-cache-size")+"\n\n"+
+						"# Whether Twister should record how long each stage\n"+
+						"# of handling requests takes, per domain and method\n"+
+						"metrics: "+Settings.getDefault("metrics")+"\n\n"+
+						"# The path metrics are served at on every domain in the\n"+
+						"# Prometheus text format, with .json appended for JSON.\n"+
+						"# Leave empty to record metrics without serving them\n"+
+						"metrics-path: "+Settings.getDefault("metrics-path")+"\n\n"+
+						"# Comma separated IP addresses allowed to read metrics, * for all\n"+
+						"metrics-allow: "+Settings.getDefault("metrics-allow")+"\n\n"+
+						"# Handlers, DocumentProcessors, and VariableProviders taking\n"+
+						"# longer than this amount of milliseconds are logged along\n"+
+						"# with the module that registered them. 0 to disable\n"+
+						"slow-handler-threshold: "+Settings.getDefault("slow-handler-threshold")+"\n\n"+
+						"# The amount of threads modules of the same priority are\n"+
+						"# initialized on at startup. 1 to initialize modules one\n"+
+						"# after another, 0 for one per CPU (at least 4). Only raise\n"+
+						"# it if all modules are safe to initialize at the same time\n"+
+						"module-load-threads: "+Settings.getDefault("module-load-threads")+"\n\n"+
+						"# Whether the modules found in jars should be remembered\n"+
+						"# in modules/.index, so unchanged jars are not searched\n"+
+						"# again at startup\n"+
+						"module-index: "+Settings.getDefault("module-index")+"\n\n"+
+						"# Whether module jars should be reloaded when they change,\n"+
+						"# loaded when added, and unloaded when deleted\n"+
+						"module-hot-reload: "+Settings.getDefault("module-hot-reload")+"\n\n"+
+						"# The most seconds to wait for requests using the old\n"+
+						"# version of a reloaded module before shutting it down\n"+
+						"module-drain-timeout: "+Settings.getDefault("module-drain-timeout")+"\n\n"+
+						"# The threads requests are handled on: pool for Jetty's\n"+
+						"# threads, virtual for a virtual thread per request (Java 21+),\n"+
+						"# or bounded for up to request-execution-threads threads\n"+
+						"request-execution: "+Settings.getDefault("request-execution")+"\n\n"+
+						"# The amount of threads used by bounded request execution,\n"+
+						"# and by virtual execution where virtual threads are missing\n"+
+						"request-execution-threads: "+Settings.getDefault("request-execution-threads")+"\n\n"+
+						"# The most requests bounded request execution queues while\n"+
+						"# all threads are busy, others get 503 Service Unavailable\n"+
+						"request-execution-queue: "+Settings.getDefault("request-execution-queue")+"\n\n"+
+						"# The most requests handled at once per domain, 0 for no limit.\n"+
+						"# Linked domains share the limit of their domain.\n"+
+						"# Requests beyond it are answered with 503 Service Unavailable\n"+
+						"domain-request-limit: "+Settings.getDefault("domain-request-limit")+"\n\n"+
+						"# The seconds asynchronous handlers are waited for before\n"+
+						"# answering with 503 Service Unavailable, 0 for no limit\n"+
+						"async-handler-timeout: "+Settings.getDefault("async-handler-timeout")+"\n\n"+
+						"# The amount of seconds file and directory information\n"+
+						"# is trusted before it is checked again. Changes are\n"+
+						"# normally seen right away, this only matters if they\n"+
+						"# are missed. Set to 0 to always check the disk\n"+
+						"file-index-ttl: "+Settings.getDefault("file-index-ttl")+"\n\n"+
+						"# The maximum amount of idle scripting\n"+
+						"# interpreters to keep for reuse\n"+
+						"scripting-pool-size: "+Settings.getDefault("scripting-pool-size")+"\n\n"+
+						"# The amount of seconds an idle scripting\n"+
+						"# interpreter is kept before it is dropped\n"+
+						"scripting-pool-idle-timeout: "+Settings.getDefault("scripting-pool-idle-timeout")+"\n\n"+
 						"# Whether an HTTPS redirector should be started\n"+
 						"# if a keystore is used\n"+
 						"https-redirect: "+Settings.getDefault("https-redirect")+"\n\n"+
 						"# What port the HTTP redirect should run on if enabled\n"+
-						"https-redirect-port: "+Settings.getDefault("https-redirect-port");
+						"https-redirect-port: "+Settings.getDefault("https-redirect-port")+"\n\n"+
+						"# Whether static files in domains should be cached in RAM\n"+
+						"static-cache: "+Settings.getDefault("static-cache")+"\n\n"+
+						"# The maximum amount of bytes of static files to cache\n"+
+						"static-cache-size: "+Settings.getDefault("static-cache-size")+"\n\n"+
+						"# The maximum size in bytes of a static file that can be cached\n"+
+						"static-cache-max-file-size: "+Settings.getDefault("static-cache-max-file-size")+"\n\n"+
+						"# The size in bytes above which static files are\n"+
+						"# memory-mapped instead of being streamed from disk\n"+
+						"static-mmap-threshold: "+Settings.getDefault("static-mmap-threshold")+"\n\n"+
+						"# Whether static files should be compressed for\n"+
+						"# clients that support it. Precompressed .br and\n"+
+						"# .gz files next to static files are served too\n"+
+						"compression: "+Settings.getDefault("compression")+"\n\n"+
+						"# Whether pages and handler output should be compressed\n"+
+						"# too. Pages that show input next to secrets such as\n"+
+						"# CSRF tokens can leak them when compressed (BREACH)\n"+
+						"dynamic-compression: "+Settings.getDefault("dynamic-compression")+"\n\n"+
+						"# The gzip compression level, from 1 to 9\n"+
+						"compression-level: "+Settings.getDefault("compression-level")+"\n\n"+
+						"# The minimum size in bytes of a response to compress\n"+
+						"compression-min-size: "+Settings.getDefault("compression-min-size")+"\n\n"+
+						"# The maximum amount of bytes of compressed\n"+
+						"# responses to cache\n"+
+						"compression-cache-size: "+Settings.getDefault("compression-cache-size");
 				Writer.print(stngs, settingsFile);
 			}
 		} catch(IOException e) {
@@ -455,6 +775,15 @@ public class Twister {
 			e.printStackTrace();
 		}
 		
+		// Set the charset files are read with
+		FileLoader.configure();
+		
+		// Start or stop recording metrics
+		Metrics.configure();
+		
+		// Choose the threads requests are handled on
+		RequestExecutor.configure();
+		
 		// Set default domain
 		defaultDomain = Settings.get("default-domain");
 		
@@ -509,13 +838,19 @@ public class Twister {
 				forbiddenPathsFile.createNewFile();
 				Writer.print("# Add forbidden paths.\n"+
 							 "# All paths are separated\n"+
-							 "# by newlines.\n", forbiddenPathsFile);
+							 "# by newlines.\n"+
+							 "# Use * to match any text in a path segment,\n"+
+							 "# and ** to match any amount of segments.\n"+
+							 "# Start a path with a domain and > to only\n"+
+							 "# forbid it on that domain, like this:\n"+
+							 "# example.com>/private\n", forbiddenPathsFile);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 		try {
 			forbiddenPaths = Config.getLines(forbiddenPathsFile, "#");
+			forbiddenMatcher = new ForbiddenPaths(forbiddenPaths, linkedDomains);
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -523,6 +858,14 @@ public class Twister {
 		// Re-cache files
 		CachingThread.cache404();
 		CachingThread.cacheTopsAndBottoms();
+		CachingThread.configureStaticFileCache();
+		CachingThread.configureCompressionCache();
+		CachingThread.configureFileIndex();
+		indexGlobalStatic();
+		CachingThread.configurePageCache();
+		ScriptProcessor.configureInterpreterPool();
+		ScriptProcessor.clearTemplates();
+		configureLog();
 		
 		// Enable or disable HTTP redirector
 		if(settings.containsKey("keystore") && settings.containsKey("keystore-password")) {
@@ -558,23 +901,39 @@ public class Twister {
 	 * @since 0.1
 	 */
 	public void addRequestHandler(String domain, String path, RequestHandler handler, int method) {
-		if(handler != null && domain != null && path != null) {
-			// Determine correct request handler map
-			
-			// If path does not end with "/", add it
-			if(!path.endsWith("/")) path+="/";
-			
-			// If path does not start with "/", add it
-			if(!path.startsWith("/")) path="/"+path;
-			
-			// If no domain exists in the handler map, create one
-			if(!requestHandlers.get(method).containsKey(domain.toLowerCase())) {
-				requestHandlers.get(method).put(domain.toLowerCase(), new HashMap<String,RequestHandler>());
-			}
-			
-			// Add the handler
-			requestHandlers.get(method).get(domain.toLowerCase()).put(path.toLowerCase(), handler);
-		}
+		handlers.batch()
+			.addRequestHandler(domain, path, handler, method)
+			.commit();
+	}
+	
+	/**
+	 * Method to register asynchronous request handlers.
+	 * The handler's stage is waited for up to async-handler-timeout seconds, and cancelled if it takes longer.
+	 * The handler is unregistered with removeRequestHandler().
+	 * @param domain - the domain to register the handler for
+	 * @param path - the path to register the handler for
+	 * @param handler - the handler
+	 * @param method - the HTTP method (Method.GET/POST/DELETE/PUT)
+	 * @since 1.1
+	 */
+	public void addAsyncRequestHandler(String domain, String path, AsyncRequestHandler handler, int method) {
+		addRequestHandler(domain, path, new AsyncRequestAdapter(handler), method);
+	}
+	
+	/**
+	 * Method to register asynchronous request handlers with their own timeout.
+	 * The handler is unregistered with removeRequestHandler().
+	 * @param domain - the domain to register the handler for
+	 * @param path - the path to register the handler for
+	 * @param handler - the handler
+	 * @param method - the HTTP method (Method.GET/POST/DELETE/PUT)
+	 * @param timeout - the milliseconds to wait for the handler's stage before answering with 503, 0 to wait forever,
+	 * or a negative number to use async-handler-timeout
+	 * @param cancel - whether to cancel the handler's stage when it times out
+	 * @since 1.1
+	 */
+	public void addAsyncRequestHandler(String domain, String path, AsyncRequestHandler handler, int method, long timeout, boolean cancel) {
+		addRequestHandler(domain, path, new AsyncRequestAdapter(handler, timeout, cancel), method);
 	}
 	
 	/**
@@ -585,10 +944,15 @@ public class Twister {
 	 * @since 0.1
 	 */
 	public void removeRequestHandler(String domain, String path, int method) {
-		if(requestHandlers.get(method).containsKey(domain.toLowerCase())) {
-			requestHandlers.get(method).get(domain.toLowerCase()).remove(path.toLowerCase());
-		} else {
-			logError("No RequestHandlers for domain \""+domain.toLowerCase()+"\"");
+		// While a module's new version is initialized, its handlers are not in the snapshot yet
+		if(!ModuleManager.defer(() -> removeRequestHandler(domain, path, method))) {
+			if(handlers.snapshot().getRequestHandlers(domain.toLowerCase(), method).size()>0) {
+				handlers.batch()
+					.removeRequestHandler(domain, path, method)
+					.commit();
+			} else {
+				logError("No RequestHandlers for domain \""+domain.toLowerCase()+"\"");
+			}
 		}
 	}
 	
@@ -601,20 +965,39 @@ public class Twister {
 	 * @since 1.0
 	 */
 	public void addRouteHandler(String domain, String route, RouteHandler handler, int method) {
-		if(handler != null && domain != null && route != null) {
-			// Determine correct request handler map
-			
-			// If path does not start with "/", add it
-			if(!route.startsWith("/")) route="/"+route;
-			
-			// If no domain exists in the handler map, create one
-			if(!routeHandlers.get(method).containsKey(domain.toLowerCase())) {
-				routeHandlers.get(method).put(domain.toLowerCase(), new HashMap<String,RouteHandler>());
-			}
-			
-			// Add the handler
-			routeHandlers.get(method).get(domain.toLowerCase()).put(route.toLowerCase(), handler);
-		}
+		handlers.batch()
+			.addRouteHandler(domain, route, handler, method)
+			.commit();
+	}
+	
+	/**
+	 * Method to register asynchronous route handlers.
+	 * The handler's stage is waited for up to async-handler-timeout seconds, and cancelled if it takes longer.
+	 * The handler is unregistered with removeRouteHandler().
+	 * @param domain - the domain to register the handler for
+	 * @param route - the route to register the handler for
+	 * @param handler - the handler
+	 * @param method - the HTTP method (Method.GET/POST/DELETE/PUT)
+	 * @since 1.1
+	 */
+	public void addAsyncRouteHandler(String domain, String route, AsyncRouteHandler handler, int method) {
+		addRouteHandler(domain, route, new AsyncRouteAdapter(handler), method);
+	}
+	
+	/**
+	 * Method to register asynchronous route handlers with their own timeout.
+	 * The handler is unregistered with removeRouteHandler().
+	 * @param domain - the domain to register the handler for
+	 * @param route - the route to register the handler for
+	 * @param handler - the handler
+	 * @param method - the HTTP method (Method.GET/POST/DELETE/PUT)
+	 * @param timeout - the milliseconds to wait for the handler's stage before answering with 503, 0 to wait forever,
+	 * or a negative number to use async-handler-timeout
+	 * @param cancel - whether to cancel the handler's stage when it times out
+	 * @since 1.1
+	 */
+	public void addAsyncRouteHandler(String domain, String route, AsyncRouteHandler handler, int method, long timeout, boolean cancel) {
+		addRouteHandler(domain, route, new AsyncRouteAdapter(handler, timeout, cancel), method);
 	}
 	
 	/**
@@ -625,10 +1008,15 @@ public class Twister {
 	 * @since 1.0
 	 */
 	public void removeRouteHandler(String domain, String route, int method) {
-		if(routeHandlers.get(method).containsKey(domain.toLowerCase())) {
-			routeHandlers.get(method).get(domain.toLowerCase()).remove(route.toLowerCase());
-		} else {
-			logError("No RouteHandlers for domain \""+domain.toLowerCase()+"\"");
+		// While a module's new version is initialized, its handlers are not in the snapshot yet
+		if(!ModuleManager.defer(() -> removeRouteHandler(domain, route, method))) {
+			if(handlers.snapshot().getRouteHandlers(domain.toLowerCase(), method).size()>0) {
+				handlers.batch()
+					.removeRouteHandler(domain, route, method)
+					.commit();
+			} else {
+				logError("No RouteHandlers for domain \""+domain.toLowerCase()+"\"");
+			}
 		}
 	}
 	
@@ -639,12 +1027,7 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void addDocumentProcessor(String domain, DocumentProcessor processor) {
-		if(processor != null && domain != null) {
-			if(!DocumentBuilder._DOCUMENT_PROCESSORS_.containsKey(domain)) {
-				DocumentBuilder._DOCUMENT_PROCESSORS_.put(domain, new ArrayList<DocumentProcessor>());
-			}
-			DocumentBuilder._DOCUMENT_PROCESSORS_.get(domain).add(processor);
-		}
+		addProcessor(DocumentProcessors.DOCUMENT, domain, processor);
 	}
 	
 	/**
@@ -654,12 +1037,7 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void removeDocumentProcessor(String domain, DocumentProcessor processor) {
-		if(DocumentBuilder._DOCUMENT_PROCESSORS_.containsKey(domain)) {
-			DocumentBuilder._DOCUMENT_PROCESSORS_.get(domain).remove(processor);
-			if(DocumentBuilder._DOCUMENT_PROCESSORS_.size()<1) {
-				DocumentBuilder._DOCUMENT_PROCESSORS_.remove(domain);
-			}
-		}
+		removeProcessor(DocumentProcessors.DOCUMENT, domain, processor);
 	}
 	
 	/**
@@ -669,12 +1047,7 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void addTopDocumentProcessor(String domain, DocumentProcessor processor) {
-		if(processor != null && domain != null) {
-			if(!DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.containsKey(domain)) {
-				DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.put(domain, new ArrayList<DocumentProcessor>());
-			}
-			DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.get(domain).add(processor);
-		}
+		addProcessor(DocumentProcessors.TOP, domain, processor);
 	}
 	
 	/**
@@ -684,12 +1057,7 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void removeTopDocumentProcessor(String domain, DocumentProcessor processor) {
-		if(DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.containsKey(domain)) {
-			DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.get(domain).remove(processor);
-			if(DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.size()<1) {
-				DocumentBuilder._DOCUMENT_TOP_PROCESSORS_.remove(domain);
-			}
-		}
+		removeProcessor(DocumentProcessors.TOP, domain, processor);
 	}
 	
 	/**
@@ -699,12 +1067,7 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void addBottomDocumentProcessor(String domain, DocumentProcessor processor) {
-		if(processor != null && domain != null) {
-			if(!DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.containsKey(domain)) {
-				DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.put(domain, new ArrayList<DocumentProcessor>());
-			}
-			DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.get(domain).add(processor);
-		}
+		addProcessor(DocumentProcessors.BOTTOM, domain, processor);
 	}
 	
 	/**
@@ -714,23 +1077,53 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void removeBottomDocumentProcessor(String domain, DocumentProcessor processor) {
-		if(DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.containsKey(domain)) {
-			DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.get(domain).remove(processor);
-			if(DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.size()<1) {
-				DocumentBuilder._DOCUMENT_BOTTOM_PROCESSORS_.remove(domain);
+		removeProcessor(DocumentProcessors.BOTTOM, domain, processor);
+	}
+	
+	// Adds a processor for a part of a domain's pages.
+	// The processors are replaced as a whole, so documents being built keep the processors they started with.
+	private void addProcessor(int part, String domain, DocumentProcessor processor) {
+		if(processor != null && domain != null) {
+			ModuleManager.claim(processor);
+			if(!ModuleManager.defer(() -> addProcessor(part, domain, processor))) {
+				HandlerMetrics.register(processor, HandlerMetrics.DOCUMENT_PROCESSOR);
+				DocumentProcessors.update(processors -> processors.with(part, domain, processor));
 			}
 		}
 	}
 	
+	// Removes a processor from a part of a domain's pages
+	private void removeProcessor(int part, String domain, DocumentProcessor processor) {
+		if(!ModuleManager.defer(() -> removeProcessor(part, domain, processor))) {
+			DocumentProcessors.update(processors -> processors.without(part, domain, processor));
+			HandlerMetrics.forgetRemoved(handler -> handler == processor);
+		}
+	}
+	
+	/**
+	 * Removes all request, route, and pre-request handlers, DocumentProcessors, and VariableProviders that match a filter.
+	 * The handlers are removed in a single change, the processors and providers right after it.
+	 * @param filter returns true for the handlers, processors, and providers to remove
+	 * @since 1.1
+	 */
+	public void removeHandlers(Predicate<Object> filter) {
+		handlers.batch()
+			.removeHandlers(filter)
+			.commit();
+		DocumentProcessors.update(processors -> processors.without(filter));
+		ScriptProcessor.removeVariableProviders(filter);
+		HandlerMetrics.forgetRemoved(filter);
+	}
+	
 	/**
 	 * Method to register a PreRequestHandler
 	 * @param handler the handler to register
 	 * @since 1.0
 	 */
 	public void addPreRequestHandler(PreRequestHandler handler) {
-		if(handler != null) {
-			preRequestHandlers.add(handler);
-		}
+		handlers.batch()
+			.addPreRequestHandler(handler)
+			.commit();
 	}
 	
 	/**
@@ -739,7 +1132,9 @@ public class Twister {
 	 * @since 1.0
 	 */
 	public void removePreRequestHandler(PreRequestHandler handler) {
-		preRequestHandlers.remove(handler);
+		handlers.batch()
+			.removePreRequestHandler(handler)
+			.commit();
 	}
 	
 	/**
@@ -748,7 +1143,7 @@ public class Twister {
 	 * @since 1.0
 	 */
 	public PreRequestHandler[] getPreRequestHandlers() {
-		return preRequestHandlers.toArray(new PreRequestHandler[0]);
+		return handlers.snapshot().getPreRequestHandlers().clone();
 	}
 	
 	/**
@@ -810,15 +1205,7 @@ public class Twister {
 	 * @since 0.1
 	 */
 	public RequestHandler[] getRequestHandlers(String domain, int method) {
-		ArrayList<RequestHandler> handlers = new ArrayList<RequestHandler>();
-		if(requestHandlers.size()>method) {
-			if(requestHandlers.get(method).containsKey(domain.toLowerCase())) {
-				for(RequestHandler handler : requestHandlers.get(method).get(domain.toLowerCase()).values()) {
-					handlers.add(handler);
-				}
-			}
-		}
-		return handlers.toArray(new RequestHandler[0]);
+		return handlers.snapshot().getRequestHandlers(domain.toLowerCase(), method).values().toArray(new RequestHandler[0]);
 	}
 	
 	/**
@@ -830,18 +1217,7 @@ public class Twister {
 	 * @since 0.1
 	 */
 	public boolean hasRequestHandler(String domain, int method, String path) {
-		boolean has = false;
-		
-		if(!path.startsWith("/")) path="/"+path;
-		if(!path.endsWith("/")) path+="/";
-		
-		if(requestHandlers.size()>method) {
-			if(requestHandlers.get(method).containsKey(domain.toLowerCase())) {
-				has = requestHandlers.get(method).get(domain.toLowerCase()).containsKey(path.toLowerCase());
-			}
-		}
-		
-		return has;
+		return getRequestHandler(domain, method, path) != null;
 	}
 	
 	/**
@@ -854,35 +1230,26 @@ public class Twister {
 	 * @since 0.1
 	 */
 	public RequestHandler getRequestHandler(String domain, int method, String path) {
-		RequestHandler handler = null;
-		
 		if(!path.startsWith("/")) path="/"+path;
 		if(!path.endsWith("/")) path+="/";
 		
-		if(requestHandlers.size()>method) {
-			if(requestHandlers.get(method).containsKey(domain.toLowerCase())) {
-				if(requestHandlers.get(method).get(domain.toLowerCase()).containsKey(path.toLowerCase())) {
-					handler = requestHandlers.get(method).get(domain.toLowerCase()).get(path.toLowerCase());
-				}
-			}
-		}
-		
-		return handler;
+		return handlers.snapshot().getRequestHandler(domain.toLowerCase(), method, path.toLowerCase());
 	}
 	
 	/**
-	 * Log info message to the console
+	 * Log info message to the console and log file
 	 * @param msg - the message to log
 	 * @since 0.1
 	 */
 	public void logInfo(String msg) {
-		String prefix = new Date().toString()+" INFO ";
-		if(msg.contains("\n")) {
-			System.out.println(prefix+msg);
-		} else {
+		if(log == null) {
+			// The log has not been started yet
+			String prefix = new Date().toString()+" INFO ";
 			for(String str : msg.split("\n")) {
 				System.out.println(prefix+str);
 			}
+		} else {
+			log.info(msg);
 		}
 	}
 	
@@ -892,13 +1259,14 @@ public class Twister {
 	 * @since 0.2
 	 */
 	public void logWarning(String msg) {
-		String prefix = new Date().toString()+" WARNING ";
-		if(msg.contains("\n")) {
-			System.out.println(prefix+msg);
-		} else {
+		if(log == null) {
+			// The log has not been started yet
+			String prefix = new Date().toString()+" WARNING ";
 			for(String str : msg.split("\n")) {
 				System.out.println(prefix+str);
 			}
+		} else {
+			log.warning(msg);
 		}
 	}
 	
@@ -908,13 +1276,42 @@ public class Twister {
 	 * @since 0.1
 	 */
 	public void logError(String msg) {
-		String prefix = new Date().toString()+" ERROR ";
-		if(msg.contains("\n")) {
-			System.err.println(prefix+msg);
-		} else {
+		if(log == null) {
+			// The log has not been started yet
+			String prefix = new Date().toString()+" ERROR ";
 			for(String str : msg.split("\n")) {
 				System.err.println(prefix+str);
 			}
+		} else {
+			log.error(msg);
+		}
+	}
+	
+	/**
+	 * Returns the log used for requests and log messages
+	 * @return the log
+	 * @since 1.1
+	 */
+	public AsyncLog getLog() {
+		return log;
+	}
+	
+	// Applies the log settings from twister.ini
+	private void configureLog() {
+		if(log != null) {
+			String file = Settings.get("log-file").trim();
+			try {
+				log.configure(
+					file.length() > 0 ? new File(file) : null,
+					Long.parseLong(Settings.get("log-max-file-size")),
+					Integer.parseInt(Settings.get("log-max-files")),
+					Boolean.parseBoolean(Settings.get("log-console")),
+					Settings.get("log-full-policy").equalsIgnoreCase("block")
+				);
+			} catch(NumberFormatException e) {
+				logError("Invalid log-max-file-size or log-max-files in twister.ini");
+				e.printStackTrace();
+			}
 		}
 	}
 	
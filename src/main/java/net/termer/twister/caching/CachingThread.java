@@ -2,18 +2,59 @@ package net.termer.twister.caching;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import net.termer.twister.Settings;
 import net.termer.twister.Twister;
+import net.termer.twister.document.ContentEncoder;
 import net.termer.twister.document.DocumentBuilder;
-import net.termer.twister.utils.StringFilter;
+import net.termer.twister.scripting.ScriptProcessor;
 
 /**
- * Thread used by Twister that caches various files
+ * Thread used by Twister that caches various files.
+ * Cached tops, bottoms, and 404 pages are reloaded when the domain watcher reports that they changed.
+ * Changes are collected for a short while before they are reloaded, so a burst of changes,
+ * such as a deploy, only causes one reload of each file.
  * @author termer
  * @since 0.2
  */
-public class CachingThread extends Thread {
+public class CachingThread extends Thread implements DomainWatcher.Listener {
+	// The amount of milliseconds without changes to wait for before reloading
+	private static final long DEBOUNCE_QUIET = 250;
+	// The maximum amount of milliseconds to delay a reload while changes keep coming in
+	private static final long DEBOUNCE_MAX = 2000;
+	// The shortest interval in milliseconds between maintenance runs, so small intervals cannot make the loop spin
+	private static final long MIN_INTERVAL = 1000;
+	
+	// Paths that changed since the last reload, relative to the domains directory
+	private Object _LOCK_ = new Object();
+	private HashSet<String> _PENDING_ = new HashSet<String>();
+	private boolean _RELOAD_ALL_ = false;
+	private long _LAST_CHANGE_ = 0;
+	
+	// Reports changes in the domains directory, or null if it is not watched
+	private DomainWatcher _WATCHER_ = null;
+	
+	/**
+	 * Creates a caching thread that reloads everything every caching-interval, since it is not told about changes
+	 * @since 0.2
+	 */
+	public CachingThread() {
+		this(null);
+	}
+	
+	/**
+	 * Creates a caching thread that reloads cached files when the specified watcher reports that they changed
+	 * @param watcher the watcher of the domains directory, or null to reload everything every caching-interval
+	 * @since 1.1
+	 */
+	public CachingThread(DomainWatcher watcher) {
+		_WATCHER_ = watcher;
+	}
+	
+	private static volatile long _404_MODIFIED_ = -1;
+	
 	public void run() {
 		setName("Caching Thread");
 		
@@ -23,30 +64,236 @@ public class CachingThread extends Thread {
 			cache404();
 		}
 		
+		// Without a watcher, changes are only seen when everything is reloaded every interval
+		DomainWatcher watcher = _WATCHER_;
+		if(watcher != null) {
+			watcher.addListener(this);
+		}
+		
+		long lastMaintenance = System.currentTimeMillis();
+		
 		// Run forever
 		while(true) {
+			long interval = 600000;
+			try {
+				interval = Math.max(MIN_INTERVAL, Math.round(Double.parseDouble(Settings.get("caching-interval"))*1000));
+			} catch(NumberFormatException e) {
+				logError("Invalid caching-interval in twister.ini, using 600 seconds");
+			}
 			
-			// Check if top and bottom caching is enabled
-			if(Boolean.parseBoolean(Settings.get("caching"))) {
-				try {
-					// Sleep the thread for the configured amount of seconds
-					sleep(Math.round(Double.parseDouble(Settings.get("caching-interval"))*1000));
-					
-					// Cache domain tops and bottoms
-					cacheTopsAndBottoms();
-					
-					// Cache 404 message
-					cache404();
+			HashSet<String> changed = null;
+			boolean reloadAll = false;
+			try {
+				synchronized(_LOCK_) {
+					// Sleep until something changes or until the interval passes
+					long wake = lastMaintenance+interval;
+					long now = System.currentTimeMillis();
+					while(_PENDING_.isEmpty() && !_RELOAD_ALL_ && now < wake) {
+						_LOCK_.wait(wake-now);
+						now = System.currentTimeMillis();
+					}
 					
-					// Cycle complete
+					// Wait for changes to stop coming in
+					long first = now;
+					while((!_PENDING_.isEmpty() || _RELOAD_ALL_) && now-_LAST_CHANGE_ < DEBOUNCE_QUIET && now-first < DEBOUNCE_MAX) {
+						_LOCK_.wait(Math.max(1, Math.min(DEBOUNCE_QUIET-(now-_LAST_CHANGE_), DEBOUNCE_MAX-(now-first))));
+						now = System.currentTimeMillis();
+					}
 					
-				} catch (NumberFormatException | InterruptedException e) {
-					Twister.current().logError("Caching thread failed to sleep for the");
-					Twister.current().logError("cache-topbottom-interval time, not caching this cycle");
+					if(!_PENDING_.isEmpty()) {
+						changed = _PENDING_;
+						_PENDING_ = new HashSet<String>();
+					}
+					reloadAll = _RELOAD_ALL_;
+					_RELOAD_ALL_ = false;
+				}
+			} catch(InterruptedException e) {
+				break;
+			}
+			
+			boolean caching = Boolean.parseBoolean(Settings.get("caching"));
+			
+			if(caching && reloadAll) {
+				cacheTopsAndBottoms();
+				cache404();
+			} else if(caching && changed != null) {
+				reloadChanged(changed);
+			}
+			
+			if(System.currentTimeMillis()-lastMaintenance >= interval) {
+				lastMaintenance = System.currentTimeMillis();
+				
+				if(caching) {
+					if(watcher == null) {
+						cacheTopsAndBottoms();
+						cache404();
+					} else if(new File("404.html").lastModified() != _404_MODIFIED_) {
+						// The global 404 page is not in a domain, so it is not watched
+						cacheGlobal404();
+					}
+				}
+				
+				// Drop cached static files that changed or were deleted
+				TwisterCache._STATIC_FILES_.purgeStale();
+				
+				// Drop scripting interpreters that have not been used in a while
+				ScriptProcessor.getInterpreterPool().evictIdle();
+			}
+		}
+	}
+	
+	/**
+	 * Called by the domain watcher when a path in the domains directory changes
+	 * @param path the path that changed, or null if anything may have changed
+	 * @since 1.1
+	 */
+	public void changed(String path) {
+		synchronized(_LOCK_) {
+			if(path == null) {
+				_RELOAD_ALL_ = true;
+			} else {
+				int slash = path.indexOf('/');
+				if(slash < 0) {
+					// A whole domain was created or deleted
+					_PENDING_.add(path+"/top.html");
+					_PENDING_.add(path+"/bottom.html");
+					_PENDING_.add(path+"/404.html");
+				} else if(slash == path.lastIndexOf('/')) {
+					String name = path.substring(slash+1);
+					if(name.equals("top.html") || name.equals("bottom.html") || name.equals("404.html")) {
+						_PENDING_.add(path);
+					}
+				}
+			}
+			_LAST_CHANGE_ = System.currentTimeMillis();
+			_LOCK_.notifyAll();
+		}
+	}
+	
+	// Reloads only the cached files that changed, and publishes them in a new snapshot
+	private static void reloadChanged(HashSet<String> changed) {
+		// Read the files before taking the snapshot, so updates are not held up by the disk
+		HashMap<String,String> read = new HashMap<String,String>();
+		for(String path : changed) {
+			File file = new File("domains/"+path);
+			if(file.isFile()) {
+				try {
+					read.put(path, DocumentBuilder.readFile(file.getPath()));
+				} catch(IOException e) {
+					// Keep the cached version
+					read.put(path, null);
+					logError("Failed to cache "+path);
 					e.printStackTrace();
 				}
 			}
 		}
+		
+		TwisterCache.update(snapshot -> {
+			HashMap<String,String> tops = null;
+			HashMap<String,String> bottoms = null;
+			HashMap<String,String> notFounds = null;
+			
+			for(String path : changed) {
+				int slash = path.indexOf('/');
+				String domain = path.substring(0, slash);
+				String name = path.substring(slash+1);
+				
+				HashMap<String,String> map = null;
+				if(name.equals("top.html")) {
+					map = tops == null ? (tops = new HashMap<String,String>(snapshot.getTops())) : tops;
+				} else if(name.equals("bottom.html")) {
+					map = bottoms == null ? (bottoms = new HashMap<String,String>(snapshot.getBottoms())) : bottoms;
+				} else {
+					map = notFounds == null ? (notFounds = new HashMap<String,String>(snapshot.get404s())) : notFounds;
+				}
+				
+				if(read.containsKey(path)) {
+					if(read.get(path) != null) {
+						map.put(domain, read.get(path));
+					}
+				} else {
+					map.remove(domain);
+				}
+			}
+			
+			if(tops != null) {
+				snapshot = snapshot.withTops(tops);
+			}
+			if(bottoms != null) {
+				snapshot = snapshot.withBottoms(bottoms);
+			}
+			if(notFounds != null) {
+				snapshot = snapshot.with404s(notFounds);
+			}
+			return snapshot;
+		});
+	}
+	
+	/**
+	 * Applies the static file cache limits from twister.ini, and clears the cache if it is disabled
+	 * @since 1.1
+	 */
+	public static void configureStaticFileCache() {
+		try {
+			TwisterCache._STATIC_FILES_.configure(
+				Long.parseLong(Settings.get("static-cache-size")),
+				Long.parseLong(Settings.get("static-cache-max-file-size"))
+			);
+		} catch(NumberFormatException e) {
+			logError("Invalid static-cache-size or static-cache-max-file-size in twister.ini, using the defaults");
+			TwisterCache._STATIC_FILES_.configure(
+				Long.parseLong(Settings.getDefault("static-cache-size")),
+				Long.parseLong(Settings.getDefault("static-cache-max-file-size"))
+			);
+		}
+		if(!Boolean.parseBoolean(Settings.get("static-cache"))) {
+			TwisterCache._STATIC_FILES_.clear();
+		}
+	}
+	
+	/**
+	 * Applies the compressed response cache limit from twister.ini
+	 * @since 1.1
+	 */
+	public static void configureCompressionCache() {
+		try {
+			TwisterCache._COMPRESSED_.configure(Long.parseLong(Settings.get("compression-cache-size")));
+		} catch(NumberFormatException e) {
+			logError("Invalid compression-cache-size in twister.ini, using the default");
+			TwisterCache._COMPRESSED_.configure(Long.parseLong(Settings.getDefault("compression-cache-size")));
+		}
+		if(!ContentEncoder.isDynamicEnabled()) {
+			TwisterCache._COMPRESSED_.clear();
+		}
+	}
+	
+	/**
+	 * Applies the page cache limit from twister.ini, and clears the cache
+	 * @since 1.1
+	 */
+	public static void configurePageCache() {
+		try {
+			TwisterCache._PAGES_.configure(Long.parseLong(Settings.get("page-cache-size")));
+		} catch(NumberFormatException e) {
+			logError("Invalid page-cache-size in twister.ini, using the default");
+			TwisterCache._PAGES_.configure(Long.parseLong(Settings.getDefault("page-cache-size")));
+		}
+		
+		// Processors or settings may have changed
+		TwisterCache._PAGES_.clear();
+	}
+	
+	/**
+	 * Applies the file index time to live from twister.ini, clearing the index
+	 * @since 1.1
+	 */
+	public static void configureFileIndex() {
+		try {
+			TwisterCache._FILES_.setTTL(Math.round(Double.parseDouble(Settings.get("file-index-ttl"))*1000));
+		} catch(NumberFormatException e) {
+			logError("Invalid file-index-ttl in twister.ini, using the default");
+			TwisterCache._FILES_.setTTL(Math.round(Double.parseDouble(Settings.getDefault("file-index-ttl"))*1000));
+		}
 	}
 	
 	/**
@@ -54,36 +301,42 @@ public class CachingThread extends Thread {
 	 * @since 0.2
 	 */
 	public static void cache404() {
-		try {
-			TwisterCache._404_ = DocumentBuilder.readFile("404.html");
-		} catch (IOException e) {
-			Twister.current().logError("Failed to cache 404.html");
-			e.printStackTrace();
-		}
+		cacheGlobal404();
 		
-		// Clear cached 404 pages
-		TwisterCache._404S_.clear();
+		// Build the new map before publishing it, so readers never see it half filled
+		HashMap<String,String> notFounds = new HashMap<String,String>();
 		
 		File domainsDir = new File("domains/");
 		for(File dir : domainsDir.listFiles()) {
 			if(dir.isDirectory()) {
 				String domain = dir.getName();
 				
-				// Cycle through domain's files
-				for(File domainFile : dir.listFiles()) {
-					if(domainFile.isFile()) {
-						if(StringFilter.same(domainFile.getName(),"404.html")) {
-							try {
-								TwisterCache._404S_.put(domain, DocumentBuilder.readFile(domainFile.getAbsolutePath()));
-							} catch (IOException e) {
-								Twister.current().logError("Failed to cache 404.html for domain "+domain);
-								e.printStackTrace();
-							}
-						}
+				File domainFile = new File(dir, "404.html");
+				if(domainFile.isFile()) {
+					try {
+						notFounds.put(domain, DocumentBuilder.readFile(domainFile.getAbsolutePath()));
+					} catch (IOException e) {
+						logError("Failed to cache 404.html for domain "+domain);
+						e.printStackTrace();
 					}
 				}
 			}
 		}
+		
+		TwisterCache.update(snapshot -> snapshot.with404s(notFounds));
+	}
+	
+	// Caches the global 404 page
+	private static void cacheGlobal404() {
+		try {
+			File file = new File("404.html");
+			_404_MODIFIED_ = file.lastModified();
+			String notFound = DocumentBuilder.readFile(file.getPath());
+			TwisterCache.update(snapshot -> snapshot.with404(notFound));
+		} catch (IOException e) {
+			logError("Failed to cache 404.html");
+			e.printStackTrace();
+		}
 	}
 	
 	/**
@@ -91,36 +344,46 @@ public class CachingThread extends Thread {
 	 * @since 0.2
 	 */
 	public static void cacheTopsAndBottoms() {
-		// Clear cache
-		TwisterCache._TOPS_.clear();
-		TwisterCache._BOTTOMS_.clear();
+		// Build the new maps before publishing them, so readers never see them half filled
+		HashMap<String,String> tops = new HashMap<String,String>();
+		HashMap<String,String> bottoms = new HashMap<String,String>();
 		
 		File domainsDir = new File("domains/");
 		for(File dir : domainsDir.listFiles()) {
 			if(dir.isDirectory()) {
 				String domain = dir.getName();
 				
-				// Cycle through domain's files
-				for(File domainFile : dir.listFiles()) {
-					if(domainFile.isFile()) {
-						if(StringFilter.same(domainFile.getName(),"top.html")) {
-							try {
-								TwisterCache._TOPS_.put(domain, DocumentBuilder.readFile(domainFile.getAbsolutePath()));
-							} catch (IOException e) {
-								Twister.current().logError("Failed to cache top.html for domain "+domain);
-								e.printStackTrace();
-							}
-						} else if(StringFilter.same(domainFile.getName(),"bottom.html")) {
-							try {
-								TwisterCache._BOTTOMS_.put(domain, DocumentBuilder.readFile(domainFile.getAbsolutePath()));
-							} catch (IOException e) {
-								Twister.current().logError("Failed to cache bottom.html for domain "+domain);
-								e.printStackTrace();
-							}
-						}
+				File top = new File(dir, "top.html");
+				if(top.isFile()) {
+					try {
+						tops.put(domain, DocumentBuilder.readFile(top.getAbsolutePath()));
+					} catch (IOException e) {
+						logError("Failed to cache top.html for domain "+domain);
+						e.printStackTrace();
+					}
+				}
+				
+				File bottom = new File(dir, "bottom.html");
+				if(bottom.isFile()) {
+					try {
+						bottoms.put(domain, DocumentBuilder.readFile(bottom.getAbsolutePath()));
+					} catch (IOException e) {
+						logError("Failed to cache bottom.html for domain "+domain);
+						e.printStackTrace();
 					}
 				}
 			}
 		}
+		
+		TwisterCache.update(snapshot -> snapshot.withTops(tops).withBottoms(bottoms));
+	}
+	
+	// Logs an error, also while Twister is still being created and current() is null
+	private static void logError(String msg) {
+		if(Twister.current() != null) {
+			Twister.current().logError(msg);
+		} else {
+			System.err.println(msg);
+		}
 	}
 }
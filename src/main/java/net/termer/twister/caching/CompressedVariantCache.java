@@ -0,0 +1,179 @@
+package net.termer.twister.caching;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache for compressed versions of response bodies.
+ * Entries are keyed by the full text of the body, so any response that is rendered
+ * to the same text (for example a page made of a cached top, document and bottom,
+ * or a cached 404 page) is only compressed once.
+ * A body is only stored the second time it is seen, so pages that are different
+ * on every request never push useful entries out of the cache.
+ * @author termer
+ * @since 1.1
+ */
+public class CompressedVariantCache {
+	// Entries in least recently used order
+	private LinkedHashMap<String,byte[]> _ENTRIES_ = new LinkedHashMap<String,byte[]>(16, 0.75f, true);
+	
+	// Hashes of bodies that have been seen, but not stored yet
+	private int[] _SEEN_ = new int[4096];
+	
+	private long _MAX_SIZE_ = 0;
+	private long _SIZE_ = 0;
+	
+	// Statistics
+	private AtomicLong _HITS_ = new AtomicLong();
+	private AtomicLong _MISSES_ = new AtomicLong();
+	private AtomicLong _EVICTIONS_ = new AtomicLong();
+	
+	/**
+	 * Creates a new cache with the provided limit
+	 * @param maxSize the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public CompressedVariantCache(long maxSize) {
+		_MAX_SIZE_ = maxSize;
+	}
+	
+	/**
+	 * Changes the limit of the cache, evicting entries if the cache is now too large
+	 * @param maxSize the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public synchronized void configure(long maxSize) {
+		_MAX_SIZE_ = maxSize;
+		evict();
+	}
+	
+	/**
+	 * Returns the compressed version of the specified body, if it is cached
+	 * @param text the body
+	 * @return the compressed body, or null if it is not cached
+	 * @since 1.1
+	 */
+	public synchronized byte[] get(String text) {
+		byte[] data = _ENTRIES_.get(text);
+		if(data == null) {
+			_MISSES_.incrementAndGet();
+		} else {
+			_HITS_.incrementAndGet();
+		}
+		return data;
+	}
+	
+	/**
+	 * Records that the specified body was sent, and returns whether it was sent before.
+	 * Only bodies that were sent before are worth storing.
+	 * @param text the body
+	 * @return whether the body should be stored once it is compressed
+	 * @since 1.1
+	 */
+	public synchronized boolean admit(String text) {
+		if(weight(text, 0) > _MAX_SIZE_) {
+			return false;
+		}
+		
+		int hash = text.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & (_SEEN_.length-1);
+		boolean seen = _SEEN_[slot] == hash;
+		_SEEN_[slot] = hash;
+		return seen;
+	}
+	
+	/**
+	 * Stores the compressed version of a body, evicting the least recently used entries if necessary
+	 * @param text the body
+	 * @param data the compressed body
+	 * @since 1.1
+	 */
+	public synchronized void put(String text, byte[] data) {
+		byte[] old = _ENTRIES_.put(text, data);
+		if(old != null) {
+			_SIZE_ -= weight(text, old.length);
+		}
+		_SIZE_ += weight(text, data.length);
+		evict();
+	}
+	
+	/**
+	 * Removes all entries from the cache
+	 * @since 1.1
+	 */
+	public synchronized void clear() {
+		_ENTRIES_.clear();
+		_SIZE_ = 0;
+	}
+	
+	/**
+	 * Returns the amount of cache hits
+	 * @return the amount of cache hits
+	 * @since 1.1
+	 */
+	public long getHits() {
+		return _HITS_.get();
+	}
+	
+	/**
+	 * Returns the amount of cache misses
+	 * @return the amount of cache misses
+	 * @since 1.1
+	 */
+	public long getMisses() {
+		return _MISSES_.get();
+	}
+	
+	/**
+	 * Returns the amount of entries evicted to stay within the size limit
+	 * @return the amount of evictions
+	 * @since 1.1
+	 */
+	public long getEvictions() {
+		return _EVICTIONS_.get();
+	}
+	
+	/**
+	 * Returns the amount of bytes currently used by the cache, including the keys
+	 * @return the amount of bytes currently used by the cache
+	 * @since 1.1
+	 */
+	public synchronized long getSize() {
+		return _SIZE_;
+	}
+	
+	/**
+	 * Returns the amount of bodies currently cached
+	 * @return the amount of bodies currently cached
+	 * @since 1.1
+	 */
+	public synchronized int getCount() {
+		return _ENTRIES_.size();
+	}
+	
+	/**
+	 * Returns the maximum amount of bytes the cache can hold
+	 * @return the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public long getMaxSize() {
+		return _MAX_SIZE_;
+	}
+	
+	// The key is kept in memory too, so it counts towards the size
+	private static long weight(String text, int length) {
+		return text.length()*2L+length;
+	}
+	
+	private void evict() {
+		Iterator<Map.Entry<String,byte[]>> it = _ENTRIES_.entrySet().iterator();
+		while(_SIZE_ > _MAX_SIZE_ && it.hasNext()) {
+			Map.Entry<String,byte[]> entry = it.next();
+			it.remove();
+			_SIZE_ -= weight(entry.getKey(), entry.getValue().length);
+			_EVICTIONS_.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package net.termer.twister.caching;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Thread that watches the domains directory and everything in it for changes,
+ * and tells its listeners which paths changed.
+ * New directories are watched as soon as they are created.
+ * @author termer
+ * @since 1.1
+ */
+public class DomainWatcher extends Thread {
+	private Path _ROOT_ = null;
+	private WatchService _WATCHER_ = null;
+	private HashMap<WatchKey,Path> _KEYS_ = new HashMap<WatchKey,Path>();
+	private CopyOnWriteArrayList<Listener> _LISTENERS_ = new CopyOnWriteArrayList<Listener>();
+	
+	/**
+	 * Creates a new watcher for the specified directory, and starts watching it and its subdirectories.
+	 * Changes are only reported once the thread is started.
+	 * @param root the directory to watch
+	 * @throws IOException if watching the directory fails
+	 * @since 1.1
+	 */
+	public DomainWatcher(File root) throws IOException {
+		setName("Domain Watcher");
+		setDaemon(true);
+		
+		_ROOT_ = root.toPath().toAbsolutePath().normalize();
+		_WATCHER_ = FileSystems.getDefault().newWatchService();
+		watchAll(_ROOT_);
+	}
+	
+	/**
+	 * Adds a listener that is called when paths change
+	 * @param listener the listener
+	 * @since 1.1
+	 */
+	public void addListener(Listener listener) {
+		_LISTENERS_.add(listener);
+	}
+	
+	/**
+	 * Removes a listener
+	 * @param listener the listener
+	 * @since 1.1
+	 */
+	public void removeListener(Listener listener) {
+		_LISTENERS_.remove(listener);
+	}
+	
+	/**
+	 * Stops watching, ending the thread
+	 * @since 1.1
+	 */
+	public void close() {
+		try {
+			_WATCHER_.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public void run() {
+		while(true) {
+			WatchKey key = null;
+			try {
+				key = _WATCHER_.take();
+			} catch(InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+			
+			Path dir = _KEYS_.get(key);
+			if(dir != null) {
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(event.kind() == OVERFLOW) {
+						// Events were lost, so anything may have changed
+						notifyListeners(null);
+						continue;
+					}
+					
+					Path changed = dir.resolve((Path) event.context());
+					if(event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+						try {
+							watchAll(changed);
+						} catch(IOException e) {
+							System.err.println("Failed to watch new directory "+changed);
+							e.printStackTrace();
+						}
+					}
+					
+					notifyListeners(relative(changed));
+				}
+			}
+			
+			// Stop tracking directories that were deleted
+			if(!key.reset()) {
+				_KEYS_.remove(key);
+			}
+		}
+	}
+	
+	// Watches a directory and all of its subdirectories
+	private void watchAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				_KEYS_.put(dir.register(_WATCHER_, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	// Returns a path relative to the watched directory, with / as the separator
+	private String relative(Path path) {
+		String rel = _ROOT_.relativize(path).toString();
+		if(File.separatorChar != '/') {
+			rel = rel.replace(File.separatorChar, '/');
+		}
+		return rel;
+	}
+	
+	private void notifyListeners(String path) {
+		for(Listener listener : _LISTENERS_) {
+			try {
+				listener.changed(path);
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Interface for listening to changes in the watched directory
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static interface Listener {
+		/**
+		 * Called when a file or directory is created, modified, or deleted
+		 * @param path the path that changed, relative to the watched directory and using / as the separator,
+		 * or null if changes were missed and anything may have changed
+		 * @since 1.1
+		 */
+		public void changed(String path);
+	}
+}
@@ -0,0 +1,329 @@
+package net.termer.twister.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.termer.twister.utils.ContentType;
+
+/**
+ * Index of file system metadata for the files and directories in the domains directory.
+ * Metadata is stored in a tree with one node per path segment, so a domain or a directory
+ * can be dropped along with everything under it. Entries are kept current by a DomainWatcher
+ * calling invalidate() when files change, and are checked against the disk again once they are
+ * older than the index's time to live, in case the watcher misses a change.
+ * Paths that do not exist are indexed too, so repeated requests for missing files do not touch the disk,
+ * but only directly under directories that exist and only up to a limit, so requests for made up paths cannot fill the index.
+ * @author termer
+ * @since 1.1
+ */
+public class FileIndex {
+	// The amount of nodes above which the index is cleared, so it cannot grow without bounds
+	private static final int MAX_NODES = 65536;
+	// The amount of missing paths that are indexed, beyond which missing paths are read from the disk every time
+	private static final int MAX_MISSING = 16384;
+	
+	private File _ROOT_ = null;
+	private volatile Node _TREE_ = new Node(false);
+	private AtomicInteger _NODES_ = new AtomicInteger();
+	private AtomicInteger _MISSING_ = new AtomicInteger();
+	private volatile long _TTL_ = 0;
+	
+	/**
+	 * Creates a new index for the specified directory
+	 * @param root the directory to index
+	 * @param ttl the amount of milliseconds metadata is trusted before it is read from the disk again, 0 to disable the index
+	 * @since 1.1
+	 */
+	public FileIndex(File root, long ttl) {
+		_ROOT_ = root;
+		_TTL_ = ttl;
+	}
+	
+	/**
+	 * Returns the directory this index is for
+	 * @return the indexed directory
+	 * @since 1.1
+	 */
+	public File getRoot() {
+		return _ROOT_;
+	}
+	
+	/**
+	 * Returns the amount of milliseconds metadata is trusted before it is read from the disk again
+	 * @return the time to live in milliseconds, or 0 if the index is disabled
+	 * @since 1.1
+	 */
+	public long getTTL() {
+		return _TTL_;
+	}
+	
+	/**
+	 * Changes the amount of milliseconds metadata is trusted before it is read from the disk again
+	 * @param ttl the time to live in milliseconds, 0 to disable the index
+	 * @since 1.1
+	 */
+	public void setTTL(long ttl) {
+		_TTL_ = ttl;
+		clear();
+	}
+	
+	/**
+	 * Returns the metadata of the specified file or directory
+	 * @param path the path, relative to the indexed directory
+	 * @return the metadata of the path
+	 * @since 1.1
+	 */
+	public Entry get(String path) {
+		long ttl = _TTL_;
+		if(ttl < 1 || path.contains("..")) {
+			// Not indexed
+			return read(path);
+		}
+		
+		// Walk to the path's node, creating the nodes that are missing
+		Entry r = null;
+		Node node = _TREE_;
+		int start = 0;
+		while(r == null && start < path.length()) {
+			int end = path.indexOf('/', start);
+			if(end < 0) {
+				end = path.length();
+			}
+			if(end > start) {
+				Entry parent = fresh(node, path.substring(0, start), ttl);
+				if(!parent.exists || !parent.directory) {
+					// Nothing exists under a missing path or a file, so nothing is indexed under it either
+					r = new Entry(false, false, 0, 0, null, parent.checked);
+				} else {
+					String segment = path.substring(start, end);
+					Node child = node.children.get(segment);
+					if(child == null) {
+						Entry entry = read(path.substring(0, end));
+						if(entry.exists ? _NODES_.incrementAndGet() > MAX_NODES : _MISSING_.incrementAndGet() > MAX_MISSING) {
+							if(entry.exists) {
+								clear();
+							} else {
+								// Too many missing paths are indexed, so this one is not
+								_MISSING_.decrementAndGet();
+								r = entry;
+							}
+						}
+						if(r == null) {
+							Node created = new Node(!entry.exists);
+							created.entry = entry;
+							child = node.children.putIfAbsent(segment, created);
+							if(child == null) {
+								child = created;
+							} else {
+								// Another thread indexed the path first
+								(entry.exists ? _NODES_ : _MISSING_).decrementAndGet();
+							}
+						}
+					}
+					node = child;
+				}
+			}
+			start = end+1;
+		}
+		
+		if(r == null) {
+			r = fresh(node, path, ttl);
+		}
+		
+		return r;
+	}
+	
+	// Returns the metadata of a node, reading it from the disk again if it is older than the time to live
+	private Entry fresh(Node node, String path, long ttl) {
+		Entry entry = node.entry;
+		if(entry == null || System.currentTimeMillis()-entry.checked > ttl) {
+			entry = read(path);
+			node.entry = entry;
+		}
+		
+		return entry;
+	}
+	
+	/**
+	 * Returns whether the specified path exists
+	 * @param path the path, relative to the indexed directory
+	 * @return whether the path exists
+	 * @since 1.1
+	 */
+	public boolean exists(String path) {
+		return get(path).exists;
+	}
+	
+	/**
+	 * Returns whether the specified path is a directory
+	 * @param path the path, relative to the indexed directory
+	 * @return whether the path is a directory
+	 * @since 1.1
+	 */
+	public boolean isDirectory(String path) {
+		return get(path).directory;
+	}
+	
+	/**
+	 * Returns whether the specified path is a file
+	 * @param path the path, relative to the indexed directory
+	 * @return whether the path is a file
+	 * @since 1.1
+	 */
+	public boolean isFile(String path) {
+		Entry entry = get(path);
+		return entry.exists && !entry.directory;
+	}
+	
+	/**
+	 * Drops the metadata of the specified path and everything under it, as well as the metadata of its parent directory
+	 * @param path the path that changed, relative to the indexed directory
+	 * @since 1.1
+	 */
+	public void invalidate(String path) {
+		Node parent = null;
+		Node node = _TREE_;
+		String name = null;
+		for(String segment : path.split("/")) {
+			if(segment.length() > 0) {
+				parent = node;
+				name = segment;
+				node = node.children.get(segment);
+				if(node == null) {
+					// Nothing is indexed under the path
+					break;
+				}
+			}
+		}
+		
+		if(parent == null) {
+			// The whole index changed
+			clear();
+		} else {
+			// The node is created again the next time the path is requested, and counted as whatever it is then
+			if(node != null && parent.children.remove(name, node)) {
+				drop(node);
+			}
+			parent.entry = null;
+		}
+	}
+	
+	/**
+	 * Drops all metadata in the index
+	 * @since 1.1
+	 */
+	public void clear() {
+		_TREE_ = new Node(false);
+		_NODES_.set(0);
+		_MISSING_.set(0);
+	}
+	
+	// Uncounts a node removed from the tree and everything under it
+	private void drop(Node node) {
+		(node.missing ? _MISSING_ : _NODES_).decrementAndGet();
+		for(Node child : node.children.values()) {
+			drop(child);
+		}
+	}
+	
+	// Reads the metadata of a path from the disk
+	private Entry read(String path) {
+		File file = new File(_ROOT_, path);
+		long now = System.currentTimeMillis();
+		
+		Entry entry = null;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			entry = new Entry(true, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.isDirectory() ? null : ContentType.getForFileName(file.getName()), now);
+		} catch(IOException e) {
+			// Missing and unreadable paths are treated the same, just like File.exists() does
+			entry = new Entry(false, false, 0, 0, null, now);
+		}
+		
+		return entry;
+	}
+	
+	/**
+	 * Metadata of a file or directory
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Entry {
+		private boolean exists = false;
+		private boolean directory = false;
+		private long size = 0;
+		private long modified = 0;
+		private String contentType = null;
+		private long checked = 0;
+		
+		private Entry(boolean exists, boolean directory, long size, long modified, String contentType, long checked) {
+			this.exists = exists;
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+			this.contentType = contentType;
+			this.checked = checked;
+		}
+		
+		/**
+		 * Returns whether the path exists
+		 * @return whether the path exists
+		 * @since 1.1
+		 */
+		public boolean exists() {
+			return exists;
+		}
+		
+		/**
+		 * Returns whether the path is a directory
+		 * @return whether the path is a directory
+		 * @since 1.1
+		 */
+		public boolean isDirectory() {
+			return directory;
+		}
+		
+		/**
+		 * Returns the size of the file in bytes
+		 * @return the size of the file
+		 * @since 1.1
+		 */
+		public long getSize() {
+			return size;
+		}
+		
+		/**
+		 * Returns the modification time of the path
+		 * @return the modification time in milliseconds since the epoch
+		 * @since 1.1
+		 */
+		public long getModified() {
+			return modified;
+		}
+		
+		/**
+		 * Returns the content type of the file
+		 * @return the content type, or null if the path is a directory or does not exist
+		 * @since 1.1
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+	}
+	
+	// A node in the tree, representing one path segment
+	private static class Node {
+		private ConcurrentHashMap<String,Node> children = new ConcurrentHashMap<String,Node>();
+		private volatile Entry entry = null;
+		// Whether the path did not exist when the node was created, and so is counted as a missing path
+		private boolean missing = false;
+		
+		private Node(boolean missing) {
+			this.missing = missing;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package net.termer.twister.caching;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.termer.twister.document.DocumentProcessor;
+
+/**
+ * Size-bounded LRU cache for fully rendered HTML pages.
+ * Pages are keyed by domain and path, and stored with a Fingerprint of everything they were rendered from.
+ * A cached page is only served if the fingerprint of the current request matches,
+ * so pages are rendered again when their document, top, bottom, or DocumentProcessors change.
+ * Pages are also dropped as soon as the domain watcher reports that one of their files changed.
+ * @author termer
+ * @since 1.1
+ */
+public class PageCache implements DomainWatcher.Listener {
+	// Entries in least recently used order
+	private LinkedHashMap<String,Entry> _ENTRIES_ = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	
+	private long _MAX_SIZE_ = 0;
+	private long _SIZE_ = 0;
+	
+	// Statistics
+	private AtomicLong _HITS_ = new AtomicLong();
+	private AtomicLong _MISSES_ = new AtomicLong();
+	private AtomicLong _EVICTIONS_ = new AtomicLong();
+	
+	/**
+	 * Creates a new cache with the provided limit
+	 * @param maxSize the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public PageCache(long maxSize) {
+		_MAX_SIZE_ = maxSize;
+	}
+	
+	/**
+	 * Changes the limit of the cache, evicting entries if the cache is now too large
+	 * @param maxSize the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public synchronized void configure(long maxSize) {
+		_MAX_SIZE_ = maxSize;
+		evict();
+	}
+	
+	/**
+	 * Returns the cached page for the specified key, if it was rendered from the same inputs
+	 * @param key the domain and path of the page
+	 * @param fingerprint the fingerprint of the inputs the page would be rendered from now
+	 * @return the rendered page, or null if it is not cached or is out of date
+	 * @since 1.1
+	 */
+	public synchronized String get(String key, Fingerprint fingerprint) {
+		Entry entry = _ENTRIES_.get(key);
+		String text = null;
+		
+		if(entry != null) {
+			if(entry.fingerprint.matches(fingerprint)) {
+				text = entry.text;
+			} else {
+				// The page changed, so the entry will never be served again
+				_ENTRIES_.remove(key);
+				_SIZE_ -= weight(key, entry.text);
+			}
+		}
+		
+		if(text == null) {
+			_MISSES_.incrementAndGet();
+		} else {
+			_HITS_.incrementAndGet();
+		}
+		return text;
+	}
+	
+	/**
+	 * Stores a rendered page, evicting the least recently used pages if necessary
+	 * @param key the domain and path of the page
+	 * @param fingerprint the fingerprint of the inputs the page was rendered from
+	 * @param text the rendered page
+	 * @since 1.1
+	 */
+	public synchronized void put(String key, Fingerprint fingerprint, String text) {
+		if(weight(key, text) > _MAX_SIZE_) {
+			return;
+		}
+		
+		Entry old = _ENTRIES_.put(key, new Entry(fingerprint, text));
+		if(old != null) {
+			_SIZE_ -= weight(key, old.text);
+		}
+		_SIZE_ += weight(key, text);
+		evict();
+	}
+	
+	/**
+	 * Drops the cached pages that the changed path was used to render
+	 * @param path the path that changed, relative to the domains directory, or null to drop all pages
+	 * @since 1.1
+	 */
+	public synchronized void changed(String path) {
+		if(path == null) {
+			clear();
+			return;
+		}
+		
+		int slash = path.indexOf('/');
+		if(slash < 0 || path.endsWith("/top.html") || path.endsWith("/bottom.html")) {
+			// The whole domain, or a part of every page in it changed
+			String prefix = (slash < 0 ? path : path.substring(0, slash))+'/';
+			Iterator<Map.Entry<String,Entry>> it = _ENTRIES_.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<String,Entry> entry = it.next();
+				if(entry.getKey().startsWith(prefix)) {
+					it.remove();
+					_SIZE_ -= weight(entry.getKey(), entry.getValue().text);
+				}
+			}
+		} else {
+			Entry entry = _ENTRIES_.remove(path);
+			if(entry != null) {
+				_SIZE_ -= weight(path, entry.text);
+			}
+		}
+	}
+	
+	/**
+	 * Removes all pages from the cache
+	 * @since 1.1
+	 */
+	public synchronized void clear() {
+		_ENTRIES_.clear();
+		_SIZE_ = 0;
+	}
+	
+	/**
+	 * Returns the amount of cache hits
+	 * @return the amount of cache hits
+	 * @since 1.1
+	 */
+	public long getHits() {
+		return _HITS_.get();
+	}
+	
+	/**
+	 * Returns the amount of cache misses, including pages that were out of date
+	 * @return the amount of cache misses
+	 * @since 1.1
+	 */
+	public long getMisses() {
+		return _MISSES_.get();
+	}
+	
+	/**
+	 * Returns the amount of pages evicted to stay within the size limit
+	 * @return the amount of evictions
+	 * @since 1.1
+	 */
+	public long getEvictions() {
+		return _EVICTIONS_.get();
+	}
+	
+	/**
+	 * Returns the amount of bytes currently used by the cache, including the keys
+	 * @return the amount of bytes currently used by the cache
+	 * @since 1.1
+	 */
+	public synchronized long getSize() {
+		return _SIZE_;
+	}
+	
+	/**
+	 * Returns the amount of pages currently cached
+	 * @return the amount of pages currently cached
+	 * @since 1.1
+	 */
+	public synchronized int getCount() {
+		return _ENTRIES_.size();
+	}
+	
+	/**
+	 * Returns the maximum amount of bytes the cache can hold
+	 * @return the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public long getMaxSize() {
+		return _MAX_SIZE_;
+	}
+	
+	private static long weight(String key, String text) {
+		return key.length()*2L+text.length()*2L;
+	}
+	
+	private void evict() {
+		Iterator<Map.Entry<String,Entry>> it = _ENTRIES_.entrySet().iterator();
+		while(_SIZE_ > _MAX_SIZE_ && it.hasNext()) {
+			Map.Entry<String,Entry> entry = it.next();
+			it.remove();
+			_SIZE_ -= weight(entry.getKey(), entry.getValue().text);
+			_EVICTIONS_.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * The inputs a page is rendered from
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Fingerprint {
+		private long _MODIFIED_ = 0;
+		private long _SIZE_ = 0;
+		private String _TOP_ = null;
+		private String _BOTTOM_ = null;
+		private DocumentProcessor[] _PROCESSORS_ = null;
+		
+		/**
+		 * Creates a new fingerprint
+		 * @param modified the modification time of the document
+		 * @param size the size of the document
+		 * @param top the domain's top, or null if it has none
+		 * @param bottom the domain's bottom, or null if it has none
+		 * @param processors the DocumentProcessors the page is processed by, in order
+		 * @since 1.1
+		 */
+		public Fingerprint(long modified, long size, String top, String bottom, DocumentProcessor[] processors) {
+			_MODIFIED_ = modified;
+			_SIZE_ = size;
+			_TOP_ = top;
+			_BOTTOM_ = bottom;
+			_PROCESSORS_ = processors;
+		}
+		
+		/**
+		 * Returns whether this fingerprint was made from the same inputs as another
+		 * @param other the other fingerprint
+		 * @return whether the inputs are the same
+		 * @since 1.1
+		 */
+		public boolean matches(Fingerprint other) {
+			if(_MODIFIED_ != other._MODIFIED_ || _SIZE_ != other._SIZE_ || _PROCESSORS_.length != other._PROCESSORS_.length) {
+				return false;
+			}
+			for(int i = 0; i < _PROCESSORS_.length; i++) {
+				if(_PROCESSORS_[i] != other._PROCESSORS_[i]) {
+					return false;
+				}
+			}
+			
+			// Cached tops and bottoms are the same object until they are reloaded, so this is usually only a reference check
+			return Objects.equals(_TOP_, other._TOP_) && Objects.equals(_BOTTOM_, other._BOTTOM_);
+		}
+	}
+	
+	// A rendered page and what it was rendered from
+	private static class Entry {
+		private Fingerprint fingerprint = null;
+		private String text = null;
+		
+		private Entry(Fingerprint fingerprint, String text) {
+			this.fingerprint = fingerprint;
+			this.text = text;
+		}
+	}
+}
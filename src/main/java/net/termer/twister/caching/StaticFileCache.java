@@ -0,0 +1,297 @@
+package net.termer.twister.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.termer.twister.document.ContentEncoder;
+
+/**
+ * Size-bounded LRU cache for the content of static files.
+ * Entries are checked against the file's modification time and size
+ * before being served, so changed files are re-read from disk.
+ * Compressed variants of cached files are kept alongside them, so each is only compressed once.
+ * @author termer
+ * @since 1.1
+ */
+public class StaticFileCache {
+	// Entries in least recently used order
+	private LinkedHashMap<String,Entry> _ENTRIES_ = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	
+	private long _MAX_SIZE_ = 0;
+	private long _MAX_FILE_SIZE_ = 0;
+	private long _SIZE_ = 0;
+	
+	// Statistics
+	private AtomicLong _HITS_ = new AtomicLong();
+	private AtomicLong _MISSES_ = new AtomicLong();
+	private AtomicLong _EVICTIONS_ = new AtomicLong();
+	private AtomicLong _INVALIDATIONS_ = new AtomicLong();
+	
+	/**
+	 * Creates a new cache with the provided limits
+	 * @param maxSize the maximum amount of bytes the cache can hold
+	 * @param maxFileSize the maximum size of a file that can be cached
+	 * @since 1.1
+	 */
+	public StaticFileCache(long maxSize, long maxFileSize) {
+		_MAX_SIZE_ = maxSize;
+		_MAX_FILE_SIZE_ = maxFileSize;
+	}
+	
+	/**
+	 * Changes the limits of the cache, evicting entries if the cache is now too large
+	 * @param maxSize the maximum amount of bytes the cache can hold
+	 * @param maxFileSize the maximum size of a file that can be cached
+	 * @since 1.1
+	 */
+	public synchronized void configure(long maxSize, long maxFileSize) {
+		_MAX_SIZE_ = maxSize;
+		_MAX_FILE_SIZE_ = maxFileSize;
+		
+		// Drop entries that are no longer allowed
+		Iterator<Entry> it = _ENTRIES_.values().iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if(entry.content.length > maxFileSize) {
+				it.remove();
+				_SIZE_ -= entry.size();
+				_EVICTIONS_.incrementAndGet();
+			}
+		}
+		evict();
+	}
+	
+	/**
+	 * Returns the content of the specified file, reading it from disk and caching it if necessary.
+	 * Returns null if the file is too large to be cached, in which case it should be read directly.
+	 * @param file the file to read
+	 * @return the content of the file, or null if the file cannot be cached
+	 * @throws IOException if reading the file fails
+	 * @since 1.1
+	 */
+	public byte[] get(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		long modified = attrs.lastModifiedTime().toMillis();
+		long size = attrs.size();
+		
+		Entry entry = null;
+		synchronized(this) {
+			entry = _ENTRIES_.get(key);
+			if(entry != null && (entry.modified != modified || entry.content.length != size)) {
+				// File changed since it was cached
+				_ENTRIES_.remove(key);
+				_SIZE_ -= entry.size();
+				_INVALIDATIONS_.incrementAndGet();
+				entry = null;
+			}
+		}
+		
+		byte[] content = null;
+		if(entry == null) {
+			_MISSES_.incrementAndGet();
+			if(size <= _MAX_FILE_SIZE_ && size <= _MAX_SIZE_) {
+				content = Files.readAllBytes(file.toPath());
+				put(key, new Entry(content, modified));
+			}
+		} else {
+			_HITS_.incrementAndGet();
+			content = entry.content;
+		}
+		
+		return content;
+	}
+	
+	/**
+	 * Returns the gzip compressed content of the specified file, compressing it only once per version of the file.
+	 * Returns null if the file is too large to be cached.
+	 * @param file the file to read
+	 * @param level the compression level to use if the file is not compressed yet
+	 * @return the compressed content of the file, or null if the file cannot be cached
+	 * @throws IOException if reading or compressing the file fails
+	 * @since 1.1
+	 */
+	public byte[] getCompressed(File file, int level) throws IOException {
+		byte[] content = get(file);
+		byte[] compressed = null;
+		
+		if(content != null) {
+			String key = file.getAbsolutePath();
+			synchronized(this) {
+				Entry entry = _ENTRIES_.get(key);
+				if(entry != null && entry.content == content) {
+					compressed = entry.compressed;
+				}
+			}
+			
+			if(compressed == null) {
+				compressed = ContentEncoder.gzip(content, level);
+				synchronized(this) {
+					// Only store it if the entry was not replaced while compressing
+					Entry entry = _ENTRIES_.get(key);
+					if(entry != null && entry.content == content && entry.compressed == null) {
+						entry.compressed = compressed;
+						_SIZE_ += compressed.length;
+						evict();
+					}
+				}
+			}
+		}
+		
+		return compressed;
+	}
+	
+	/**
+	 * Removes the specified file from the cache
+	 * @param file the file to remove
+	 * @since 1.1
+	 */
+	public synchronized void invalidate(File file) {
+		Entry entry = _ENTRIES_.remove(file.getAbsolutePath());
+		if(entry != null) {
+			_SIZE_ -= entry.size();
+			_INVALIDATIONS_.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Removes all entries whose files have changed or no longer exist
+	 * @since 1.1
+	 */
+	public synchronized void purgeStale() {
+		Iterator<Map.Entry<String,Entry>> it = _ENTRIES_.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String,Entry> entry = it.next();
+			File file = new File(entry.getKey());
+			if(!file.isFile() || file.lastModified() != entry.getValue().modified || file.length() != entry.getValue().content.length) {
+				it.remove();
+				_SIZE_ -= entry.getValue().size();
+				_INVALIDATIONS_.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Removes all entries from the cache
+	 * @since 1.1
+	 */
+	public synchronized void clear() {
+		_ENTRIES_.clear();
+		_SIZE_ = 0;
+	}
+	
+	/**
+	 * Returns the amount of cache hits
+	 * @return the amount of cache hits
+	 * @since 1.1
+	 */
+	public long getHits() {
+		return _HITS_.get();
+	}
+	
+	/**
+	 * Returns the amount of cache misses, including files too large to be cached
+	 * @return the amount of cache misses
+	 * @since 1.1
+	 */
+	public long getMisses() {
+		return _MISSES_.get();
+	}
+	
+	/**
+	 * Returns the amount of entries evicted to stay within the size limit
+	 * @return the amount of evictions
+	 * @since 1.1
+	 */
+	public long getEvictions() {
+		return _EVICTIONS_.get();
+	}
+	
+	/**
+	 * Returns the amount of entries removed because their files changed
+	 * @return the amount of invalidations
+	 * @since 1.1
+	 */
+	public long getInvalidations() {
+		return _INVALIDATIONS_.get();
+	}
+	
+	/**
+	 * Returns the amount of bytes currently cached
+	 * @return the amount of bytes currently cached
+	 * @since 1.1
+	 */
+	public synchronized long getSize() {
+		return _SIZE_;
+	}
+	
+	/**
+	 * Returns the amount of files currently cached
+	 * @return the amount of files currently cached
+	 * @since 1.1
+	 */
+	public synchronized int getCount() {
+		return _ENTRIES_.size();
+	}
+	
+	/**
+	 * Returns the maximum amount of bytes the cache can hold
+	 * @return the maximum amount of bytes the cache can hold
+	 * @since 1.1
+	 */
+	public long getMaxSize() {
+		return _MAX_SIZE_;
+	}
+	
+	/**
+	 * Returns the maximum size of a file that can be cached
+	 * @return the maximum size of a file that can be cached
+	 * @since 1.1
+	 */
+	public long getMaxFileSize() {
+		return _MAX_FILE_SIZE_;
+	}
+	
+	// Adds an entry, then evicts the least recently used entries until the cache fits
+	private synchronized void put(String key, Entry entry) {
+		Entry old = _ENTRIES_.put(key, entry);
+		if(old != null) {
+			_SIZE_ -= old.size();
+		}
+		_SIZE_ += entry.size();
+		evict();
+	}
+	
+	private void evict() {
+		Iterator<Entry> it = _ENTRIES_.values().iterator();
+		while(_SIZE_ > _MAX_SIZE_ && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			_SIZE_ -= entry.size();
+			_EVICTIONS_.incrementAndGet();
+		}
+	}
+	
+	// A cached file
+	private static class Entry {
+		private byte[] content = null;
+		private byte[] compressed = null;
+		private long modified = 0;
+		
+		private Entry(byte[] content, long modified) {
+			this.content = content;
+			this.modified = modified;
+		}
+		
+		// The amount of bytes the entry takes up, including its compressed variant
+		private long size() {
+			return content.length+(compressed == null ? 0 : compressed.length);
+		}
+	}
+}
@@ -1,40 +1,368 @@
 package net.termer.twister.caching;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
- * Class that stores caches files
+ * Class that stores caches files.
+ * Cached tops, bottoms, and 404 pages are stored in an immutable Snapshot.
+ * The caching thread builds new snapshots and publishes them atomically,
+ * so request threads can read the current snapshot without locking,
+ * and will never see a half-applied refresh.
  * @author termer
  * @since 0.2
  */
 public class TwisterCache {
+	private static volatile Snapshot _SNAPSHOT_ = new Snapshot(Collections.<String,String>emptyMap(), Collections.<String,String>emptyMap(), Collections.<String,String>emptyMap(), "");
+	
 	/**
 	 * Cached domain tops.
 	 * Key: Domain
 	 * Value: Cached top
+	 * This is a read-only view of the current snapshot, kept for compatibility. Use snapshot() instead.
 	 * @since 0.2
 	 */
-	public static HashMap<String,String> _TOPS_ = new HashMap<String,String>();
+	public static final HashMap<String,String> _TOPS_ = new SnapshotView(SnapshotView.TOPS);
 	
 	/**
 	 * Cached domain bottoms.
 	 * Key: Domain
 	 * Value: Cached bottom
+	 * This is a read-only view of the current snapshot, kept for compatibility. Use snapshot() instead.
 	 * @since 0.2
 	 */
-	public static HashMap<String,String> _BOTTOMS_ = new HashMap<String,String>();
+	public static final HashMap<String,String> _BOTTOMS_ = new SnapshotView(SnapshotView.BOTTOMS);
 	
 	/**
 	 * Cached main 404 page.
+	 * This mirrors the current snapshot, and is kept for compatibility. Use snapshot() instead.
 	 * @since 0.2
 	 */
-	public static String _404_ = "";
+	public static volatile String _404_ = "";
 	
 	/**
 	 * Cached 404 pages for domains.
 	 * Key: Domain
 	 * Value: Cached 404 page
+	 * This is a read-only view of the current snapshot, kept for compatibility. Use snapshot() instead.
 	 * @since 1.0
 	 */
-	public static HashMap<String,String> _404S_ = new HashMap<String,String>();
+	public static final HashMap<String,String> _404S_ = new SnapshotView(SnapshotView.NOT_FOUNDS);
+	
+	/**
+	 * Cached static files served from domains.
+	 * Limits are applied from twister.ini when configurations are (re)loaded.
+	 * @since 1.1
+	 */
+	public static StaticFileCache _STATIC_FILES_ = new StaticFileCache(0, 0);
+	
+	/**
+	 * Cached compressed response bodies, such as pages built from
+	 * cached tops, bottoms, and 404 pages.
+	 * The limit is applied from twister.ini when configurations are (re)loaded.
+	 * @since 1.1
+	 */
+	public static CompressedVariantCache _COMPRESSED_ = new CompressedVariantCache(0);
+	
+	/**
+	 * Fully rendered HTML pages.
+	 * The limit is applied from twister.ini when configurations are (re)loaded.
+	 * @since 1.1
+	 */
+	public static PageCache _PAGES_ = new PageCache(0);
+	
+	/**
+	 * Metadata of the files and directories in the domains directory.
+	 * The time to live is applied from twister.ini when configurations are (re)loaded.
+	 * @since 1.1
+	 */
+	public static FileIndex _FILES_ = new FileIndex(new File("domains/"), 0);
+	
+	/**
+	 * Returns the current snapshot of cached tops, bottoms, and 404 pages.
+	 * The snapshot never changes, so it can be used for the duration of an entire request.
+	 * @return the current snapshot
+	 * @since 1.1
+	 */
+	public static Snapshot snapshot() {
+		return _SNAPSHOT_;
+	}
+	
+	/**
+	 * Builds a new snapshot from the current one and publishes it.
+	 * Updates are applied one at a time, so concurrent updates are never lost.
+	 * @param update the function that returns the new snapshot, given the current one
+	 * @since 1.1
+	 */
+	public static synchronized void update(Function<Snapshot,Snapshot> update) {
+		Snapshot snapshot = update.apply(_SNAPSHOT_);
+		_SNAPSHOT_ = snapshot;
+		_404_ = snapshot.get404();
+	}
+	
+	/**
+	 * Immutable set of cached tops, bottoms, and 404 pages
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Snapshot {
+		private Map<String,String> _TOPS_ = null;
+		private Map<String,String> _BOTTOMS_ = null;
+		private Map<String,String> _404S_ = null;
+		private String _404_ = null;
+		
+		private Snapshot(Map<String,String> tops, Map<String,String> bottoms, Map<String,String> notFounds, String notFound) {
+			_TOPS_ = tops;
+			_BOTTOMS_ = bottoms;
+			_404S_ = notFounds;
+			_404_ = notFound;
+		}
+		
+		/**
+		 * Returns the cached top for the specified domain
+		 * @param domain the domain
+		 * @return the top, or null if the domain has none
+		 * @since 1.1
+		 */
+		public String getTop(String domain) {
+			return _TOPS_.get(domain);
+		}
+		
+		/**
+		 * Returns the cached bottom for the specified domain
+		 * @param domain the domain
+		 * @return the bottom, or null if the domain has none
+		 * @since 1.1
+		 */
+		public String getBottom(String domain) {
+			return _BOTTOMS_.get(domain);
+		}
+		
+		/**
+		 * Returns the cached 404 page for the specified domain
+		 * @param domain the domain
+		 * @return the 404 page, or null if the domain has none
+		 * @since 1.1
+		 */
+		public String get404(String domain) {
+			return _404S_.get(domain);
+		}
+		
+		/**
+		 * Returns the cached main 404 page
+		 * @return the main 404 page
+		 * @since 1.1
+		 */
+		public String get404() {
+			return _404_;
+		}
+		
+		/**
+		 * Returns all cached tops
+		 * @return the tops, keyed by domain
+		 * @since 1.1
+		 */
+		public Map<String,String> getTops() {
+			return _TOPS_;
+		}
+		
+		/**
+		 * Returns all cached bottoms
+		 * @return the bottoms, keyed by domain
+		 * @since 1.1
+		 */
+		public Map<String,String> getBottoms() {
+			return _BOTTOMS_;
+		}
+		
+		/**
+		 * Returns all cached 404 pages for domains
+		 * @return the 404 pages, keyed by domain
+		 * @since 1.1
+		 */
+		public Map<String,String> get404s() {
+			return _404S_;
+		}
+		
+		/**
+		 * Returns a copy of this snapshot with different tops
+		 * @param tops the tops, keyed by domain
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot withTops(Map<String,String> tops) {
+			return new Snapshot(freeze(tops), _BOTTOMS_, _404S_, _404_);
+		}
+		
+		/**
+		 * Returns a copy of this snapshot with different bottoms
+		 * @param bottoms the bottoms, keyed by domain
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot withBottoms(Map<String,String> bottoms) {
+			return new Snapshot(_TOPS_, freeze(bottoms), _404S_, _404_);
+		}
+		
+		/**
+		 * Returns a copy of this snapshot with different 404 pages for domains
+		 * @param notFounds the 404 pages, keyed by domain
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot with404s(Map<String,String> notFounds) {
+			return new Snapshot(_TOPS_, _BOTTOMS_, freeze(notFounds), _404_);
+		}
+		
+		/**
+		 * Returns a copy of this snapshot with a different main 404 page
+		 * @param notFound the main 404 page
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot with404(String notFound) {
+			return new Snapshot(_TOPS_, _BOTTOMS_, _404S_, notFound);
+		}
+		
+		// Copies a map so it cannot be changed by whoever built it
+		private static Map<String,String> freeze(Map<String,String> map) {
+			return Collections.unmodifiableMap(new HashMap<String,String>(map));
+		}
+	}
+	
+	// Read-only HashMap that reads one of the maps of the current snapshot
+	private static class SnapshotView extends HashMap<String,String> {
+		private static final long serialVersionUID = 1L;
+		
+		private static final int TOPS = 0;
+		private static final int BOTTOMS = 1;
+		private static final int NOT_FOUNDS = 2;
+		
+		private int _KIND_ = 0;
+		
+		private SnapshotView(int kind) {
+			_KIND_ = kind;
+		}
+		
+		private Map<String,String> current() {
+			Snapshot snapshot = _SNAPSHOT_;
+			return _KIND_ == TOPS ? snapshot._TOPS_ : _KIND_ == BOTTOMS ? snapshot._BOTTOMS_ : snapshot._404S_;
+		}
+		
+		public int size() {
+			return current().size();
+		}
+		
+		public boolean isEmpty() {
+			return current().isEmpty();
+		}
+		
+		public String get(Object key) {
+			return current().get(key);
+		}
+		
+		public String getOrDefault(Object key, String defaultValue) {
+			return current().getOrDefault(key, defaultValue);
+		}
+		
+		public boolean containsKey(Object key) {
+			return current().containsKey(key);
+		}
+		
+		public boolean containsValue(Object value) {
+			return current().containsValue(value);
+		}
+		
+		public Set<String> keySet() {
+			return current().keySet();
+		}
+		
+		public Collection<String> values() {
+			return current().values();
+		}
+		
+		public Set<Map.Entry<String,String>> entrySet() {
+			return current().entrySet();
+		}
+		
+		public void forEach(BiConsumer<? super String,? super String> action) {
+			current().forEach(action);
+		}
+		
+		public boolean equals(Object o) {
+			return current().equals(o);
+		}
+		
+		public int hashCode() {
+			return current().hashCode();
+		}
+		
+		public String toString() {
+			return current().toString();
+		}
+		
+		public Object clone() {
+			return new HashMap<String,String>(current());
+		}
+		
+		// The view cannot be changed
+		public String put(String key, String value) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public void putAll(Map<? extends String,? extends String> map) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String putIfAbsent(String key, String value) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String remove(Object key) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public boolean remove(Object key, Object value) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String replace(String key, String value) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public boolean replace(String key, String oldValue, String newValue) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public void replaceAll(BiFunction<? super String,? super String,? extends String> function) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String computeIfAbsent(String key, Function<? super String,? extends String> function) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String computeIfPresent(String key, BiFunction<? super String,? super String,? extends String> function) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String compute(String key, BiFunction<? super String,? super String,? extends String> function) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public String merge(String key, String value, BiFunction<? super String,? super String,? extends String> function) {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+		
+		public void clear() {
+			throw new UnsupportedOperationException("Cached files are read-only, use TwisterCache.update()");
+		}
+	}
 }
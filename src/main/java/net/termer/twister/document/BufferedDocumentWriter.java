@@ -0,0 +1,36 @@
+package net.termer.twister.document;
+
+/**
+ * DocumentWriter that collects all written chunks in memory
+ * @author termer
+ * @since 1.1
+ */
+public class BufferedDocumentWriter implements DocumentWriter {
+	private StringBuilder _TEXT_ = new StringBuilder();
+	
+	public void write(String chunk) {
+		_TEXT_.append(chunk);
+	}
+	
+	public void end() {
+		// Nothing is held back
+	}
+	
+	/**
+	 * Returns the amount of characters written so far
+	 * @return the amount of characters written
+	 * @since 1.1
+	 */
+	public int length() {
+		return _TEXT_.length();
+	}
+	
+	/**
+	 * Returns all text written so far
+	 * @return all text written so far
+	 * @since 1.1
+	 */
+	public String toString() {
+		return _TEXT_.toString();
+	}
+}
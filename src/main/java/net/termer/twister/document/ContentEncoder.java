@@ -0,0 +1,309 @@
+package net.termer.twister.document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.termer.twister.Settings;
+import net.termer.twister.caching.CompressedVariantCache;
+import net.termer.twister.caching.FileIndex;
+import net.termer.twister.caching.TwisterCache;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Utility class to negotiate and apply content encodings for responses.
+ * Precompressed .br and .gz files placed next to static files are served when the client accepts them,
+ * and text responses are compressed with gzip on the fly.
+ * Brotli is only served from precompressed files, since Java has no built-in Brotli encoder.
+ * @author termer
+ * @since 1.1
+ */
+public class ContentEncoder {
+	// Encodings that can be served from precompressed files, in order of preference
+	private static final String[] PRECOMPRESSED = {"br", "gzip"};
+	
+	/**
+	 * Returns whether responses built by Twister, such as pages and handler output, are compressed.
+	 * This requires both compression and dynamic-compression to be enabled in twister.ini,
+	 * since compressing pages that reflect input next to secrets exposes them to BREACH-style attacks.
+	 * @return whether dynamic responses are compressed
+	 * @since 1.1
+	 */
+	public static boolean isDynamicEnabled() {
+		return Boolean.parseBoolean(Settings.get("compression")) && Boolean.parseBoolean(Settings.get("dynamic-compression"));
+	}
+	
+	/**
+	 * Compresses a text response body with gzip if the client accepts it and the content type is compressible,
+	 * and dynamic compression is enabled.
+	 * The compressed body is written to the client directly, in which case an empty String is returned
+	 * and the response is committed. Bodies that are sent more than once are compressed only once.
+	 * @param text the response body
+	 * @param req the request
+	 * @param res the response
+	 * @return the body Spark should send, which is empty if the body was already sent compressed
+	 * @throws IOException if compressing or writing the body fails
+	 * @since 1.1
+	 */
+	public static String encode(String text, Request req, Response res) throws IOException {
+		HttpServletResponse raw = res.raw();
+		if(text == null || !isDynamicEnabled() || raw.isCommitted() || raw.containsHeader("Content-Encoding")) {
+			return text;
+		}
+		if(raw.getStatus() == 204 || raw.getStatus() == 304 || text.length() < Integer.parseInt(Settings.get("compression-min-size"))) {
+			return text;
+		}
+		
+		// Same default type Spark uses when serializing the body
+		if(raw.getContentType() == null) {
+			raw.setContentType("text/html; charset=utf-8");
+		}
+		if(!isCompressible(raw.getContentType())) {
+			return text;
+		}
+		
+		raw.addHeader("Vary", "Accept-Encoding");
+		if(!accepts(req.headers("Accept-Encoding"), "gzip")) {
+			return text;
+		}
+		raw.setHeader("Content-Encoding", "gzip");
+		
+		int level = getLevel();
+		CompressedVariantCache cache = TwisterCache._COMPRESSED_;
+		byte[] compressed = cache.get(text);
+		if(compressed == null && cache.admit(text)) {
+			// Sent before, so it is likely to be sent again
+			compressed = gzip(text.getBytes(StandardCharsets.UTF_8), level);
+			cache.put(text, compressed);
+		}
+		
+		if(compressed == null) {
+			// Compress straight into the response
+			LeveledGZIPOutputStream gzip = new LeveledGZIPOutputStream(raw.getOutputStream(), level);
+			OutputStreamWriter writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+			writer.write(text);
+			writer.flush();
+			gzip.finish();
+		} else {
+			raw.setContentLength(compressed.length);
+			raw.getOutputStream().write(compressed);
+		}
+		
+		// Commit the response so Spark does not send the body again
+		raw.flushBuffer();
+		
+		return "";
+	}
+	
+	/**
+	 * Returns the stream a response body of unknown length should be written to.
+	 * If dynamic compression is enabled, the client accepts gzip, and the content type is compressible, the headers
+	 * are set and a gzip stream is returned, which must be finished once the body is written.
+	 * @param req the request
+	 * @param res the response
+	 * @return the stream to write the body to
+	 * @throws IOException if getting the response's stream fails
+	 * @since 1.1
+	 */
+	public static OutputStream getOutputStream(Request req, Response res) throws IOException {
+		HttpServletResponse raw = res.raw();
+		OutputStream out = raw.getOutputStream();
+		
+		if(isDynamicEnabled() && !raw.containsHeader("Content-Encoding") && raw.getStatus() != 204 && raw.getStatus() != 304) {
+			if(raw.getContentType() == null) {
+				raw.setContentType("text/html; charset=utf-8");
+			}
+			if(isCompressible(raw.getContentType())) {
+				raw.addHeader("Vary", "Accept-Encoding");
+				if(accepts(req.headers("Accept-Encoding"), "gzip")) {
+					raw.setHeader("Content-Encoding", "gzip");
+					out = new LeveledGZIPOutputStream(out, getLevel());
+				}
+			}
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns whether the specified Accept-Encoding header allows the provided encoding
+	 * @param acceptEncoding the value of the Accept-Encoding header, may be null
+	 * @param encoding the encoding
+	 * @return whether the encoding is accepted
+	 * @since 1.1
+	 */
+	public static boolean accepts(String acceptEncoding, String encoding) {
+		boolean accepted = false;
+		
+		if(acceptEncoding != null) {
+			boolean explicit = false;
+			for(String token : acceptEncoding.split(",")) {
+				String name = token;
+				double q = 1;
+				int semicolon = token.indexOf(';');
+				if(semicolon > -1) {
+					name = token.substring(0, semicolon);
+					String param = token.substring(semicolon+1).trim();
+					if(param.startsWith("q=")) {
+						try {
+							q = Double.parseDouble(param.substring(2));
+						} catch(NumberFormatException e) {
+							q = 0;
+						}
+					}
+				}
+				name = name.trim();
+				
+				if(name.equalsIgnoreCase(encoding) || (encoding.equals("gzip") && name.equalsIgnoreCase("x-gzip"))) {
+					// An explicit entry overrides the * entry
+					accepted = q > 0;
+					explicit = true;
+				} else if(name.equals("*") && !explicit) {
+					accepted = q > 0;
+				}
+			}
+		}
+		
+		return accepted;
+	}
+	
+	/**
+	 * Returns whether responses of the specified content type benefit from compression
+	 * @param contentType the content type, may include parameters
+	 * @return whether the content type is compressible
+	 * @since 1.1
+	 */
+	public static boolean isCompressible(String contentType) {
+		boolean compressible = false;
+		
+		if(contentType != null) {
+			String type = contentType.toLowerCase();
+			int semicolon = type.indexOf(';');
+			if(semicolon > -1) {
+				type = type.substring(0, semicolon);
+			}
+			type = type.trim();
+			
+			compressible = type.startsWith("text/") ||
+					type.endsWith("+xml") ||
+					type.endsWith("+json") ||
+					type.equals("application/javascript") ||
+					type.equals("application/json") ||
+					type.equals("application/xml") ||
+					type.equals("application/wasm") ||
+					type.equals("application/vnd.ms-fontobject") ||
+					type.equals("font/ttf") ||
+					type.equals("font/otf");
+		}
+		
+		return compressible;
+	}
+	
+	/**
+	 * Returns the precompressed version of a file for the specified encoding, if one exists.
+	 * Precompressed files are named after the original file, with .br or .gz appended,
+	 * and are ignored if they are older than the original file.
+	 * @param file the original file
+	 * @param encoding the encoding, either br or gzip
+	 * @return the precompressed file, or null if there is none
+	 * @since 1.1
+	 */
+	public static File getPrecompressed(File file, String encoding) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		return getPrecompressed(new FileIndex(dir, 0), file.getName(), encoding);
+	}
+	
+	/**
+	 * Returns the precompressed version of an indexed file for the specified encoding, if one exists.
+	 * The precompressed file is looked up through the index, so files that do not exist are not checked on the disk every time.
+	 * @param index the index of the directory the file is in
+	 * @param path the path of the original file, relative to the indexed directory
+	 * @param encoding the encoding, either br or gzip
+	 * @return the precompressed file, or null if there is none
+	 * @since 1.1
+	 */
+	public static File getPrecompressed(FileIndex index, String path, String encoding) {
+		File precompressed = null;
+		
+		String extension = null;
+		if(encoding.equals("br")) {
+			extension = ".br";
+		} else if(encoding.equals("gzip")) {
+			extension = ".gz";
+		}
+		
+		if(extension != null) {
+			FileIndex.Entry candidate = index.get(path+extension);
+			if(candidate.exists() && !candidate.isDirectory() && candidate.getModified() >= index.get(path).getModified()) {
+				precompressed = new File(index.getRoot(), path+extension);
+			}
+		}
+		
+		return precompressed;
+	}
+	
+	/**
+	 * Returns the preferred encoding accepted by the client that an indexed file has a precompressed version for
+	 * @param index the index of the directory the file is in
+	 * @param path the path of the original file, relative to the indexed directory
+	 * @param acceptEncoding the value of the Accept-Encoding header, may be null
+	 * @return the encoding, or null if the client accepts none of the file's precompressed versions
+	 * @since 1.1
+	 */
+	public static String getPrecompressedEncoding(FileIndex index, String path, String acceptEncoding) {
+		String r = null;
+		for(String encoding : PRECOMPRESSED) {
+			if(accepts(acceptEncoding, encoding) && getPrecompressed(index, path, encoding) != null) {
+				r = encoding;
+				break;
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * Compresses the provided data with gzip
+	 * @param data the data to compress
+	 * @param level the compression level, from 1 to 9
+	 * @return the compressed data
+	 * @throws IOException if compressing fails
+	 * @since 1.1
+	 */
+	public static byte[] gzip(byte[] data, int level) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length/4));
+		LeveledGZIPOutputStream gzip = new LeveledGZIPOutputStream(out, level);
+		gzip.write(data);
+		gzip.close();
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Returns the gzip compression level set in twister.ini
+	 * @return the compression level
+	 * @since 1.1
+	 */
+	public static int getLevel() {
+		int level = 6;
+		try {
+			level = Math.max(1, Math.min(9, Integer.parseInt(Settings.get("compression-level"))));
+		} catch(NumberFormatException e) {
+			// Use the default level
+		}
+		return level;
+	}
+	
+	// GZIPOutputStream with a configurable compression level
+	private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+		private LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, 8192);
+			def.setLevel(level);
+		}
+	}
+}
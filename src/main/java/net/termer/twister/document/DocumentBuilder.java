@@ -3,19 +3,23 @@ package net.termer.twister.document;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import spark.Request;
 import spark.Response;
 import net.termer.twister.Settings;
 import net.termer.twister.Twister;
+import net.termer.twister.caching.FileIndex;
+import net.termer.twister.caching.PageCache;
 import net.termer.twister.caching.TwisterCache;
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.metrics.Metrics;
 import net.termer.twister.scripting.ScriptProcessor;
-import net.termer.twister.utils.ContentType;
 import net.termer.twister.utils.Domain;
+import net.termer.twister.utils.FileLoader;
 import net.termer.twister.utils.StringFilter;
 
 /**
@@ -29,25 +33,28 @@ public class DocumentBuilder {
 	 * DocumentProcessors for domains
 	 * Key: Domain
 	 * Value: ArrayList of DocumentProcessors
+	 * This is a read-only view of the current processors, kept for compatibility. Use DocumentProcessors.snapshot() instead.
 	 * @since 0.2
 	 */
-	public static HashMap<String,ArrayList<DocumentProcessor>> _DOCUMENT_PROCESSORS_ = new HashMap<String,ArrayList<DocumentProcessor>>();
+	public static final HashMap<String,ArrayList<DocumentProcessor>> _DOCUMENT_PROCESSORS_ = new DocumentProcessors.View(DocumentProcessors.DOCUMENT);
 	
 	/**
 	 * DocumentProcessors for domain tops
 	 * Key: Domain
 	 * Value: ArrayList of DocumentProcessors
+	 * This is a read-only view of the current processors, kept for compatibility. Use DocumentProcessors.snapshot() instead.
 	 * @since 0.2
 	 */
-	public static HashMap<String,ArrayList<DocumentProcessor>> _DOCUMENT_TOP_PROCESSORS_ = new HashMap<String,ArrayList<DocumentProcessor>>();
+	public static final HashMap<String,ArrayList<DocumentProcessor>> _DOCUMENT_TOP_PROCESSORS_ = new DocumentProcessors.View(DocumentProcessors.TOP);
 	
 	/**
 	 * DocumentProcessors for domain bottoms
 	 * Key: Domain
 	 * Value: ArrayList of DocumentProcessors
+	 * This is a read-only view of the current processors, kept for compatibility. Use DocumentProcessors.snapshot() instead.
 	 * @since 0.2
 	 */
-	public static HashMap<String,ArrayList<DocumentProcessor>> _DOCUMENT_BOTTOM_PROCESSORS_ = new HashMap<String,ArrayList<DocumentProcessor>>();
+	public static final HashMap<String,ArrayList<DocumentProcessor>> _DOCUMENT_BOTTOM_PROCESSORS_ = new DocumentProcessors.View(DocumentProcessors.BOTTOM);
 	
 	
 	/**
@@ -63,7 +70,63 @@ public class DocumentBuilder {
 	 * @since 0.1
 	 */
 	public static String loadDocument(String domain, String path, Request req, Response res) throws IOException {
+		BufferedDocumentWriter buf = new BufferedDocumentWriter();
+		String[] location = buildDocument(domain, path, req, res, buf, false, DocumentProcessors.snapshot());
+		domain = location[0];
+		path = location[1];
+		String r = buf.toString();
+		
+		// Parse the rendered response for scripting
+		if(Boolean.parseBoolean(Settings.get("scripting"))) {
+			long start = Metrics.start();
+			HTMLDocumentResponse docResp = new HTMLDocumentResponse(path, domain, domain+path, r);
+			if(ScriptProcessor.current == null) {
+				ScriptProcessor.current = new ScriptProcessor();
+			}
+			ScriptProcessor.current.process(docResp, req, res);
+			r = docResp.getText();
+			Metrics.SCRIPTING.record(domain, Metrics.method(req), start);
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Renders a webpage like loadDocument() does, but writes it to the client as it is rendered
+	 * instead of building the whole page in memory.
+	 * Webpages are only streamed if scripting is disabled and all DocumentProcessors registered for the domain
+	 * are StreamingDocumentProcessors, otherwise the page is rendered by loadDocument() and returned.
+	 * @param domain the domain the webpage is located at
+	 * @param path the path inside of the domain that the page is located at
+	 * @param req the Request
+	 * @param res the Response
+	 * @return the rendered document, or an empty String if it was already sent to the client
+	 * @throws IOException if reading the webpage fails
+	 * @since 1.1
+	 */
+	public static String sendDocument(String domain, String path, Request req, Response res) throws IOException {
 		String r = "";
+		
+		String linked = Twister.linkedDomains.get(domain);
+		// The page is streamed with the same processors that were checked
+		DocumentProcessors.Snapshot processors = DocumentProcessors.snapshot();
+		// Pages that may be cached are rendered as a whole, so the cached text can be compressed once
+		if(Boolean.parseBoolean(Settings.get("scripting")) || Boolean.parseBoolean(Settings.get("page-cache")) || !canStream(processors, linked == null ? domain : linked)) {
+			r = loadDocument(domain, path, req, res);
+		} else {
+			ResponseDocumentWriter out = new ResponseDocumentWriter(req, res);
+			buildDocument(domain, path, req, res, out, true, processors);
+			out.close();
+		}
+		
+		return r;
+	}
+	
+	// Renders a webpage into the provided writer, and returns the resolved domain and path.
+	// When streaming, document parts are passed through StreamingDocumentProcessors chunk by chunk,
+	// otherwise each part is processed as a whole by its DocumentProcessors.
+	private static String[] buildDocument(String domain, String path, Request req, Response res, DocumentWriter out, boolean streaming, DocumentProcessors.Snapshot processors) {
+		int method = Metrics.method(req);
 		try {
 			if(Twister.linkedDomains.containsKey(domain)) {
 				domain = Twister.linkedDomains.get(domain);
@@ -80,83 +143,234 @@ public class DocumentBuilder {
 					path+="index.html";
 				}
 				
-				File document = new File("domains/"+domain+"/"+path);
-				if(document.isDirectory()) {
+				FileIndex.Entry entry = TwisterCache._FILES_.get(domain+'/'+path);
+				if(entry.isDirectory()) {
 					if(!path.endsWith("/")) {
 						path+='/';
 					}
 					path+="index.html";
+					entry = TwisterCache._FILES_.get(domain+'/'+path);
 				}
-				if(document.exists()) {
-					String[] parts = document.getName().split("\\.");
-					String ending = "";
-					if(document.getName().contains(".")) {
-						ending = parts[parts.length-1];
-					}
-					String filetype = ContentType.getForExtension(ending);
+				File document = new File("domains/"+domain+"/"+path);
+				if(entry.exists() && !entry.isDirectory()) {
+					String filetype = entry.getContentType();
 					
 					res.type(filetype);
 					
 					if(StringFilter.same(filetype, "text/html")) {
-						// Load as document
-						if(dom.hasTop()) {
-							r+=dom.getProcessedTop(req, res);
-						}
+						// Load as document, reading the top and bottom once so they cannot change in between
+						String top = dom.getTop();
+						String bottom = dom.getBottom();
 						
-						r+=processDocument(path, readFile(document.getPath()), domain, req, res);
+						// Use the rendered page cache if enabled and all processors allow it
+						PageCache.Fingerprint fingerprint = null;
+						if(Boolean.parseBoolean(Settings.get("page-cache"))) {
+							DocumentProcessor[] cacheable = getCacheableProcessors(processors, domain);
+							if(cacheable != null) {
+								fingerprint = new PageCache.Fingerprint(entry.getModified(), entry.getSize(), top, bottom, cacheable);
+							}
+						}
+						String cached = fingerprint == null ? null : TwisterCache._PAGES_.get(domain+'/'+path, fingerprint);
 						
-						if(dom.hasBottom()) {
-							r+=dom.getProcessedBottom(req, res);
+						if(cached == null) {
+							// Pages that will be cached are rendered as a whole
+							DocumentWriter target = fingerprint == null ? out : new BufferedDocumentWriter();
+							boolean stream = streaming && fingerprint == null;
+							
+							if(top != null) {
+								writePart("top.html", top, null, domain, processors, DocumentProcessors.TOP, req, res, target, stream, method);
+							}
+							
+							writePart(path, null, document, domain, processors, DocumentProcessors.DOCUMENT, req, res, target, stream, method);
+							
+							if(bottom != null) {
+								writePart("bottom.html", bottom, null, domain, processors, DocumentProcessors.BOTTOM, req, res, target, stream, method);
+							}
+							
+							if(fingerprint != null) {
+								String page = target.toString();
+								TwisterCache._PAGES_.put(domain+'/'+path, fingerprint, page);
+								out.write(page);
+							}
+						} else {
+							out.write(cached);
 						}
 					} else {
-						// Load as file
-						res.raw().getOutputStream().write(Files.readAllBytes(Paths.get(document.getPath())));
+						// Load as file, from the cache or streamed from disk
+						long start = Metrics.start();
+						StaticFileSender.send(TwisterCache._FILES_, domain+'/'+path, req, res);
+						Metrics.STATIC_FILE.record(domain, method, start);
 					}
 				} else {
-					if(dom.has404()) {
-						if(dom.hasTop()) {
-							r+=dom.getProcessedTop(req, res);
+					// Set before anything is written, since the page may be streamed
+					res.status(404);
+					String notFound = dom.get404();
+					if(notFound != null) {
+						String top = dom.getTop();
+						String bottom = dom.getBottom();
+						if(top != null) {
+							writePart("top.html", top, null, domain, processors, DocumentProcessors.TOP, req, res, out, streaming, method);
 						}
 						
-						r+=dom.getProcessed404(req, res);
+						writePart("404.html", notFound, null, domain, processors, DocumentProcessors.DOCUMENT, req, res, out, streaming, method);
 						
-						if(dom.hasBottom()) {
-							r+=dom.getProcessedBottom(req, res);
+						if(bottom != null) {
+							writePart("bottom.html", bottom, null, domain, processors, DocumentProcessors.BOTTOM, req, res, out, streaming, method);
 						}
 					} else {
-						if(Boolean.parseBoolean(Settings.get("caching"))) {
-							r = TwisterCache._404_;
-						} else {
-							r = readFile("404.html");
-						}
+						out.write(get404Page());
 					}
-					res.status(404);
 				}
 			} else {
-				if(Boolean.parseBoolean(Settings.get("caching"))) {
-					r = TwisterCache._404_;
-				} else {
-					r = readFile("404.html");
-				}
 				res.status(404);
+				out.write(get404Page());
 			}
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
 		
-		// Parse the rendered response for scripting
-		if(Boolean.parseBoolean(Settings.get("scripting"))) {
-			HTMLDocumentResponse docResp = new HTMLDocumentResponse(path, domain, domain+path, r);
-			if(ScriptProcessor.current == null) {
-				ScriptProcessor.current = new ScriptProcessor();
+		return new String[] {domain, path};
+	}
+	
+	// Writes a document part, given either as text or as a file, through the domain's processors
+	private static void writePart(String path, String text, File file, String domain, DocumentProcessors.Snapshot processors, int part, Request req, Response res, DocumentWriter out, boolean streaming, int method) throws IOException {
+		long start = Metrics.start();
+		List<DocumentProcessor> procs = processors.get(part, domain);
+		if(streaming) {
+			// Build the processor chain back to front, so the first processor receives the text first
+			DocumentWriter writer = out;
+			if(procs != null) {
+				boolean timed = HandlerMetrics.start() != 0;
+				for(int i = procs.size()-1; i >= 0; i--) {
+					StreamingDocumentProcessor processor = (StreamingDocumentProcessor) procs.get(i);
+					if(timed) {
+						writer = new TimedDocumentWriter(processor, writer, path, domain, req, res);
+					} else {
+						writer = processor.wrap(writer, path, domain, req, res);
+					}
+				}
 			}
-			ScriptProcessor.current.process(docResp, req, res);
-			r = docResp.getText();
+			
+			if(file == null) {
+				writer.write(text);
+			} else {
+				// Read the file in chunks, decoding it the same way readFile() does
+				InputStreamReader in = new InputStreamReader(new FileInputStream(file), FileLoader.getCharset());
+				try {
+					char[] buf = new char[8192];
+					int read = 0;
+					int kept = 0;
+					while((read = in.read(buf, kept, buf.length-kept)) > -1) {
+						read += kept;
+						
+						// Chunks never end between the halves of a surrogate pair, so processors see whole characters
+						kept = Character.isHighSurrogate(buf[read-1]) ? 1 : 0;
+						if(read > kept) {
+							writer.write(new String(buf, 0, read-kept));
+						}
+						if(kept > 0) {
+							buf[0] = buf[read-1];
+						}
+					}
+					if(kept > 0) {
+						writer.write(new String(buf, 0, kept));
+					}
+				} finally {
+					in.close();
+				}
+			}
+			writer.end();
+			Metrics.STREAM.record(domain, method, start);
+		} else {
+			if(file != null) {
+				text = readFile(file.getPath());
+				Metrics.FILE_READ.record(domain, method, start);
+			}
+			
+			// Run the whole part through the processors
+			start = Metrics.start();
+			text = process(procs, path, text, domain, req, res);
+			Metrics.PROCESSORS.record(domain, method, start);
+			out.write(text);
+		}
+	}
+	
+	// Runs a DocumentProcessor, timing it and counting its exceptions
+	private static void runProcessor(DocumentProcessor processor, HTMLDocumentResponse doc, Request req, Response res) {
+		long start = HandlerMetrics.start();
+		try {
+			processor.process(doc, req, res);
+		} catch(RuntimeException | Error e) {
+			HandlerMetrics.failed(processor, e);
+			throw e;
+		}
+		HandlerMetrics.record(processor, doc.getDomain(), start);
+	}
+	
+	// Returns the processors that pages in the domain are rendered with, or null if any of them are not cacheable
+	private static DocumentProcessor[] getCacheableProcessors(DocumentProcessors.Snapshot processors, String domain) {
+		ArrayList<DocumentProcessor> all = new ArrayList<DocumentProcessor>();
+		boolean cacheable = addCacheable(all, processors.get(DocumentProcessors.TOP, domain)) &&
+				addCacheable(all, processors.get(DocumentProcessors.DOCUMENT, domain)) &&
+				addCacheable(all, processors.get(DocumentProcessors.BOTTOM, domain));
+		return cacheable ? all.toArray(new DocumentProcessor[0]) : null;
+	}
+	
+	private static boolean addCacheable(ArrayList<DocumentProcessor> all, List<DocumentProcessor> processors) {
+		if(processors != null) {
+			for(DocumentProcessor processor : processors) {
+				if(!processor.isCacheable()) {
+					return false;
+				}
+				all.add(processor);
+			}
+		}
+		// Keep processors registered for different parts apart
+		all.add(null);
+		return true;
+	}
+	
+	// Returns the global 404 page
+	private static String get404Page() throws IOException {
+		String r = null;
+		if(Boolean.parseBoolean(Settings.get("caching"))) {
+			r = TwisterCache.snapshot().get404();
+		} else {
+			r = readFile("404.html");
 		}
-		
 		return r;
 	}
 	
+	/**
+	 * Returns whether webpages in the specified domain can be streamed,
+	 * which is the case if all DocumentProcessors registered for it are StreamingDocumentProcessors
+	 * @param domain the domain
+	 * @return whether webpages in the domain can be streamed
+	 * @since 1.1
+	 */
+	public static boolean canStream(String domain) {
+		return canStream(DocumentProcessors.snapshot(), domain);
+	}
+	
+	private static boolean canStream(DocumentProcessors.Snapshot processors, String domain) {
+		return allStreaming(processors.get(DocumentProcessors.DOCUMENT, domain)) &&
+				allStreaming(processors.get(DocumentProcessors.TOP, domain)) &&
+				allStreaming(processors.get(DocumentProcessors.BOTTOM, domain));
+	}
+	
+	private static boolean allStreaming(List<DocumentProcessor> processors) {
+		boolean all = true;
+		if(processors != null) {
+			for(DocumentProcessor processor : processors) {
+				if(!(processor instanceof StreamingDocumentProcessor)) {
+					all = false;
+					break;
+				}
+			}
+		}
+		return all;
+	}
+	
 	/**
 	 * Gets the content of a file as a String
 	 * @param path the absolute path of the file
@@ -165,13 +379,7 @@ public class DocumentBuilder {
 	 * @since 0.1
 	 */
 	public static String readFile(String path) throws IOException {
-		StringBuilder sb = new StringBuilder();
-		FileInputStream fin = new FileInputStream(new File(path));
-		while(fin.available()>0) {
-			sb.append((char)fin.read());
-		}
-		fin.close();
-		return sb.toString();
+		return FileLoader.read(new File(path));
 	}
 	
 	
@@ -186,17 +394,7 @@ public class DocumentBuilder {
 	 * @since 0.2
 	 */
 	public static String processDocument(String path, String text, String domain, Request req, Response res) {
-		String r = text;
-		
-		if(_DOCUMENT_PROCESSORS_.containsKey(domain)) {
-			HTMLDocumentResponse docResp = new HTMLDocumentResponse(path, domain, domain+path, text);
-			for(DocumentProcessor dp : _DOCUMENT_PROCESSORS_.get(domain)) {
-				dp.process(docResp, req, res);
-			}
-			r = docResp.getText();
-		}
-		
-		return r;
+		return process(DocumentProcessors.snapshot().get(DocumentProcessors.DOCUMENT, domain), path, text, domain, req, res);
 	}
 	
 	/**
@@ -210,17 +408,7 @@ public class DocumentBuilder {
 	 * @since 0.2
 	 */
 	public static String processTopDocument(String path, String text, String domain, Request req, Response res) {
-		String r = text;
-		
-		if(_DOCUMENT_TOP_PROCESSORS_.containsKey(domain)) {
-			HTMLDocumentResponse docResp = new HTMLDocumentResponse(path, domain, domain+path, text);
-			for(DocumentProcessor dp : _DOCUMENT_TOP_PROCESSORS_.get(domain)) {
-				dp.process(docResp, req, res);
-			}
-			r = docResp.getText();
-		}
-		
-		return r;
+		return process(DocumentProcessors.snapshot().get(DocumentProcessors.TOP, domain), path, text, domain, req, res);
 	}
 	
 	/**
@@ -234,12 +422,17 @@ public class DocumentBuilder {
 	 * @since 0.2
 	 */
 	public static String processBottomDocument(String path, String text, String domain, Request req, Response res) {
+		return process(DocumentProcessors.snapshot().get(DocumentProcessors.BOTTOM, domain), path, text, domain, req, res);
+	}
+	
+	// Runs a document part through processors, which may be null if there are none
+	private static String process(List<DocumentProcessor> processors, String path, String text, String domain, Request req, Response res) {
 		String r = text;
 		
-		if(_DOCUMENT_BOTTOM_PROCESSORS_.containsKey(domain)) {
+		if(processors != null) {
 			HTMLDocumentResponse docResp = new HTMLDocumentResponse(path, domain, domain+path, text);
-			for(DocumentProcessor dp : _DOCUMENT_BOTTOM_PROCESSORS_.get(domain)) {
-				dp.process(docResp, req, res);
+			for(DocumentProcessor dp : processors) {
+				runProcessor(dp, docResp, req, res);
 			}
 			r = docResp.getText();
 		}
@@ -17,4 +17,16 @@ public interface DocumentProcessor {
 	 * @since 0.2
 	 */
 	public void process(HTMLDocumentResponse doc, Request req, Response res);
-}
\ No newline at end of file
+	
+	/**
+	 * Returns whether this processor always produces the same output for the same document,
+	 * no matter the request. Pages are only stored in the page cache if all of the processors
+	 * registered for their domain are cacheable.
+	 * Processors that depend on the request, such as ones that read cookies, must return false.
+	 * @return whether the output of this processor can be cached
+	 * @since 1.1
+	 */
+	public default boolean isCacheable() {
+		return false;
+	}
+}
@@ -0,0 +1,330 @@
+package net.termer.twister.document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Stores the DocumentProcessors registered for domains, their tops, and their bottoms.
+ * Processors are stored in an immutable Snapshot that is replaced atomically when processors are added or removed,
+ * so a request can read one snapshot and render all parts of a page with the same processors.
+ * @author termer
+ * @since 1.1
+ */
+public class DocumentProcessors {
+	/**
+	 * The processors of documents
+	 * @since 1.1
+	 */
+	public static final int DOCUMENT = 0;
+	
+	/**
+	 * The processors of domain tops
+	 * @since 1.1
+	 */
+	public static final int TOP = 1;
+	
+	/**
+	 * The processors of domain bottoms
+	 * @since 1.1
+	 */
+	public static final int BOTTOM = 2;
+	
+	private static volatile Snapshot _SNAPSHOT_ = empty();
+	
+	/**
+	 * Returns the current snapshot of processors.
+	 * The snapshot never changes, so it can be used for the duration of an entire request.
+	 * @return the current snapshot
+	 * @since 1.1
+	 */
+	public static Snapshot snapshot() {
+		return _SNAPSHOT_;
+	}
+	
+	/**
+	 * Builds a new snapshot from the current one and publishes it.
+	 * Updates are applied one at a time, so concurrent updates are never lost.
+	 * @param update the function that returns the new snapshot, given the current one
+	 * @since 1.1
+	 */
+	public static synchronized void update(Function<Snapshot,Snapshot> update) {
+		_SNAPSHOT_ = update.apply(_SNAPSHOT_);
+	}
+	
+	// Creates a snapshot without processors
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private static Snapshot empty() {
+		Map<String,List<DocumentProcessor>>[] parts = new Map[BOTTOM+1];
+		for(int part = DOCUMENT; part <= BOTTOM; part++) {
+			parts[part] = Collections.emptyMap();
+		}
+		return new Snapshot(parts);
+	}
+	
+	/**
+	 * Immutable set of DocumentProcessors
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Snapshot {
+		// Processors of each part, keyed by domain
+		private Map<String,List<DocumentProcessor>>[] _PARTS_ = null;
+		
+		private Snapshot(Map<String,List<DocumentProcessor>>[] parts) {
+			_PARTS_ = parts;
+		}
+		
+		/**
+		 * Returns the processors registered for a part of a domain's pages
+		 * @param part DOCUMENT, TOP, or BOTTOM
+		 * @param domain the domain
+		 * @return the processors in the order they were registered, or null if there are none
+		 * @since 1.1
+		 */
+		public List<DocumentProcessor> get(int part, String domain) {
+			return _PARTS_[part].get(domain);
+		}
+		
+		/**
+		 * Returns the processors registered for a part of all domains' pages
+		 * @param part DOCUMENT, TOP, or BOTTOM
+		 * @return the processors, keyed by domain
+		 * @since 1.1
+		 */
+		public Map<String,List<DocumentProcessor>> getAll(int part) {
+			return _PARTS_[part];
+		}
+		
+		/**
+		 * Returns whether a processor is registered in this snapshot, for any part or domain
+		 * @param processor the processor
+		 * @return whether the processor is registered
+		 * @since 1.1
+		 */
+		public boolean contains(Object processor) {
+			boolean r = false;
+			for(int part = DOCUMENT; !r && part <= BOTTOM; part++) {
+				for(List<DocumentProcessor> list : _PARTS_[part].values()) {
+					r = r || list.contains(processor);
+				}
+			}
+			return r;
+		}
+		
+		/**
+		 * Returns a copy of this snapshot with a processor added for a part of a domain's pages
+		 * @param part DOCUMENT, TOP, or BOTTOM
+		 * @param domain the domain
+		 * @param processor the processor
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot with(int part, String domain, DocumentProcessor processor) {
+			HashMap<String,List<DocumentProcessor>> processors = new HashMap<String,List<DocumentProcessor>>(_PARTS_[part]);
+			ArrayList<DocumentProcessor> list = processors.containsKey(domain) ? new ArrayList<DocumentProcessor>(processors.get(domain)) : new ArrayList<DocumentProcessor>();
+			list.add(processor);
+			processors.put(domain, Collections.unmodifiableList(list));
+			return replace(part, processors);
+		}
+		
+		/**
+		 * Returns a copy of this snapshot with a processor removed from a part of a domain's pages
+		 * @param part DOCUMENT, TOP, or BOTTOM
+		 * @param domain the domain
+		 * @param processor the processor
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot without(int part, String domain, DocumentProcessor processor) {
+			Snapshot r = this;
+			if(_PARTS_[part].containsKey(domain)) {
+				HashMap<String,List<DocumentProcessor>> processors = new HashMap<String,List<DocumentProcessor>>(_PARTS_[part]);
+				ArrayList<DocumentProcessor> list = new ArrayList<DocumentProcessor>(processors.get(domain));
+				list.remove(processor);
+				if(list.size()<1) {
+					processors.remove(domain);
+				} else {
+					processors.put(domain, Collections.unmodifiableList(list));
+				}
+				r = replace(part, processors);
+			}
+			return r;
+		}
+		
+		/**
+		 * Returns a copy of this snapshot without the processors that match a filter, from all parts and domains
+		 * @param filter returns true for the processors to remove
+		 * @return the new snapshot
+		 * @since 1.1
+		 */
+		public Snapshot without(Predicate<Object> filter) {
+			Snapshot r = this;
+			for(int part = DOCUMENT; part <= BOTTOM; part++) {
+				HashMap<String,List<DocumentProcessor>> processors = new HashMap<String,List<DocumentProcessor>>(r._PARTS_[part]);
+				boolean changed = false;
+				for(Map.Entry<String,List<DocumentProcessor>> entry : r._PARTS_[part].entrySet()) {
+					ArrayList<DocumentProcessor> list = new ArrayList<DocumentProcessor>(entry.getValue());
+					if(list.removeIf(filter)) {
+						changed = true;
+						if(list.size()<1) {
+							processors.remove(entry.getKey());
+						} else {
+							processors.put(entry.getKey(), Collections.unmodifiableList(list));
+						}
+					}
+				}
+				if(changed) {
+					r = r.replace(part, processors);
+				}
+			}
+			return r;
+		}
+		
+		// Returns a copy of this snapshot with different processors for a part
+		private Snapshot replace(int part, HashMap<String,List<DocumentProcessor>> processors) {
+			Map<String,List<DocumentProcessor>>[] parts = _PARTS_.clone();
+			parts[part] = Collections.unmodifiableMap(processors);
+			return new Snapshot(parts);
+		}
+	}
+	
+	// Read-only HashMap that reads one part of the current snapshot, backing DocumentBuilder's old processor maps.
+	// The lists it returns are copies, so changing them does not change the snapshot.
+	static class View extends HashMap<String,ArrayList<DocumentProcessor>> {
+		private static final long serialVersionUID = 1L;
+		
+		private int _PART_ = 0;
+		
+		View(int part) {
+			_PART_ = part;
+		}
+		
+		private Map<String,List<DocumentProcessor>> current() {
+			return _SNAPSHOT_._PARTS_[_PART_];
+		}
+		
+		// Copies the current processors into lists of the type the view exposes
+		private HashMap<String,ArrayList<DocumentProcessor>> copy() {
+			HashMap<String,ArrayList<DocumentProcessor>> r = new HashMap<String,ArrayList<DocumentProcessor>>();
+			for(Map.Entry<String,List<DocumentProcessor>> entry : current().entrySet()) {
+				r.put(entry.getKey(), new ArrayList<DocumentProcessor>(entry.getValue()));
+			}
+			return r;
+		}
+		
+		public int size() {
+			return current().size();
+		}
+		
+		public boolean isEmpty() {
+			return current().isEmpty();
+		}
+		
+		public ArrayList<DocumentProcessor> get(Object key) {
+			List<DocumentProcessor> list = current().get(key);
+			return list == null ? null : new ArrayList<DocumentProcessor>(list);
+		}
+		
+		public ArrayList<DocumentProcessor> getOrDefault(Object key, ArrayList<DocumentProcessor> defaultValue) {
+			ArrayList<DocumentProcessor> r = get(key);
+			return r == null ? defaultValue : r;
+		}
+		
+		public boolean containsKey(Object key) {
+			return current().containsKey(key);
+		}
+		
+		public boolean containsValue(Object value) {
+			return current().containsValue(value);
+		}
+		
+		public Set<String> keySet() {
+			return current().keySet();
+		}
+		
+		public Collection<ArrayList<DocumentProcessor>> values() {
+			return copy().values();
+		}
+		
+		public Set<Map.Entry<String,ArrayList<DocumentProcessor>>> entrySet() {
+			return copy().entrySet();
+		}
+		
+		public boolean equals(Object o) {
+			return copy().equals(o);
+		}
+		
+		public int hashCode() {
+			return copy().hashCode();
+		}
+		
+		public String toString() {
+			return current().toString();
+		}
+		
+		public Object clone() {
+			return copy();
+		}
+		
+		// The view cannot be changed
+		public ArrayList<DocumentProcessor> put(String key, ArrayList<DocumentProcessor> value) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public void putAll(Map<? extends String,? extends ArrayList<DocumentProcessor>> map) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> putIfAbsent(String key, ArrayList<DocumentProcessor> value) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> remove(Object key) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.removeDocumentProcessor()");
+		}
+		
+		public boolean remove(Object key, Object value) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.removeDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> replace(String key, ArrayList<DocumentProcessor> value) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public boolean replace(String key, ArrayList<DocumentProcessor> oldValue, ArrayList<DocumentProcessor> newValue) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public void replaceAll(BiFunction<? super String,? super ArrayList<DocumentProcessor>,? extends ArrayList<DocumentProcessor>> function) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> computeIfAbsent(String key, Function<? super String,? extends ArrayList<DocumentProcessor>> function) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> computeIfPresent(String key, BiFunction<? super String,? super ArrayList<DocumentProcessor>,? extends ArrayList<DocumentProcessor>> function) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> compute(String key, BiFunction<? super String,? super ArrayList<DocumentProcessor>,? extends ArrayList<DocumentProcessor>> function) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public ArrayList<DocumentProcessor> merge(String key, ArrayList<DocumentProcessor> value, BiFunction<? super ArrayList<DocumentProcessor>,? super ArrayList<DocumentProcessor>,? extends ArrayList<DocumentProcessor>> function) {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.addDocumentProcessor()");
+		}
+		
+		public void clear() {
+			throw new UnsupportedOperationException("Processor maps are read-only, use Twister.removeDocumentProcessor()");
+		}
+	}
+}
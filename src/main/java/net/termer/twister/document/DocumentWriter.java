@@ -0,0 +1,25 @@
+package net.termer.twister.document;
+
+import java.io.IOException;
+
+/**
+ * The interface for objects that receive a document one chunk at a time
+ * @author termer
+ * @since 1.1
+ */
+public interface DocumentWriter {
+	/**
+	 * Writes the next chunk of the document
+	 * @param chunk the chunk of text
+	 * @throws IOException if writing the chunk fails
+	 * @since 1.1
+	 */
+	public void write(String chunk) throws IOException;
+	/**
+	 * Called once all chunks of a document part (top, document, or bottom) were written.
+	 * Writers that hold back text must write it to the next writer here, and then call its end() method.
+	 * @throws IOException if writing the remaining text fails
+	 * @since 1.1
+	 */
+	public void end() throws IOException;
+}
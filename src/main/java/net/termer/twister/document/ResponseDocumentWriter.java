@@ -0,0 +1,131 @@
+package net.termer.twister.document;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * DocumentWriter that encodes chunks as UTF-8 and writes them straight to the client,
+ * compressing them if the client supports it.
+ * Chunks are encoded as one stream, so surrogate pairs split between chunks are kept intact,
+ * through a buffer that is reused by every request handled on the same thread.
+ * @author termer
+ * @since 1.1
+ */
+public class ResponseDocumentWriter implements DocumentWriter {
+	// Per-thread output buffer
+	private static ThreadLocal<ByteBuffer> _BUFFERS_ = new ThreadLocal<ByteBuffer>();
+	
+	private Request _REQUEST_ = null;
+	private Response _RESPONSE_ = null;
+	private OutputStream _OUT_ = null;
+	
+	// The encoder keeps state between chunks, so each response has its own
+	private CharsetEncoder _ENCODER_ = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private char _PENDING_ = 0;
+	
+	/**
+	 * Creates a new writer for the provided response.
+	 * Nothing is sent until the first chunk is written, so the status and headers can still be set until then.
+	 * @param req the request
+	 * @param res the response
+	 * @since 1.1
+	 */
+	public ResponseDocumentWriter(Request req, Response res) {
+		_REQUEST_ = req;
+		_RESPONSE_ = res;
+	}
+	
+	public void write(String chunk) throws IOException {
+		if(_OUT_ == null) {
+			_OUT_ = ContentEncoder.getOutputStream(_REQUEST_, _RESPONSE_);
+		}
+		
+		// A surrogate pair can be split between chunks, so its first half is kept until the next chunk
+		CharBuffer in = null;
+		if(_PENDING_ == 0) {
+			in = CharBuffer.wrap(chunk);
+		} else {
+			in = CharBuffer.wrap(_PENDING_+chunk);
+			_PENDING_ = 0;
+		}
+		encode(in, false);
+		if(in.hasRemaining()) {
+			_PENDING_ = in.get();
+		}
+	}
+	
+	public void end() {
+		// Document parts are sent as they are written
+	}
+	
+	/**
+	 * Finishes the response, committing it.
+	 * Does nothing if no chunks were written.
+	 * @return whether anything was written
+	 * @throws IOException if finishing the response fails
+	 * @since 1.1
+	 */
+	public boolean close() throws IOException {
+		boolean written = _OUT_ != null;
+		
+		if(written) {
+			// Encode what is left of a split surrogate pair
+			encode(_PENDING_ == 0 ? CharBuffer.allocate(0) : CharBuffer.wrap(new char[] { _PENDING_ }), true);
+			_PENDING_ = 0;
+			ByteBuffer bytes = buffer();
+			CoderResult result = null;
+			do {
+				result = _ENCODER_.flush(bytes);
+				drain(bytes);
+			} while(result.isOverflow());
+			
+			if(_OUT_ instanceof GZIPOutputStream) {
+				((GZIPOutputStream) _OUT_).finish();
+			}
+			_RESPONSE_.raw().flushBuffer();
+		}
+		
+		return written;
+	}
+	
+	// Encodes chars and writes them to the client
+	private void encode(CharBuffer in, boolean last) throws IOException {
+		ByteBuffer bytes = buffer();
+		CoderResult result = null;
+		do {
+			result = _ENCODER_.encode(in, bytes, last);
+			drain(bytes);
+		} while(result.isOverflow());
+	}
+	
+	// Returns the output buffer of the current thread
+	private static ByteBuffer buffer() {
+		ByteBuffer r = _BUFFERS_.get();
+		if(r == null) {
+			r = ByteBuffer.allocate(8192);
+			_BUFFERS_.set(r);
+		}
+		return r;
+	}
+	
+	// Writes the encoded bytes to the client and empties the buffer
+	private void drain(ByteBuffer bytes) throws IOException {
+		if(bytes.position() > 0) {
+			_OUT_.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+	}
+	
+}
@@ -0,0 +1,427 @@
+package net.termer.twister.document;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import net.termer.twister.Settings;
+import net.termer.twister.caching.FileIndex;
+import net.termer.twister.caching.TwisterCache;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Utility class to send static files to clients.
+ * Small files are served from the static file cache, and larger files
+ * are streamed straight from disk so they never have to fit on the heap.
+ * Supports conditional requests (ETag, Last-Modified), byte ranges, and content encoding.
+ * @author termer
+ * @since 1.1
+ */
+public class StaticFileSender {
+	/**
+	 * The maximum amount of ranges a client can request at once before the whole file is sent instead
+	 * @since 1.1
+	 */
+	public static final int MAX_RANGES = 16;
+	
+	// The maximum amount of files validators are kept for
+	private static final int MAX_VALIDATORS = 4096;
+	
+	// Validators for files, computed once per file version, in least recently used order
+	private static LinkedHashMap<String,Validators> _VALIDATORS_ = new LinkedHashMap<String,Validators>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String,Validators> eldest) {
+			return size() > MAX_VALIDATORS;
+		}
+	};
+	
+	/**
+	 * Sends the specified file as the response body.
+	 * Answers conditional requests with 304 Not Modified, and range requests with
+	 * 206 Partial Content or 416 Range Not Satisfiable.
+	 * The response is committed once this method returns.
+	 * @param file the file to send
+	 * @param req the request
+	 * @param res the response
+	 * @throws IOException if reading the file or writing the response fails
+	 * @since 1.1
+	 */
+	public static void send(File file, Request req, Response res) throws IOException {
+		send(new FileIndex(file.getAbsoluteFile().getParentFile(), 0), file.getName(), req, res);
+	}
+	
+	/**
+	 * Sends the specified indexed file as the response body, like send(File, Request, Response) does.
+	 * Precompressed versions of the file are looked up through the index.
+	 * @param index the index of the directory the file is in
+	 * @param path the path of the file, relative to the indexed directory
+	 * @param req the request
+	 * @param res the response
+	 * @throws IOException if reading the file or writing the response fails
+	 * @since 1.1
+	 */
+	public static void send(FileIndex index, String path, Request req, Response res) throws IOException {
+		File file = new File(index.getRoot(), path);
+		Validators validators = validators(file);
+		byte[] content = null;
+		
+		// Content encoding, only for types that benefit from it
+		if(Boolean.parseBoolean(Settings.get("compression")) && ContentEncoder.isCompressible(res.raw().getContentType())) {
+			String accept = req.headers("Accept-Encoding");
+			
+			// Precompressed files are preferred
+			String encoding = ContentEncoder.getPrecompressedEncoding(index, path, accept);
+			if(encoding != null) {
+				file = ContentEncoder.getPrecompressed(index, path, encoding);
+				Validators fileValidators = validators(file);
+				validators = fileValidators.encoded(encoding, fileValidators.size);
+			}
+			
+			// Otherwise compress cached files on the fly, once per version of the file
+			if(encoding == null && Boolean.parseBoolean(Settings.get("static-cache")) &&
+					validators.size >= Long.parseLong(Settings.get("compression-min-size")) && ContentEncoder.accepts(accept, "gzip")) {
+				content = TwisterCache._STATIC_FILES_.getCompressed(file, ContentEncoder.getLevel());
+				if(content != null) {
+					encoding = "gzip";
+					validators = validators.encoded(encoding, content.length);
+				}
+			}
+			
+			res.raw().addHeader("Vary", "Accept-Encoding");
+			if(encoding != null) {
+				res.header("Content-Encoding", encoding);
+			}
+		}
+		long size = validators.size;
+		
+		res.header("ETag", validators.etag);
+		res.header("Last-Modified", validators.lastModified);
+		res.header("Accept-Ranges", "bytes");
+		
+		// Conditional requests
+		if(notModified(req, validators)) {
+			res.status(304);
+			res.raw().flushBuffer();
+			return;
+		}
+		
+		// Range requests
+		ArrayList<long[]> ranges = null;
+		String rangeHeader = req.headers("Range");
+		if(rangeHeader != null && ifRangeMatches(req, validators)) {
+			ranges = parseRanges(rangeHeader, size);
+			if(ranges != null && ranges.isEmpty()) {
+				res.status(416);
+				res.header("Content-Range", "bytes */"+size);
+				res.raw().setContentLength(0);
+				res.raw().flushBuffer();
+				return;
+			}
+		}
+		
+		// Try the cache first
+		if(content == null && Boolean.parseBoolean(Settings.get("static-cache"))) {
+			content = TwisterCache._STATIC_FILES_.get(file);
+			
+			// The file may have changed since its validators were read
+			if(content != null && content.length != size) {
+				content = null;
+			}
+		}
+		
+		OutputStream out = res.raw().getOutputStream();
+		FileChannel channel = null;
+		try {
+			if(content == null) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+			
+			if(ranges == null) {
+				res.raw().setContentLengthLong(size);
+				if(content != null) {
+					out.write(content);
+				} else if(size >= Long.parseLong(Settings.get("static-mmap-threshold")) && size <= Integer.MAX_VALUE && out instanceof HttpOutput) {
+					// Let Jetty write the mapped file straight to the socket, files too large for one mapping are transferred instead
+					MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+					((HttpOutput) out).sendContent(buf);
+				} else {
+					transfer(channel, 0, size, out);
+				}
+			} else if(ranges.size() == 1) {
+				long[] range = ranges.get(0);
+				long length = range[1]-range[0]+1;
+				res.status(206);
+				res.header("Content-Range", "bytes "+range[0]+'-'+range[1]+'/'+size);
+				res.raw().setContentLengthLong(length);
+				writeRange(content, channel, range[0], length, out);
+			} else {
+				String type = res.raw().getContentType();
+				if(type == null) {
+					type = "application/octet-stream";
+				}
+				String boundary = Long.toHexString(System.nanoTime())+Long.toHexString(validators.modified);
+				
+				// Build the part headers first so the full length is known
+				ArrayList<byte[]> partHeaders = new ArrayList<byte[]>();
+				long length = 0;
+				for(long[] range : ranges) {
+					byte[] header = ("\r\n--"+boundary+"\r\n"+
+							"Content-Type: "+type+"\r\n"+
+							"Content-Range: bytes "+range[0]+'-'+range[1]+'/'+size+"\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+					partHeaders.add(header);
+					length += header.length+range[1]-range[0]+1;
+				}
+				byte[] end = ("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+				length += end.length;
+				
+				res.status(206);
+				res.raw().setContentType("multipart/byteranges; boundary="+boundary);
+				res.raw().setContentLengthLong(length);
+				for(int i = 0; i < ranges.size(); i++) {
+					long[] range = ranges.get(i);
+					out.write(partHeaders.get(i));
+					writeRange(content, channel, range[0], range[1]-range[0]+1, out);
+				}
+				out.write(end);
+			}
+		} finally {
+			if(channel != null) {
+				channel.close();
+			}
+		}
+		
+		// Commit the response so nothing else gets written after the file
+		res.raw().flushBuffer();
+	}
+	
+	/**
+	 * Copies the specified region of a file channel to an output stream,
+	 * using FileChannel.transferTo() so the file is never fully loaded on the heap
+	 * @param channel the file channel to read from
+	 * @param position the position in the file to start at
+	 * @param count the amount of bytes to copy
+	 * @param out the output stream to write to
+	 * @throws IOException if reading or writing fails
+	 * @since 1.1
+	 */
+	public static void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+		WritableByteChannel target = Channels.newChannel(out);
+		long end = position+count;
+		while(position < end) {
+			long sent = channel.transferTo(position, end-position, target);
+			if(sent < 1) {
+				break;
+			}
+			position += sent;
+		}
+	}
+	
+	/**
+	 * Returns the ETag for the specified file.
+	 * The ETag is computed once per version of the file and then cached.
+	 * @param file the file
+	 * @return the file's ETag
+	 * @throws IOException if reading the file's attributes fails
+	 * @since 1.1
+	 */
+	public static String getETag(File file) throws IOException {
+		return validators(file).etag;
+	}
+	
+	// Writes a range from either the cached content or the file channel
+	private static void writeRange(byte[] content, FileChannel channel, long start, long length, OutputStream out) throws IOException {
+		if(content == null) {
+			transfer(channel, start, length, out);
+		} else {
+			out.write(content, (int) start, (int) length);
+		}
+	}
+	
+	// Returns the validators for the current version of the file
+	private static Validators validators(File file) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		long modified = attrs.lastModifiedTime().toMillis();
+		long size = attrs.size();
+		String key = file.getAbsolutePath();
+		
+		Validators validators = null;
+		synchronized(_VALIDATORS_) {
+			validators = _VALIDATORS_.get(key);
+		}
+		if(validators == null || validators.modified != modified || validators.size != size) {
+			validators = new Validators(modified, size);
+			synchronized(_VALIDATORS_) {
+				_VALIDATORS_.put(key, validators);
+			}
+		}
+		
+		return validators;
+	}
+	
+	// Returns whether the client's copy of the file is still current
+	private static boolean notModified(Request req, Validators validators) {
+		boolean notModified = false;
+		
+		String ifNoneMatch = req.headers("If-None-Match");
+		if(ifNoneMatch != null) {
+			// If-None-Match takes precedence over If-Modified-Since
+			for(String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if(tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if(tag.equals("*") || tag.equals(validators.etag)) {
+					notModified = true;
+					break;
+				}
+			}
+		} else {
+			String ifModifiedSince = req.headers("If-Modified-Since");
+			if(ifModifiedSince != null) {
+				long since = parseDate(ifModifiedSince);
+				notModified = since > -1 && validators.modified/1000 <= since/1000;
+			}
+		}
+		
+		return notModified;
+	}
+	
+	// Returns whether the Range header should be honored according to If-Range
+	private static boolean ifRangeMatches(Request req, Validators validators) {
+		String ifRange = req.headers("If-Range");
+		boolean matches = true;
+		
+		if(ifRange != null) {
+			ifRange = ifRange.trim();
+			if(ifRange.startsWith("\"")) {
+				matches = ifRange.equals(validators.etag);
+			} else {
+				long date = parseDate(ifRange);
+				matches = date > -1 && validators.modified/1000 == date/1000;
+			}
+		}
+		
+		return matches;
+	}
+	
+	// Parses a Range header into inclusive start and end offsets.
+	// Returns null if the header should be ignored, and an empty list if no range can be satisfied.
+	private static ArrayList<long[]> parseRanges(String header, long size) {
+		if(!header.startsWith("bytes=")) {
+			return null;
+		}
+		
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		String[] specs = header.substring(6).split(",");
+		if(specs.length > MAX_RANGES) {
+			return null;
+		}
+		
+		for(String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if(dash < 0) {
+				return null;
+			}
+			try {
+				long start, end;
+				if(dash == 0) {
+					// Suffix range, the last N bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if(suffix < 1) {
+						continue;
+					}
+					start = Math.max(0, size-suffix);
+					end = size-1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					end = size-1;
+					if(dash < spec.length()-1) {
+						long last = Long.parseLong(spec.substring(dash+1));
+						if(last < start) {
+							// Syntactically invalid, so the header is ignored
+							return null;
+						}
+						end = Math.min(last, size-1);
+					}
+				}
+				if(start < size) {
+					ranges.add(new long[] {start, end});
+				}
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		return ranges;
+	}
+	
+	// Parses an HTTP date, returning -1 if it is invalid
+	private static long parseDate(String date) {
+		long time = -1;
+		try {
+			time = ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch(Exception e) {
+			// Invalid dates are ignored
+		}
+		return time;
+	}
+	
+	// Validators for a version of a file
+	private static class Validators {
+		private long modified = 0;
+		private long size = 0;
+		private String etag = null;
+		private String lastModified = null;
+		private String encoding = null;
+		
+		// The last encoded variant of these validators
+		private volatile Validators encoded = null;
+		
+		private Validators(long modified, long size) {
+			this.modified = modified;
+			this.size = size;
+			etag = '"'+Long.toHexString(modified)+'-'+Long.toHexString(size)+'"';
+			lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(modified).atZone(ZoneOffset.UTC));
+		}
+		
+		private Validators(Validators identity, String encoding, long size) {
+			modified = identity.modified;
+			this.size = size;
+			this.encoding = encoding;
+			
+			// Encoded variants need their own ETag, since their bytes differ
+			etag = identity.etag.substring(0, identity.etag.length()-1)+'-'+encoding+'"';
+			lastModified = identity.lastModified;
+		}
+		
+		// Returns the validators for an encoded variant of the file
+		private Validators encoded(String encoding, long size) {
+			Validators variant = encoded;
+			if(variant == null || variant.size != size || !variant.encoding.equals(encoding)) {
+				variant = new Validators(this, encoding, size);
+				encoded = variant;
+			}
+			return variant;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package net.termer.twister.document;
+
+import java.io.IOException;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * The interface for document processors that can transform documents chunk by chunk.
+ * When only StreamingDocumentProcessors are registered for a domain (and scripting is disabled),
+ * documents are written to the client as they are read, without holding the whole page in memory.
+ * StreamingDocumentProcessors can be registered anywhere a DocumentProcessor can.
+ * @author termer
+ * @since 1.1
+ */
+public interface StreamingDocumentProcessor extends DocumentProcessor {
+	/**
+	 * Returns a DocumentWriter that transforms the chunks of a document and passes them on to the next writer.
+	 * A new writer is requested for every document part, so it may keep state across chunks,
+	 * for example to handle text that is split between two chunks.
+	 * @param next the writer to pass the transformed chunks to
+	 * @param path the path of the document (not file path)
+	 * @param domain the domain
+	 * @param req the request
+	 * @param res the response
+	 * @return the writer that transforms the document
+	 * @since 1.1
+	 */
+	public DocumentWriter wrap(DocumentWriter next, String path, String domain, Request req, Response res);
+	
+	/**
+	 * Processes a whole document by passing its text through the writer returned by wrap().
+	 * Used when the document cannot be streamed because other DocumentProcessors are registered.
+	 * @param doc the HTMLDocumentResponse to manipulate
+	 * @param req the Request
+	 * @param res the Response
+	 * @since 1.1
+	 */
+	public default void process(HTMLDocumentResponse doc, Request req, Response res) {
+		BufferedDocumentWriter buf = new BufferedDocumentWriter();
+		try {
+			DocumentWriter writer = wrap(buf, doc.getPath(), doc.getDomain(), req, res);
+			writer.write(doc.getText());
+			writer.end();
+			doc.setText(buf.toString());
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
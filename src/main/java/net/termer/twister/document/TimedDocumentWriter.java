@@ -0,0 +1,101 @@
+package net.termer.twister.document;
+
+import java.io.IOException;
+
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.metrics.HandlerStats;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Wraps the writer of a StreamingDocumentProcessor to time it for HandlerMetrics.
+ * Only the time spent in the processor itself is counted, not the time spent in the writers after it,
+ * and it is recorded once the whole document part was written.
+ * @author termer
+ * @since 1.1
+ */
+class TimedDocumentWriter implements DocumentWriter {
+	private StreamingDocumentProcessor _PROCESSOR_ = null;
+	private String _DOMAIN_ = null;
+	private DocumentWriter _NEXT_ = null;
+	private DocumentWriter _WRITER_ = null;
+	private long _ELAPSED_ = 0;
+	private boolean _NEXT_FAILED_ = false;
+	
+	TimedDocumentWriter(StreamingDocumentProcessor processor, DocumentWriter next, String path, String domain, Request req, Response res) {
+		_PROCESSOR_ = processor;
+		_DOMAIN_ = domain;
+		_NEXT_ = next;
+		
+		long start = System.nanoTime();
+		try {
+			_WRITER_ = processor.wrap(new Next(), path, domain, req, res);
+		} catch(RuntimeException | Error e) {
+			HandlerMetrics.failed(processor, e);
+			throw e;
+		}
+		_ELAPSED_ += System.nanoTime()-start;
+	}
+	
+	public void write(String chunk) throws IOException {
+		long start = System.nanoTime();
+		try {
+			_WRITER_.write(chunk);
+		} catch(IOException | RuntimeException | Error e) {
+			failed(e);
+			throw e;
+		}
+		_ELAPSED_ += System.nanoTime()-start;
+	}
+	
+	public void end() throws IOException {
+		long start = System.nanoTime();
+		try {
+			_WRITER_.end();
+		} catch(IOException | RuntimeException | Error e) {
+			failed(e);
+			throw e;
+		}
+		_ELAPSED_ += System.nanoTime()-start;
+		
+		// The processor's time is only known once it ended
+		HandlerStats stats = HandlerMetrics.getStats(_PROCESSOR_);
+		if(stats != null) {
+			stats.record(_ELAPSED_, _DOMAIN_);
+		}
+	}
+	
+	// Only counts exceptions that were not thrown by the writers after the processor
+	private void failed(Throwable error) {
+		if(!_NEXT_FAILED_) {
+			HandlerMetrics.failed(_PROCESSOR_, error);
+		}
+	}
+	
+	// The writer given to the processor, which takes the time spent after the processor off its time
+	private class Next implements DocumentWriter {
+		public void write(String chunk) throws IOException {
+			long start = System.nanoTime();
+			try {
+				_NEXT_.write(chunk);
+			} catch(IOException | RuntimeException | Error e) {
+				_NEXT_FAILED_ = true;
+				throw e;
+			} finally {
+				_ELAPSED_ -= System.nanoTime()-start;
+			}
+		}
+		
+		public void end() throws IOException {
+			long start = System.nanoTime();
+			try {
+				_NEXT_.end();
+			} catch(IOException | RuntimeException | Error e) {
+				_NEXT_FAILED_ = true;
+				throw e;
+			} finally {
+				_ELAPSED_ -= System.nanoTime()-start;
+			}
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package net.termer.twister.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.termer.twister.Settings;
+import net.termer.twister.Twister;
+import net.termer.twister.document.ContentEncoder;
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.server.DetachableResponse;
+import spark.HaltException;
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+import spark.Spark;
+
+/**
+ * Base of the adapters that register AsyncRequestHandlers and AsyncRouteHandlers like normal handlers.
+ * When a handler's stage is not done yet, the response is detached and sent by the thread that completes the stage,
+ * so the thread that received the request can handle other requests in the meantime.
+ * Stages that take longer than the timeout are answered with 503 Service Unavailable, and can be cancelled.
+ * @author termer
+ * @since 1.1
+ */
+public abstract class AsyncAdapter {
+	// Sent when a stage fails, like Spark does when a handler throws
+	private static final String INTERNAL_ERROR = "<html><body><h2>500 Internal Server Error</h2></body></html>";
+	
+	// Runs the timeouts of detached responses
+	private static final ScheduledThreadPoolExecutor _TIMEOUTS_ = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread thread = new Thread(r, "twister-async-timeout");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	static {
+		_TIMEOUTS_.setRemoveOnCancelPolicy(true);
+	}
+	
+	private Object _HANDLER_ = null;
+	private long _TIMEOUT_ = -1;
+	private boolean _CANCEL_ = true;
+	
+	/**
+	 * Creates an adapter for a handler
+	 * @param handler the handler
+	 * @param timeout the milliseconds to wait for the handler's stage, 0 to wait forever,
+	 * or a negative number to use async-handler-timeout from twister.ini
+	 * @param cancel whether to cancel the handler's stage when it times out
+	 * @since 1.1
+	 */
+	protected AsyncAdapter(Object handler, long timeout, boolean cancel) {
+		_HANDLER_ = handler;
+		_TIMEOUT_ = timeout;
+		_CANCEL_ = cancel;
+	}
+	
+	/**
+	 * Returns the handler this adapts
+	 * @return the handler
+	 * @since 1.1
+	 */
+	public Object getHandler() {
+		return _HANDLER_;
+	}
+	
+	/**
+	 * Returns the milliseconds the handler's stage is waited for
+	 * @return the timeout, or 0 if the stage is waited for forever
+	 * @since 1.1
+	 */
+	public long getTimeout() {
+		long r = _TIMEOUT_;
+		if(r < 0) {
+			r = Math.max(0, Long.parseLong(Settings.get("async-handler-timeout").trim()))*1000L;
+		}
+		return r;
+	}
+	
+	/**
+	 * Returns whether the handler's stage is cancelled when it times out
+	 * @return whether the stage is cancelled
+	 * @since 1.1
+	 */
+	public boolean isCancelling() {
+		return _CANCEL_;
+	}
+	
+	/**
+	 * Calls the handler
+	 * @param req the Request object for the request
+	 * @param res the Response object for the request
+	 * @param wildcards the wildcards filled in by the route, or null for request handlers
+	 * @return the stage returned by the handler
+	 * @since 1.1
+	 */
+	protected abstract CompletionStage<String> call(Request req, Response res, String[] wildcards);
+	
+	/**
+	 * Runs the handler for a request, detaching the response if the handler's stage is not done yet.
+	 * Detached responses are timed and sent once the stage is done, and this returns an empty String Spark will not send.
+	 * @param req the Request object for the request
+	 * @param res the Response object for the request
+	 * @param wildcards the wildcards filled in by the route, or null for request handlers
+	 * @param domain the domain the request is for, used for metrics
+	 * @param generation the generation the request is counted in, which keeps counting a detached response until it is sent,
+	 * or null to count it in the current generation
+	 * @return the content for the response, or an empty String if the response was detached
+	 * @since 1.1
+	 */
+	public String run(Request req, Response res, String[] wildcards, String domain, InFlightRequests.Generation generation) {
+		String r = "";
+		CompletableFuture<String> future = future(call(req, res, wildcards));
+		Object detachable = req.raw().getAttribute(DetachableResponse.ATTRIBUTE);
+		
+		if(future.isDone() || !(detachable instanceof DetachableResponse) || ((DetachableResponse) detachable).isDetached()) {
+			r = await(future);
+		} else {
+			detach((DetachableResponse) detachable, future, req, domain, generation);
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Runs the handler for a request, blocking until its stage is done
+	 * @param req the Request object for the request
+	 * @param res the Response object for the request
+	 * @param wildcards the wildcards filled in by the route, or null for request handlers
+	 * @return the content for the response
+	 * @since 1.1
+	 */
+	protected String block(Request req, Response res, String[] wildcards) {
+		return await(future(call(req, res, wildcards)));
+	}
+	
+	// Returns a stage as a CompletableFuture
+	private CompletableFuture<String> future(CompletionStage<String> stage) {
+		CompletableFuture<String> r = null;
+		try {
+			r = stage.toCompletableFuture();
+		} catch(UnsupportedOperationException e) {
+			// Stages that cannot be converted are followed instead, which means they cannot be cancelled
+			CompletableFuture<String> follower = new CompletableFuture<String>();
+			stage.whenComplete((result, error) -> {
+				if(error == null) {
+					follower.complete(result);
+				} else {
+					follower.completeExceptionally(error);
+				}
+			});
+			r = follower;
+		}
+		return r;
+	}
+	
+	// Waits for a stage on the current thread, like a normal handler would
+	private String await(CompletableFuture<String> future) {
+		long timeout = getTimeout();
+		try {
+			return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+		} catch(TimeoutException e) {
+			if(_CANCEL_) {
+				future.cancel(true);
+			}
+			throw Spark.halt(503);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Spark.halt(503);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new CompletionException(cause);
+			}
+		}
+	}
+	
+	// Detaches the response and sends it once the stage is done or timed out
+	private void detach(DetachableResponse detachable, CompletableFuture<String> future, Request req, String domain, InFlightRequests.Generation requestGeneration) {
+		detachable.detach();
+		
+		// Counted in the request's own generation, so draining for a module reload waits for the response
+		if(requestGeneration != null) {
+			requestGeneration.retain();
+		}
+		InFlightRequests.Generation generation = requestGeneration == null ? Twister.current().getInFlightRequests().enter() : requestGeneration;
+		long start = HandlerMetrics.start();
+		AtomicBoolean sent = new AtomicBoolean();
+		
+		long timeout = getTimeout();
+		ScheduledFuture<?> timer = null;
+		if(timeout > 0) {
+			timer = _TIMEOUTS_.schedule(() -> {
+				if(sent.compareAndSet(false, true)) {
+					if(_CANCEL_) {
+						future.cancel(true);
+					}
+					HandlerMetrics.failed(this, new TimeoutException());
+					finish(detachable, generation, req, 503, null);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		
+		ScheduledFuture<?> pending = timer;
+		future.whenComplete((result, error) -> {
+			if(sent.compareAndSet(false, true)) {
+				if(pending != null) {
+					pending.cancel(false);
+				}
+				
+				if(error == null) {
+					HandlerMetrics.record(this, domain, start);
+					finish(detachable, generation, req, -1, result);
+				} else {
+					if(error instanceof CompletionException && error.getCause() != null) {
+						error = error.getCause();
+					}
+					
+					if(error instanceof HaltException) {
+						finish(detachable, generation, req, ((HaltException) error).statusCode(), ((HaltException) error).body());
+					} else {
+						if(!(error instanceof CancellationException)) {
+							HandlerMetrics.failed(this, error);
+							error.printStackTrace();
+						}
+						finish(detachable, generation, req, 500, INTERNAL_ERROR);
+					}
+				}
+			}
+		});
+	}
+	
+	// Sends a detached response and completes it, with a status or -1 to keep the one set by the handler
+	private void finish(DetachableResponse detachable, InFlightRequests.Generation generation, Request req, int status, String body) {
+		HttpServletResponse raw = detachable.getWrapped();
+		try {
+			if(!raw.isCommitted()) {
+				if(status > -1) {
+					raw.setStatus(status);
+				}
+				if(raw.getContentType() == null) {
+					raw.setContentType("text/html; charset=utf-8");
+				}
+				
+				// Compress the body if the client supports it, like other responses
+				String text = body == null ? "" : body;
+				if(status == -1) {
+					text = ContentEncoder.encode(text, req, RequestResponseFactory.create(raw));
+				}
+				if(!raw.isCommitted()) {
+					OutputStream out = raw.getOutputStream();
+					out.write(text.getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				}
+			}
+		} catch(IOException | IllegalStateException e) {
+			// The client is gone
+		} finally {
+			generation.exit();
+			detachable.complete();
+		}
+	}
+}
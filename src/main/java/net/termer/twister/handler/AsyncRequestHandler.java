@@ -0,0 +1,27 @@
+package net.termer.twister.handler;
+
+import java.util.concurrent.CompletionStage;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * The interface for request handlers that finish their responses later, such as handlers waiting on
+ * databases or other servers without blocking a thread.
+ * The thread that received the request is released while the returned stage is not done,
+ * and the response is sent once it is.
+ * @author termer
+ * @since 1.1
+ */
+public interface AsyncRequestHandler {
+	/**
+	 * The method to return content for a request.
+	 * The status and headers can be set on the response until the returned stage is done.
+	 * @param req the Request object for the request
+	 * @param res the Response object for the request
+	 * @return a stage that is completed with the content for the response, or completed exceptionally if the request failed.
+	 * Completing it with halt()'s exception sends the status and body passed to halt().
+	 * @since 1.1
+	 */
+	public CompletionStage<String> handle(Request req, Response res);
+}
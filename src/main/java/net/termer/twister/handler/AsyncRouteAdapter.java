@@ -0,0 +1,46 @@
+package net.termer.twister.handler;
+
+import java.util.concurrent.CompletionStage;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Registers an AsyncRouteHandler as a RouteHandler.
+ * Twister detaches responses while the handler's stage is not done, calling handle() directly blocks until it is.
+ * @author termer
+ * @since 1.1
+ */
+public class AsyncRouteAdapter extends AsyncAdapter implements RouteHandler {
+	private AsyncRouteHandler _HANDLER_ = null;
+	
+	/**
+	 * Creates an adapter for a handler, which uses async-handler-timeout from twister.ini and cancels stages that time out
+	 * @param handler the handler
+	 * @since 1.1
+	 */
+	public AsyncRouteAdapter(AsyncRouteHandler handler) {
+		this(handler, -1, true);
+	}
+	
+	/**
+	 * Creates an adapter for a handler
+	 * @param handler the handler
+	 * @param timeout the milliseconds to wait for the handler's stage, 0 to wait forever,
+	 * or a negative number to use async-handler-timeout from twister.ini
+	 * @param cancel whether to cancel the handler's stage when it times out
+	 * @since 1.1
+	 */
+	public AsyncRouteAdapter(AsyncRouteHandler handler, long timeout, boolean cancel) {
+		super(handler, timeout, cancel);
+		_HANDLER_ = handler;
+	}
+	
+	public String handle(Request req, Response res, String[] wildcards) {
+		return block(req, res, wildcards);
+	}
+	
+	protected CompletionStage<String> call(Request req, Response res, String[] wildcards) {
+		return _HANDLER_.handle(req, res, wildcards);
+	}
+}
@@ -0,0 +1,595 @@
+package net.termer.twister.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.module.ModuleManager;
+import net.termer.twister.routing.RouteTrie;
+
+/**
+ * Registry of request, route, and pre-request handlers.
+ * Handlers are stored in immutable snapshots. Changes build a new snapshot
+ * and publish it atomically, so request threads can read the current snapshot
+ * without locking, and will never see a half-applied change.
+ * Modules can use batches to register several handlers atomically.
+ * Handlers are tagged with the module registering them when they are added to a batch.
+ * Batches committed while a new version of a module is being initialized are held back,
+ * and applied together with the removal of the old version's handlers.
+ * @author termer
+ * @since 1.1
+ */
+public class HandlerRegistry {
+	/**
+	 * The amount of HTTP methods handlers can be registered for
+	 * @since 1.1
+	 */
+	public static final int METHODS = 4;
+	
+	private volatile Snapshot _SNAPSHOT_ = new Snapshot();
+	
+	// The batch that commits are collected into on each thread, while atomically() runs
+	private final ThreadLocal<Batch> _COLLECTING_ = new ThreadLocal<Batch>();
+	
+	/**
+	 * Returns the current handler snapshot.
+	 * The snapshot never changes, so it can be used for the duration of an entire request.
+	 * @return the current handler snapshot
+	 * @since 1.1
+	 */
+	public Snapshot snapshot() {
+		return _SNAPSHOT_;
+	}
+	
+	/**
+	 * Returns the version of the current handler snapshot.
+	 * The version is incremented every time a change is committed.
+	 * @return the current version
+	 * @since 1.1
+	 */
+	public long getVersion() {
+		return _SNAPSHOT_.getVersion();
+	}
+	
+	/**
+	 * Creates a new batch of changes to apply to this registry
+	 * @return the new batch
+	 * @since 1.1
+	 */
+	public Batch batch() {
+		return new Batch();
+	}
+	
+	/**
+	 * Runs code that commits batches to this registry, and applies all of them as one change when it is done.
+	 * Requests see either none or all of the changes.
+	 * @param changes the code to run
+	 * @return the version of the registry after the changes were applied
+	 * @since 1.1
+	 */
+	public long atomically(Runnable changes) {
+		Batch batch = new Batch();
+		Batch outer = _COLLECTING_.get();
+		_COLLECTING_.set(batch);
+		try {
+			changes.run();
+		} finally {
+			if(outer == null) {
+				_COLLECTING_.remove();
+			} else {
+				_COLLECTING_.set(outer);
+			}
+		}
+		return batch.commit();
+	}
+	
+	// Applies the provided changes and publishes the resulting snapshot
+	private synchronized long apply(ArrayList<Change> changes, long expectedVersion) {
+		Snapshot current = _SNAPSHOT_;
+		
+		if(expectedVersion > -1 && current.getVersion() != expectedVersion) {
+			return -1;
+		}
+		
+		Builder builder = new Builder(current);
+		for(Change change : changes) {
+			change.apply(builder);
+		}
+		_SNAPSHOT_ = builder.build(current.getVersion()+1);
+		
+		// Handlers that were removed or replaced stop showing up in metrics, unless they are still registered
+		if(!builder._REMOVED_.isEmpty()) {
+			ArrayList<Object> removed = builder._REMOVED_;
+			HandlerMetrics.forgetRemoved(removed::contains);
+		}
+		
+		return current.getVersion()+1;
+	}
+	
+	// Normalizes request handler paths to start and end with "/"
+	private static String normalizePath(String path) {
+		if(!path.endsWith("/")) path+="/";
+		if(!path.startsWith("/")) path="/"+path;
+		return path.toLowerCase();
+	}
+	
+	// Normalizes routes to start with "/"
+	private static String normalizeRoute(String route) {
+		if(!route.startsWith("/")) route="/"+route;
+		return route.toLowerCase();
+	}
+	
+	/**
+	 * A set of handler changes that are applied to a HandlerRegistry all at once.
+	 * Changes are not visible to requests until the batch is committed.
+	 * @author termer
+	 * @since 1.1
+	 */
+	public class Batch {
+		private ArrayList<Change> _CHANGES_ = new ArrayList<Change>();
+		
+		private Batch() {}
+		
+		/**
+		 * Adds a request handler to this batch
+		 * @param domain the domain to register the handler for
+		 * @param path the path to register the handler for
+		 * @param handler the handler
+		 * @param method the HTTP method (Method.GET/POST/DELETE/PUT)
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch addRequestHandler(String domain, String path, RequestHandler handler, int method) {
+			if(handler != null && domain != null && path != null) {
+				String dom = domain.toLowerCase();
+				String pth = normalizePath(path);
+				ModuleManager.claim(handler);
+				_CHANGES_.add(builder -> HandlerMetrics.register(handler, HandlerMetrics.REQUEST_HANDLER));
+				_CHANGES_.add(builder -> builder.removed(builder.requestHandlers(method, dom).put(pth, handler)));
+			}
+			return this;
+		}
+		
+		/**
+		 * Removes a request handler in this batch
+		 * @param domain the domain to unregister the handler from
+		 * @param path the path to unregister the handler from
+		 * @param method the HTTP method (Method.GET/POST/DELETE/PUT)
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch removeRequestHandler(String domain, String path, int method) {
+			String dom = domain.toLowerCase();
+			String pth = normalizePath(path);
+			_CHANGES_.add(builder -> builder.removed(builder.requestHandlers(method, dom).remove(pth)));
+			return this;
+		}
+		
+		/**
+		 * Adds a route handler to this batch
+		 * @param domain the domain to register the handler for
+		 * @param route the route to register the handler for
+		 * @param handler the handler
+		 * @param method the HTTP method (Method.GET/POST/DELETE/PUT)
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch addRouteHandler(String domain, String route, RouteHandler handler, int method) {
+			if(handler != null && domain != null && route != null) {
+				String dom = domain.toLowerCase();
+				String rte = normalizeRoute(route);
+				ModuleManager.claim(handler);
+				_CHANGES_.add(builder -> HandlerMetrics.register(handler, HandlerMetrics.ROUTE_HANDLER));
+				_CHANGES_.add(builder -> builder.removed(builder.routeHandlers(method, dom).put(rte, handler)));
+			}
+			return this;
+		}
+		
+		/**
+		 * Removes a route handler in this batch
+		 * @param domain the domain to unregister the handler from
+		 * @param route the route to unregister the handler from
+		 * @param method the HTTP method (Method.GET/POST/DELETE/PUT)
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch removeRouteHandler(String domain, String route, int method) {
+			String dom = domain.toLowerCase();
+			String rte = normalizeRoute(route);
+			_CHANGES_.add(builder -> builder.removed(builder.routeHandlers(method, dom).remove(rte)));
+			return this;
+		}
+		
+		/**
+		 * Adds a PreRequestHandler to this batch
+		 * @param handler the handler to register
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch addPreRequestHandler(PreRequestHandler handler) {
+			if(handler != null) {
+				ModuleManager.claim(handler);
+				_CHANGES_.add(builder -> HandlerMetrics.register(handler, HandlerMetrics.PRE_REQUEST_HANDLER));
+				_CHANGES_.add(builder -> builder.preRequestHandlers().add(handler));
+			}
+			return this;
+		}
+		
+		/**
+		 * Removes a PreRequestHandler in this batch
+		 * @param handler the handler to unregister
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch removePreRequestHandler(PreRequestHandler handler) {
+			_CHANGES_.add(builder -> {
+				if(builder.preRequestHandlers().remove(handler)) {
+					builder.removed(handler);
+				}
+			});
+			return this;
+		}
+		
+		/**
+		 * Removes all handlers that match a filter in this batch, for all domains and methods
+		 * @param filter returns true for the request, route, and pre-request handlers to remove
+		 * @return this batch
+		 * @since 1.1
+		 */
+		public Batch removeHandlers(Predicate<Object> filter) {
+			_CHANGES_.add(builder -> builder.removeHandlers(filter));
+			return this;
+		}
+		
+		/**
+		 * Applies all changes in this batch atomically
+		 * @return the version of the registry after the changes were applied
+		 * @since 1.1
+		 */
+		public long commit() {
+			return commit(-1);
+		}
+		
+		/**
+		 * Applies all changes in this batch atomically, but only if the
+		 * registry is still at the expected version.
+		 * While a new version of a module is being initialized, its batches are applied when it is installed,
+		 * and the expected version is not checked.
+		 * @param expectedVersion the version the registry must be at
+		 * @return the version of the registry after the changes were applied, or -1 if the registry was not at the expected version
+		 * @since 1.1
+		 */
+		public long commit(long expectedVersion) {
+			long r = 0;
+			Batch collecting = _COLLECTING_.get();
+			
+			if(ModuleManager.defer(() -> commit())) {
+				r = getVersion();
+			} else if(collecting != null && collecting != this) {
+				collecting._CHANGES_.addAll(_CHANGES_);
+				r = getVersion();
+			} else {
+				r = apply(_CHANGES_, expectedVersion);
+			}
+			
+			return r;
+		}
+	}
+	
+	/**
+	 * Immutable set of handlers, as of a specific registry version
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Snapshot {
+		private long _VERSION_ = 0;
+		private ArrayList<Map<String,Map<String,RequestHandler>>> _REQUEST_HANDLERS_ = new ArrayList<Map<String,Map<String,RequestHandler>>>();
+		private ArrayList<Map<String,Map<String,RouteHandler>>> _ROUTE_HANDLERS_ = new ArrayList<Map<String,Map<String,RouteHandler>>>();
+		private ArrayList<Map<String,RouteTrie<RouteHandler>>> _ROUTE_TRIES_ = new ArrayList<Map<String,RouteTrie<RouteHandler>>>();
+		private PreRequestHandler[] _PRE_REQUEST_HANDLERS_ = new PreRequestHandler[0];
+		
+		// Creates an empty snapshot
+		private Snapshot() {
+			for(int i = 0; i < METHODS; i++) {
+				_REQUEST_HANDLERS_.add(Collections.<String,Map<String,RequestHandler>>emptyMap());
+				_ROUTE_HANDLERS_.add(Collections.<String,Map<String,RouteHandler>>emptyMap());
+				_ROUTE_TRIES_.add(Collections.<String,RouteTrie<RouteHandler>>emptyMap());
+			}
+		}
+		
+		/**
+		 * Returns the registry version this snapshot was published as
+		 * @return the version of this snapshot
+		 * @since 1.1
+		 */
+		public long getVersion() {
+			return _VERSION_;
+		}
+		
+		/**
+		 * Returns the RequestHandler for the specified domain, method, and exact normalized path
+		 * @param domain the domain (lowercase)
+		 * @param method the method
+		 * @param path the path (lowercase, starting and ending with "/")
+		 * @return the handler, or null if none is registered
+		 * @since 1.1
+		 */
+		public RequestHandler getRequestHandler(String domain, int method, String path) {
+			RequestHandler handler = null;
+			
+			if(method > -1 && method < METHODS) {
+				Map<String,RequestHandler> handlers = _REQUEST_HANDLERS_.get(method).get(domain);
+				if(handlers != null) {
+					handler = handlers.get(path);
+				}
+			}
+			
+			return handler;
+		}
+		
+		/**
+		 * Returns all RequestHandlers for the specified domain and method
+		 * @param domain the domain (lowercase)
+		 * @param method the method
+		 * @return the handlers, keyed by path
+		 * @since 1.1
+		 */
+		public Map<String,RequestHandler> getRequestHandlers(String domain, int method) {
+			Map<String,RequestHandler> handlers = null;
+			
+			if(method > -1 && method < METHODS) {
+				handlers = _REQUEST_HANDLERS_.get(method).get(domain);
+			}
+			
+			return handlers == null ? Collections.<String,RequestHandler>emptyMap() : handlers;
+		}
+		
+		/**
+		 * Returns all RouteHandlers for the specified domain and method
+		 * @param domain the domain (lowercase)
+		 * @param method the method
+		 * @return the handlers, keyed by route
+		 * @since 1.1
+		 */
+		public Map<String,RouteHandler> getRouteHandlers(String domain, int method) {
+			Map<String,RouteHandler> handlers = null;
+			
+			if(method > -1 && method < METHODS) {
+				handlers = _ROUTE_HANDLERS_.get(method).get(domain);
+			}
+			
+			return handlers == null ? Collections.<String,RouteHandler>emptyMap() : handlers;
+		}
+		
+		/**
+		 * Matches the specified path against the routes registered for the domain and method
+		 * @param domain the domain (lowercase)
+		 * @param method the method
+		 * @param path the path
+		 * @return the match, or null if no route matches
+		 * @since 1.1
+		 */
+		public RouteTrie.Match<RouteHandler> matchRoute(String domain, int method, String path) {
+			RouteTrie.Match<RouteHandler> match = null;
+			
+			if(method > -1 && method < METHODS) {
+				RouteTrie<RouteHandler> routes = _ROUTE_TRIES_.get(method).get(domain);
+				if(routes != null) {
+					match = routes.match(path);
+				}
+			}
+			
+			return match;
+		}
+		
+		/**
+		 * Returns whether a handler is registered in this snapshot, for any domain, path, or method
+		 * @param handler the handler
+		 * @return whether the handler is registered
+		 * @since 1.1
+		 */
+		public boolean contains(Object handler) {
+			boolean r = false;
+			for(PreRequestHandler preRequest : _PRE_REQUEST_HANDLERS_) {
+				r = r || preRequest.equals(handler);
+			}
+			for(int i = 0; !r && i < METHODS; i++) {
+				for(Map<String,RequestHandler> handlers : _REQUEST_HANDLERS_.get(i).values()) {
+					r = r || handlers.containsValue(handler);
+				}
+				for(Map<String,RouteHandler> handlers : _ROUTE_HANDLERS_.get(i).values()) {
+					r = r || handlers.containsValue(handler);
+				}
+			}
+			return r;
+		}
+		
+		/**
+		 * Returns the PreRequestHandlers in this snapshot.
+		 * The array is shared, and must not be modified.
+		 * @return the PreRequestHandlers
+		 * @since 1.1
+		 */
+		public PreRequestHandler[] getPreRequestHandlers() {
+			return _PRE_REQUEST_HANDLERS_;
+		}
+	}
+	
+	// A single change in a batch
+	private static interface Change {
+		public void apply(Builder builder);
+	}
+	
+	// Builds a new snapshot from an existing one, only copying the parts that change
+	private static class Builder {
+		private Snapshot _BASE_ = null;
+		private ArrayList<HashMap<String,Map<String,RequestHandler>>> _REQUEST_HANDLERS_ = new ArrayList<HashMap<String,Map<String,RequestHandler>>>();
+		private ArrayList<HashMap<String,Map<String,RouteHandler>>> _ROUTE_HANDLERS_ = new ArrayList<HashMap<String,Map<String,RouteHandler>>>();
+		private ArrayList<HashSet<String>> _COPIED_REQUEST_DOMAINS_ = new ArrayList<HashSet<String>>();
+		private ArrayList<HashSet<String>> _COPIED_ROUTE_DOMAINS_ = new ArrayList<HashSet<String>>();
+		private ArrayList<PreRequestHandler> _PRE_REQUEST_HANDLERS_ = null;
+		// Handlers that were removed or replaced by the changes
+		private ArrayList<Object> _REMOVED_ = new ArrayList<Object>();
+		
+		private Builder(Snapshot base) {
+			_BASE_ = base;
+			for(int i = 0; i < METHODS; i++) {
+				_REQUEST_HANDLERS_.add(null);
+				_ROUTE_HANDLERS_.add(null);
+				_COPIED_REQUEST_DOMAINS_.add(new HashSet<String>());
+				_COPIED_ROUTE_DOMAINS_.add(new HashSet<String>());
+			}
+		}
+		
+		// Returns a writable copy of the request handlers for the domain and method
+		private Map<String,RequestHandler> requestHandlers(int method, String domain) {
+			if(_REQUEST_HANDLERS_.get(method) == null) {
+				_REQUEST_HANDLERS_.set(method, new HashMap<String,Map<String,RequestHandler>>(_BASE_._REQUEST_HANDLERS_.get(method)));
+			}
+			HashMap<String,Map<String,RequestHandler>> domains = _REQUEST_HANDLERS_.get(method);
+			if(_COPIED_REQUEST_DOMAINS_.get(method).add(domain)) {
+				Map<String,RequestHandler> existing = domains.get(domain);
+				domains.put(domain, existing == null ? new HashMap<String,RequestHandler>() : new HashMap<String,RequestHandler>(existing));
+			}
+			return domains.get(domain);
+		}
+		
+		// Returns a writable copy of the route handlers for the domain and method
+		private Map<String,RouteHandler> routeHandlers(int method, String domain) {
+			if(_ROUTE_HANDLERS_.get(method) == null) {
+				_ROUTE_HANDLERS_.set(method, new HashMap<String,Map<String,RouteHandler>>(_BASE_._ROUTE_HANDLERS_.get(method)));
+			}
+			HashMap<String,Map<String,RouteHandler>> domains = _ROUTE_HANDLERS_.get(method);
+			if(_COPIED_ROUTE_DOMAINS_.get(method).add(domain)) {
+				Map<String,RouteHandler> existing = domains.get(domain);
+				domains.put(domain, existing == null ? new HashMap<String,RouteHandler>() : new HashMap<String,RouteHandler>(existing));
+			}
+			return domains.get(domain);
+		}
+		
+		// Removes the handlers matching the filter, only copying the domains that have any
+		private void removeHandlers(Predicate<Object> filter) {
+			for(int i = 0; i < METHODS; i++) {
+				Map<String,Map<String,RequestHandler>> requests = _REQUEST_HANDLERS_.get(i) == null ? _BASE_._REQUEST_HANDLERS_.get(i) : _REQUEST_HANDLERS_.get(i);
+				for(String domain : new ArrayList<String>(requests.keySet())) {
+					if(matches(requests.get(domain).values(), filter)) {
+						remove(requestHandlers(i, domain).values(), filter);
+					}
+				}
+				
+				Map<String,Map<String,RouteHandler>> routes = _ROUTE_HANDLERS_.get(i) == null ? _BASE_._ROUTE_HANDLERS_.get(i) : _ROUTE_HANDLERS_.get(i);
+				for(String domain : new ArrayList<String>(routes.keySet())) {
+					if(matches(routes.get(domain).values(), filter)) {
+						remove(routeHandlers(i, domain).values(), filter);
+					}
+				}
+			}
+			
+			ArrayList<PreRequestHandler> preRequest = new ArrayList<PreRequestHandler>();
+			Collections.addAll(preRequest, _BASE_._PRE_REQUEST_HANDLERS_);
+			if(matches(_PRE_REQUEST_HANDLERS_ == null ? preRequest : _PRE_REQUEST_HANDLERS_, filter)) {
+				remove(preRequestHandlers(), filter);
+			}
+		}
+		
+		// Remembers a handler that was removed or replaced, ignoring null
+		private void removed(Object handler) {
+			if(handler != null) {
+				_REMOVED_.add(handler);
+			}
+		}
+		
+		// Removes the handlers matching the filter from a collection, remembering them
+		private void remove(Collection<?> handlers, Predicate<Object> filter) {
+			handlers.removeIf(handler -> {
+				boolean r = filter.test(handler);
+				if(r) {
+					removed(handler);
+				}
+				return r;
+			});
+		}
+		
+		// Returns whether any of the handlers match the filter
+		private boolean matches(Collection<?> handlers, Predicate<Object> filter) {
+			boolean r = false;
+			for(Object handler : handlers) {
+				if(filter.test(handler)) {
+					r = true;
+					break;
+				}
+			}
+			return r;
+		}
+		
+		// Returns a writable copy of the PreRequestHandlers
+		private ArrayList<PreRequestHandler> preRequestHandlers() {
+			if(_PRE_REQUEST_HANDLERS_ == null) {
+				_PRE_REQUEST_HANDLERS_ = new ArrayList<PreRequestHandler>();
+				Collections.addAll(_PRE_REQUEST_HANDLERS_, _BASE_._PRE_REQUEST_HANDLERS_);
+			}
+			return _PRE_REQUEST_HANDLERS_;
+		}
+		
+		private Snapshot build(long version) {
+			Snapshot snap = new Snapshot();
+			snap._VERSION_ = version;
+			
+			for(int i = 0; i < METHODS; i++) {
+				// Request handlers
+				HashMap<String,Map<String,RequestHandler>> requests = _REQUEST_HANDLERS_.get(i);
+				if(requests == null) {
+					snap._REQUEST_HANDLERS_.set(i, _BASE_._REQUEST_HANDLERS_.get(i));
+				} else {
+					for(String domain : _COPIED_REQUEST_DOMAINS_.get(i)) {
+						if(requests.get(domain).isEmpty()) {
+							requests.remove(domain);
+						} else {
+							requests.put(domain, Collections.unmodifiableMap(requests.get(domain)));
+						}
+					}
+					snap._REQUEST_HANDLERS_.set(i, Collections.unmodifiableMap(requests));
+				}
+				
+				// Route handlers, compiling tries only for the domains that changed
+				HashMap<String,Map<String,RouteHandler>> routes = _ROUTE_HANDLERS_.get(i);
+				if(routes == null) {
+					snap._ROUTE_HANDLERS_.set(i, _BASE_._ROUTE_HANDLERS_.get(i));
+					snap._ROUTE_TRIES_.set(i, _BASE_._ROUTE_TRIES_.get(i));
+				} else {
+					HashMap<String,RouteTrie<RouteHandler>> tries = new HashMap<String,RouteTrie<RouteHandler>>(_BASE_._ROUTE_TRIES_.get(i));
+					for(String domain : _COPIED_ROUTE_DOMAINS_.get(i)) {
+						Map<String,RouteHandler> domainRoutes = routes.get(domain);
+						if(domainRoutes.isEmpty()) {
+							routes.remove(domain);
+							tries.remove(domain);
+						} else {
+							RouteTrie<RouteHandler> trie = new RouteTrie<RouteHandler>();
+							for(Map.Entry<String,RouteHandler> entry : domainRoutes.entrySet()) {
+								trie.put(entry.getKey(), entry.getValue());
+							}
+							routes.put(domain, Collections.unmodifiableMap(domainRoutes));
+							tries.put(domain, trie);
+						}
+					}
+					snap._ROUTE_HANDLERS_.set(i, Collections.unmodifiableMap(routes));
+					snap._ROUTE_TRIES_.set(i, Collections.unmodifiableMap(tries));
+				}
+			}
+			
+			// Pre-request handlers
+			if(_PRE_REQUEST_HANDLERS_ == null) {
+				snap._PRE_REQUEST_HANDLERS_ = _BASE_._PRE_REQUEST_HANDLERS_;
+			} else {
+				snap._PRE_REQUEST_HANDLERS_ = _PRE_REQUEST_HANDLERS_.toArray(new PreRequestHandler[0]);
+			}
+			
+			return snap;
+		}
+	}
+}
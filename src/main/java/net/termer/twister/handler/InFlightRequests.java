@@ -0,0 +1,123 @@
+package net.termer.twister.handler;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests that are being handled, so code that replaces handlers
+ * can wait for the requests that may still be using the old ones.
+ * Requests are counted in generations. Draining starts a new generation for new requests,
+ * and waits until no request of the previous generations is left.
+ * @author termer
+ * @since 1.1
+ */
+public class InFlightRequests {
+	private volatile Generation _CURRENT_ = new Generation();
+	
+	/**
+	 * Counts a request that starts being handled. Generation.exit() must be called when it is done.
+	 * @return the generation the request was counted in
+	 * @since 1.1
+	 */
+	public Generation enter() {
+		while(true) {
+			Generation generation = _CURRENT_;
+			generation._COUNT_.increment();
+			
+			// If a drain started in the meantime, count the request in the new generation instead
+			if(generation == _CURRENT_) {
+				return generation;
+			}
+			generation._COUNT_.decrement();
+		}
+	}
+	
+	/**
+	 * Returns the amount of requests being handled
+	 * @return the amount of requests
+	 * @since 1.1
+	 */
+	public long count() {
+		return _CURRENT_.pending();
+	}
+	
+	/**
+	 * Waits until all requests that started before this call are done.
+	 * Requests that start after this call are not waited for.
+	 * @param timeout the most time to wait, in milliseconds
+	 * @return whether all requests were done before the timeout
+	 * @since 1.1
+	 */
+	public boolean drain(long timeout) {
+		Generation old = null;
+		synchronized(this) {
+			old = _CURRENT_;
+			_CURRENT_ = new Generation(old);
+		}
+		
+		long deadline = System.currentTimeMillis()+timeout;
+		boolean r = true;
+		while(old.pending() > 0) {
+			if(System.currentTimeMillis() > deadline) {
+				r = false;
+				break;
+			}
+			try {
+				Thread.sleep(10);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				r = false;
+				break;
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * The requests counted between two drains
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Generation {
+		private LongAdder _COUNT_ = new LongAdder();
+		
+		// The generation before this one, which drains that timed out still wait on
+		private Generation _PREVIOUS_ = null;
+		
+		private Generation() {}
+		
+		private Generation(Generation previous) {
+			// Only keep generations that still have requests, so they do not pile up
+			_PREVIOUS_ = previous.pending() > 0 ? previous : null;
+		}
+		
+		/**
+		 * Counts work that continues a request of this generation after the request is done, such as a detached response.
+		 * Must be called before the request's exit(), and matched by another call to exit().
+		 * @since 1.1
+		 */
+		public void retain() {
+			_COUNT_.increment();
+		}
+		
+		/**
+		 * Marks a request counted in this generation as done
+		 * @since 1.1
+		 */
+		public void exit() {
+			_COUNT_.decrement();
+		}
+		
+		// Returns the amount of requests in this generation and the ones before it
+		private long pending() {
+			long r = _COUNT_.sum();
+			if(_PREVIOUS_ != null) {
+				long previous = _PREVIOUS_.pending();
+				if(previous == 0) {
+					_PREVIOUS_ = null;
+				}
+				r += previous;
+			}
+			return r;
+		}
+	}
+}
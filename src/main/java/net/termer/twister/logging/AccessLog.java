@@ -0,0 +1,42 @@
+package net.termer.twister.logging;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+
+import net.termer.twister.Settings;
+
+/**
+ * Jetty request log that writes requests to an AsyncLog.
+ * Jetty calls it once a response is complete, so the logged status, amount of bytes,
+ * and latency are the ones the client actually received.
+ * @author termer
+ * @since 1.1
+ */
+public class AccessLog implements RequestLog {
+	private AsyncLog _LOG_ = null;
+	
+	/**
+	 * Creates a new request log that writes to the provided log
+	 * @param log the log to write requests to
+	 * @since 1.1
+	 */
+	public AccessLog(AsyncLog log) {
+		_LOG_ = log;
+	}
+	
+	public void log(Request req, Response res) {
+		// Only log if logging is enabled
+		if(Settings.get("logging").toLowerCase().startsWith("t")) {
+			_LOG_.access(
+				req.getMethod(),
+				req.getRequestURI(),
+				req.getRemoteAddr(),
+				req.getHeader("User-Agent"),
+				res.getCommittedMetaData() == null ? res.getStatus() : res.getCommittedMetaData().getStatus(),
+				res.getHttpChannel().getBytesWritten(),
+				System.currentTimeMillis()-req.getTimeStamp()
+			);
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package net.termer.twister.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log backed by a lock-free ring buffer.
+ * Logging threads claim a preallocated event in the ring and fill it in, without taking any locks
+ * or formatting anything. A single consumer thread formats the events and writes them in batches
+ * to the console and to a rotating log file.
+ * When the ring is full, events are either dropped or the logging thread waits for space,
+ * depending on the configured policy.
+ * @author termer
+ * @since 1.1
+ */
+public class AsyncLog {
+	// The ring of events, and the sequence last published in each slot
+	private LogEvent[] _RING_ = null;
+	private AtomicLongArray _PUBLISHED_ = null;
+	private int _MASK_ = 0;
+	
+	// The next sequence to be claimed by a logging thread, and the next to be read by the consumer
+	private AtomicLong _CLAIMED_ = new AtomicLong();
+	private volatile long _CONSUMED_ = 0;
+	
+	private AtomicLong _DROPPED_ = new AtomicLong();
+	private volatile boolean _BLOCK_ = false;
+	private volatile boolean _CONSUMER_WAITING_ = false;
+	private volatile Output _PENDING_OUTPUT_ = null;
+	
+	private Thread _CONSUMER_ = null;
+	
+	/**
+	 * Creates a new log and starts its consumer thread.
+	 * Until configure() is called, messages are only written to the console.
+	 * @param capacity the amount of events the ring can hold, rounded up to a power of two
+	 * @since 1.1
+	 */
+	public AsyncLog(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity)-1)<<1;
+		_RING_ = new LogEvent[size];
+		_PUBLISHED_ = new AtomicLongArray(size);
+		_MASK_ = size-1;
+		for(int i = 0; i < size; i++) {
+			_RING_[i] = new LogEvent();
+			_PUBLISHED_.set(i, -1);
+		}
+		_PENDING_OUTPUT_ = new Output(null, 0, 0, true);
+		
+		_CONSUMER_ = new Thread(new Consumer(), "Log Thread");
+		_CONSUMER_.setDaemon(true);
+		_CONSUMER_.start();
+		
+		// Write out what is left when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			drain(1000);
+		}));
+	}
+	
+	/**
+	 * Changes where the log is written to, and what happens when the ring is full
+	 * @param file the log file, or null to not write to a file
+	 * @param maxFileSize the size in bytes at which the log file is rotated, 0 to never rotate
+	 * @param maxFiles the amount of rotated log files to keep
+	 * @param console whether messages should be written to the console too
+	 * @param block whether logging threads should wait for space when the ring is full, instead of dropping events
+	 * @since 1.1
+	 */
+	public void configure(File file, long maxFileSize, int maxFiles, boolean console, boolean block) {
+		_BLOCK_ = block;
+		_PENDING_OUTPUT_ = new Output(file, maxFileSize, maxFiles, console);
+		LockSupport.unpark(_CONSUMER_);
+	}
+	
+	/**
+	 * Logs an HTTP request
+	 * @param method the request method
+	 * @param path the requested path
+	 * @param ip the client's IP address
+	 * @param userAgent the client's user agent
+	 * @param status the response status
+	 * @param bytes the amount of bytes sent in the response body
+	 * @param latency the amount of milliseconds it took to handle the request
+	 * @since 1.1
+	 */
+	public void access(String method, String path, String ip, String userAgent, int status, long bytes, long latency) {
+		long seq = claim();
+		if(seq > -1) {
+			LogEvent event = _RING_[(int) seq & _MASK_];
+			event.type = LogEvent.ACCESS;
+			event.time = System.currentTimeMillis();
+			event.method = method;
+			event.path = path;
+			event.ip = ip;
+			event.userAgent = userAgent;
+			event.status = status;
+			event.bytes = bytes;
+			event.latency = latency;
+			publish(seq);
+		}
+	}
+	
+	/**
+	 * Logs an info message
+	 * @param msg the message
+	 * @since 1.1
+	 */
+	public void info(String msg) {
+		message(LogEvent.INFO, msg);
+	}
+	
+	/**
+	 * Logs a warning message
+	 * @param msg the message
+	 * @since 1.1
+	 */
+	public void warning(String msg) {
+		message(LogEvent.WARNING, msg);
+	}
+	
+	/**
+	 * Logs an error message
+	 * @param msg the message
+	 * @since 1.1
+	 */
+	public void error(String msg) {
+		message(LogEvent.ERROR, msg);
+	}
+	
+	/**
+	 * Waits until all events logged so far are written, or until the timeout passes
+	 * @param timeout the maximum amount of milliseconds to wait
+	 * @since 1.1
+	 */
+	public void drain(long timeout) {
+		long target = _CLAIMED_.get();
+		long end = System.currentTimeMillis()+timeout;
+		while(_CONSUMED_ < target && System.currentTimeMillis() < end) {
+			LockSupport.unpark(_CONSUMER_);
+			LockSupport.parkNanos(1000000);
+		}
+	}
+	
+	/**
+	 * Returns the amount of events dropped because the ring was full
+	 * @return the amount of dropped events
+	 * @since 1.1
+	 */
+	public long getDropped() {
+		return _DROPPED_.get();
+	}
+	
+	/**
+	 * Returns the amount of events that are waiting to be written
+	 * @return the amount of waiting events
+	 * @since 1.1
+	 */
+	public long getPending() {
+		return _CLAIMED_.get()-_CONSUMED_;
+	}
+	
+	private void message(int type, String msg) {
+		long seq = claim();
+		if(seq > -1) {
+			LogEvent event = _RING_[(int) seq & _MASK_];
+			event.type = type;
+			event.time = System.currentTimeMillis();
+			event.message = msg;
+			publish(seq);
+		}
+	}
+	
+	// Claims the next slot in the ring, returning -1 if the event was dropped
+	private long claim() {
+		while(true) {
+			long seq = _CLAIMED_.get();
+			if(seq-_CONSUMED_ > _MASK_) {
+				// The ring is full
+				if(!_BLOCK_) {
+					_DROPPED_.incrementAndGet();
+					return -1;
+				}
+				LockSupport.unpark(_CONSUMER_);
+				LockSupport.parkNanos(100000);
+			} else if(_CLAIMED_.compareAndSet(seq, seq+1)) {
+				return seq;
+			}
+		}
+	}
+	
+	// Makes a filled in slot visible to the consumer
+	private void publish(long seq) {
+		_PUBLISHED_.set((int) seq & _MASK_, seq);
+		if(_CONSUMER_WAITING_) {
+			LockSupport.unpark(_CONSUMER_);
+		}
+	}
+	
+	// Where the log is written to
+	private static class Output {
+		private File file = null;
+		private long maxFileSize = 0;
+		private int maxFiles = 0;
+		private boolean console = true;
+		
+		private Output(File file, long maxFileSize, int maxFiles, boolean console) {
+			this.file = file;
+			this.maxFileSize = maxFileSize;
+			this.maxFiles = maxFiles;
+			this.console = console;
+		}
+	}
+	
+	// Formats events and writes them out in batches
+	private class Consumer implements Runnable {
+		// Flush once this many characters are waiting
+		private static final int BATCH_SIZE = 16384;
+		
+		private RotatingLogFile file = null;
+		private boolean console = true;
+		
+		private StringBuilder batch = new StringBuilder(BATCH_SIZE*2);
+		private StringBuilder consoleOut = new StringBuilder();
+		private StringBuilder consoleErr = new StringBuilder();
+		private ByteBuffer bytes = ByteBuffer.allocateDirect(BATCH_SIZE*4);
+		private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		// Dates only change once a second, so they are only formatted once a second
+		private long dateSecond = -1;
+		private String date = null;
+		
+		public void run() {
+			long next = 0;
+			while(true) {
+				applyOutput();
+				
+				int read = 0;
+				while(_PUBLISHED_.get((int) next & _MASK_) == next) {
+					LogEvent event = _RING_[(int) next & _MASK_];
+					format(event);
+					event.clear();
+					
+					// Free the slot
+					next++;
+					_CONSUMED_ = next;
+					read++;
+					
+					if(batch.length() >= BATCH_SIZE) {
+						flush();
+					}
+				}
+				
+				if(read == 0) {
+					flush();
+					
+					// Wait for more events
+					_CONSUMER_WAITING_ = true;
+					if(_PUBLISHED_.get((int) next & _MASK_) != next && _PENDING_OUTPUT_ == null) {
+						LockSupport.parkNanos(100000000);
+					}
+					_CONSUMER_WAITING_ = false;
+				}
+			}
+		}
+		
+		private void applyOutput() {
+			Output output = _PENDING_OUTPUT_;
+			if(output != null) {
+				_PENDING_OUTPUT_ = null;
+				flush();
+				
+				console = output.console;
+				try {
+					if(file != null) {
+						file.close();
+						file = null;
+					}
+					if(output.file != null) {
+						file = new RotatingLogFile(output.file, output.maxFileSize, output.maxFiles);
+					}
+				} catch(IOException e) {
+					System.err.println("Failed to open log file "+output.file);
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		private void format(LogEvent event) {
+			long second = event.time/1000;
+			if(second != dateSecond) {
+				dateSecond = second;
+				date = new Date(event.time).toString();
+			}
+			
+			int start = batch.length();
+			if(event.type == LogEvent.ACCESS) {
+				batch.append(date).append(": ")
+					.append(event.method).append(' ')
+					.append(event.path).append(' ')
+					.append(event.status).append(' ')
+					.append(event.bytes).append("B ")
+					.append(event.latency).append("ms (")
+					.append(event.ip).append(' ')
+					.append(event.userAgent).append(")\n");
+			} else {
+				String prefix = event.type == LogEvent.ERROR ? " ERROR " : event.type == LogEvent.WARNING ? " WARNING " : " INFO ";
+				String msg = String.valueOf(event.message);
+				
+				// Prefix every line of the message
+				int lineStart = 0;
+				do {
+					int lineEnd = msg.indexOf('\n', lineStart);
+					if(lineEnd < 0) {
+						lineEnd = msg.length();
+					}
+					batch.append(date).append(prefix).append(msg, lineStart, lineEnd).append('\n');
+					lineStart = lineEnd+1;
+				} while(lineStart < msg.length());
+			}
+			
+			if(console) {
+				(event.type == LogEvent.ERROR ? consoleErr : consoleOut).append(batch, start, batch.length());
+			}
+		}
+		
+		private void flush() {
+			if(consoleOut.length() > 0) {
+				System.out.print(consoleOut);
+				System.out.flush();
+				consoleOut.setLength(0);
+			}
+			if(consoleErr.length() > 0) {
+				System.err.print(consoleErr);
+				System.err.flush();
+				consoleErr.setLength(0);
+			}
+			
+			if(file != null && batch.length() > 0) {
+				try {
+					// Encode through the reusable buffer
+					CharBuffer in = CharBuffer.wrap(batch);
+					encoder.reset();
+					CoderResult result = null;
+					do {
+						result = encoder.encode(in, bytes, true);
+						writeBytes();
+					} while(result.isOverflow());
+					do {
+						result = encoder.flush(bytes);
+						writeBytes();
+					} while(result.isOverflow());
+				} catch(IOException e) {
+					System.err.println("Failed to write to log file "+file.getFile());
+					e.printStackTrace();
+				}
+			}
+			batch.setLength(0);
+		}
+		
+		private void writeBytes() throws IOException {
+			bytes.flip();
+			file.write(bytes);
+			bytes.clear();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package net.termer.twister.logging;
+
+/**
+ * A slot in the log's ring buffer.
+ * Events are allocated once when the log is created, and filled in by the threads that log.
+ * @author termer
+ * @since 1.1
+ */
+class LogEvent {
+	// Event types
+	static final int ACCESS = 0;
+	static final int INFO = 1;
+	static final int WARNING = 2;
+	static final int ERROR = 3;
+	
+	int type = INFO;
+	long time = 0;
+	
+	// Messages
+	String message = null;
+	
+	// Access events
+	String method = null;
+	String path = null;
+	String ip = null;
+	String userAgent = null;
+	int status = 0;
+	long bytes = 0;
+	long latency = 0;
+	
+	// Drops references so the objects can be collected while the slot waits to be reused
+	void clear() {
+		message = null;
+		method = null;
+		path = null;
+		ip = null;
+		userAgent = null;
+	}
+}
@@ -0,0 +1,102 @@
+package net.termer.twister.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Log file that is written through a FileChannel and rotated once it grows too large.
+ * When rotated, twister.log becomes twister.log.1, twister.log.1 becomes twister.log.2,
+ * and so on, up to the configured amount of old files.
+ * Only used by the log's consumer thread, so it is not thread safe.
+ * @author termer
+ * @since 1.1
+ */
+public class RotatingLogFile {
+	private File _FILE_ = null;
+	private long _MAX_SIZE_ = 0;
+	private int _MAX_FILES_ = 0;
+	
+	private FileChannel _CHANNEL_ = null;
+	private long _SIZE_ = 0;
+	
+	/**
+	 * Opens the specified log file for appending
+	 * @param file the log file
+	 * @param maxSize the size in bytes at which the file is rotated, 0 to never rotate
+	 * @param maxFiles the amount of rotated files to keep
+	 * @throws IOException if opening the file fails
+	 * @since 1.1
+	 */
+	public RotatingLogFile(File file, long maxSize, int maxFiles) throws IOException {
+		_FILE_ = file;
+		_MAX_SIZE_ = maxSize;
+		_MAX_FILES_ = maxFiles;
+		open();
+	}
+	
+	/**
+	 * Returns the log file
+	 * @return the log file
+	 * @since 1.1
+	 */
+	public File getFile() {
+		return _FILE_;
+	}
+	
+	/**
+	 * Writes the content of the buffer to the file, rotating it first if it is full
+	 * @param buf the buffer to write
+	 * @throws IOException if writing or rotating fails
+	 * @since 1.1
+	 */
+	public void write(ByteBuffer buf) throws IOException {
+		if(_MAX_SIZE_ > 0 && _SIZE_ > 0 && _SIZE_+buf.remaining() > _MAX_SIZE_) {
+			rotate();
+		}
+		while(buf.hasRemaining()) {
+			_SIZE_ += _CHANNEL_.write(buf);
+		}
+	}
+	
+	/**
+	 * Closes the file
+	 * @throws IOException if closing the file fails
+	 * @since 1.1
+	 */
+	public void close() throws IOException {
+		_CHANNEL_.close();
+	}
+	
+	private void open() throws IOException {
+		File parent = _FILE_.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		_CHANNEL_ = FileChannel.open(_FILE_.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		_SIZE_ = _CHANNEL_.size();
+	}
+	
+	private void rotate() throws IOException {
+		_CHANNEL_.close();
+		
+		// Shift old files up by one, dropping the oldest
+		String name = _FILE_.getPath();
+		new File(name+'.'+_MAX_FILES_).delete();
+		for(int i = _MAX_FILES_-1; i > 0; i--) {
+			File old = new File(name+'.'+i);
+			if(old.exists()) {
+				old.renameTo(new File(name+'.'+(i+1)));
+			}
+		}
+		if(_MAX_FILES_ > 0) {
+			_FILE_.renameTo(new File(name+".1"));
+		} else {
+			_FILE_.delete();
+		}
+		
+		open();
+	}
+}
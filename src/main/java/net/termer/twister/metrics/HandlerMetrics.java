@@ -0,0 +1,234 @@
+package net.termer.twister.metrics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import net.termer.twister.Settings;
+import net.termer.twister.Twister;
+import net.termer.twister.document.DocumentProcessors;
+import net.termer.twister.handler.AsyncAdapter;
+import net.termer.twister.module.ModuleManager;
+import net.termer.twister.module.TwisterModule;
+import net.termer.twister.scripting.ScriptProcessor;
+import spark.HaltException;
+
+/**
+ * Records how long each registered handler, DocumentProcessor, and VariableProvider takes,
+ * and how often it throws, attributed to the module that registered it.
+ * Handlers are tagged with their module when they are registered, and timed like this:
+ * <pre>
+ * long start = HandlerMetrics.start();
+ * handler.handle(options);
+ * HandlerMetrics.record(handler, domain, start);
+ * </pre>
+ * Calls of handlers that are not registered, or were forgotten when their module was unloaded, are not recorded.
+ * Calls that take longer than the slow-handler-threshold set in twister.ini are logged, even if metrics are disabled.
+ * @author termer
+ * @since 1.1
+ */
+public class HandlerMetrics {
+	/**
+	 * The kind of PreRequestHandlers
+	 * @since 1.1
+	 */
+	public static final String PRE_REQUEST_HANDLER = "pre_request_handler";
+	
+	/**
+	 * The kind of RequestHandlers
+	 * @since 1.1
+	 */
+	public static final String REQUEST_HANDLER = "request_handler";
+	
+	/**
+	 * The kind of RouteHandlers
+	 * @since 1.1
+	 */
+	public static final String ROUTE_HANDLER = "route_handler";
+	
+	/**
+	 * The kind of DocumentProcessors
+	 * @since 1.1
+	 */
+	public static final String DOCUMENT_PROCESSOR = "document_processor";
+	
+	/**
+	 * The kind of VariableProviders
+	 * @since 1.1
+	 */
+	public static final String VARIABLE_PROVIDER = "variable_provider";
+	
+	/**
+	 * The module recorded for handlers that were not registered by a module
+	 * @since 1.1
+	 */
+	public static final String NO_MODULE = "none";
+	
+	// Stats keyed by the handler objects themselves, and the names given to them
+	private static ConcurrentHashMap<Object,HandlerStats> _HANDLERS_ = new ConcurrentHashMap<Object,HandlerStats>();
+	private static HashSet<String> _NAMES_ = new HashSet<String>();
+	
+	private static volatile long _SLOW_THRESHOLD_ = 0;
+	
+	/**
+	 * Applies the slow-handler-threshold setting from twister.ini
+	 * @since 1.1
+	 */
+	public static void configure() {
+		_SLOW_THRESHOLD_ = Math.max(0, Long.parseLong(Settings.get("slow-handler-threshold").trim()))*1000000L;
+		
+		if(!Metrics.isEnabled()) {
+			for(HandlerStats stats : _HANDLERS_.values()) {
+				stats.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the time above which handler calls are logged
+	 * @return the threshold in nanoseconds, or 0 if slow calls are not logged
+	 * @since 1.1
+	 */
+	public static long getSlowThreshold() {
+		return _SLOW_THRESHOLD_;
+	}
+	
+	/**
+	 * Tags a handler with the module that owns it.
+	 * The module is the one that registered the handler, or the one whose jar the handler's class comes from.
+	 * Registering a handler again keeps the module it was first registered by.
+	 * @param handler the handler
+	 * @param kind the kind of handler
+	 * @return the stats of the handler
+	 * @since 1.1
+	 */
+	public static HandlerStats register(Object handler, String kind) {
+		HandlerStats stats = _HANDLERS_.get(handler);
+		if(stats == null) {
+			TwisterModule module = ModuleManager.getOwner(handler);
+			String moduleName = module == null ? NO_MODULE : module.moduleName();
+			
+			synchronized(_NAMES_) {
+				stats = _HANDLERS_.get(handler);
+				if(stats == null) {
+					// Adapters are named after the handler they adapt
+					Object named = handler instanceof AsyncAdapter ? ((AsyncAdapter) handler).getHandler() : handler;
+					stats = new HandlerStats(kind, name(named.getClass(), kind), moduleName);
+					_HANDLERS_.put(handler, stats);
+				}
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Removes the stats of handlers, so their names can be used again.
+	 * Used when modules are unloaded, so the handlers of a module's new version get the same names as the old ones.
+	 * @param filter returns true for the handlers to forget
+	 * @since 1.1
+	 */
+	public static void forget(Predicate<Object> filter) {
+		synchronized(_NAMES_) {
+			for(Object handler : new ArrayList<Object>(_HANDLERS_.keySet())) {
+				if(filter.test(handler)) {
+					HandlerStats stats = _HANDLERS_.remove(handler);
+					_NAMES_.remove(stats.getKind()+' '+stats.getName());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Removes the stats of handlers that were unregistered, unless they are still registered in another way,
+	 * so handlers that are added and removed at runtime do not keep their stats and names forever
+	 * @param removed returns true for the handlers that were unregistered
+	 * @since 1.1
+	 */
+	public static void forgetRemoved(Predicate<Object> removed) {
+		forget(handler -> removed.test(handler) && !isRegistered(handler));
+	}
+	
+	// Returns whether a handler is still registered as a handler, DocumentProcessor, or VariableProvider
+	private static boolean isRegistered(Object handler) {
+		Twister twister = Twister.current();
+		return (twister != null && twister.getHandlerRegistry().snapshot().contains(handler)) ||
+				DocumentProcessors.snapshot().contains(handler) ||
+				ScriptProcessor.hasVariableProvider(handler);
+	}
+	
+	/**
+	 * Returns the stats of a handler
+	 * @param handler the handler
+	 * @return the stats, or null if the handler is not registered
+	 * @since 1.1
+	 */
+	public static HandlerStats getStats(Object handler) {
+		return _HANDLERS_.get(handler);
+	}
+	
+	/**
+	 * Returns the time a handler call starts at, to be passed to record() when it ends
+	 * @return the current System.nanoTime(), or 0 if neither metrics nor the slow handler log are enabled
+	 * @since 1.1
+	 */
+	public static long start() {
+		return Metrics.isEnabled() || _SLOW_THRESHOLD_ > 0 ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Records the time since a handler call started
+	 * @param handler the handler
+	 * @param domain the domain the call was for
+	 * @param start the time the call started, as returned by start()
+	 * @since 1.1
+	 */
+	public static void record(Object handler, String domain, long start) {
+		if(start != 0) {
+			HandlerStats stats = _HANDLERS_.get(handler);
+			if(stats != null) {
+				stats.record(System.nanoTime()-start, domain);
+			}
+		}
+	}
+	
+	/**
+	 * Records an exception thrown by a handler.
+	 * HaltExceptions are not counted, since halt() is how handlers stop requests on purpose.
+	 * @param handler the handler
+	 * @param error the exception the handler threw
+	 * @since 1.1
+	 */
+	public static void failed(Object handler, Throwable error) {
+		HandlerStats stats = _HANDLERS_.get(handler);
+		if(stats != null && !(error instanceof HaltException)) {
+			stats.failed();
+		}
+	}
+	
+	/**
+	 * Returns the stats of all handlers that were registered
+	 * @return the stats of all handlers
+	 * @since 1.1
+	 */
+	public static HandlerStats[] getHandlers() {
+		return new ArrayList<HandlerStats>(_HANDLERS_.values()).toArray(new HandlerStats[0]);
+	}
+	
+	// Returns a readable name for a handler class that no other handler of the same kind has
+	private static String name(Class<?> cls, String kind) {
+		String name = cls.getName();
+		
+		// Lambda class names end in a number that changes between runs
+		int lambda = name.indexOf("$$Lambda");
+		if(lambda > -1) {
+			name = name.substring(0, lambda)+"$$Lambda";
+		}
+		
+		String r = name;
+		for(int i = 2; !_NAMES_.add(kind+' '+r); i++) {
+			r = name+'#'+i;
+		}
+		return r;
+	}
+}
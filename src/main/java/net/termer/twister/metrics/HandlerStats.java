@@ -0,0 +1,116 @@
+package net.termer.twister.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.termer.twister.Twister;
+
+/**
+ * Timing and exceptions of a single registered handler, DocumentProcessor, or VariableProvider,
+ * along with the module that registered it
+ * @author termer
+ * @since 1.1
+ */
+public class HandlerStats {
+	private String _KIND_ = null;
+	private String _NAME_ = null;
+	private String _MODULE_ = null;
+	private volatile LatencyRecorder _RECORDER_ = new LatencyRecorder();
+	private LongAdder _EXCEPTIONS_ = new LongAdder();
+	
+	// Slow calls not yet logged, and when a slow call was last logged
+	private AtomicLong _SLOW_ = new AtomicLong();
+	private AtomicLong _LAST_LOGGED_ = new AtomicLong();
+	
+	HandlerStats(String kind, String name, String module) {
+		_KIND_ = kind;
+		_NAME_ = name;
+		_MODULE_ = module;
+	}
+	
+	/**
+	 * Returns what kind of handler this is
+	 * @return the kind, one of the kinds in HandlerMetrics
+	 * @since 1.1
+	 */
+	public String getKind() {
+		return _KIND_;
+	}
+	
+	/**
+	 * Returns the name of the handler, which is its class name, followed by a number if the class was registered more than once
+	 * @return the name of the handler
+	 * @since 1.1
+	 */
+	public String getName() {
+		return _NAME_;
+	}
+	
+	/**
+	 * Returns the name of the module that registered the handler
+	 * @return the name of the module, or HandlerMetrics.NO_MODULE if it was not registered by a module
+	 * @since 1.1
+	 */
+	public String getModule() {
+		return _MODULE_;
+	}
+	
+	/**
+	 * Returns the recorded latencies of the handler's calls that did not throw
+	 * @return the recorder
+	 * @since 1.1
+	 */
+	public LatencyRecorder getRecorder() {
+		return _RECORDER_;
+	}
+	
+	/**
+	 * Returns the amount of times the handler threw an exception
+	 * @return the amount of exceptions
+	 * @since 1.1
+	 */
+	public long getExceptions() {
+		return _EXCEPTIONS_.sum();
+	}
+	
+	/**
+	 * Records a call of the handler, and logs it if it was slow
+	 * @param nanos how long the call took, in nanoseconds
+	 * @param domain the domain the call was for
+	 * @since 1.1
+	 */
+	public void record(long nanos, String domain) {
+		if(Metrics.isEnabled()) {
+			_RECORDER_.record(nanos);
+		}
+		
+		long threshold = HandlerMetrics.getSlowThreshold();
+		if(threshold > 0 && nanos > threshold) {
+			_SLOW_.incrementAndGet();
+			
+			// Log at most once a second per handler, so a slow handler cannot flood the log
+			long now = System.nanoTime();
+			long last = _LAST_LOGGED_.get();
+			if((last == 0 || now-last > 1000000000L) && _LAST_LOGGED_.compareAndSet(last, now) && Twister.current() != null) {
+				long slow = _SLOW_.getAndSet(0);
+				Twister.current().logWarning(_KIND_+" \""+_NAME_+"\" from module \""+_MODULE_+"\" took "+(nanos/1000000)+"ms on "+domain+
+						(slow > 1 ? " ("+(slow-1)+" other slow calls since the last warning)" : ""));
+			}
+		}
+	}
+	
+	/**
+	 * Records an exception thrown by the handler
+	 * @since 1.1
+	 */
+	public void failed() {
+		_EXCEPTIONS_.increment();
+	}
+	
+	// Removes all recorded values
+	void clear() {
+		_RECORDER_ = new LatencyRecorder();
+		_EXCEPTIONS_.reset();
+		_SLOW_.set(0);
+	}
+}
@@ -0,0 +1,159 @@
+package net.termer.twister.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ * Values are counted in buckets that are exact below 16 nanoseconds, and split every power of two
+ * into 16 sub-buckets above that, so percentiles are accurate to within about 6% over the whole range.
+ * Recording a value is lock-free and does not allocate, so it can be done on every request.
+ * @author termer
+ * @since 1.1
+ */
+public class LatencyRecorder {
+	// Amount of bits of precision, and the sub-buckets they give each power of two
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	
+	/**
+	 * The highest value that can be recorded, about 68 seconds. Higher values are recorded as this.
+	 * @since 1.1
+	 */
+	public static final long MAX_VALUE = (1L << 36)-1;
+	
+	private static final int BUCKETS = index(MAX_VALUE)+1;
+	
+	private AtomicLongArray _COUNTS_ = new AtomicLongArray(BUCKETS);
+	private LongAdder _SUM_ = new LongAdder();
+	private AtomicLong _MAX_ = new AtomicLong();
+	
+	/**
+	 * Records a latency
+	 * @param nanos the latency in nanoseconds
+	 * @since 1.1
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		} else if(nanos > MAX_VALUE) {
+			nanos = MAX_VALUE;
+		}
+		
+		_COUNTS_.incrementAndGet(index(nanos));
+		_SUM_.add(nanos);
+		long max = _MAX_.get();
+		while(nanos > max && !_MAX_.compareAndSet(max, nanos)) {
+			max = _MAX_.get();
+		}
+	}
+	
+	/**
+	 * Returns a copy of the recorded values, which percentiles can be read from
+	 * @return a snapshot of the recorder
+	 * @since 1.1
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = _COUNTS_.get(i);
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, _SUM_.sum(), _MAX_.get());
+	}
+	
+	// Returns the bucket a value is counted in
+	private static int index(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exp = 63-Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp-SUB_BITS)) & (SUB_BUCKETS-1);
+		return SUB_BUCKETS+(exp-SUB_BITS)*SUB_BUCKETS+sub;
+	}
+	
+	// Returns the highest value counted in a bucket
+	private static long highestValue(int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index-SUB_BUCKETS)/SUB_BUCKETS;
+		int sub = (index-SUB_BUCKETS)%SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS+sub+1) << shift)-1;
+	}
+	
+	/**
+	 * The values recorded by a LatencyRecorder at one point in time
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Snapshot {
+		private long[] _COUNTS_ = null;
+		private long _COUNT_ = 0;
+		private long _SUM_ = 0;
+		private long _MAX_ = 0;
+		
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			_COUNTS_ = counts;
+			_COUNT_ = count;
+			_SUM_ = sum;
+			_MAX_ = max;
+		}
+		
+		/**
+		 * Returns the amount of recorded values
+		 * @return the amount of values
+		 * @since 1.1
+		 */
+		public long getCount() {
+			return _COUNT_;
+		}
+		
+		/**
+		 * Returns the sum of all recorded values
+		 * @return the sum in nanoseconds
+		 * @since 1.1
+		 */
+		public long getSum() {
+			return _SUM_;
+		}
+		
+		/**
+		 * Returns the highest recorded value
+		 * @return the highest value in nanoseconds
+		 * @since 1.1
+		 */
+		public long getMax() {
+			return _MAX_;
+		}
+		
+		/**
+		 * Returns the mean of the recorded values
+		 * @return the mean in nanoseconds, or 0 if nothing was recorded
+		 * @since 1.1
+		 */
+		public double getMean() {
+			return _COUNT_ == 0 ? 0 : (double) _SUM_/_COUNT_;
+		}
+		
+		/**
+		 * Returns the value below which the specified percentage of recorded values fall
+		 * @param percentile the percentile, such as 99.9
+		 * @return the value in nanoseconds, or 0 if nothing was recorded
+		 * @since 1.1
+		 */
+		public long getPercentile(double percentile) {
+			long target = Math.max(1, (long) Math.ceil(percentile/100*_COUNT_));
+			long seen = 0;
+			for(int i = 0; i < _COUNTS_.length; i++) {
+				seen += _COUNTS_[i];
+				if(seen >= target) {
+					return Math.min(highestValue(i), _MAX_);
+				}
+			}
+			return _MAX_;
+		}
+	}
+}
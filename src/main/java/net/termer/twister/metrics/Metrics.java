@@ -0,0 +1,206 @@
+package net.termer.twister.metrics;
+
+import java.util.HashSet;
+
+import net.termer.twister.Settings;
+import spark.Request;
+
+/**
+ * Records how long each stage of handling requests takes, per domain and HTTP method.
+ * Stages are timed like this, which costs nothing but a field read while metrics are disabled:
+ * <pre>
+ * long start = Metrics.start();
+ * // ...
+ * Metrics.ROUTE_MATCH.record(domain, method, start);
+ * </pre>
+ * @author termer
+ * @since 1.1
+ */
+public class Metrics {
+	/**
+	 * The names of the methods metrics are recorded for, indexed like the constants in Method, with other methods last
+	 * @since 1.1
+	 */
+	public static final String[] METHODS = {"GET", "POST", "DELETE", "PUT", "OTHER"};
+	
+	/**
+	 * The maximum amount of domains recorded per stage
+	 * @since 1.1
+	 */
+	public static final int MAX_DOMAINS = 64;
+	
+	/**
+	 * The domain recorded for requests to domains beyond MAX_DOMAINS
+	 * @since 1.1
+	 */
+	public static final String OTHER_DOMAIN = "other";
+	
+	/**
+	 * The whole request, as handled by Twister
+	 * @since 1.1
+	 */
+	public static final Stage REQUEST = new Stage("request", "Handling the whole request");
+	
+	/**
+	 * Running PreRequestHandlers
+	 * @since 1.1
+	 */
+	public static final Stage PRE_REQUEST = new Stage("pre_request", "Running pre-request handlers");
+	
+	/**
+	 * Looking up domain redirects
+	 * @since 1.1
+	 */
+	public static final Stage REDIRECT = new Stage("redirect", "Looking up redirects");
+	
+	/**
+	 * Finding the RouteHandler or RequestHandler for the path
+	 * @since 1.1
+	 */
+	public static final Stage ROUTE_MATCH = new Stage("route_match", "Finding the route or request handler");
+	
+	/**
+	 * Running a RouteHandler or RequestHandler
+	 * @since 1.1
+	 */
+	public static final Stage HANDLER = new Stage("handler", "Running route and request handlers");
+	
+	/**
+	 * Rendering or sending a document from the domain's directory
+	 * @since 1.1
+	 */
+	public static final Stage DOCUMENT = new Stage("document", "Rendering and sending documents");
+	
+	/**
+	 * Reading document files
+	 * @since 1.1
+	 */
+	public static final Stage FILE_READ = new Stage("file_read", "Reading document files");
+	
+	/**
+	 * Running DocumentProcessors over a document, top, or bottom
+	 * @since 1.1
+	 */
+	public static final Stage PROCESSORS = new Stage("processors", "Running document processors");
+	
+	/**
+	 * Reading and processing a document part while streaming it to the client
+	 * @since 1.1
+	 */
+	public static final Stage STREAM = new Stage("stream", "Streaming document parts");
+	
+	/**
+	 * Sending a static file
+	 * @since 1.1
+	 */
+	public static final Stage STATIC_FILE = new Stage("static_file", "Sending static files");
+	
+	/**
+	 * Running the scripts embedded in a page
+	 * @since 1.1
+	 */
+	public static final Stage SCRIPTING = new Stage("scripting", "Evaluating embedded scripts");
+	
+	/**
+	 * Compressing the response
+	 * @since 1.1
+	 */
+	public static final Stage ENCODE = new Stage("encode", "Compressing responses");
+	
+	private static final Stage[] _STAGES_ = {REQUEST, PRE_REQUEST, REDIRECT, ROUTE_MATCH, HANDLER, DOCUMENT, FILE_READ, PROCESSORS, STREAM, STATIC_FILE, SCRIPTING, ENCODE};
+	
+	private static volatile boolean _ENABLED_ = false;
+	private static volatile String _PATH_ = null;
+	private static volatile HashSet<String> _ALLOWED_ = new HashSet<String>();
+	
+	/**
+	 * Applies the metrics settings from twister.ini
+	 * @since 1.1
+	 */
+	public static void configure() {
+		_ENABLED_ = Boolean.parseBoolean(Settings.get("metrics"));
+		
+		String path = Settings.get("metrics-path").trim();
+		_PATH_ = path.length() > 0 ? path : null;
+		
+		HashSet<String> allowed = new HashSet<String>();
+		for(String address : Settings.get("metrics-allow").split(",")) {
+			if(address.trim().length() > 0) {
+				allowed.add(address.trim());
+			}
+		}
+		_ALLOWED_ = allowed;
+		
+		if(!_ENABLED_) {
+			// Values recorded before metrics were disabled would never change again
+			for(Stage stage : _STAGES_) {
+				stage.clear();
+			}
+		}
+		
+		HandlerMetrics.configure();
+	}
+	
+	/**
+	 * Returns whether metrics are being recorded
+	 * @return whether metrics are enabled
+	 * @since 1.1
+	 */
+	public static boolean isEnabled() {
+		return _ENABLED_;
+	}
+	
+	/**
+	 * Returns the time a stage starts at, to be passed to Stage.record() when it ends
+	 * @return the current System.nanoTime(), or 0 if metrics are disabled
+	 * @since 1.1
+	 */
+	public static long start() {
+		return _ENABLED_ ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Returns all stages
+	 * @return all stages, in the order requests go through them
+	 * @since 1.1
+	 */
+	public static Stage[] getStages() {
+		return _STAGES_.clone();
+	}
+	
+	/**
+	 * Returns the index of a request's method in METHODS, without allocating
+	 * @param req the request
+	 * @return the index of the method
+	 * @since 1.1
+	 */
+	public static int method(Request req) {
+		String method = req == null ? null : req.requestMethod();
+		for(int i = 0; method != null && i < METHODS.length-1; i++) {
+			if(METHODS[i].equals(method)) {
+				return i;
+			}
+		}
+		return METHODS.length-1;
+	}
+	
+	/**
+	 * Returns the path metrics are served at on every domain
+	 * @return the path, or null if metrics are not served
+	 * @since 1.1
+	 */
+	public static String getPath() {
+		return _ENABLED_ ? _PATH_ : null;
+	}
+	
+	/**
+	 * Returns whether the specified address may read metrics
+	 * @param address the IP address of the client
+	 * @return whether the address is allowed
+	 * @since 1.1
+	 */
+	public static boolean isAllowed(String address) {
+		HashSet<String> allowed = _ALLOWED_;
+		return allowed.contains("*") || allowed.contains(address);
+	}
+}
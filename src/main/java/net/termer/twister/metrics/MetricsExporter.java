@@ -0,0 +1,356 @@
+package net.termer.twister.metrics;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.termer.twister.Twister;
+import net.termer.twister.caching.TwisterCache;
+import net.termer.twister.scripting.InterpreterPool;
+import net.termer.twister.scripting.ScriptProcessor;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Serves recorded metrics, handler timings, and cache and log statistics,
+ * in the Prometheus text format at the path set in twister.ini, and as JSON at the same path with .json appended.
+ * @author termer
+ * @since 1.1
+ */
+public class MetricsExporter {
+	// The percentiles reported for each stage, and their names in each format
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+	private static final String[] JSON_NAMES = {"p50", "p90", "p99", "p999"};
+	
+	/**
+	 * Returns whether the specified path is a metrics endpoint
+	 * @param path the requested path
+	 * @return whether metrics are served at the path
+	 * @since 1.1
+	 */
+	public static boolean isEndpoint(String path) {
+		String metricsPath = Metrics.getPath();
+		return metricsPath != null && (path.equals(metricsPath) || path.equals(metricsPath+".json"));
+	}
+	
+	/**
+	 * Serves the metrics endpoint for the specified request
+	 * @param req the request
+	 * @param res the response
+	 * @return the response body
+	 * @since 1.1
+	 */
+	public static String serve(Request req, Response res) {
+		String r = null;
+		
+		if(!Metrics.isAllowed(req.ip())) {
+			res.status(403);
+			r = "Forbidden";
+		} else if(req.pathInfo().endsWith(".json")) {
+			res.type("application/json");
+			r = toJSON();
+		} else {
+			res.type("text/plain; version=0.0.4; charset=utf-8");
+			r = toPrometheus();
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Returns all metrics in the Prometheus text exposition format
+	 * @return the metrics
+	 * @since 1.1
+	 */
+	public static String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		
+		// Stage latencies, as summaries
+		sb.append("# HELP twister_stage_duration_seconds Time spent in each stage of handling requests\n");
+		sb.append("# TYPE twister_stage_duration_seconds summary\n");
+		StringBuilder max = new StringBuilder();
+		for(Stage stage : Metrics.getStages()) {
+			for(Map.Entry<String,LatencyRecorder.Snapshot[]> domain : snapshots(stage).entrySet()) {
+				for(int i = 0; i < Metrics.METHODS.length; i++) {
+					LatencyRecorder.Snapshot snapshot = domain.getValue()[i];
+					if(snapshot == null) {
+						continue;
+					}
+					String labels = "stage=\""+stage.getName()+"\",domain=\""+label(domain.getKey())+"\",method=\""+Metrics.METHODS[i]+'"';
+					for(int p = 0; p < PERCENTILES.length; p++) {
+						sb.append("twister_stage_duration_seconds{").append(labels).append(",quantile=\"").append(QUANTILES[p]).append("\"} ")
+							.append(seconds(snapshot.getPercentile(PERCENTILES[p]))).append('\n');
+					}
+					sb.append("twister_stage_duration_seconds_sum{").append(labels).append("} ").append(seconds(snapshot.getSum())).append('\n');
+					sb.append("twister_stage_duration_seconds_count{").append(labels).append("} ").append(snapshot.getCount()).append('\n');
+					max.append("twister_stage_duration_seconds_max{").append(labels).append("} ").append(seconds(snapshot.getMax())).append('\n');
+				}
+			}
+		}
+		sb.append("# HELP twister_stage_duration_seconds_max Longest time spent in each stage of handling requests\n");
+		sb.append("# TYPE twister_stage_duration_seconds_max gauge\n");
+		sb.append(max);
+		
+		// Handler latencies, attributed to the modules that registered them
+		HandlerStats[] handlers = sortedHandlers();
+		sb.append("# HELP twister_handler_duration_seconds Time spent in each registered handler, DocumentProcessor, and VariableProvider\n");
+		sb.append("# TYPE twister_handler_duration_seconds summary\n");
+		StringBuilder handlerMax = new StringBuilder();
+		StringBuilder exceptions = new StringBuilder();
+		for(HandlerStats handler : handlers) {
+			LatencyRecorder.Snapshot snapshot = handler.getRecorder().snapshot();
+			String labels = "kind=\""+handler.getKind()+"\",handler=\""+label(handler.getName())+"\",module=\""+label(handler.getModule())+'"';
+			for(int p = 0; p < PERCENTILES.length; p++) {
+				sb.append("twister_handler_duration_seconds{").append(labels).append(",quantile=\"").append(QUANTILES[p]).append("\"} ")
+					.append(seconds(snapshot.getPercentile(PERCENTILES[p]))).append('\n');
+			}
+			sb.append("twister_handler_duration_seconds_sum{").append(labels).append("} ").append(seconds(snapshot.getSum())).append('\n');
+			sb.append("twister_handler_duration_seconds_count{").append(labels).append("} ").append(snapshot.getCount()).append('\n');
+			handlerMax.append("twister_handler_duration_seconds_max{").append(labels).append("} ").append(seconds(snapshot.getMax())).append('\n');
+			exceptions.append("twister_handler_exceptions_total{").append(labels).append("} ").append(handler.getExceptions()).append('\n');
+		}
+		sb.append("# HELP twister_handler_duration_seconds_max Longest time spent in each registered handler\n");
+		sb.append("# TYPE twister_handler_duration_seconds_max gauge\n");
+		sb.append(handlerMax);
+		sb.append("# HELP twister_handler_exceptions_total Exceptions thrown by each registered handler\n");
+		sb.append("# TYPE twister_handler_exceptions_total counter\n");
+		sb.append(exceptions);
+		
+		// Caches
+		counter(sb, "twister_cache_hits_total", "Cache hits",
+			TwisterCache._STATIC_FILES_.getHits(), TwisterCache._COMPRESSED_.getHits(), TwisterCache._PAGES_.getHits());
+		counter(sb, "twister_cache_misses_total", "Cache misses",
+			TwisterCache._STATIC_FILES_.getMisses(), TwisterCache._COMPRESSED_.getMisses(), TwisterCache._PAGES_.getMisses());
+		counter(sb, "twister_cache_evictions_total", "Entries evicted to stay within cache size limits",
+			TwisterCache._STATIC_FILES_.getEvictions(), TwisterCache._COMPRESSED_.getEvictions(), TwisterCache._PAGES_.getEvictions());
+		gauge(sb, "twister_cache_size_bytes", "Bytes used by caches",
+			TwisterCache._STATIC_FILES_.getSize(), TwisterCache._COMPRESSED_.getSize(), TwisterCache._PAGES_.getSize());
+		gauge(sb, "twister_cache_entries", "Entries in caches",
+			TwisterCache._STATIC_FILES_.getCount(), TwisterCache._COMPRESSED_.getCount(), TwisterCache._PAGES_.getCount());
+		
+		// Scripting
+		InterpreterPool pool = ScriptProcessor.getInterpreterPool();
+		sb.append("# HELP twister_interpreters_created_total Script interpreters created\n");
+		sb.append("# TYPE twister_interpreters_created_total counter\n");
+		sb.append("twister_interpreters_created_total ").append(pool.getCreated()).append('\n');
+		sb.append("# HELP twister_interpreters_reused_total Script interpreters reused from the pool\n");
+		sb.append("# TYPE twister_interpreters_reused_total counter\n");
+		sb.append("twister_interpreters_reused_total ").append(pool.getReused()).append('\n');
+		sb.append("# HELP twister_interpreters_idle Idle script interpreters in the pool\n");
+		sb.append("# TYPE twister_interpreters_idle gauge\n");
+		sb.append("twister_interpreters_idle ").append(pool.getIdleCount()).append('\n');
+		
+		// Log
+		if(Twister.current() != null && Twister.current().getLog() != null) {
+			sb.append("# HELP twister_log_dropped_total Log events dropped because the log buffer was full\n");
+			sb.append("# TYPE twister_log_dropped_total counter\n");
+			sb.append("twister_log_dropped_total ").append(Twister.current().getLog().getDropped()).append('\n');
+			sb.append("# HELP twister_log_pending Log events waiting to be written\n");
+			sb.append("# TYPE twister_log_pending gauge\n");
+			sb.append("twister_log_pending ").append(Twister.current().getLog().getPending()).append('\n');
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Returns all metrics as JSON, with latencies in microseconds
+	 * @return the metrics
+	 * @since 1.1
+	 */
+	public static String toJSON() {
+		StringBuilder sb = new StringBuilder("{\"stages\":{");
+		
+		boolean firstStage = true;
+		for(Stage stage : Metrics.getStages()) {
+			if(!firstStage) {
+				sb.append(',');
+			}
+			firstStage = false;
+			sb.append('"').append(stage.getName()).append("\":{");
+			
+			boolean firstDomain = true;
+			for(Map.Entry<String,LatencyRecorder.Snapshot[]> domain : snapshots(stage).entrySet()) {
+				if(!firstDomain) {
+					sb.append(',');
+				}
+				firstDomain = false;
+				sb.append('"').append(escape(domain.getKey())).append("\":{");
+				
+				boolean firstMethod = true;
+				for(int i = 0; i < Metrics.METHODS.length; i++) {
+					LatencyRecorder.Snapshot snapshot = domain.getValue()[i];
+					if(snapshot == null) {
+						continue;
+					}
+					if(!firstMethod) {
+						sb.append(',');
+					}
+					firstMethod = false;
+					sb.append('"').append(Metrics.METHODS[i]).append("\":{")
+						.append("\"count\":").append(snapshot.getCount())
+						.append(",\"mean\":").append(micros((long) snapshot.getMean()))
+						.append(",\"max\":").append(micros(snapshot.getMax()));
+					for(int p = 0; p < PERCENTILES.length; p++) {
+						sb.append(",\"").append(JSON_NAMES[p]).append("\":").append(micros(snapshot.getPercentile(PERCENTILES[p])));
+					}
+					sb.append('}');
+				}
+				sb.append('}');
+			}
+			sb.append('}');
+		}
+		sb.append("},\"handlers\":[");
+		
+		// Handlers, and the totals of the modules that registered them
+		TreeMap<String,long[]> modules = new TreeMap<String,long[]>();
+		boolean firstHandler = true;
+		for(HandlerStats handler : sortedHandlers()) {
+			LatencyRecorder.Snapshot snapshot = handler.getRecorder().snapshot();
+			if(!firstHandler) {
+				sb.append(',');
+			}
+			firstHandler = false;
+			sb.append("{\"kind\":\"").append(handler.getKind())
+				.append("\",\"handler\":\"").append(escape(handler.getName()))
+				.append("\",\"module\":\"").append(escape(handler.getModule()))
+				.append("\",\"count\":").append(snapshot.getCount())
+				.append(",\"exceptions\":").append(handler.getExceptions())
+				.append(",\"total\":").append(micros(snapshot.getSum()))
+				.append(",\"mean\":").append(micros((long) snapshot.getMean()))
+				.append(",\"max\":").append(micros(snapshot.getMax()));
+			for(int p = 0; p < PERCENTILES.length; p++) {
+				sb.append(",\"").append(JSON_NAMES[p]).append("\":").append(micros(snapshot.getPercentile(PERCENTILES[p])));
+			}
+			sb.append('}');
+			
+			long[] module = modules.computeIfAbsent(handler.getModule(), m -> new long[3]);
+			module[0] += snapshot.getCount();
+			module[1] += handler.getExceptions();
+			module[2] += snapshot.getSum();
+		}
+		sb.append("],\"modules\":{");
+		boolean firstModule = true;
+		for(Map.Entry<String,long[]> module : modules.entrySet()) {
+			if(!firstModule) {
+				sb.append(',');
+			}
+			firstModule = false;
+			sb.append('"').append(escape(module.getKey())).append("\":{\"count\":").append(module.getValue()[0])
+				.append(",\"exceptions\":").append(module.getValue()[1])
+				.append(",\"total\":").append(micros(module.getValue()[2])).append('}');
+		}
+		sb.append("},\"caches\":{");
+		cache(sb, "static", TwisterCache._STATIC_FILES_.getHits(), TwisterCache._STATIC_FILES_.getMisses(), TwisterCache._STATIC_FILES_.getEvictions(), TwisterCache._STATIC_FILES_.getSize(), TwisterCache._STATIC_FILES_.getCount());
+		sb.append(',');
+		cache(sb, "compressed", TwisterCache._COMPRESSED_.getHits(), TwisterCache._COMPRESSED_.getMisses(), TwisterCache._COMPRESSED_.getEvictions(), TwisterCache._COMPRESSED_.getSize(), TwisterCache._COMPRESSED_.getCount());
+		sb.append(',');
+		cache(sb, "pages", TwisterCache._PAGES_.getHits(), TwisterCache._PAGES_.getMisses(), TwisterCache._PAGES_.getEvictions(), TwisterCache._PAGES_.getSize(), TwisterCache._PAGES_.getCount());
+		
+		InterpreterPool pool = ScriptProcessor.getInterpreterPool();
+		sb.append("},\"interpreters\":{\"created\":").append(pool.getCreated())
+			.append(",\"reused\":").append(pool.getReused())
+			.append(",\"idle\":").append(pool.getIdleCount()).append('}');
+		if(Twister.current() != null && Twister.current().getLog() != null) {
+			sb.append(",\"log\":{\"dropped\":").append(Twister.current().getLog().getDropped())
+				.append(",\"pending\":").append(Twister.current().getLog().getPending()).append('}');
+		}
+		sb.append('}');
+		
+		return sb.toString();
+	}
+	
+	// Takes snapshots of a stage's recorders, sorted by domain
+	private static TreeMap<String,LatencyRecorder.Snapshot[]> snapshots(Stage stage) {
+		TreeMap<String,LatencyRecorder.Snapshot[]> r = new TreeMap<String,LatencyRecorder.Snapshot[]>();
+		for(Map.Entry<String,AtomicReferenceArray<LatencyRecorder>> domain : stage.getRecorders().entrySet()) {
+			LatencyRecorder.Snapshot[] snapshots = new LatencyRecorder.Snapshot[Metrics.METHODS.length];
+			for(int i = 0; i < snapshots.length; i++) {
+				LatencyRecorder recorder = domain.getValue().get(i);
+				if(recorder != null) {
+					snapshots[i] = recorder.snapshot();
+				}
+			}
+			r.put(domain.getKey(), snapshots);
+		}
+		return r;
+	}
+	
+	// Returns the stats of all handlers, sorted by module, kind, and name
+	private static HandlerStats[] sortedHandlers() {
+		HandlerStats[] handlers = HandlerMetrics.getHandlers();
+		Arrays.sort(handlers, Comparator.comparing(HandlerStats::getModule).thenComparing(HandlerStats::getKind).thenComparing(HandlerStats::getName));
+		return handlers;
+	}
+	
+	private static void counter(StringBuilder sb, String name, String help, long staticFiles, long compressed, long pages) {
+		metric(sb, name, help, "counter", staticFiles, compressed, pages);
+	}
+	
+	private static void gauge(StringBuilder sb, String name, String help, long staticFiles, long compressed, long pages) {
+		metric(sb, name, help, "gauge", staticFiles, compressed, pages);
+	}
+	
+	private static void metric(StringBuilder sb, String name, String help, String type, long staticFiles, long compressed, long pages) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		sb.append(name).append("{cache=\"static\"} ").append(staticFiles).append('\n');
+		sb.append(name).append("{cache=\"compressed\"} ").append(compressed).append('\n');
+		sb.append(name).append("{cache=\"pages\"} ").append(pages).append('\n');
+	}
+	
+	private static void cache(StringBuilder sb, String name, long hits, long misses, long evictions, long size, long count) {
+		sb.append('"').append(name).append("\":{\"hits\":").append(hits)
+			.append(",\"misses\":").append(misses)
+			.append(",\"evictions\":").append(evictions)
+			.append(",\"size\":").append(size)
+			.append(",\"entries\":").append(count).append('}');
+	}
+	
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos/1e9);
+	}
+	
+	private static String micros(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos/1e3);
+	}
+	
+	// Escapes a Prometheus label value, since domains come from the Host header.
+	// Only backslashes, quotes, and line feeds can be escaped, so other control characters are replaced.
+	private static String label(String value) {
+		StringBuilder sb = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if(c == '\n') {
+				sb.append("\\n");
+			} else if(c < 0x20 || c == 0x7f) {
+				sb.append('?');
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	// Escapes a JSON string, since domains come from the Host header
+	private static String escape(String value) {
+		StringBuilder sb = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if(c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
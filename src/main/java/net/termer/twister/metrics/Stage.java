@@ -0,0 +1,110 @@
+package net.termer.twister.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A stage of handling a request, with a LatencyRecorder for each domain and HTTP method it is recorded for.
+ * Recorders are created the first time a domain and method are seen, after that recording does not allocate.
+ * @author termer
+ * @since 1.1
+ */
+public class Stage {
+	private String _NAME_ = null;
+	private String _DESCRIPTION_ = null;
+	private ConcurrentHashMap<String,AtomicReferenceArray<LatencyRecorder>> _DOMAINS_ = new ConcurrentHashMap<String,AtomicReferenceArray<LatencyRecorder>>();
+	
+	/**
+	 * Creates a new stage
+	 * @param name the name of the stage, as used in metric labels
+	 * @param description what the stage measures
+	 * @since 1.1
+	 */
+	public Stage(String name, String description) {
+		_NAME_ = name;
+		_DESCRIPTION_ = description;
+	}
+	
+	/**
+	 * Returns the name of the stage
+	 * @return the name
+	 * @since 1.1
+	 */
+	public String getName() {
+		return _NAME_;
+	}
+	
+	/**
+	 * Returns what the stage measures
+	 * @return the description
+	 * @since 1.1
+	 */
+	public String getDescription() {
+		return _DESCRIPTION_;
+	}
+	
+	/**
+	 * Records the time since the stage started, if metrics are enabled
+	 * @param domain the domain the request is for
+	 * @param method the method of the request (Method.GET/POST/DELETE/PUT)
+	 * @param start the time the stage started, as returned by Metrics.start()
+	 * @since 1.1
+	 */
+	public void record(String domain, int method, long start) {
+		if(start != 0) {
+			recorder(domain, method).record(System.nanoTime()-start);
+		}
+	}
+	
+	/**
+	 * Returns the recorder for the specified domain and method, creating it if necessary.
+	 * Once Metrics.MAX_DOMAINS domains were recorded, any other domain is recorded as Metrics.OTHER_DOMAIN.
+	 * @param domain the domain
+	 * @param method the method (Method.GET/POST/DELETE/PUT)
+	 * @return the recorder
+	 * @since 1.1
+	 */
+	public LatencyRecorder recorder(String domain, int method) {
+		if(domain == null) {
+			domain = Metrics.OTHER_DOMAIN;
+		}
+		if(method < 0 || method >= Metrics.METHODS.length) {
+			method = Metrics.METHODS.length-1;
+		}
+		
+		AtomicReferenceArray<LatencyRecorder> methods = _DOMAINS_.get(domain);
+		if(methods == null) {
+			// Domains come from the Host header, so their amount is limited
+			if(_DOMAINS_.size() >= Metrics.MAX_DOMAINS) {
+				domain = Metrics.OTHER_DOMAIN;
+			}
+			methods = _DOMAINS_.computeIfAbsent(domain, d -> new AtomicReferenceArray<LatencyRecorder>(Metrics.METHODS.length));
+		}
+		
+		LatencyRecorder recorder = methods.get(method);
+		if(recorder == null) {
+			methods.compareAndSet(method, null, new LatencyRecorder());
+			recorder = methods.get(method);
+		}
+		return recorder;
+	}
+	
+	/**
+	 * Returns the recorders of the stage
+	 * @return the recorders of each domain, indexed by method
+	 * @since 1.1
+	 */
+	public Map<String,AtomicReferenceArray<LatencyRecorder>> getRecorders() {
+		return Collections.unmodifiableMap(_DOMAINS_);
+	}
+	
+	/**
+	 * Removes all recorded values
+	 * @since 1.1
+	 */
+	public void clear() {
+		_DOMAINS_.clear();
+	}
+}
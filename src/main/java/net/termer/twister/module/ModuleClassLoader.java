@@ -0,0 +1,95 @@
+package net.termer.twister.module;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+
+/**
+ * Class loader for a single module jar, so each jar can be reloaded on its own.
+ * Classes are looked up in the dependencies first, then in the jar, then in the other module jars,
+ * so modules can still use each other's classes like when all jars shared one class loader.
+ * @author termer
+ * @since 1.1
+ */
+public class ModuleClassLoader extends URLClassLoader {
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+	
+	private File _JAR_ = null;
+	private ArrayList<TwisterModule> _MODULES_ = new ArrayList<TwisterModule>();
+	
+	/**
+	 * Creates a class loader for a module jar
+	 * @param jar the jar
+	 * @param dependencies the class loader of the dependencies
+	 * @throws MalformedURLException if the jar's path cannot be converted to a URL
+	 * @since 1.1
+	 */
+	public ModuleClassLoader(File jar, ClassLoader dependencies) throws MalformedURLException {
+		super(new URL[] { jar.toURI().toURL() }, dependencies);
+		_JAR_ = jar;
+	}
+	
+	/**
+	 * Returns the jar this loader loads classes from
+	 * @return the jar
+	 * @since 1.1
+	 */
+	public File getJar() {
+		return _JAR_;
+	}
+	
+	/**
+	 * Returns the modules loaded from the jar
+	 * @return the modules
+	 * @since 1.1
+	 */
+	public TwisterModule[] getModules() {
+		synchronized(_MODULES_) {
+			return _MODULES_.toArray(new TwisterModule[0]);
+		}
+	}
+	
+	// Adds a module loaded from the jar
+	void addModule(TwisterModule module) {
+		synchronized(_MODULES_) {
+			_MODULES_.add(module);
+		}
+	}
+	
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		try {
+			return super.findClass(name);
+		} catch(ClassNotFoundException e) {
+			for(ModuleClassLoader peer : ModuleManager.getClassLoaders()) {
+				if(peer != this) {
+					Class<?> cls = peer.findOwnClass(name);
+					if(cls != null) {
+						return cls;
+					}
+				}
+			}
+			throw e;
+		}
+	}
+	
+	// Returns a class from this loader's jar without asking other loaders, or null if the jar does not have it.
+	// No lock is taken, since two loaders looking in each other's jars at once would wait on each other.
+	private Class<?> findOwnClass(String name) {
+		Class<?> cls = findLoadedClass(name);
+		if(cls == null) {
+			try {
+				cls = super.findClass(name);
+			} catch(ClassNotFoundException e) {
+				// Not in this jar, or the loader was closed
+			} catch(LinkageError e) {
+				// Another thread defined the class first
+				cls = findLoadedClass(name);
+			}
+		}
+		return cls;
+	}
+}
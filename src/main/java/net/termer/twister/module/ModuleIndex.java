@@ -0,0 +1,204 @@
+package net.termer.twister.module;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.termer.twister.utils.FileLoader;
+
+/**
+ * Index of the module classes found in jarfiles, saved between starts so unchanged jars do not have to be searched again.
+ * Jars are identified by their path, size, modification time, and a hash of their end, where the jar's central directory is.
+ * The file has one line per jar, with tab separated fields:
+ * <pre>
+ * path	size	modified	hash	class:version,class:version
+ * </pre>
+ * The Twister version a module class was written for is recorded once it has been created,
+ * so classes written for incompatible versions are not loaded again on the next start.
+ * @author termer
+ * @since 1.1
+ */
+public class ModuleIndex {
+	// The amount of bytes at the end of a jar that are hashed
+	private static final int HASHED_BYTES = 65536;
+	
+	private LinkedHashMap<String,Entry> _ENTRIES_ = new LinkedHashMap<String,Entry>();
+	
+	/**
+	 * Reads an index from a file
+	 * @param file the index file
+	 * @return the index, which is empty if the file does not exist or cannot be read
+	 * @since 1.1
+	 */
+	public static ModuleIndex load(File file) {
+		ModuleIndex r = new ModuleIndex();
+		
+		if(file.isFile()) {
+			try {
+				for(String line : FileLoader.read(file, StandardCharsets.UTF_8).split("\n")) {
+					if(line.length() > 0 && !line.startsWith("#")) {
+						String[] fields = line.split("\t", -1);
+						Entry entry = new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+						for(String module : fields[4].split(",")) {
+							if(module.length() > 0) {
+								String[] parts = module.split(":");
+								entry.addClass(parts[0]);
+								if(parts.length > 1) {
+									// The version is the last field, also in indexes that recorded priorities before it
+									entry.setVersion(parts[0], Double.parseDouble(parts[parts.length-1]));
+								}
+							}
+						}
+						r._ENTRIES_.put(fields[0], entry);
+					}
+				}
+			} catch(IOException | RuntimeException e) {
+				// A damaged index is rebuilt from the jars
+				r._ENTRIES_.clear();
+			}
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Returns the entry for a jar, if the jar did not change since the entry was made
+	 * @param jar the jar
+	 * @param current the entry describing the jar as it is now, as returned by describe()
+	 * @return the indexed entry, or null if the jar is not indexed or changed
+	 * @since 1.1
+	 */
+	public Entry get(File jar, Entry current) {
+		Entry entry = _ENTRIES_.get(jar.getPath());
+		return entry != null && entry._SIZE_ == current._SIZE_ && entry._MODIFIED_ == current._MODIFIED_ && entry._HASH_.equals(current._HASH_) ? entry : null;
+	}
+	
+	/**
+	 * Sets the entry for a jar
+	 * @param jar the jar
+	 * @param entry the entry
+	 * @since 1.1
+	 */
+	public void put(File jar, Entry entry) {
+		_ENTRIES_.put(jar.getPath(), entry);
+	}
+	
+	/**
+	 * Writes the index to a file, replacing it at once so a crash never leaves a partial index
+	 * @param file the index file
+	 * @throws IOException if writing the file fails
+	 * @since 1.1
+	 */
+	public void save(File file) throws IOException {
+		StringBuilder sb = new StringBuilder("# Twister module index, rebuilt automatically when jars change\n");
+		for(Map.Entry<String,Entry> jar : _ENTRIES_.entrySet()) {
+			Entry entry = jar.getValue();
+			sb.append(jar.getKey()).append('\t').append(entry._SIZE_).append('\t').append(entry._MODIFIED_).append('\t').append(entry._HASH_).append('\t');
+			for(int i = 0; i < entry._CLASSES_.size(); i++) {
+				String clazz = entry._CLASSES_.get(i);
+				if(i > 0) {
+					sb.append(',');
+				}
+				sb.append(clazz);
+				if(entry._VERSIONS_.containsKey(clazz)) {
+					sb.append(':').append(entry._VERSIONS_.get(clazz));
+				}
+			}
+			sb.append('\n');
+		}
+		
+		File tmp = new File(file.getPath()+".tmp");
+		Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Returns an entry without classes that identifies a jar as it is now
+	 * @param jar the jar
+	 * @return the entry
+	 * @throws IOException if reading the jar fails
+	 * @since 1.1
+	 */
+	public static Entry describe(File jar) throws IOException {
+		CRC32 crc = new CRC32();
+		RandomAccessFile in = new RandomAccessFile(jar, "r");
+		try {
+			long length = in.length();
+			byte[] buf = new byte[(int) Math.min(length, HASHED_BYTES)];
+			in.seek(length-buf.length);
+			in.readFully(buf);
+			crc.update(buf);
+		} finally {
+			in.close();
+		}
+		return new Entry(jar.length(), jar.lastModified(), Long.toHexString(crc.getValue()));
+	}
+	
+	/**
+	 * What is known about a jar
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Entry {
+		private long _SIZE_ = 0;
+		private long _MODIFIED_ = 0;
+		private String _HASH_ = null;
+		private ArrayList<String> _CLASSES_ = new ArrayList<String>();
+		private HashMap<String,Double> _VERSIONS_ = new HashMap<String,Double>();
+		
+		private Entry(long size, long modified, String hash) {
+			_SIZE_ = size;
+			_MODIFIED_ = modified;
+			_HASH_ = hash;
+		}
+		
+		/**
+		 * Returns the names of the module classes in the jar
+		 * @return the class names
+		 * @since 1.1
+		 */
+		public ArrayList<String> getClasses() {
+			return _CLASSES_;
+		}
+		
+		/**
+		 * Adds a module class name
+		 * @param clazz the class name
+		 * @since 1.1
+		 */
+		public void addClass(String clazz) {
+			if(!_CLASSES_.contains(clazz)) {
+				_CLASSES_.add(clazz);
+			}
+		}
+		
+		/**
+		 * Records the Twister version of a module class
+		 * @param clazz the class name
+		 * @param version the Twister version the module was written for
+		 * @since 1.1
+		 */
+		public void setVersion(String clazz, double version) {
+			_VERSIONS_.put(clazz, version);
+		}
+		
+		/**
+		 * Returns the recorded Twister version of a module class
+		 * @param clazz the class name
+		 * @return the version, or -1 if it was not recorded
+		 * @since 1.1
+		 */
+		public double getVersion(String clazz) {
+			Double version = _VERSIONS_.get(clazz);
+			return version == null ? -1 : version;
+		}
+	}
+}
@@ -2,22 +2,42 @@ package net.termer.twister.module;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
-import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
+import net.termer.twister.Settings;
 import net.termer.twister.Twister;
+import net.termer.twister.caching.DomainWatcher;
 import net.termer.twister.exception.JarLoaderException;
+import net.termer.twister.handler.AsyncAdapter;
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.scripting.ScriptProcessor;
+import net.termer.twister.utils.FileLoader;
 
 /**
  * Module Manager class
  * Handles the loading, reloading, and shutting down of modules.
+ * Each module jar has its own class loader, so a jar can be replaced by a new version while Twister runs.
  * @author termer
  * @since 0.1
  */
@@ -53,167 +73,356 @@ public class ModuleManager {
 	 */
 	public static ArrayList<TwisterModule> _HIGH_ = new ArrayList<TwisterModule>();
 	
+	/**
+	 * The manifest attribute listing the module classes in a jar, separated by commas or spaces
+	 * @since 1.1
+	 */
+	public static final String MANIFEST_ATTRIBUTE = "Twister-Module";
+	
+	/**
+	 * The service descriptor listing the module classes in a jar, one per line
+	 * @since 1.1
+	 */
+	public static final String SERVICE_FILE = "META-INF/services/net.termer.twister.module.TwisterModule";
+	
+	/**
+	 * The file the module classes found in jars are saved to between starts
+	 * @since 1.1
+	 */
+	public static File INDEX_FILE = new File("modules/.index");
+	
+	// The module being initialized or shut down on each thread
+	private static final ThreadLocal<TwisterModule> _CURRENT_ = new ThreadLocal<TwisterModule>();
+	
+	// Handler changes held back on each thread while a new version of a module is initialized
+	private static final ThreadLocal<ArrayList<Runnable>> _DEFERRED_ = new ThreadLocal<ArrayList<Runnable>>();
+	
+	// The modules that registered handlers, keyed by the handlers
+	private static ConcurrentHashMap<Object,TwisterModule> _OWNERS_ = new ConcurrentHashMap<Object,TwisterModule>();
+	
+	// The class loaders of the module jars, and of the dependencies they share
+	private static CopyOnWriteArrayList<ModuleClassLoader> _LOADERS_ = new CopyOnWriteArrayList<ModuleClassLoader>();
+	private static URLClassLoader _DEPENDENCIES_ = null;
+	
+	private static DomainWatcher _WATCHER_ = null;
+	
 	/**
 	 * Loads all dependencies, then
-	 * loads and starts all TwisterModules
+	 * loads and starts all TwisterModules.
+	 * Module classes are found through the Twister-Module attribute in each jar's manifest,
+	 * or its META-INF/services/net.termer.twister.module.TwisterModule file. Jars that have neither
+	 * are searched for classes whose names end in "Module". All other classes are loaded when they are first used.
+	 * The module classes found in each jar are saved in INDEX_FILE, so jars that did not change are not searched again.
+	 * Modules of the same priority are initialized on up to module-load-threads threads, one after another by default.
+	 * Modules initialized in parallel may only register handlers, DocumentProcessors, and VariableProviders,
+	 * since the other shared state of Twister is not thread-safe.
 	 * @throws ZipException if reading a module fails
-	 * @throws IOException if closing the ClassLoader fails
+	 * @throws IOException if reading a jarfile fails
 	 * @since 0.1
 	 */
-	public static void loadModules() throws ZipException, IOException {
-Twister.current().logInfo("Loading modules...");
+	public static synchronized void loadModules() throws ZipException, IOException {
+		Twister.current().logInfo("Loading modules...");
 		
 		ArrayList<URL> urls = new ArrayList<URL>();
-		ArrayList<String> classes = new ArrayList<String>();
+		ArrayList<String> launchClasses = new ArrayList<String>();
+		HashMap<String,ModuleClassLoader> classLoaders = new HashMap<String,ModuleClassLoader>();
 		
-		for(File jar : new File("dependencies/").listFiles()) {
-			if(jar.getName().toLowerCase().endsWith(".jar")) {
-				ZipFile zf = new ZipFile(jar.getAbsolutePath());
-				if(zf.isValidZipFile()) {
-					urls.add(new URL("file:"+jar.getAbsolutePath()));
-					JarFile jf = new JarFile(jar.getAbsolutePath());
-					Enumeration<JarEntry> ent = jf.entries();
-					while(ent.hasMoreElements()) {
-						String name = ent.nextElement().getName();
-						if(name.toLowerCase().endsWith(".class")) {
-							classes.add(name.replace("/", ".").replace(".class", ""));
-						}
+		// Jars that did not change since the last start are not opened again
+		boolean useIndex = Boolean.parseBoolean(Settings.get("module-index"));
+		ModuleIndex index = useIndex ? ModuleIndex.load(INDEX_FILE) : new ModuleIndex();
+		ModuleIndex updated = new ModuleIndex();
+		HashMap<String,ModuleIndex.Entry> classEntries = new HashMap<String,ModuleIndex.Entry>();
+		int scanned = 0;
+		
+		// Dependencies are only added to the classpath, their classes are loaded as they are used
+		for(File jar : jars(new File("dependencies/"))) {
+			ModuleIndex.Entry current = describe(jar);
+			ModuleIndex.Entry entry = index.get(jar, current);
+			if(entry == null) {
+				openJar(jar).close();
+				entry = current;
+				scanned++;
+			}
+			updated.put(jar, entry);
+			urls.add(jar.toURI().toURL());
+		}
+		_DEPENDENCIES_ = new URLClassLoader(urls.toArray(new URL[0]));
+		
+		// The loaders stay open, since classes are loaded from them while modules run
+		for(File jar : jars(new File("modules/"))) {
+			ModuleIndex.Entry current = describe(jar);
+			ModuleIndex.Entry entry = index.get(jar, current);
+			if(entry == null) {
+				JarFile jf = openJar(jar);
+				try {
+					for(String clazz : findModuleClasses(jf)) {
+						current.addClass(clazz);
 					}
+				} finally {
 					jf.close();
-				} else {
-					throw new JarLoaderException("File is not a valid jarfile");
 				}
+				entry = current;
+				scanned++;
+			}
+			ModuleClassLoader loader = new ModuleClassLoader(jar, _DEPENDENCIES_);
+			for(String clazz : entry.getClasses()) {
+				launchClasses.add(clazz);
+				classEntries.put(clazz, entry);
+				classLoaders.put(clazz, loader);
 			}
+			updated.put(jar, entry);
+			_LOADERS_.add(loader);
+		}
+		if(useIndex) {
+			Twister.current().logInfo("Searched "+scanned+" new or changed jars for modules");
 		}
 		
-		ArrayList<String> launchClasses = new ArrayList<String>();
-		
-		for(File jar : new File("modules/").listFiles()) {
-			if(jar.getName().toLowerCase().endsWith(".jar")) {
-				ZipFile zf = new ZipFile(jar.getAbsolutePath());
-				if(zf.isValidZipFile()) {
-					urls.add(new URL("file:"+jar.getAbsolutePath()));
-					JarFile jf = new JarFile(jar.getAbsolutePath());
-					Enumeration<JarEntry> ent = jf.entries();
-					while(ent.hasMoreElements()) {
-						String name = ent.nextElement().getName();
-						if(name.toLowerCase().endsWith(".class")) {
-							String clazz = name.replace("/", ".").replace(".class", "");
-							if(clazz.endsWith("Module")) {
-								launchClasses.add(clazz);
-							}
-							classes.add(clazz);
-						}
-					}
-					jf.close();
-				} else {
-					throw new JarLoaderException("File is not a valid jarfile");
+		for(String clazz : launchClasses) {
+			// Classes indexed as written for an incompatible version are not loaded at all
+			double version = classEntries.get(clazz).getVersion(clazz);
+			if(version > -1 && !isCompatibleVersion(version)) {
+				Twister.current().logError("Module class \""+clazz+"\" is written for Twister version "+Double.toString(version)+" which is incompatible with version "+Double.toString(Twister._VERSION_)+".");
+				Twister.current().logError("The module will not be loaded.");
+			} else {
+				TwisterModule module = instantiate(clazz, classLoaders.get(clazz));
+				if(module != null) {
+					classEntries.get(clazz).setVersion(clazz, module.twiserVersion());
+					_MODULES_.add(module);
 				}
 			}
 		}
 		
-		URLClassLoader ucl = new URLClassLoader(urls.toArray(new URL[0]));
-		for(String clazz : classes) {
+		if(useIndex) {
 			try {
-				Class<?> cls = ucl.loadClass(clazz);
-				
-				for(String launchClass : launchClasses) {
-					if(launchClass.equals(clazz)) {
-						for(Class<?> inter : cls.getInterfaces()) {
-							if(inter.getTypeName().equals("net.termer.twister.module.TwisterModule")) {
-								_MODULES_.add((TwisterModule) cls.newInstance());
-								break;
-							}
-						}
-					}
-				}
-			} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+				updated.save(INDEX_FILE);
+			} catch(IOException e) {
+				Twister.current().logWarning("Failed to save the module index, modules will be searched for again next start");
 				e.printStackTrace();
 			}
 		}
-		ucl.close();
 		
 		for(TwisterModule module : _MODULES_) {
-			if(isCompatibleVersion(module.twiserVersion())) {
-				if(module.modulePriority()==0) {
-					_LOW_.add(module);
-				} else if(module.modulePriority()==2) {
-					_HIGH_.add(module);
-				} else {
-					_MEDIUM_.add(module);
+			if(checkVersion(module)) {
+				priority(module).add(module);
+			}
+		}
+		
+		// Priorities are initialized one after another, the modules in each of them at the same time
+		int threads = Integer.parseInt(Settings.get("module-load-threads").trim());
+		if(threads < 1) {
+			// Initialization mostly waits on files and connections, so use more threads than CPUs on small machines
+			threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger _COUNT_ = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "twister-module-loader-"+_COUNT_.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			initializeModules(_HIGH_, executor, threads);
+			initializeModules(_MEDIUM_, executor, threads);
+			initializeModules(_LOW_, executor, threads);
+		} finally {
+			executor.shutdown();
+		}
+		
+		if(_WATCHER_ == null && Boolean.parseBoolean(Settings.get("module-hot-reload"))) {
+			watch();
+		}
+		Twister.current().logInfo("Modules loaded.");
+	}
+	
+	// Loads and creates a module, returning null if the class is not a module or cannot be created
+	private static TwisterModule instantiate(String clazz, ModuleClassLoader loader) {
+		TwisterModule r = null;
+		
+		try {
+			Class<?> cls = loader.loadClass(clazz);
+			if(TwisterModule.class.isAssignableFrom(cls) && !cls.isInterface() && !Modifier.isAbstract(cls.getModifiers())) {
+				r = (TwisterModule) cls.newInstance();
+				loader.addModule(r);
+			}
+		} catch (ClassNotFoundException | NoClassDefFoundError | InstantiationException | IllegalAccessException e) {
+			e.printStackTrace();
+		}
+		
+		return r;
+	}
+	
+	// Returns whether a module is written for a compatible Twister version, logging it if it is not
+	private static boolean checkVersion(TwisterModule module) {
+		boolean r = isCompatibleVersion(module.twiserVersion());
+		if(!r) {
+			Twister.current().logError("Module \""+module.moduleName()+"\" is written for Twister version "+Double.toString(module.twiserVersion())+"\" which is incompatible with version "+Double.toString(Twister._VERSION_)+".");
+			Twister.current().logError("The module will not be loaded.");
+		}
+		return r;
+	}
+	
+	// Returns the list of the module's priority
+	private static ArrayList<TwisterModule> priority(TwisterModule module) {
+		ArrayList<TwisterModule> r = _MEDIUM_;
+		if(module.modulePriority()==0) {
+			r = _LOW_;
+		} else if(module.modulePriority()==2) {
+			r = _HIGH_;
+		}
+		return r;
+	}
+	
+	// Starts reloading module jars when they change
+	private static void watch() {
+		try {
+			_WATCHER_ = new DomainWatcher(new File("modules/"));
+			_WATCHER_.setName("Module Directory Watcher");
+			_WATCHER_.addListener(new ModuleWatcher(new File("modules/")));
+			_WATCHER_.start();
+		} catch(IOException e) {
+			Twister.current().logWarning("Failed to watch modules directory, modules will not be reloaded when they change");
+			e.printStackTrace();
+		}
+	}
+	
+	// Returns the jarfiles in a directory
+	private static ArrayList<File> jars(File dir) {
+		ArrayList<File> r = new ArrayList<File>();
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				if(file.getName().toLowerCase().endsWith(".jar")) {
+					r.add(file);
 				}
-			} else {
-				Twister.current().logError("Module \""+module.moduleName()+"\" is written for Twister version "+Double.toString(module.twiserVersion())+"\" which is incompatible with version "+Double.toString(Twister._VERSION_)+".");
-				Twister.current().logError("The module will not be loaded.");
 			}
 		}
-		for(TwisterModule module : _HIGH_) {
-			Twister.current().logInfo("Loading module \""+module.moduleName()+"\"...");
-			if(module.twiserVersion() > Twister._VERSION_) {
-				Twister.current().logError("Module \""+module.moduleName()+"\" was written for a newer version of Twiser.");
-				Twister.current().logError("The module will not be loaded.");
-			} else {
-				try {
-					module.initializeModule(Twister.current());
-				} catch(AbstractMethodError e) {
-					Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a initilization method.");
-					Twister.current().logError("The module will not be loaded.");
-				} catch(Exception e) {
-					Twister.current().logError("Error occurred while initializing module \""+module.moduleName()+"\":");
-					e.printStackTrace();
-					Twister.current().logWarning("The module will be removed from the modules stack, but can still be referenced by other modules.");
-					_MODULES_.remove(module);
-					_HIGH_.remove(module);
+		return r;
+	}
+	
+	// Describes a jar for the index, treating jars that cannot be read as invalid
+	private static ModuleIndex.Entry describe(File jar) throws JarLoaderException {
+		try {
+			return ModuleIndex.describe(jar);
+		} catch(IOException e) {
+			throw new JarLoaderException("File is not a valid jarfile");
+		}
+	}
+	
+	// Opens a jarfile, which only reads its central directory
+	private static JarFile openJar(File jar) throws JarLoaderException {
+		try {
+			return new JarFile(jar);
+		} catch(IOException e) {
+			throw new JarLoaderException("File is not a valid jarfile");
+		}
+	}
+	
+	// Returns the names of the module classes in a jarfile
+	private static ArrayList<String> findModuleClasses(JarFile jar) throws IOException {
+		ArrayList<String> r = new ArrayList<String>();
+		
+		// Manifest attribute
+		Manifest manifest = jar.getManifest();
+		String attribute = manifest == null ? null : manifest.getMainAttributes().getValue(MANIFEST_ATTRIBUTE);
+		if(attribute != null) {
+			for(String clazz : attribute.split("[,\\s]+")) {
+				if(clazz.length() > 0) {
+					r.add(clazz);
 				}
 			}
 		}
-		for(TwisterModule module : _MEDIUM_) {
-			Twister.current().logInfo("Loading module \""+module.moduleName()+"\"...");
-			if(module.twiserVersion() > Twister._VERSION_) {
-				Twister.current().logError("Module \""+module.moduleName()+"\" was written for a newer version of Twiser.");
-				Twister.current().logError("The module will not be loaded.");
-			} else {
+		
+		// Service descriptor
+		JarEntry services = jar.getJarEntry(SERVICE_FILE);
+		if(services != null) {
+			for(String line : FileLoader.read(jar.getInputStream(services), StandardCharsets.UTF_8).split("\n")) {
+				int comment = line.indexOf('#');
+				String clazz = (comment > -1 ? line.substring(0, comment) : line).trim();
+				if(clazz.length() > 0 && !r.contains(clazz)) {
+					r.add(clazz);
+				}
+			}
+		}
+		
+		// Jars without either are searched the way modules always were
+		if(attribute == null && services == null) {
+			Enumeration<JarEntry> ent = jar.entries();
+			while(ent.hasMoreElements()) {
+				String name = ent.nextElement().getName();
+				if(name.endsWith("Module.class")) {
+					r.add(name.substring(0, name.length()-6).replace('/', '.'));
+				}
+			}
+		}
+		
+		return r;
+	}
+	
+	// Initializes the modules of one priority, in parallel if there are enough threads, and removes the ones that failed
+	private static void initializeModules(ArrayList<TwisterModule> modules, ExecutorService executor, int threads) {
+		ArrayList<TwisterModule> failed = new ArrayList<TwisterModule>();
+		
+		if(threads < 2 || modules.size() < 2) {
+			for(TwisterModule module : modules) {
+				if(!initializeModule(module)) {
+					failed.add(module);
+				}
+			}
+		} else {
+			ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for(TwisterModule module : modules) {
+				results.add(executor.submit(() -> initializeModule(module)));
+			}
+			for(int i = 0; i < results.size(); i++) {
+				TwisterModule module = modules.get(i);
 				try {
-					module.initializeModule(Twister.current());
-				} catch(AbstractMethodError e) {
-					Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a initilization method.");
-					Twister.current().logError("The module will not be loaded.");
-				} catch(Exception e) {
-					Twister.current().logError("Error occurred while initializing module \""+module.moduleName()+"\":");
-					Twister.current().logError(e.getClass().getName()+": "+e.getMessage()+"");
-					for(StackTraceElement ste : e.getStackTrace()) {
-						Twister.current().logError(ste.getClassName()+"("+ste.getFileName()+":"+Integer.toString(ste.getLineNumber())+")");
+					if(!results.get(i).get()) {
+						failed.add(module);
 					}
+				} catch(InterruptedException | ExecutionException e) {
+					Twister.current().logError("Error occurred while initializing module \""+module.moduleName()+"\":");
+					Twister.current().logError(e.getCause() == null ? e.toString() : e.getCause().toString());
 					Twister.current().logWarning("The module will be removed from the modules stack, but can still be referenced by other modules.");
-					_MODULES_.remove(module);
-					_MEDIUM_.remove(module);
+					failed.add(module);
 				}
 			}
 		}
-		for(TwisterModule module : _LOW_) {
-			Twister.current().logInfo("Loading module \""+module.moduleName()+"\"...");
-			if(module.twiserVersion() > Twister._VERSION_) {
-				Twister.current().logError("Module \""+module.moduleName()+"\" was written for a newer version of Twiser.");
+		
+		_MODULES_.removeAll(failed);
+		modules.removeAll(failed);
+	}
+	
+	// Initializes a module, returning false if it failed and must be removed
+	private static boolean initializeModule(TwisterModule module) {
+		boolean r = true;
+		
+		Twister.current().logInfo("Loading module \""+module.moduleName()+"\"...");
+		if(module.twiserVersion() > Twister._VERSION_) {
+			Twister.current().logError("Module \""+module.moduleName()+"\" was written for a newer version of Twiser.");
+			Twister.current().logError("The module will not be loaded.");
+		} else {
+			_CURRENT_.set(module);
+			try {
+				module.initializeModule(Twister.current());
+			} catch(AbstractMethodError e) {
+				Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a initilization method.");
 				Twister.current().logError("The module will not be loaded.");
-			} else {
-				try {
-					module.initializeModule(Twister.current());
-				} catch(AbstractMethodError e) {
-					Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a initilization method.");
-					Twister.current().logError("The module will not be loaded.");
-				} catch(Exception e) {
-					Twister.current().logError("Error occurred while initializing module \""+module.moduleName()+"\":");
-					Twister.current().logError(e.getClass().getName()+": "+e.getMessage()+"");
-					for(StackTraceElement ste : e.getStackTrace()) {
-						Twister.current().logError(ste.getClassName()+"("+ste.getFileName()+":"+Integer.toString(ste.getLineNumber())+")");
-					}
-					Twister.current().logWarning("The module will be removed from the modules stack, but can still be referenced by other modules.");
-					_MODULES_.remove(module);
-					_LOW_.remove(module);
+			} catch(Exception e) {
+				Twister.current().logError("Error occurred while initializing module \""+module.moduleName()+"\":");
+				Twister.current().logError(e.getClass().getName()+": "+e.getMessage()+"");
+				for(StackTraceElement ste : e.getStackTrace()) {
+					Twister.current().logError(ste.getClassName()+"("+ste.getFileName()+":"+Integer.toString(ste.getLineNumber())+")");
 				}
+				Twister.current().logWarning("The module will be removed from the modules stack, but can still be referenced by other modules.");
+				r = false;
+			} finally {
+				_CURRENT_.remove();
 			}
 		}
-		Twister.current().logInfo("Modules loaded.");
+		
+		return r;
 	}
 	
 	/**
@@ -230,58 +439,234 @@ Twister.current().logInfo("Loading modules...");
 	}
 	
 	/**
-	 * Shuts down all TwisterModules
+	 * Shuts down all TwisterModules.
+	 * Handlers the modules left registered are removed, and the module classes are released
+	 * once the requests that may be using them are done.
 	 * @since 0.2
 	 */
-	public static void shutdownModules() {
+	public static synchronized void shutdownModules() {
 		Twister.current().logInfo("Shutting down modules...");
 		
 		for(TwisterModule module : _LOW_) {
-			Twister.current().logInfo("Shutting down module \""+module.moduleName()+"\"...");
-			try {
-				module.shutdownModule();
-			} catch(AbstractMethodError e) {
-				Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a shutdown method.");
-			}
+			shutdownModule(module);
 		}
 		for(TwisterModule module : _MEDIUM_) {
-			Twister.current().logInfo("Shutting down module \""+module.moduleName()+"\"...");
-			try {
-				module.shutdownModule();
-			} catch(AbstractMethodError e) {
-				Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a shutdown method.");
-			}
+			shutdownModule(module);
 		}
 		for(TwisterModule module : _HIGH_) {
-			Twister.current().logInfo("Shutting down module \""+module.moduleName()+"\"...");
-			try {
-				module.shutdownModule();
-			} catch(AbstractMethodError e) {
-				Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a shutdown method.");
-			}
+			shutdownModule(module);
 		}
+		
+		ArrayList<TwisterModule> modules = new ArrayList<TwisterModule>(_MODULES_);
+		Predicate<Object> owned = handler -> modules.contains(getOwner(handler));
+		Twister.current().removeHandlers(owned);
+		HandlerMetrics.forget(owned);
+		_OWNERS_.clear();
+		
+		// Compiled documents may refer to the modules' classes
+		ScriptProcessor.clearTemplates();
+		
 		_LOW_.clear();
 		_MEDIUM_.clear();
 		_HIGH_.clear();
 		_MODULES_.clear();
 		
+		if(drain()) {
+			for(ModuleClassLoader loader : _LOADERS_) {
+				close(loader);
+			}
+			if(_DEPENDENCIES_ != null) {
+				close(_DEPENDENCIES_);
+			}
+		} else {
+			Twister.current().logWarning("Requests were still running after module-drain-timeout, module classes will stay loaded");
+		}
+		_LOADERS_.clear();
+		_DEPENDENCIES_ = null;
+		
 		Twister.current().logInfo("Modules shut down.");
 	}
 	
+	// Shuts down a module
+	private static void shutdownModule(TwisterModule module) {
+		Twister.current().logInfo("Shutting down module \""+module.moduleName()+"\"...");
+		_CURRENT_.set(module);
+		try {
+			module.shutdownModule();
+		} catch(AbstractMethodError e) {
+			Twister.current().logError("Module \""+module.moduleName()+"\" does not contain a shutdown method.");
+		} catch(Exception e) {
+			Twister.current().logError("Error occurred while shutting down module \""+module.moduleName()+"\":");
+			Twister.current().logError(e.getClass().getName()+": "+e.getMessage()+"");
+		} finally {
+			_CURRENT_.remove();
+		}
+	}
+	
+	// Waits for the requests that started before now, for up to module-drain-timeout seconds
+	private static boolean drain() {
+		long timeout = Long.parseLong(Settings.get("module-drain-timeout").trim())*1000;
+		return Twister.current().getInFlightRequests().drain(timeout);
+	}
+	
+	// Closes a class loader, after which no more classes can be loaded from it
+	private static void close(URLClassLoader loader) {
+		try {
+			loader.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/**
-	 * Shuts down and loads all modules
-	 * Does not actually unload the module classes,
-	 * should not be used to load in new modules
-	 * or load new versions of existing ones.
+	 * Shuts down and loads all modules.
+	 * Modules are loaded from their jars again, so new modules and new versions of existing ones are loaded,
+	 * but all modules are unavailable while this runs. Use reloadModule() to replace a single jar without downtime.
 	 * @throws IOException if loading modules fails
 	 * @throws ZipException if reading the modules fails
 	 * @since 0.1
 	 */
-	public static void reloadModules() throws ZipException, IOException {
+	public static synchronized void reloadModules() throws ZipException, IOException {
 		shutdownModules();
 		loadModules();
 	}
 	
+	/**
+	 * Loads the current version of a module jar next to the version that is loaded, and replaces it without downtime.
+	 * The new version is initialized first, while the handlers it registers are held back.
+	 * Then the old version's handlers are removed and the new version's are added in a single change,
+	 * so every request sees one version or the other. Once the requests that started before the change are done,
+	 * or module-drain-timeout passed, the old version is shut down and its classes are released.
+	 * If the new version fails to initialize, the old version stays loaded.
+	 * Jars that are not loaded yet are loaded, and jars that no longer exist are unloaded.
+	 * Modules that use each other's classes should be reloaded together, since they keep the classes of the version they first used.
+	 * @param jar the jar
+	 * @return whether the new version was loaded, or the old version was unloaded
+	 * @since 1.1
+	 */
+	public static synchronized boolean reloadModule(File jar) {
+		boolean r = true;
+		ModuleClassLoader oldLoader = getClassLoader(jar);
+		TwisterModule[] oldModules = oldLoader == null ? new TwisterModule[0] : oldLoader.getModules();
+		ModuleClassLoader newLoader = null;
+		ArrayList<TwisterModule> newModules = new ArrayList<TwisterModule>();
+		ArrayList<Runnable> deferred = new ArrayList<Runnable>();
+		
+		if(jar.isFile()) {
+			Twister.current().logInfo("Loading new version of \""+jar.getName()+"\"...");
+			try {
+				newLoader = new ModuleClassLoader(jar, _DEPENDENCIES_);
+				ArrayList<String> classes = null;
+				JarFile jf = openJar(jar);
+				try {
+					classes = findModuleClasses(jf);
+				} finally {
+					jf.close();
+				}
+				for(String clazz : classes) {
+					TwisterModule module = instantiate(clazz, newLoader);
+					if(module != null && checkVersion(module)) {
+						newModules.add(module);
+					}
+				}
+			} catch(IOException | ZipException e) {
+				Twister.current().logError("Failed to read \""+jar.getName()+"\": "+e.getMessage());
+				r = false;
+			}
+			
+			// Initialize the new version by priority, holding back its handlers until it is installed
+			newModules.sort((a, b) -> Integer.compare(b.modulePriority(), a.modulePriority()));
+			ArrayList<TwisterModule> initialized = new ArrayList<TwisterModule>();
+			if(r) {
+				_DEFERRED_.set(deferred);
+				try {
+					for(TwisterModule module : newModules) {
+						if(initializeModule(module)) {
+							initialized.add(module);
+						} else {
+							r = false;
+							break;
+						}
+					}
+				} finally {
+					_DEFERRED_.remove();
+				}
+			}
+			
+			if(!r) {
+				shutdownReplaced(initialized.toArray(new TwisterModule[0]));
+				_OWNERS_.values().removeAll(newModules);
+				if(newLoader != null) {
+					close(newLoader);
+				}
+				if(oldLoader != null) {
+					Twister.current().logWarning("The loaded version of \""+jar.getName()+"\" will stay loaded.");
+				}
+			}
+		} else if(oldLoader == null) {
+			Twister.current().logError("Module jar \""+jar.getPath()+"\" does not exist.");
+			r = false;
+		}
+		
+		if(r) {
+			// Swap the old version's handlers for the new version's in a single change
+			Predicate<Object> old = handler -> Arrays.asList(oldModules).contains(getOwner(handler));
+			Twister.current().getHandlerRegistry().atomically(() -> {
+				Twister.current().removeHandlers(old);
+				HandlerMetrics.forget(old);
+				for(Runnable change : deferred) {
+					change.run();
+				}
+			});
+			
+			// Compiled documents may refer to the old version's classes
+			ScriptProcessor.clearTemplates();
+			
+			for(TwisterModule module : oldModules) {
+				_MODULES_.remove(module);
+				priority(module).remove(module);
+			}
+			for(TwisterModule module : newModules) {
+				_MODULES_.add(module);
+				priority(module).add(module);
+			}
+			if(newLoader != null) {
+				_LOADERS_.add(newLoader);
+			}
+			
+			if(oldLoader != null) {
+				_LOADERS_.remove(oldLoader);
+				
+				// The old version may still be handling requests that started before the swap
+				boolean drained = drain();
+				shutdownReplaced(oldModules);
+				if(drained) {
+					close(oldLoader);
+				} else {
+					Twister.current().logWarning("Requests were still running on the old version of \""+jar.getName()+"\" after module-drain-timeout, its classes will stay loaded");
+				}
+			}
+			
+			Twister.current().logInfo((newLoader == null ? "Unloaded \"" : "Loaded new version of \"")+jar.getName()+"\".");
+		}
+		
+		return r;
+	}
+	
+	// Shuts down modules that were replaced or failed to load, dropping the handler changes they make
+	private static void shutdownReplaced(TwisterModule[] modules) {
+		_DEFERRED_.set(new ArrayList<Runnable>());
+		try {
+			for(TwisterModule module : modules) {
+				shutdownModule(module);
+			}
+		} finally {
+			_DEFERRED_.remove();
+		}
+		
+		_OWNERS_.values().removeAll(Arrays.asList(modules));
+	}
+	
 	/**
 	 * Returns all currently loaded HIGH priority TwisterModules
 	 * @return all currently loaded HIGH priority TwisterModules
@@ -318,6 +703,112 @@ Twister.current().logInfo("Loading modules...");
 		return _MODULES_.toArray(new TwisterModule[0]);
 	}
 	
+	/**
+	 * Returns the module that is being initialized or shut down on the current thread
+	 * @return the module, or null if no module is being initialized or shut down on this thread
+	 * @since 1.1
+	 */
+	public static TwisterModule getCurrentModule() {
+		return _CURRENT_.get();
+	}
+	
+	/**
+	 * Returns the loaded module that the specified class was loaded from the same jar as
+	 * @param cls the class
+	 * @return the module, or null if the class does not come from a module's jar
+	 * @since 1.1
+	 */
+	public static TwisterModule findModule(Class<?> cls) {
+		TwisterModule r = null;
+		
+		if(cls.getClassLoader() instanceof ModuleClassLoader) {
+			TwisterModule[] modules = ((ModuleClassLoader) cls.getClassLoader()).getModules();
+			if(modules.length > 0) {
+				r = modules[0];
+			}
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Records the module being initialized or shut down on the current thread as the owner of a handler.
+	 * Called when handlers, DocumentProcessors, and VariableProviders are registered,
+	 * so they can be removed when their module is reloaded.
+	 * @param handler the handler
+	 * @since 1.1
+	 */
+	public static void claim(Object handler) {
+		TwisterModule module = _CURRENT_.get();
+		if(module != null) {
+			_OWNERS_.putIfAbsent(handler, module);
+		}
+	}
+	
+	/**
+	 * Returns the module that owns a handler
+	 * @param handler the handler
+	 * @return the module that registered the handler, or the module whose jar the handler's class comes from,
+	 * or null if the handler does not belong to a module
+	 * @since 1.1
+	 */
+	public static TwisterModule getOwner(Object handler) {
+		TwisterModule r = _OWNERS_.get(handler);
+		if(r == null) {
+			// Adapters belong to the module of the handler they adapt
+			Object owned = handler instanceof AsyncAdapter ? ((AsyncAdapter) handler).getHandler() : handler;
+			r = _OWNERS_.get(owned);
+			if(r == null) {
+				r = findModule(owned.getClass());
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * Holds back a handler change while a new version of a module is being initialized on the current thread,
+	 * so it can be applied when the new version replaces the old one
+	 * @param change the change
+	 * @return whether the change was held back, or false if it should be applied now
+	 * @since 1.1
+	 */
+	public static boolean defer(Runnable change) {
+		ArrayList<Runnable> deferred = _DEFERRED_.get();
+		if(deferred != null) {
+			TwisterModule module = _CURRENT_.get();
+			deferred.add(() -> {
+				_CURRENT_.set(module);
+				try {
+					change.run();
+				} finally {
+					_CURRENT_.remove();
+				}
+			});
+		}
+		return deferred != null;
+	}
+	
+	/**
+	 * Returns the class loaders of the loaded module jars
+	 * @return the class loaders
+	 * @since 1.1
+	 */
+	public static ModuleClassLoader[] getClassLoaders() {
+		return _LOADERS_.toArray(new ModuleClassLoader[0]);
+	}
+	
+	// Returns the class loader of a loaded jar, or null if it is not loaded
+	private static ModuleClassLoader getClassLoader(File jar) {
+		ModuleClassLoader r = null;
+		for(ModuleClassLoader loader : _LOADERS_) {
+			if(loader.getJar().getAbsoluteFile().equals(jar.getAbsoluteFile())) {
+				r = loader;
+				break;
+			}
+		}
+		return r;
+	}
+	
 	/**
 	 * Checks whether the specified Twister version is compatible this one
 	 * @param version the version to check
@@ -0,0 +1,83 @@
+package net.termer.twister.module;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.termer.twister.Settings;
+import net.termer.twister.caching.DomainWatcher;
+
+/**
+ * Reloads module jars when they change, while module-hot-reload is enabled in twister.ini
+ * @author termer
+ * @since 1.1
+ */
+class ModuleWatcher implements DomainWatcher.Listener {
+	// How long a jar must stay unchanged before it is reloaded, so jars are not read while still being copied
+	private static final long QUIET_TIME = 1000;
+	
+	private File _DIR_ = null;
+	private LinkedHashSet<String> _CHANGED_ = new LinkedHashSet<String>();
+	private boolean _MISSED_ = false;
+	private ScheduledFuture<?> _PENDING_ = null;
+	private ScheduledExecutorService _EXECUTOR_ = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "Module Watcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	ModuleWatcher(File dir) {
+		_DIR_ = dir;
+	}
+	
+	public synchronized void changed(String path) {
+		if(path == null || (path.indexOf('/') < 0 && path.toLowerCase().endsWith(".jar"))) {
+			if(path == null) {
+				_MISSED_ = true;
+			} else {
+				_CHANGED_.add(path);
+			}
+			
+			if(_PENDING_ != null) {
+				_PENDING_.cancel(false);
+			}
+			_PENDING_ = _EXECUTOR_.schedule(this::reload, QUIET_TIME, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	// Reloads the jars that changed
+	private void reload() {
+		LinkedHashSet<File> jars = new LinkedHashSet<File>();
+		synchronized(this) {
+			for(String path : _CHANGED_) {
+				jars.add(new File(_DIR_, path));
+			}
+			
+			// If changes were missed, every jar may have changed, been added, or been deleted
+			if(_MISSED_) {
+				for(ModuleClassLoader loader : ModuleManager.getClassLoaders()) {
+					jars.add(loader.getJar());
+				}
+				File[] files = _DIR_.listFiles();
+				if(files != null) {
+					for(File file : files) {
+						if(file.getName().toLowerCase().endsWith(".jar")) {
+							jars.add(file);
+						}
+					}
+				}
+			}
+			_CHANGED_.clear();
+			_MISSED_ = false;
+		}
+		
+		if(Boolean.parseBoolean(Settings.get("module-hot-reload"))) {
+			for(File jar : jars) {
+				ModuleManager.reloadModule(jar);
+			}
+		}
+	}
+}
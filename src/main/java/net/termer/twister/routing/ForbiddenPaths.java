@@ -0,0 +1,121 @@
+package net.termer.twister.routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled list of forbidden paths, as read from forbiddenpaths.ini.
+ * Lines are either a path, which is forbidden on all domains, or a domain and a path
+ * separated by &gt;, such as "example.com&gt;/private", which is only forbidden on that domain.
+ * Each domain gets its own PrefixTrie containing both its own and the global paths,
+ * so checking a request costs one trie walk.
+ * @author termer
+ * @since 1.1
+ */
+public class ForbiddenPaths {
+	private PrefixTrie _GLOBAL_ = new PrefixTrie();
+	private SegmentTable<PrefixTrie> _DOMAINS_ = new SegmentTable<PrefixTrie>();
+	
+	/**
+	 * Compiles the provided forbidden paths
+	 * @param lines the lines of forbiddenpaths.ini
+	 * @param linkedDomains the linked domains, so paths forbidden on a domain are also forbidden on domains linked to it
+	 * @since 1.1
+	 */
+	public ForbiddenPaths(List<String> lines, Map<String, String> linkedDomains) {
+		HashMap<String, ArrayList<String>> domainPaths = new HashMap<String, ArrayList<String>>();
+		ArrayList<String> globalPaths = new ArrayList<String>();
+		
+		for(String line : lines) {
+			line = line.trim();
+			if(line.length() < 1) {
+				continue;
+			}
+			
+			int separator = line.indexOf('>');
+			if(separator < 0) {
+				globalPaths.add(line);
+			} else {
+				String domain = line.substring(0, separator).trim().toLowerCase();
+				if(!domainPaths.containsKey(domain)) {
+					domainPaths.put(domain, new ArrayList<String>());
+				}
+				domainPaths.get(domain).add(line.substring(separator+1).trim());
+			}
+		}
+		
+		for(String path : globalPaths) {
+			_GLOBAL_.add(path);
+		}
+		
+		// Requests to a linked domain are served from the domain it links to
+		if(linkedDomains != null) {
+			for(Map.Entry<String, String> link : linkedDomains.entrySet()) {
+				ArrayList<String> target = domainPaths.get(link.getValue().toLowerCase());
+				if(target != null) {
+					String domain = link.getKey().toLowerCase();
+					if(!domainPaths.containsKey(domain)) {
+						domainPaths.put(domain, new ArrayList<String>());
+					}
+					domainPaths.get(domain).addAll(target);
+				}
+			}
+		}
+		
+		for(Map.Entry<String, ArrayList<String>> entry : domainPaths.entrySet()) {
+			PrefixTrie trie = new PrefixTrie();
+			for(String path : globalPaths) {
+				trie.add(path);
+			}
+			for(String path : entry.getValue()) {
+				trie.add(path);
+			}
+			_DOMAINS_.put(entry.getKey(), trie);
+		}
+	}
+	
+	/**
+	 * Returns whether the path is forbidden on the specified host
+	 * @param host the value of the request's Host header, with or without a port
+	 * @param path the requested path
+	 * @return whether the path is forbidden
+	 * @since 1.1
+	 */
+	public boolean isForbidden(String host, String path) {
+		PrefixTrie trie = _GLOBAL_;
+		
+		if(host != null && _DOMAINS_.size() > 0) {
+			// Leave out the port
+			int end = host.startsWith("[") ? host.indexOf(']')+1 : host.indexOf(':');
+			if(end < 1) {
+				end = host.length();
+			}
+			
+			// Domains are stored in lower case
+			for(int i = 0; i < end; i++) {
+				if(Character.isUpperCase(host.charAt(i))) {
+					host = host.substring(0, end).toLowerCase();
+					break;
+				}
+			}
+			
+			PrefixTrie domainTrie = _DOMAINS_.get(host, 0, end);
+			if(domainTrie != null) {
+				trie = domainTrie;
+			}
+		}
+		
+		return trie.matches(path);
+	}
+	
+	/**
+	 * Returns whether any paths are forbidden
+	 * @return whether any paths are forbidden
+	 * @since 1.1
+	 */
+	public boolean isEmpty() {
+		return _GLOBAL_.size() < 1 && _DOMAINS_.size() < 1;
+	}
+}
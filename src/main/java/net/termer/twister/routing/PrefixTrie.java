@@ -0,0 +1,144 @@
+package net.termer.twister.routing;
+
+import java.util.ArrayList;
+
+/**
+ * Segment trie used to check whether a path starts with any of a set of prefixes.
+ * Prefixes are matched by whole path segments, so the prefix /private matches
+ * /private and /private/notes.txt, but not /privateer.
+ * Prefix segments can use * as wildcards, which match any text inside of a single segment,
+ * and a segment of ** matches any amount of segments, so /**&#47;.git matches a .git directory anywhere.
+ * Checking a path costs one walk over its segments and does not allocate.
+ * @author termer
+ * @since 1.1
+ */
+public class PrefixTrie {
+	private Node _ROOT_ = new Node();
+	private int _SIZE_ = 0;
+	
+	/**
+	 * Adds a prefix to the trie
+	 * @param prefix the prefix, using * and ** as wildcards
+	 * @since 1.1
+	 */
+	public void add(String prefix) {
+		Node node = _ROOT_;
+		
+		for(String segment : prefix.split("/")) {
+			if(segment.length() == 0) {
+				// Empty segments are skipped, just like when matching
+				continue;
+			}
+			
+			Node child = null;
+			if(segment.equals("**")) {
+				if(node.anyDepth == null) {
+					node.anyDepth = new Node();
+				}
+				child = node.anyDepth;
+			} else if(segment.indexOf('*') > -1) {
+				for(Node patternNode : node.patterns) {
+					if(patternNode.pattern.source.equals(segment)) {
+						child = patternNode;
+						break;
+					}
+				}
+				if(child == null) {
+					child = new Node();
+					child.pattern = new SegmentPattern(segment);
+					node.patterns.add(child);
+				}
+			} else {
+				child = node.literals.get(segment, 0, segment.length());
+				if(child == null) {
+					child = new Node();
+					node.literals.put(segment, child);
+				}
+			}
+			node = child;
+		}
+		
+		if(!node.terminal) {
+			node.terminal = true;
+			_SIZE_++;
+		}
+	}
+	
+	/**
+	 * Returns the amount of prefixes in the trie
+	 * @return the amount of prefixes
+	 * @since 1.1
+	 */
+	public int size() {
+		return _SIZE_;
+	}
+	
+	/**
+	 * Returns whether the path starts with any prefix in the trie
+	 * @param path the path to check
+	 * @return whether the path starts with a prefix
+	 * @since 1.1
+	 */
+	public boolean matches(String path) {
+		return path != null && matches(_ROOT_, path, 0);
+	}
+	
+	private static boolean matches(Node node, String path, int start) {
+		if(node.terminal) {
+			return true;
+		}
+		
+		// Skip slashes, so //private is treated like /private
+		while(start < path.length() && path.charAt(start) == '/') {
+			start++;
+		}
+		
+		// ** matches any amount of segments, including none
+		if(node.anyDepth != null) {
+			int pos = start;
+			while(true) {
+				if(matches(node.anyDepth, path, pos)) {
+					return true;
+				}
+				int next = path.indexOf('/', pos);
+				if(next < 0) {
+					break;
+				}
+				pos = next+1;
+			}
+		}
+		
+		if(start >= path.length()) {
+			return false;
+		}
+		int end = path.indexOf('/', start);
+		if(end < 0) {
+			end = path.length();
+		}
+		
+		// Literal segments first
+		Node child = node.literals.get(path, start, end);
+		if(child != null && matches(child, path, end)) {
+			return true;
+		}
+		
+		// Then wildcard segments
+		for(int i = 0; i < node.patterns.size(); i++) {
+			child = node.patterns.get(i);
+			if(child.pattern.match(path, start, end) && matches(child, path, end)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	// A node in the trie, representing one path segment
+	private static class Node {
+		private SegmentTable<Node> literals = new SegmentTable<Node>();
+		private ArrayList<Node> patterns = new ArrayList<Node>();
+		private Node anyDepth = null;
+		private SegmentPattern pattern = null;
+		private boolean terminal = false;
+	}
+}
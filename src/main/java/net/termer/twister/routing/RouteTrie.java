@@ -0,0 +1,309 @@
+package net.termer.twister.routing;
+
+import java.util.ArrayList;
+
+/**
+ * Segment trie used to match request paths against routes.
+ * Routes use * as wildcards, which match any text inside of a single path segment.
+ * Routes are compiled into the trie when they are added or removed, so looking up
+ * a path costs one walk over the path's segments, no matter how many routes are registered.
+ * Paths that do not match any route are looked up without allocating.
+ * @author termer
+ * @since 1.1
+ */
+public class RouteTrie<T> {
+	// Per-thread scratch space for wildcard start and end indexes
+	private static ThreadLocal<int[]> _CAPTURES_ = new ThreadLocal<int[]>();
+	
+	private Node<T> _ROOT_ = new Node<T>();
+	private int _SIZE_ = 0;
+	private int _MAX_WILDCARDS_ = 0;
+	
+	/**
+	 * Adds a route to the trie, replacing the value of the route if it is already present
+	 * @param route the route, using * as wildcards
+	 * @param value the value to associate with the route
+	 * @since 1.1
+	 */
+	public void put(String route, T value) {
+		Node<T> node = _ROOT_;
+		int wildcards = 0;
+		
+		for(String segment : segments(route)) {
+			if(segment.indexOf('*') > -1) {
+				SegmentPattern pattern = new SegmentPattern(segment);
+				Node<T> child = null;
+				for(Node<T> patternNode : node.patterns) {
+					if(patternNode.pattern.source.equals(segment)) {
+						child = patternNode;
+						break;
+					}
+				}
+				if(child == null) {
+					child = new Node<T>();
+					child.pattern = pattern;
+					node.patterns.add(child);
+				}
+				wildcards += pattern.wildcards();
+				node = child;
+			} else {
+				Node<T> child = node.literals.get(segment, 0, segment.length());
+				if(child == null) {
+					child = new Node<T>();
+					node.literals.put(segment, child);
+				}
+				node = child;
+			}
+		}
+		
+		if(node.value == null) {
+			_SIZE_++;
+		}
+		node.value = value;
+		node.route = route;
+		node.wildcards = wildcards;
+		if(wildcards > _MAX_WILDCARDS_) {
+			_MAX_WILDCARDS_ = wildcards;
+		}
+	}
+	
+	/**
+	 * Removes a route from the trie
+	 * @param route the route to remove
+	 * @return the value that was associated with the route, or null if the route was not present
+	 * @since 1.1
+	 */
+	public T remove(String route) {
+		String[] segments = segments(route);
+		ArrayList<Node<T>> trail = new ArrayList<Node<T>>();
+		Node<T> node = _ROOT_;
+		trail.add(node);
+		
+		for(String segment : segments) {
+			Node<T> child = null;
+			if(segment.indexOf('*') > -1) {
+				for(Node<T> patternNode : node.patterns) {
+					if(patternNode.pattern.source.equals(segment)) {
+						child = patternNode;
+						break;
+					}
+				}
+			} else {
+				child = node.literals.get(segment, 0, segment.length());
+			}
+			if(child == null) {
+				return null;
+			}
+			node = child;
+			trail.add(node);
+		}
+		
+		T value = node.value;
+		if(value != null) {
+			node.value = null;
+			node.route = null;
+			_SIZE_--;
+			
+			// Prune nodes that no longer lead to any route
+			for(int i = trail.size()-1; i > 0; i--) {
+				Node<T> child = trail.get(i);
+				if(child.value != null || child.literals.size() > 0 || child.patterns.size() > 0) {
+					break;
+				}
+				Node<T> parent = trail.get(i-1);
+				if(child.pattern == null) {
+					parent.literals.remove(segments[i-1]);
+				} else {
+					parent.patterns.remove(child);
+				}
+			}
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * Returns the value associated with the exact route provided
+	 * @param route the route
+	 * @return the value for the route, or null if the route is not present
+	 * @since 1.1
+	 */
+	public T get(String route) {
+		Node<T> node = _ROOT_;
+		for(String segment : segments(route)) {
+			Node<T> child = null;
+			if(segment.indexOf('*') > -1) {
+				for(Node<T> patternNode : node.patterns) {
+					if(patternNode.pattern.source.equals(segment)) {
+						child = patternNode;
+						break;
+					}
+				}
+			} else {
+				child = node.literals.get(segment, 0, segment.length());
+			}
+			if(child == null) {
+				return null;
+			}
+			node = child;
+		}
+		return node.value;
+	}
+	
+	/**
+	 * Returns the amount of routes in the trie
+	 * @return the amount of routes in the trie
+	 * @since 1.1
+	 */
+	public int size() {
+		return _SIZE_;
+	}
+	
+	/**
+	 * Returns whether the path matches any route in the trie
+	 * @param path the path to check
+	 * @return whether the path matches a route
+	 * @since 1.1
+	 */
+	public boolean matches(String path) {
+		return find(path) != null;
+	}
+	
+	/**
+	 * Matches the specified path against the routes in the trie.
+	 * Literal segments are preferred over wildcard segments when both match.
+	 * @param path the path to match
+	 * @return the match, or null if no route matches the path
+	 * @since 1.1
+	 */
+	public Match<T> match(String path) {
+		Node<T> node = find(path);
+		Match<T> match = null;
+		
+		if(node != null) {
+			int[] captures = _CAPTURES_.get();
+			
+			// Empty wildcards are left out, just like StringFilter.processRoute() does
+			int filled = 0;
+			for(int i = 0; i < node.wildcards; i++) {
+				if(captures[i*2+1] > captures[i*2]) {
+					filled++;
+				}
+			}
+			String[] wildcards = new String[filled];
+			int index = 0;
+			for(int i = 0; i < node.wildcards; i++) {
+				if(captures[i*2+1] > captures[i*2]) {
+					wildcards[index++] = path.substring(captures[i*2], captures[i*2+1]);
+				}
+			}
+			
+			match = new Match<T>(node.value, node.route, wildcards);
+		}
+		
+		return match;
+	}
+	
+	// Walks the trie and returns the node of the matched route, filling in the capture scratch space
+	private Node<T> find(String path) {
+		int[] captures = _CAPTURES_.get();
+		if(captures == null || captures.length < _MAX_WILDCARDS_*2) {
+			captures = new int[Math.max(16, _MAX_WILDCARDS_*2)];
+			_CAPTURES_.set(captures);
+		}
+		
+		int start = path.startsWith("/") ? 1 : 0;
+		return find(_ROOT_, path, start, captures, 0);
+	}
+	
+	private Node<T> find(Node<T> node, String path, int start, int[] captures, int captured) {
+		int end = path.indexOf('/', start);
+		boolean last = end < 0;
+		if(last) {
+			end = path.length();
+		}
+		
+		// Literal segments first
+		Node<T> child = node.literals.get(path, start, end);
+		if(child != null) {
+			Node<T> result = last ? (child.value == null ? null : child) : find(child, path, end+1, captures, captured);
+			if(result != null) {
+				return result;
+			}
+		}
+		
+		// Then wildcard segments
+		for(int i = 0; i < node.patterns.size(); i++) {
+			child = node.patterns.get(i);
+			if(child.pattern.match(path, start, end, captures, captured)) {
+				int nowCaptured = captured+child.pattern.wildcards();
+				Node<T> result = last ? (child.value == null ? null : child) : find(child, path, end+1, captures, nowCaptured);
+				if(result != null) {
+					return result;
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	// Splits a route into its segments, ignoring the leading slash
+	private static String[] segments(String route) {
+		String tmp = route.startsWith("/") ? route.substring(1) : route;
+		return tmp.split("/", -1);
+	}
+	
+	/**
+	 * Result of matching a path against a RouteTrie
+	 * @author termer
+	 * @since 1.1
+	 */
+	public static class Match<T> {
+		private T _VALUE_ = null;
+		private String _ROUTE_ = null;
+		private String[] _WILDCARDS_ = null;
+		
+		private Match(T value, String route, String[] wildcards) {
+			_VALUE_ = value;
+			_ROUTE_ = route;
+			_WILDCARDS_ = wildcards;
+		}
+		
+		/**
+		 * Returns the value associated with the matched route
+		 * @return the value associated with the matched route
+		 * @since 1.1
+		 */
+		public T getValue() {
+			return _VALUE_;
+		}
+		
+		/**
+		 * Returns the route that was matched
+		 * @return the route that was matched
+		 * @since 1.1
+		 */
+		public String getRoute() {
+			return _ROUTE_;
+		}
+		
+		/**
+		 * Returns the text filled in for the wildcards in the matched route
+		 * @return the text filled in for the wildcards
+		 * @since 1.1
+		 */
+		public String[] getWildcards() {
+			return _WILDCARDS_;
+		}
+	}
+	
+	// A node in the trie, representing one path segment
+	private static class Node<T> {
+		private SegmentTable<Node<T>> literals = new SegmentTable<Node<T>>();
+		private ArrayList<Node<T>> patterns = new ArrayList<Node<T>>();
+		private SegmentPattern pattern = null;
+		private T value = null;
+		private String route = null;
+		private int wildcards = 0;
+	}
+}
@@ -0,0 +1,67 @@
+package net.termer.twister.routing;
+
+/**
+ * A path segment containing wildcards, such as "*" or "file-*.png".
+ * Each wildcard matches any text inside of a single segment.
+ * @author termer
+ * @since 1.1
+ */
+class SegmentPattern {
+	String source = null;
+	private String[] pieces = null;
+	
+	SegmentPattern(String segment) {
+		source = segment;
+		pieces = segment.split("\\*", -1);
+	}
+	
+	int wildcards() {
+		return pieces.length-1;
+	}
+	
+	// Matches the segment between start and end
+	boolean match(String path, int start, int end) {
+		return match(path, start, end, null, 0);
+	}
+	
+	// Matches the segment between start and end, storing the wildcard bounds in captures if not null
+	boolean match(String path, int start, int end, int[] captures, int captured) {
+		String first = pieces[0];
+		String lastPiece = pieces[pieces.length-1];
+		if(end-start < first.length()+lastPiece.length()) {
+			return false;
+		}
+		if(!path.regionMatches(start, first, 0, first.length()) || !path.regionMatches(end-lastPiece.length(), lastPiece, 0, lastPiece.length())) {
+			return false;
+		}
+		return matchPieces(path, start+first.length(), end-lastPiece.length(), 1, captures, captured);
+	}
+	
+	private boolean matchPieces(String path, int pos, int end, int piece, int[] captures, int captured) {
+		if(piece == pieces.length-1) {
+			// Only the last wildcard remains, which takes everything up to the last piece
+			if(captures != null) {
+				captures[captured*2] = pos;
+				captures[captured*2+1] = end;
+			}
+			return true;
+		}
+		
+		// Wildcards are greedy, so try the rightmost occurrence of the next piece first
+		String next = pieces[piece];
+		int at = end-next.length();
+		while(at >= pos) {
+			if(path.regionMatches(at, next, 0, next.length())) {
+				if(captures != null) {
+					captures[captured*2] = pos;
+					captures[captured*2+1] = at;
+				}
+				if(matchPieces(path, at+next.length(), end, piece+1, captures, captured+1)) {
+					return true;
+				}
+			}
+			at--;
+		}
+		return false;
+	}
+}
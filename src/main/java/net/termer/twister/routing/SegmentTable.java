@@ -0,0 +1,88 @@
+package net.termer.twister.routing;
+
+/**
+ * Open addressing hash table keyed by String that can be looked up using a region of another String,
+ * so path segments can be looked up without creating substrings.
+ * @author termer
+ * @since 1.1
+ */
+class SegmentTable<V> {
+	private String[] keys = new String[4];
+	private Object[] values = new Object[4];
+	private int count = 0;
+	
+	int size() {
+		return count;
+	}
+	
+	@SuppressWarnings("unchecked")
+	V get(String str, int start, int end) {
+		int len = end-start;
+		int hash = 0;
+		for(int i = start; i < end; i++) {
+			hash = 31*hash+str.charAt(i);
+		}
+		int mask = keys.length-1;
+		int i = spread(hash) & mask;
+		while(keys[i] != null) {
+			if(keys[i].length() == len && keys[i].regionMatches(0, str, start, len)) {
+				return (V) values[i];
+			}
+			i = (i+1) & mask;
+		}
+		return null;
+	}
+	
+	void put(String key, V value) {
+		if((count+1)*2 > keys.length) {
+			resize(keys.length*2);
+		}
+		int mask = keys.length-1;
+		int i = spread(key.hashCode()) & mask;
+		while(keys[i] != null) {
+			if(keys[i].equals(key)) {
+				values[i] = value;
+				return;
+			}
+			i = (i+1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		count++;
+	}
+	
+	void remove(String key) {
+		String[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new String[oldKeys.length];
+		values = new Object[oldValues.length];
+		count = 0;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != null && !oldKeys[i].equals(key)) {
+				put(oldKeys[i], castValue(oldValues[i]));
+			}
+		}
+	}
+	
+	private void resize(int capacity) {
+		String[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new String[capacity];
+		values = new Object[capacity];
+		count = 0;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != null) {
+				put(oldKeys[i], castValue(oldValues[i]));
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private V castValue(Object value) {
+		return (V) value;
+	}
+	
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,178 @@
+package net.termer.twister.scripting;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bsh.Interpreter;
+import bsh.NameSpace;
+
+/**
+ * Bounded pool of BeanShell interpreters.
+ * Creating an interpreter sets up a class manager and a global namespace with default imports,
+ * which is expensive to do for every document. Pooled interpreters keep their class manager,
+ * and have their global namespace cleared when they are returned, so no variables, methods,
+ * or imports from one document are visible to the next.
+ * Interpreters that stay unused for longer than the idle timeout are dropped.
+ * @author termer
+ * @since 1.1
+ */
+public class InterpreterPool {
+	// Idle interpreters, most recently used first
+	private ArrayDeque<Pooled> _IDLE_ = new ArrayDeque<Pooled>();
+	
+	private int _MAX_SIZE_ = 0;
+	private long _IDLE_TIMEOUT_ = 0;
+	
+	// Statistics
+	private AtomicLong _CREATED_ = new AtomicLong();
+	private AtomicLong _REUSED_ = new AtomicLong();
+	
+	/**
+	 * Creates a new pool with the provided limits
+	 * @param maxSize the maximum amount of idle interpreters to keep, 0 to disable pooling
+	 * @param idleTimeout the amount of milliseconds an interpreter can stay idle before it is dropped
+	 * @since 1.1
+	 */
+	public InterpreterPool(int maxSize, long idleTimeout) {
+		_MAX_SIZE_ = maxSize;
+		_IDLE_TIMEOUT_ = idleTimeout;
+	}
+	
+	/**
+	 * Changes the limits of the pool, dropping idle interpreters if the pool is now too large
+	 * @param maxSize the maximum amount of idle interpreters to keep, 0 to disable pooling
+	 * @param idleTimeout the amount of milliseconds an interpreter can stay idle before it is dropped
+	 * @since 1.1
+	 */
+	public synchronized void configure(int maxSize, long idleTimeout) {
+		_MAX_SIZE_ = maxSize;
+		_IDLE_TIMEOUT_ = idleTimeout;
+		while(_IDLE_.size() > maxSize) {
+			_IDLE_.pollLast();
+		}
+		evictIdle();
+	}
+	
+	/**
+	 * Takes an interpreter from the pool, creating a new one if none are idle.
+	 * The interpreter must be given back with release() once it is no longer used.
+	 * @return an interpreter with an empty global namespace
+	 * @since 1.1
+	 */
+	public Interpreter acquire() {
+		Pooled pooled = null;
+		synchronized(this) {
+			pooled = _IDLE_.pollFirst();
+		}
+		
+		Interpreter inter = null;
+		if(pooled == null) {
+			inter = new Interpreter();
+			_CREATED_.incrementAndGet();
+		} else {
+			inter = pooled.interpreter;
+			_REUSED_.incrementAndGet();
+		}
+		
+		return inter;
+	}
+	
+	/**
+	 * Gives an interpreter back to the pool, clearing its global namespace.
+	 * The interpreter is dropped if the pool is full.
+	 * @param inter the interpreter
+	 * @since 1.1
+	 */
+	public void release(Interpreter inter) {
+		if(_MAX_SIZE_ < 1) {
+			return;
+		}
+		
+		try {
+			// Keep the bsh system object, which is only created when an interpreter is constructed
+			Object bsh = inter.get("bsh");
+			
+			// Drops variables, methods, and imports, then loads the default imports again
+			NameSpace ns = inter.getNameSpace();
+			ns.clear();
+			if(bsh != null) {
+				inter.set("bsh", bsh);
+			}
+		} catch(Exception e) {
+			// An interpreter that cannot be reset is not reused
+			return;
+		}
+		
+		synchronized(this) {
+			evictIdle();
+			if(_IDLE_.size() < _MAX_SIZE_) {
+				_IDLE_.addFirst(new Pooled(inter, System.currentTimeMillis()));
+			}
+		}
+	}
+	
+	/**
+	 * Drops interpreters that have been idle for longer than the idle timeout
+	 * @since 1.1
+	 */
+	public synchronized void evictIdle() {
+		long oldest = System.currentTimeMillis()-_IDLE_TIMEOUT_;
+		
+		// The least recently used interpreters are at the end
+		Iterator<Pooled> it = _IDLE_.descendingIterator();
+		while(it.hasNext()) {
+			if(it.next().released < oldest) {
+				it.remove();
+			} else {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Drops all idle interpreters
+	 * @since 1.1
+	 */
+	public synchronized void clear() {
+		_IDLE_.clear();
+	}
+	
+	/**
+	 * Returns the amount of interpreters currently idle in the pool
+	 * @return the amount of idle interpreters
+	 * @since 1.1
+	 */
+	public synchronized int getIdleCount() {
+		return _IDLE_.size();
+	}
+	
+	/**
+	 * Returns the amount of interpreters that had to be created
+	 * @return the amount of interpreters created
+	 * @since 1.1
+	 */
+	public long getCreated() {
+		return _CREATED_.get();
+	}
+	
+	/**
+	 * Returns the amount of times an idle interpreter was reused
+	 * @return the amount of reuses
+	 * @since 1.1
+	 */
+	public long getReused() {
+		return _REUSED_.get();
+	}
+	
+	// An idle interpreter and the time it was given back
+	private static class Pooled {
+		private Interpreter interpreter = null;
+		private long released = 0;
+		
+		private Pooled(Interpreter interpreter, long released) {
+			this.interpreter = interpreter;
+			this.released = released;
+		}
+	}
+}
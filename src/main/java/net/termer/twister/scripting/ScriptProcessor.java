@@ -2,16 +2,21 @@ package net.termer.twister.scripting;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 
 import bsh.EvalError;
 import bsh.Interpreter;
 import net.termer.twister.Settings;
 import net.termer.twister.Twister;
-import net.termer.twister.document.DocumentBuilder;
 import net.termer.twister.document.DocumentProcessor;
 import net.termer.twister.document.HTMLDocumentResponse;
+import net.termer.twister.metrics.HandlerMetrics;
+import net.termer.twister.module.ModuleManager;
+import net.termer.twister.utils.FileLoader;
 import net.termer.twister.utils.Reader;
 import spark.Request;
 import spark.Response;
@@ -23,8 +28,27 @@ import spark.Response;
  * @since 1.1
  */
 public class ScriptProcessor implements DocumentProcessor {
-	// The list of VariableProviders to be executed before a document is processed for scripting
-	private static ArrayList<VariableProvider> _VarProviders = new ArrayList<VariableProvider>();
+	// The list of VariableProviders to be executed before a document is processed for scripting,
+	// which modules may register while documents are being processed
+	private static CopyOnWriteArrayList<VariableProvider> _VarProviders = new CopyOnWriteArrayList<VariableProvider>();
+	
+	/**
+	 * The maximum amount of compiled documents to keep cached
+	 * @since 1.1
+	 */
+	public static final int MAX_TEMPLATES = 512;
+	
+	// Interpreters reused between documents, limits are applied from twister.ini
+	private static InterpreterPool _POOL_ = new InterpreterPool(0, 0);
+	
+	// Compiled documents, in least recently used order
+	private static LinkedHashMap<String,ScriptTemplate> _TEMPLATES_ = new LinkedHashMap<String,ScriptTemplate>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String,ScriptTemplate> eldest) {
+			return size() > MAX_TEMPLATES;
+		}
+	};
 	
 	/**
 	 * Registers a new VariableProvider for providing data to scripts
@@ -32,7 +56,11 @@ public class ScriptProcessor implements DocumentProcessor {
 	 * @since 1.1
 	 */
 	public static void addVariableProvider(VariableProvider provider) {
-		_VarProviders.add(provider);
+		ModuleManager.claim(provider);
+		if(!ModuleManager.defer(() -> addVariableProvider(provider))) {
+			HandlerMetrics.register(provider, HandlerMetrics.VARIABLE_PROVIDER);
+			_VarProviders.add(provider);
+		}
 	}
 	
 	/**
@@ -41,7 +69,30 @@ public class ScriptProcessor implements DocumentProcessor {
 	 * @since 1.1
 	 */
 	public static void removeVariableProvider(VariableProvider provider) {
-		_VarProviders.remove(provider);
+		if(!ModuleManager.defer(() -> removeVariableProvider(provider))) {
+			_VarProviders.remove(provider);
+			HandlerMetrics.forgetRemoved(handler -> handler == provider);
+		}
+	}
+	
+	/**
+	 * Removes all VariableProviders that match a filter
+	 * @param filter returns true for the providers to remove
+	 * @since 1.1
+	 */
+	public static void removeVariableProviders(Predicate<Object> filter) {
+		_VarProviders.removeIf(filter);
+		HandlerMetrics.forgetRemoved(filter);
+	}
+	
+	/**
+	 * Returns whether an object is registered as a VariableProvider
+	 * @param provider the object
+	 * @return whether the object is a registered provider
+	 * @since 1.1
+	 */
+	public static boolean hasVariableProvider(Object provider) {
+		return _VarProviders.contains(provider);
 	}
 	
 	/**
@@ -52,9 +103,23 @@ public class ScriptProcessor implements DocumentProcessor {
 	 * @since 1.1
 	 */
 	public static String processFile(String path, HashMap<String, Object> variables, String domain) throws IOException {
-		String document = Reader.readFile(path);
+		File file = new File(path);
+		String key = "file:"+file.getAbsolutePath();
+		long modified = file.lastModified();
 		
-		return processDocument(document, variables, domain);
+		// Only read and compile the file if it changed since it was last compiled
+		ScriptTemplate template = null;
+		synchronized(_TEMPLATES_) {
+			template = _TEMPLATES_.get(key);
+		}
+		if(template == null || template.getModified() != modified || modified == 0) {
+			template = new ScriptTemplate(Reader.readFile(path), modified);
+			synchronized(_TEMPLATES_) {
+				_TEMPLATES_.put(key, template);
+			}
+		}
+		
+		return render(template, variables, domain);
 	}
 	
 	/**
@@ -65,51 +130,110 @@ public class ScriptProcessor implements DocumentProcessor {
 	 * @since 1.1
 	 */
 	public static String processDocument(String document, HashMap<String, Object> variables, String domain) {
-		String tmp = document;
+		return processDocument(document, document, variables, domain);
+	}
+	
+	/**
+	 * Method to process a document and its scripts, caching the compiled document under the provided key.
+	 * The cached document is reused for as long as the text of the document stays the same.
+	 * @param key the key to cache the compiled document under, such as the document's domain and path
+	 * @param document the document to process
+	 * @param variables the variables to make available to the scripts in the document
+	 * @param domain the domain the document belongs to
+	 * @return the processed document
+	 * @since 1.1
+	 */
+	public static String processDocument(String key, String document, HashMap<String, Object> variables, String domain) {
+		String r = document;
 		
-		if(tmp.contains("<?java") && tmp.contains("?>")) {
-			int index = 0;
-			boolean proceed = true;
-			Interpreter inter = new Interpreter();
-			
-			// Add variables
-			String[] keys = variables.keySet().toArray(new String[0]);
-			Object[] values = variables.values().toArray(new Object[0]);
-			
-			for(int i = 0; i < keys.length; i++) {
-				try {
-					inter.set(keys[i], values[i]);
-				} catch (EvalError ex) {
-					ex.printStackTrace();
+		if(document.contains("<?java") && document.contains("?>")) {
+			ScriptTemplate template = null;
+			synchronized(_TEMPLATES_) {
+				template = _TEMPLATES_.get(key);
+			}
+			if(template == null || !template.getSource().equals(document)) {
+				template = new ScriptTemplate(document);
+				synchronized(_TEMPLATES_) {
+					_TEMPLATES_.put(key, template);
 				}
 			}
 			
-			while(proceed) {
-				int opening = tmp.indexOf("<?java", index)+6;
-				int closing = tmp.indexOf("?>", index);
-				if(opening > 6 && closing > -1) {
-					String script = tmp.substring(opening, closing);
-					
-					Out result = new Out(domain);
+			r = render(template, variables, domain);
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Removes all compiled documents from the cache
+	 * @since 1.1
+	 */
+	public static void clearTemplates() {
+		synchronized(_TEMPLATES_) {
+			_TEMPLATES_.clear();
+		}
+	}
+	
+	/**
+	 * Returns the pool of interpreters used to run scripts
+	 * @return the interpreter pool
+	 * @since 1.1
+	 */
+	public static InterpreterPool getInterpreterPool() {
+		return _POOL_;
+	}
+	
+	/**
+	 * Applies the interpreter pool limits from twister.ini
+	 * @since 1.1
+	 */
+	public static void configureInterpreterPool() {
+		try {
+			_POOL_.configure(
+				Integer.parseInt(Settings.get("scripting-pool-size")),
+				Math.round(Double.parseDouble(Settings.get("scripting-pool-idle-timeout"))*1000)
+			);
+		} catch(NumberFormatException e) {
+			logError("Invalid scripting-pool-size or scripting-pool-idle-timeout in twister.ini, using the defaults");
+			_POOL_.configure(
+				Integer.parseInt(Settings.getDefault("scripting-pool-size")),
+				Math.round(Double.parseDouble(Settings.getDefault("scripting-pool-idle-timeout"))*1000)
+			);
+		}
+	}
+	
+	// Logs an error, also while Twister is still being created and current() is null
+	private static void logError(String msg) {
+		if(Twister.current() != null) {
+			Twister.current().logError(msg);
+		} else {
+			System.err.println(msg);
+		}
+	}
+	
+	// Renders a compiled document with a pooled interpreter holding the provided variables
+	private static String render(ScriptTemplate template, HashMap<String, Object> variables, String domain) {
+		String r = template.getSource();
+		
+		if(template.hasScripts()) {
+			Interpreter inter = _POOL_.acquire();
+			try {
+				// Add variables
+				for(String key : variables.keySet()) {
 					try {
-						inter.set("out", result);
-						inter.eval(script.trim());
-					} catch (Exception e) {
-						e.printStackTrace();
-						// Append error if enabled
-						if(Settings.get("append-scripting-exceptions").equalsIgnoreCase("true")) {
-							result.append(e.getMessage());
-						}
+						inter.set(key, variables.get(key));
+					} catch (EvalError ex) {
+						ex.printStackTrace();
 					}
-					tmp = tmp.replace("<?java"+script+"?>", result.toString());
-					index++;
-				} else {
-					proceed = false;
 				}
+				
+				r = template.render(inter, domain);
+			} finally {
+				_POOL_.release(inter);
 			}
 		}
 		
-		return tmp;
+		return r;
 	}
 	
 	// Method to process a document from an HTMLDocumentResponse object,
@@ -128,11 +252,18 @@ public class ScriptProcessor implements DocumentProcessor {
 				
 				// Process the variables map using registered VariableProviders
 				for(VariableProvider provider : _VarProviders) {
-					provider.provide(doc.getDomain(), vars);
+					long start = HandlerMetrics.start();
+					try {
+						provider.provide(doc.getDomain(), vars);
+					} catch(RuntimeException | Error e) {
+						HandlerMetrics.failed(provider, e);
+						throw e;
+					}
+					HandlerMetrics.record(provider, doc.getDomain(), start);
 				}
 				
-				// Run document through processor
-				doc.setText(processDocument(tmp, vars, doc.getDomain()));
+				// Run document through processor, reusing its compiled form if it did not change
+				doc.setText(processDocument("doc:"+doc.getDomain()+':'+doc.getPath(), tmp, vars, doc.getDomain()));
 			}
 		}
 	}
@@ -140,12 +271,20 @@ public class ScriptProcessor implements DocumentProcessor {
 	// Class to be used by scripts to output content
 	public static class Out {
 		private StringBuilder result = new StringBuilder();
+		private int start = 0;
 		private String dom = null;
 		
 		public Out(String domain) {
 			dom = domain;
 		}
 		
+		// Appends output straight to the buffer a document is being rendered into
+		Out(String domain, StringBuilder buffer) {
+			dom = domain;
+			result = buffer;
+			start = buffer.length();
+		}
+		
 		public void append(Object content) {
 			result.append(content.toString());
 		}
@@ -174,7 +313,7 @@ public class ScriptProcessor implements DocumentProcessor {
 			try {
 				File inc = new File("domains/"+dom+"/"+path);
 				if(inc.isFile()) {
-					String content = DocumentBuilder.readFile(inc.getPath());
+					String content = FileLoader.readCached(inc);
 					
 					// Process content before appending it
 					content = processInclude(content, escapeScripts);
@@ -183,7 +322,7 @@ public class ScriptProcessor implements DocumentProcessor {
 					result.append(content);
 				} else if(inc.isDirectory()) {
 					for(File file : inc.listFiles()) {
-						String content = DocumentBuilder.readFile(file.getPath());
+						String content = FileLoader.readCached(file);
 						
 						// Process content before appending it
 						content = processInclude(content, escapeScripts);
@@ -198,7 +337,7 @@ public class ScriptProcessor implements DocumentProcessor {
 		}
 		
 		public String toString() {
-			return result.toString();
+			return result.substring(start);
 		}
 	}
 	
@@ -0,0 +1,219 @@
+package net.termer.twister.scripting;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import bsh.CallStack;
+import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.Parser;
+import net.termer.twister.Settings;
+
+/**
+ * A document with embedded scripting, compiled for repeated rendering.
+ * The document is split into literal text and script blocks once, and each
+ * script block is parsed into BeanShell syntax trees once, so rendering only
+ * has to evaluate the trees and append the results to a single buffer.
+ * @author termer
+ * @since 1.1
+ */
+public class ScriptTemplate {
+	// SimpleNode is not public, so its methods are looked up once and called reflectively
+	private static Method _EVAL_ = null;
+	private static Method _SET_SOURCE_FILE_ = null;
+	private static Class<?> _RETURN_CONTROL_ = null;
+	
+	static {
+		try {
+			Class<?> nodeClass = Class.forName("bsh.SimpleNode");
+			_EVAL_ = nodeClass.getMethod("eval", CallStack.class, Interpreter.class);
+			_EVAL_.setAccessible(true);
+			_SET_SOURCE_FILE_ = nodeClass.getMethod("setSourceFile", String.class);
+			_SET_SOURCE_FILE_.setAccessible(true);
+			_RETURN_CONTROL_ = Class.forName("bsh.ReturnControl");
+		} catch(Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private String _SOURCE_ = null;
+	private long _MODIFIED_ = -1;
+	private Segment[] _SEGMENTS_ = null;
+	private boolean _HAS_SCRIPTS_ = false;
+	
+	/**
+	 * Compiles the specified document
+	 * @param document the document to compile
+	 * @since 1.1
+	 */
+	public ScriptTemplate(String document) {
+		this(document, -1);
+	}
+	
+	/**
+	 * Compiles the specified document, remembering the modification time of the file it was read from
+	 * @param document the document to compile
+	 * @param modified the modification time of the document's file, or -1 if it was not read from a file
+	 * @since 1.1
+	 */
+	public ScriptTemplate(String document, long modified) {
+		_SOURCE_ = document;
+		_MODIFIED_ = modified;
+		
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		int index = 0;
+		while(index < document.length()) {
+			int opening = document.indexOf("<?java", index);
+			int closing = opening < 0 ? -1 : document.indexOf("?>", opening+6);
+			if(closing < 0) {
+				// No more complete script blocks
+				segments.add(new Segment(document.substring(index)));
+				break;
+			}
+			
+			if(opening > index) {
+				segments.add(new Segment(document.substring(index, opening)));
+			}
+			segments.add(Segment.compile(document.substring(opening+6, closing)));
+			_HAS_SCRIPTS_ = true;
+			index = closing+2;
+		}
+		
+		_SEGMENTS_ = segments.toArray(new Segment[0]);
+	}
+	
+	/**
+	 * Returns the text this template was compiled from
+	 * @return the source text
+	 * @since 1.1
+	 */
+	public String getSource() {
+		return _SOURCE_;
+	}
+	
+	/**
+	 * Returns the modification time of the file this template was compiled from
+	 * @return the modification time, or -1 if the template was not compiled from a file
+	 * @since 1.1
+	 */
+	public long getModified() {
+		return _MODIFIED_;
+	}
+	
+	/**
+	 * Returns whether the template contains any script blocks
+	 * @return whether the template contains scripts
+	 * @since 1.1
+	 */
+	public boolean hasScripts() {
+		return _HAS_SCRIPTS_;
+	}
+	
+	/**
+	 * Renders the template, evaluating its scripts with the provided interpreter
+	 * @param inter the interpreter to evaluate scripts with, with all script variables already set
+	 * @param domain the domain the document belongs to
+	 * @return the rendered document
+	 * @since 1.1
+	 */
+	public String render(Interpreter inter, String domain) {
+		if(!_HAS_SCRIPTS_) {
+			return _SOURCE_;
+		}
+		
+		StringBuilder buf = new StringBuilder(_SOURCE_.length()+256);
+		render(inter, domain, buf);
+		return buf.toString();
+	}
+	
+	/**
+	 * Renders the template into the provided buffer, evaluating its scripts with the provided interpreter
+	 * @param inter the interpreter to evaluate scripts with, with all script variables already set
+	 * @param domain the domain the document belongs to
+	 * @param buf the buffer to render into
+	 * @since 1.1
+	 */
+	public void render(Interpreter inter, String domain, StringBuilder buf) {
+		for(Segment segment : _SEGMENTS_) {
+			if(segment.nodes == null && segment.error == null) {
+				buf.append(segment.text);
+			} else {
+				int start = buf.length();
+				ScriptProcessor.Out result = new ScriptProcessor.Out(domain, buf);
+				try {
+					inter.set("out", result);
+					if(segment.error != null) {
+						throw segment.error;
+					}
+					
+					NameSpace ns = inter.getNameSpace();
+					for(Object node : segment.nodes) {
+						Object value = _EVAL_.invoke(node, new CallStack(ns), inter);
+						if(_RETURN_CONTROL_.isInstance(value)) {
+							// The script returned early
+							break;
+						}
+					}
+				} catch(Throwable t) {
+					if(t instanceof InvocationTargetException) {
+						t = t.getCause();
+					}
+					t.printStackTrace();
+					// Append error if enabled
+					if(Settings.get("append-scripting-exceptions").equalsIgnoreCase("true")) {
+						result.append(t.getMessage());
+					}
+				}
+				
+				// Included files may contain scripts of their own
+				if(buf.indexOf("<?java", start) > -1) {
+					String output = buf.substring(start);
+					buf.setLength(start);
+					new ScriptTemplate(output).render(inter, domain, buf);
+				}
+			}
+		}
+	}
+	
+	// A piece of literal text, or a parsed script block
+	private static class Segment {
+		private String text = null;
+		private Object[] nodes = null;
+		private Throwable error = null;
+		
+		private Segment(String text) {
+			this.text = text;
+		}
+		
+		// Parses a script block into syntax trees, keeping the error if it cannot be parsed
+		private static Segment compile(String script) {
+			Segment segment = new Segment(script);
+			
+			String statements = script.trim();
+			if(!statements.endsWith(";")) {
+				statements += ';';
+			}
+			
+			try {
+				Parser parser = new Parser(new StringReader(statements));
+				ArrayList<Object> nodes = new ArrayList<Object>();
+				boolean eof = false;
+				while(!eof) {
+					eof = parser.Line();
+					Object node = parser.popNode();
+					if(node != null) {
+						_SET_SOURCE_FILE_.invoke(node, "inline evaluation of: ``"+statements+"''");
+						nodes.add(node);
+					}
+				}
+				segment.nodes = nodes.toArray();
+			} catch(Throwable t) {
+				segment.error = t instanceof InvocationTargetException ? t.getCause() : t;
+			}
+			
+			return segment;
+		}
+	}
+}
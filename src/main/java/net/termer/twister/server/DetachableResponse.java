@@ -0,0 +1,130 @@
+package net.termer.twister.server;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response given to Spark, which can be detached from the thread handling the request, so it is sent later.
+ * Once detached, Spark sees the response as committed and does not write to it,
+ * and the response is finished by calling complete() instead of when Spark is done.
+ * Every request handled by Twister has one, stored in the request attribute ATTRIBUTE.
+ * @author termer
+ * @since 1.1
+ */
+public class DetachableResponse extends HttpServletResponseWrapper {
+	/**
+	 * The request attribute the response is stored in
+	 * @since 1.1
+	 */
+	public static final String ATTRIBUTE = "net.termer.twister.server.DetachableResponse";
+	
+	private HttpServletRequest _REQUEST_ = null;
+	private AsyncContext _ASYNC_ = null;
+	private volatile boolean _DETACHED_ = false;
+	private boolean _COMPLETED_ = false;
+	private Runnable _ON_COMPLETE_ = null;
+	
+	// Creates a response for a request, which may already be in async mode
+	DetachableResponse(HttpServletRequest request, HttpServletResponse response, AsyncContext async) {
+		super(response);
+		_REQUEST_ = request;
+		_ASYNC_ = async;
+		request.setAttribute(ATTRIBUTE, this);
+	}
+	
+	/**
+	 * Detaches the response from the thread handling the request, putting the request in async mode if it is not yet.
+	 * complete() must be called once the response was written.
+	 * @since 1.1
+	 */
+	public synchronized void detach() {
+		if(!_DETACHED_) {
+			if(_ASYNC_ == null) {
+				_ASYNC_ = _REQUEST_.startAsync();
+				_ASYNC_.setTimeout(0);
+			}
+			_DETACHED_ = true;
+		}
+	}
+	
+	/**
+	 * Returns whether the response was detached
+	 * @return whether the response was detached
+	 * @since 1.1
+	 */
+	public boolean isDetached() {
+		return _DETACHED_;
+	}
+	
+	/**
+	 * Returns whether a response was detached
+	 * @param response the response
+	 * @return whether the response is a DetachableResponse that was detached
+	 * @since 1.1
+	 */
+	public static boolean isDetached(HttpServletResponse response) {
+		return response instanceof DetachableResponse && ((DetachableResponse) response).isDetached();
+	}
+	
+	/**
+	 * Returns the response this wraps, which detached responses are written to
+	 * @return the wrapped response
+	 * @since 1.1
+	 */
+	public HttpServletResponse getWrapped() {
+		return (HttpServletResponse) getResponse();
+	}
+	
+	public boolean isCommitted() {
+		return _DETACHED_ || super.isCommitted();
+	}
+	
+	/**
+	 * Finishes a detached response. Does nothing if it was already finished.
+	 * @since 1.1
+	 */
+	public void complete() {
+		boolean complete = false;
+		Runnable done = null;
+		synchronized(this) {
+			complete = _DETACHED_ && !_COMPLETED_;
+			if(complete) {
+				_COMPLETED_ = true;
+				done = _ON_COMPLETE_;
+			}
+		}
+		
+		if(complete) {
+			try {
+				_ASYNC_.complete();
+			} finally {
+				if(done != null) {
+					done.run();
+				}
+			}
+		}
+	}
+	
+	// Called once Spark is done with the request, and runs the callback once the response is finished
+	void finish(Runnable done) {
+		boolean pending = false;
+		synchronized(this) {
+			pending = _DETACHED_ && !_COMPLETED_;
+			if(pending) {
+				_ON_COMPLETE_ = done;
+			}
+		}
+		
+		if(!pending) {
+			try {
+				if(!_DETACHED_ && _ASYNC_ != null) {
+					_ASYNC_.complete();
+				}
+			} finally {
+				done.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package net.termer.twister.server;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Wraps the handler Spark installs in Jetty, to hand requests to the RequestExecutor
+ * and apply the per-domain request limit.
+ * Requests handed to the executor are put in async mode, so the Jetty thread that received them is released right away.
+ * Requests are given to Spark with a DetachableResponse, so handlers can finish them later.
+ * @author termer
+ * @since 1.1
+ */
+public class ExecutorHandler extends HandlerWrapper {
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		if(request.getDispatcherType() == DispatcherType.REQUEST) {
+			Semaphore slot = RequestExecutor.acquire(request.getServerName() == null ? "" : request.getServerName().toLowerCase());
+			if(slot == RequestExecutor.NO_SLOT) {
+				// The domain is busy, so it does not get to take threads from other domains
+				baseRequest.setHandled(true);
+				busy(response);
+			} else {
+				ExecutorService executor = RequestExecutor.getExecutor();
+				if(executor != null) {
+					AsyncContext async = request.startAsync();
+					async.setTimeout(0);
+					DetachableResponse detachable = new DetachableResponse(request, response, async);
+					try {
+						executor.execute(() -> {
+							try {
+								super.handle(target, baseRequest, request, detachable);
+							} catch(IOException | ServletException | RuntimeException | Error e) {
+								failed(response, e);
+							} finally {
+								detachable.finish(() -> release(slot));
+							}
+						});
+					} catch(RejectedExecutionException e) {
+						try {
+							if(executor.isShutdown()) {
+								// The executor was replaced while the request was handed to it, so handle it here
+								super.handle(target, baseRequest, request, detachable);
+							} else {
+								// Too many requests are queued already
+								baseRequest.setHandled(true);
+								busy(response);
+							}
+						} finally {
+							detachable.finish(() -> release(slot));
+						}
+					}
+				} else {
+					DetachableResponse detachable = new DetachableResponse(request, response, null);
+					try {
+						super.handle(target, baseRequest, request, detachable);
+					} finally {
+						detachable.finish(() -> release(slot));
+					}
+				}
+			}
+		} else {
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+	
+	// Tells the client to try again shortly
+	private void busy(HttpServletResponse response) throws IOException {
+		response.setHeader("Retry-After", "1");
+		response.sendError(503);
+	}
+	
+	// Releases a request's slot in its domain
+	private void release(Semaphore slot) {
+		if(slot != null) {
+			slot.release();
+		}
+	}
+	
+	// Responds with an error if a request handed to the executor failed before responding
+	private void failed(HttpServletResponse response, Throwable error) {
+		error.printStackTrace();
+		if(!response.isCommitted()) {
+			try {
+				response.sendError(500);
+			} catch(IOException | IllegalStateException e) {
+				// The client is gone
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package net.termer.twister.server;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.termer.twister.Settings;
+import net.termer.twister.Twister;
+
+/**
+ * Decides which threads requests are handled on, as set by request-execution in twister.ini.
+ * <ul>
+ * <li>pool: requests are handled on Jetty's threads, like previous versions did</li>
+ * <li>virtual: each request is handled on its own virtual thread, on Java versions that have them</li>
+ * <li>bounded: requests are handled on up to request-execution-threads threads</li>
+ * </ul>
+ * With virtual or bounded execution, Jetty's threads are released while handlers block,
+ * so slow handlers cannot keep Jetty from serving other requests.
+ * Bounded execution queues up to request-execution-queue requests while all threads are busy,
+ * requests beyond that are answered with 503 Service Unavailable.
+ * Virtual execution falls back to bounded execution on Java versions without virtual threads.
+ * The amount of requests handled at once per domain can also be limited with domain-request-limit.
+ * Linked domains share the limit of the domain they are linked to.
+ * @author termer
+ * @since 1.1
+ */
+public class RequestExecutor {
+	/**
+	 * Handling requests on Jetty's threads
+	 * @since 1.1
+	 */
+	public static final String POOL = "pool";
+	
+	/**
+	 * Handling each request on its own virtual thread
+	 * @since 1.1
+	 */
+	public static final String VIRTUAL = "virtual";
+	
+	/**
+	 * Handling requests on a bounded amount of threads
+	 * @since 1.1
+	 */
+	public static final String BOUNDED = "bounded";
+	
+	/**
+	 * Returned by acquire() when a domain is already handling as many requests as it may
+	 * @since 1.1
+	 */
+	public static final Semaphore NO_SLOT = new Semaphore(0);
+	
+	// Domains come from the Host header, so the amount that get their own limit is limited too
+	private static final int MAX_DOMAINS = 1024;
+	
+	private static volatile ExecutorService _EXECUTOR_ = null;
+	private static volatile String _MODE_ = POOL;
+	
+	// Requests being handled per domain, if they are limited
+	private static volatile int _DOMAIN_LIMIT_ = 0;
+	private static volatile ConcurrentHashMap<String,Semaphore> _DOMAINS_ = new ConcurrentHashMap<String,Semaphore>();
+	// Shared by all domains beyond MAX_DOMAINS
+	private static volatile Semaphore _OTHER_ = new Semaphore(0);
+	
+	/**
+	 * Applies the request-execution, request-execution-threads, request-execution-queue, and domain-request-limit settings from twister.ini.
+	 * Requests already handed to the previous executor still finish on it.
+	 * @since 1.1
+	 */
+	public static synchronized void configure() {
+		String mode = Settings.get("request-execution").trim().toLowerCase();
+		int threads = number("request-execution-threads");
+		int queue = number("request-execution-queue");
+		int limit = Math.max(0, number("domain-request-limit"));
+		
+		ExecutorService old = _EXECUTOR_;
+		ExecutorService executor = null;
+		if(mode.equals(VIRTUAL)) {
+			executor = virtualExecutor();
+			if(executor == null) {
+				log("Virtual threads are not available on this version of Java, requests will be handled on up to "+threads+" threads instead");
+				mode = BOUNDED;
+			}
+		} else if(!mode.equals(BOUNDED)) {
+			if(!mode.equals(POOL)) {
+				log("Unknown request-execution \""+mode+"\", requests will be handled on Jetty's threads");
+			}
+			mode = POOL;
+		}
+		if(mode.equals(BOUNDED)) {
+			executor = boundedExecutor(threads, queue);
+		}
+		
+		_EXECUTOR_ = executor;
+		_MODE_ = mode;
+		if(limit != _DOMAIN_LIMIT_) {
+			// Requests keep the semaphore they acquired, so replacing the map does not lose permits
+			_DOMAINS_ = new ConcurrentHashMap<String,Semaphore>();
+			_OTHER_ = new Semaphore(limit);
+			_DOMAIN_LIMIT_ = limit;
+		}
+		
+		if(old != null) {
+			old.shutdown();
+		}
+	}
+	
+	/**
+	 * Returns how requests are handled
+	 * @return POOL, VIRTUAL, or BOUNDED
+	 * @since 1.1
+	 */
+	public static String getMode() {
+		return _MODE_;
+	}
+	
+	/**
+	 * Returns the executor requests are handed to
+	 * @return the executor, or null if requests are handled on Jetty's threads
+	 * @since 1.1
+	 */
+	public static ExecutorService getExecutor() {
+		return _EXECUTOR_;
+	}
+	
+	/**
+	 * Takes a slot for a request to a domain, if the amount of requests per domain is limited.
+	 * Once MAX_DOMAINS domains have their own slots, the slots of any other domain are shared.
+	 * @param domain the domain, as sent by the client
+	 * @return the semaphore to release when the request is done, null if requests are not limited,
+	 * or NO_SLOT if the domain is already handling as many requests as it may
+	 * @since 1.1
+	 */
+	public static Semaphore acquire(String domain) {
+		Semaphore r = null;
+		int limit = _DOMAIN_LIMIT_;
+		
+		if(limit > 0) {
+			// Linked domains are the same site, so they share its slots
+			HashMap<String,String> linked = Twister.linkedDomains;
+			if(linked != null && linked.containsKey(domain)) {
+				domain = linked.get(domain);
+			}
+			
+			ConcurrentHashMap<String,Semaphore> domains = _DOMAINS_;
+			Semaphore semaphore = domains.get(domain);
+			if(semaphore == null) {
+				if(domains.size() >= MAX_DOMAINS) {
+					semaphore = _OTHER_;
+				} else {
+					semaphore = new Semaphore(limit);
+					Semaphore existing = domains.putIfAbsent(domain, semaphore);
+					if(existing != null) {
+						semaphore = existing;
+					}
+				}
+			}
+			r = semaphore.tryAcquire() ? semaphore : NO_SLOT;
+		}
+		
+		return r;
+	}
+	
+	// Creates an executor that starts a virtual thread per task, or returns null if virtual threads are not available
+	private static ExecutorService virtualExecutor() {
+		ExecutorService r = null;
+		
+		// Looked up at runtime, so Twister still runs on Java 8
+		try {
+			r = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException | SecurityException e) {
+			// Not available
+		}
+		
+		return r;
+	}
+	
+	// Creates an executor with a bounded amount of threads, which queues a bounded amount of requests when all of them are busy
+	private static ExecutorService boundedExecutor(int threads, int queue) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadFactory() {
+			private AtomicInteger _COUNT_ = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "twister-request-"+_COUNT_.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	// Reads a number from twister.ini, using its default if it is invalid
+	private static int number(String setting) {
+		int r = 0;
+		try {
+			r = Integer.parseInt(Settings.get(setting).trim());
+		} catch(NumberFormatException e) {
+			log("Invalid "+setting+" in twister.ini, using "+Settings.getDefault(setting));
+			r = Integer.parseInt(Settings.getDefault(setting));
+		}
+		return r;
+	}
+	
+	// Logs a warning, if Twister was started
+	private static void log(String msg) {
+		if(Twister.current() != null) {
+			Twister.current().logWarning(msg);
+		} else {
+			System.err.println(msg);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package net.termer.twister.server;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+/**
+ * Creates the Jetty servers Spark runs on.
+ * Servers are created the same way Spark creates them by default,
+ * with Twister's request log attached, and with Spark's handler wrapped in an ExecutorHandler
+ * so requests are handled on the threads set by request-execution in twister.ini.
+ * @author termer
+ * @since 1.1
+ */
+public class TwisterServerFactory implements JettyServerFactory {
+	private RequestLog _REQUEST_LOG_ = null;
+	
+	/**
+	 * Creates a new factory for servers using the provided request log
+	 * @param requestLog the request log to attach to servers
+	 * @since 1.1
+	 */
+	public TwisterServerFactory(RequestLog requestLog) {
+		_REQUEST_LOG_ = requestLog;
+	}
+	
+	public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+		Server server = null;
+		
+		if(maxThreads > 0) {
+			int min = minThreads > 0 ? minThreads : 8;
+			int idleTimeout = threadTimeoutMillis > 0 ? threadTimeoutMillis : 60000;
+			server = new TwisterServer(new QueuedThreadPool(maxThreads, min, idleTimeout));
+		} else {
+			server = new TwisterServer(null);
+		}
+		server.setRequestLog(_REQUEST_LOG_);
+		
+		return server;
+	}
+	
+	public Server create(ThreadPool threadPool) {
+		Server server = new TwisterServer(threadPool);
+		server.setRequestLog(_REQUEST_LOG_);
+		
+		return server;
+	}
+	
+	// Server that wraps the handler Spark sets in an ExecutorHandler
+	private static class TwisterServer extends Server {
+		private TwisterServer(ThreadPool threadPool) {
+			super(threadPool);
+		}
+		
+		public void setHandler(Handler handler) {
+			ExecutorHandler wrapper = new ExecutorHandler();
+			wrapper.setHandler(handler);
+			super.setHandler(wrapper);
+		}
+	}
+}
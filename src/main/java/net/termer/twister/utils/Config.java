@@ -176,14 +176,7 @@ public class Config {
 	public static ArrayList<String> getLines(File configFile, String comment) throws IOException {
 		ArrayList<String> lines = new ArrayList<String>();
 		
-		StringBuilder sb = new StringBuilder();
-		FileInputStream fin = new FileInputStream(configFile);
-		while(fin.available()>0) {
-			sb.append((char)fin.read());
-		}
-		fin.close();
-		
-		String tmp = sb.toString();
+		String tmp = FileLoader.read(configFile);
 		
 		if(tmp.contains("\n")) {
 			for(String str : tmp.split("\n")) {
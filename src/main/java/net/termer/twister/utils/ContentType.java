@@ -25,6 +25,20 @@ public class ContentType {
 		return type;
 	}
 	
+	/**
+	 * Gets the content type for the specified file name, based on its extension
+	 * @param name the file name
+	 * @return the correct content type for the file name
+	 * @since 1.1
+	 */
+	public static String getForFileName(String name) {
+		String ending = "";
+		if(name.contains(".")) {
+			ending = name.substring(name.lastIndexOf('.')+1);
+		}
+		return getForExtension(ending);
+	}
+	
 	/**
 	 * Sets the content type associated with the specified file extension
 	 * @param extension the file extension
@@ -1,6 +1,5 @@
 package net.termer.twister.utils;
 
-import java.io.File;
 import java.io.IOException;
 
 import net.termer.twister.Settings;
@@ -45,9 +44,9 @@ public class Domain {
 		boolean has = false;
 		
 		if(Boolean.parseBoolean(Settings.get("caching"))) {
-			has = TwisterCache._TOPS_.containsKey(_NAME_);
+			has = TwisterCache.snapshot().getTop(_NAME_) != null;
 		} else {
-			has = new File("domains/"+_NAME_+"/top.html").exists();
+			has = TwisterCache._FILES_.isFile(_NAME_+"/top.html");
 		}
 		
 		return has;
@@ -62,9 +61,9 @@ public class Domain {
 		boolean has = false;
 		
 		if(Boolean.parseBoolean(Settings.get("caching"))) {
-			has = TwisterCache._BOTTOMS_.containsKey(_NAME_);
+			has = TwisterCache.snapshot().getBottom(_NAME_) != null;
 		} else {
-			has = new File("domains/"+_NAME_+"/bottom.html").exists();
+			has = TwisterCache._FILES_.isFile(_NAME_+"/bottom.html");
 		}
 		
 		return has;
@@ -79,9 +78,9 @@ public class Domain {
 		boolean has = false;
 		
 		if(Boolean.parseBoolean(Settings.get("caching"))) {
-			has = TwisterCache._404S_.containsKey(_NAME_);
+			has = TwisterCache.snapshot().get404(_NAME_) != null;
 		} else {
-			has = new File("domains/"+_NAME_+"/404.html").exists();
+			has = TwisterCache._FILES_.isFile(_NAME_+"/404.html");
 		}
 		
 		return has;
@@ -126,12 +125,11 @@ public class Domain {
 	public String getTop() throws IOException {
 		String r = null;
 		
-		if(hasTop()) {
-			if(Boolean.parseBoolean(Settings.get("caching"))) {
-				r = TwisterCache._TOPS_.get(_NAME_);
-			} else {
-				r = DocumentBuilder.readFile("domains/"+_NAME_+"/top.html");
-			}
+		if(Boolean.parseBoolean(Settings.get("caching"))) {
+			// Read straight from the snapshot, so the file cannot disappear between checking for it and reading it
+			r = TwisterCache.snapshot().getTop(_NAME_);
+		} else if(hasTop()) {
+			r = DocumentBuilder.readFile("domains/"+_NAME_+"/top.html");
 		}
 		
 		return r;
@@ -146,12 +144,11 @@ public class Domain {
 	public String getBottom() throws IOException {
 		String r = null;
 		
-		if(hasTop()) {
-			if(Boolean.parseBoolean(Settings.get("caching"))) {
-				r = TwisterCache._BOTTOMS_.get(_NAME_);
-			} else {
-				r = DocumentBuilder.readFile("domains/"+_NAME_+"/bottom.html");
-			}
+		if(Boolean.parseBoolean(Settings.get("caching"))) {
+			// Read straight from the snapshot, so the file cannot disappear between checking for it and reading it
+			r = TwisterCache.snapshot().getBottom(_NAME_);
+		} else if(hasBottom()) {
+			r = DocumentBuilder.readFile("domains/"+_NAME_+"/bottom.html");
 		}
 		
 		return r;
@@ -166,12 +163,11 @@ public class Domain {
 	public String get404() throws IOException {
 		String r= null;
 		
-		if(has404()) {
-			if(Boolean.parseBoolean(Settings.get("caching"))) {
-				r = TwisterCache._404S_.get(_NAME_);
-			} else {
-				r = DocumentBuilder.readFile("domains/"+_NAME_+"/404.html");
-			}
+		if(Boolean.parseBoolean(Settings.get("caching"))) {
+			// Read straight from the snapshot, so the file cannot disappear between checking for it and reading it
+			r = TwisterCache.snapshot().get404(_NAME_);
+		} else if(has404()) {
+			r = DocumentBuilder.readFile("domains/"+_NAME_+"/404.html");
 		}
 		
 		return r;
@@ -237,6 +233,6 @@ public class Domain {
 	 * @since 0.2
 	 */
 	public boolean exists() {
-		return new File("domains/"+_NAME_+"/").exists();
+		return TwisterCache._FILES_.exists(_NAME_);
 	}
 }
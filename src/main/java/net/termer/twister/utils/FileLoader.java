@@ -0,0 +1,189 @@
+package net.termer.twister.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.termer.twister.Settings;
+import net.termer.twister.Twister;
+
+/**
+ * Utility class for reading text files.
+ * Files are read whole with NIO, or memory-mapped if they are large, and decoded
+ * with the charset set in twister.ini. Small files that are read over and over,
+ * such as included files, can be read through a cache that is checked against
+ * the file's modification time and size.
+ * @author termer
+ * @since 1.1
+ */
+public class FileLoader {
+	// Files larger than this are memory-mapped instead of being copied into an array first
+	private static final long MAP_THRESHOLD = 1048576;
+	
+	// Limits of the cache used by readCached()
+	private static final int CACHE_MAX_FILES = 256;
+	private static final long CACHE_MAX_FILE_SIZE = 262144;
+	
+	private static volatile Charset _CHARSET_ = StandardCharsets.UTF_8;
+	
+	// Cached files in least recently used order
+	private static LinkedHashMap<String,Cached> _CACHE_ = new LinkedHashMap<String,Cached>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String,Cached> eldest) {
+			return size() > CACHE_MAX_FILES;
+		}
+	};
+	
+	/**
+	 * Applies the charset from twister.ini, and clears the cache
+	 * @since 1.1
+	 */
+	public static void configure() {
+		try {
+			_CHARSET_ = Charset.forName(Settings.get("charset"));
+		} catch(IllegalArgumentException e) {
+			logError("Invalid charset in twister.ini, using UTF-8");
+			_CHARSET_ = StandardCharsets.UTF_8;
+		}
+		synchronized(_CACHE_) {
+			_CACHE_.clear();
+		}
+	}
+	
+	/**
+	 * Returns the charset files are decoded with
+	 * @return the charset
+	 * @since 1.1
+	 */
+	public static Charset getCharset() {
+		return _CHARSET_;
+	}
+	
+	/**
+	 * Reads a whole file, decoding it with the configured charset
+	 * @param file the file to read
+	 * @return the content of the file
+	 * @throws IOException if the file does not exist, or reading it fails
+	 * @since 1.1
+	 */
+	public static String read(File file) throws IOException {
+		return read(file, _CHARSET_);
+	}
+	
+	/**
+	 * Reads a whole file, decoding it with the provided charset
+	 * @param file the file to read
+	 * @param charset the charset to decode the file with
+	 * @return the content of the file
+	 * @throws IOException if the file does not exist, or reading it fails
+	 * @since 1.1
+	 */
+	public static String read(File file, Charset charset) throws IOException {
+		String r = null;
+		
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size > MAP_THRESHOLD) {
+				// Decode straight from the mapped file
+				r = charset.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).toString();
+			} else {
+				ByteBuffer buf = ByteBuffer.allocate((int) size);
+				while(buf.hasRemaining()) {
+					if(channel.read(buf) < 0) {
+						// The file got shorter while reading it
+						break;
+					}
+				}
+				r = new String(buf.array(), 0, buf.position(), charset);
+			}
+		} finally {
+			channel.close();
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * Reads a whole file like read() does, but keeps small files in a cache.
+	 * The cached content is only used if the file's modification time and size did not change.
+	 * @param file the file to read
+	 * @return the content of the file
+	 * @throws IOException if the file does not exist, or reading it fails
+	 * @since 1.1
+	 */
+	public static String readCached(File file) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		long modified = attrs.lastModifiedTime().toMillis();
+		if(attrs.size() > CACHE_MAX_FILE_SIZE) {
+			return read(file);
+		}
+		
+		String key = file.getAbsolutePath();
+		Cached cached = null;
+		synchronized(_CACHE_) {
+			cached = _CACHE_.get(key);
+		}
+		
+		if(cached == null || cached.modified != modified || cached.size != attrs.size()) {
+			cached = new Cached(read(file), modified, attrs.size());
+			synchronized(_CACHE_) {
+				_CACHE_.put(key, cached);
+			}
+		}
+		
+		return cached.text;
+	}
+	
+	/**
+	 * Reads a stream until it ends, decoding it with the provided charset.
+	 * The stream is not closed.
+	 * @param in the stream to read
+	 * @param charset the charset to decode the stream with
+	 * @return the content of the stream
+	 * @throws IOException if reading the stream fails
+	 * @since 1.1
+	 */
+	public static String read(InputStream in, Charset charset) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read = 0;
+		while((read = in.read(buf)) > -1) {
+			out.write(buf, 0, read);
+		}
+		return new String(out.toByteArray(), charset);
+	}
+	
+	// Logs an error, also while Twister is still being created and current() is null
+	private static void logError(String msg) {
+		if(Twister.current() != null) {
+			Twister.current().logError(msg);
+		} else {
+			System.err.println(msg);
+		}
+	}
+	
+	// A cached file and what it looked like when it was read
+	private static class Cached {
+		private String text = null;
+		private long modified = 0;
+		private long size = 0;
+		
+		private Cached(String text, long modified, long size) {
+			this.text = text;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+}
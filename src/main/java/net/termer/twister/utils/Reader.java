@@ -1,10 +1,11 @@
 package net.termer.twister.utils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
 
 /**
  * Utility class to read files and HTTP content
@@ -20,20 +21,7 @@ public class Reader {
 	 * @since 1.0
 	 */
 	public static String readFile(String path) throws IOException {
-		StringBuilder fileData = new StringBuilder(1000);//Constructs a string buffer with no characters in it and the specified initial capacity
-		BufferedReader reader = new BufferedReader(new FileReader(path));
-		
-		char[] buf = new char[1024];
-		int numRead = 0;
-		while ((numRead = reader.read(buf)) != -1) {
-			String readData = String.valueOf(buf, 0, numRead);
-			fileData.append(readData);
-			buf = new char[1024];
-		}
-		
-		reader.close();
- 
-		return fileData.toString();
+		return FileLoader.read(new File(path));
 	}
 	
 	/**
@@ -44,13 +32,25 @@ public class Reader {
 	 * @since 1.0
 	 */
 	public static String readHTTP(String url) throws IOException {
-		StringBuilder sb = new StringBuilder();
-		URL loc = new URL(url);
-		InputStream is = loc.openStream();
-		while(is.available()>0) {
-			sb.append((char)is.read());
+		URLConnection conn = new URL(url).openConnection();
+		
+		// Use the charset the server sent, if any
+		Charset charset = FileLoader.getCharset();
+		String type = conn.getContentType();
+		if(type != null && type.toLowerCase().contains("charset=")) {
+			String name = type.substring(type.toLowerCase().indexOf("charset=")+8).split(";")[0].trim().replace("\"", "");
+			try {
+				charset = Charset.forName(name);
+			} catch(IllegalArgumentException e) {
+				// Unknown charset, keep the default
+			}
+		}
+		
+		InputStream is = conn.getInputStream();
+		try {
+			return FileLoader.read(is, charset);
+		} finally {
+			is.close();
 		}
-		is.close();
-		return sb.toString();
 	}
 }